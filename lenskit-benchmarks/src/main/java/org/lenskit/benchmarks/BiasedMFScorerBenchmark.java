@@ -0,0 +1,125 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.grouplens.lenskit.iterative.IterationCountStoppingCondition;
+import org.grouplens.lenskit.iterative.StoppingCondition;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.LenskitRecommenderEngine;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.api.ResultMap;
+import org.lenskit.baseline.BaselineScorer;
+import org.lenskit.baseline.ItemMeanRatingItemScorer;
+import org.lenskit.baseline.UserMeanBaseline;
+import org.lenskit.baseline.UserMeanItemScorer;
+import org.lenskit.data.dao.EventDAO;
+import org.lenskit.data.ratings.PackedRatingMatrix;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.mf.als.ALSModelBuilder;
+import org.lenskit.mf.funksvd.FeatureCount;
+import org.lenskit.mf.funksvd.FunkSVDItemScorer;
+import org.lenskit.mf.svd.BiasedMFItemScorer;
+import org.lenskit.mf.svd.MFModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark biased matrix factorization scoring.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BiasedMFScorerBenchmark extends RatingDataState {
+    /**
+     * The model to train: {@code als} (scored by {@link BiasedMFItemScorer}) or {@code funksvd}
+     * (scored by {@link FunkSVDItemScorer}).
+     */
+    @Param({"als", "funksvd"})
+    public String algorithm;
+    @Param("40")
+    public int features;
+
+    private LenskitRecommender recommender;
+    private ItemScorer scorer;
+
+    /**
+     * Create the configuration for a biased MF recommender.
+     *
+     * @param dao       The DAO.
+     * @param algorithm The training algorithm ({@code als} or {@code funksvd}).
+     * @param features  The number of latent features.
+     * @return The configuration.
+     */
+    @SuppressWarnings("unchecked")
+    static LenskitConfiguration configure(EventDAO dao, String algorithm, int features) {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(EventDAO.class).to(dao);
+        config.bind(RatingMatrix.class).to(PackedRatingMatrix.class);
+        switch (algorithm) {
+        case "als":
+            config.bind(ItemScorer.class).to(BiasedMFItemScorer.class);
+            config.bind(MFModel.class).toProvider(ALSModelBuilder.class);
+            break;
+        case "funksvd":
+            config.bind(ItemScorer.class).to(FunkSVDItemScorer.class);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown MF algorithm " + algorithm);
+        }
+        config.bind(BaselineScorer.class, ItemScorer.class)
+              .to(UserMeanItemScorer.class);
+        config.bind(UserMeanBaseline.class, ItemScorer.class)
+              .to(ItemMeanRatingItemScorer.class);
+        config.bind(StoppingCondition.class)
+              .to(IterationCountStoppingCondition.class);
+        config.set(IterationCount.class)
+              .to(10);
+        config.set(FeatureCount.class)
+              .to(features);
+        return config;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws RecommenderBuildException {
+        loadData();
+        LenskitConfiguration config = configure(makeDAO(), algorithm, features);
+        recommender = LenskitRecommenderEngine.build(config).createRecommender();
+        scorer = recommender.getItemScorer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        recommender.close();
+    }
+
+    @Benchmark
+    public ResultMap scoreWithDetails() {
+        int q = nextQuery();
+        return scorer.scoreWithDetails(queryUser(q), queryItems(q));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import org.lenskit.data.events.Event;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.packed.BinaryRatingDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark user and item lookup in a packed rating file, with fixed-width or compressed
+ * columnar rating records.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BinaryRatingDAOBenchmark extends RatingDataState {
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private File file;
+    private BinaryRatingDAO dao;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        loadData();
+        file = File.createTempFile("ratings", ".pack");
+        SyntheticRatings.writePacked(getRatings(), file, compressed);
+        dao = BinaryRatingDAO.open(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dao = null;
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public UserHistory<Event> getEventsForUser() {
+        return dao.getEventsForUser(queryUser(nextQuery()));
+    }
+
+    /**
+     * Look up a user history and walk all its events, since histories may be materialized
+     * lazily.
+     */
+    @Benchmark
+    public double getAndScanEventsForUser() {
+        double sum = 0;
+        for (Event e: dao.getEventsForUser(queryUser(nextQuery()))) {
+            sum += e.getTimestamp();
+        }
+        return sum;
+    }
+
+    /**
+     * Look up an item's events and walk them.  Item lists are scattered over the file, so this
+     * measures the random-access cost of the rating layout.
+     */
+    @Benchmark
+    public double getAndScanEventsForItem() {
+        double sum = 0;
+        for (Event e: dao.getEventsForItem(queryItems(nextQuery()).get(0))) {
+            sum += e.getTimestamp();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import com.google.common.primitives.Doubles;
+import it.unimi.dsi.fastutil.longs.AbstractLongComparator;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import org.apache.commons.lang3.tuple.Pair;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.lenskit.vectors.Vectors;
+import org.grouplens.lenskit.vectors.similarity.VectorSimilarity;
+import org.lenskit.util.math.Scalars;
+
+import java.util.Iterator;
+
+/**
+ * Reference similarity functions written in the entry-iterator style the similarity classes
+ * used before they were moved onto {@link org.grouplens.lenskit.vectors.VectorKernels}.  They
+ * give the kernel benchmarks a fixed baseline to compare against.
+ */
+@SuppressWarnings("deprecation")
+final class EntryIterationSimilarities {
+    private EntryIterationSimilarities() {}
+
+    static VectorSimilarity create(String name) {
+        switch (name) {
+        case "cosine":
+            return new Cosine();
+        case "pearson":
+            return new Pearson();
+        case "spearman":
+            return new Spearman();
+        case "sigweight":
+            return new SigWeighted(new Pearson(), 50);
+        default:
+            throw new IllegalArgumentException("unknown similarity " + name);
+        }
+    }
+
+    private abstract static class Base implements VectorSimilarity {
+        @Override
+        public boolean isSparse() {
+            return true;
+        }
+
+        @Override
+        public boolean isSymmetric() {
+            return true;
+        }
+    }
+
+    static double dot(SparseVector v1, SparseVector v2) {
+        double dot = 0;
+        for (Pair<VectorEntry,VectorEntry> pair: Vectors.fastIntersect(v1, v2)) {
+            dot += pair.getLeft().getValue() * pair.getRight().getValue();
+        }
+        return dot;
+    }
+
+    static double norm(SparseVector v) {
+        double ssq = 0;
+        for (VectorEntry e: v.fast()) {
+            ssq += e.getValue() * e.getValue();
+        }
+        return Math.sqrt(ssq);
+    }
+
+    static int countCommonKeys(SparseVector v1, SparseVector v2) {
+        int count = 0;
+        Iterator<VectorEntry> i1 = v1.iterator();
+        Iterator<VectorEntry> i2 = v2.iterator();
+
+        VectorEntry e1 = i1.hasNext() ? i1.next() : null;
+        VectorEntry e2 = i2.hasNext() ? i2.next() : null;
+
+        while (e1 != null && e2 != null) {
+            final long k1 = e1.getKey();
+            final long k2 = e2.getKey();
+            if (k1 < k2) {
+                e1 = i1.hasNext() ? i1.next() : null;
+            } else if (k2 < k1) {
+                e2 = i2.hasNext() ? i2.next() : null;
+            } else {
+                count += 1;
+                e1 = i1.hasNext() ? i1.next() : null;
+                e2 = i2.hasNext() ? i2.next() : null;
+            }
+        }
+        return count;
+    }
+
+    static class Cosine extends Base {
+        @Override
+        public double similarity(SparseVector vec1, SparseVector vec2) {
+            final double dot = dot(vec1, vec2);
+            final double denom = norm(vec1) * norm(vec2);
+            if (Scalars.isZero(denom)) {
+                return 0;
+            } else {
+                return dot / denom;
+            }
+        }
+    }
+
+    static class Pearson extends Base {
+        @Override
+        public double similarity(SparseVector vec1, SparseVector vec2) {
+            if (vec1.isEmpty() || vec2.isEmpty()) {
+                return 0;
+            }
+
+            double sum1 = 0;
+            double sum2 = 0;
+            int n = 0;
+            for (Pair<VectorEntry,VectorEntry> pair: Vectors.fastIntersect(vec1, vec2)) {
+                sum1 += pair.getLeft().getValue();
+                sum2 += pair.getRight().getValue();
+                n += 1;
+            }
+
+            if (n == 0) {
+                return 0;
+            }
+
+            final double mu1 = sum1 / n;
+            final double mu2 = sum2 / n;
+
+            double var1 = 0;
+            double var2 = 0;
+            double dot = 0;
+            for (Pair<VectorEntry,VectorEntry> pair: Vectors.fastIntersect(vec1, vec2)) {
+                final double v1 = pair.getLeft().getValue() - mu1;
+                final double v2 = pair.getRight().getValue() - mu2;
+                var1 += v1 * v1;
+                var2 += v2 * v2;
+                dot += v1 * v2;
+            }
+
+            return dot / Math.sqrt(var1 * var2);
+        }
+    }
+
+    static class Spearman extends Base {
+        private final Pearson pearson = new Pearson();
+
+        static SparseVector rank(final SparseVector vec) {
+            long[] ids = vec.keySet().toLongArray();
+            LongArrays.quickSort(ids, new AbstractLongComparator() {
+                @Override
+                public int compare(long k1, long k2) {
+                    return Doubles.compare(vec.get(k2), vec.get(k1));
+                }
+            });
+
+            final int n = ids.length;
+            final double[] values = new double[n];
+            MutableSparseVector rank = vec.mutableCopy();
+            for (int i = 0; i < n; i++) {
+                rank.set(ids[i], i + 1);
+                values[i] = vec.get(ids[i]);
+            }
+
+            int i = 0;
+            while (i < n) {
+                int j;
+                for (j = i + 1; j < n; j++) {
+                    if (!Scalars.isZero(values[j] - values[i])) {
+                        break;
+                    }
+                }
+                if (j - i > 1) {
+                    double r2 = (rank.get(ids[i]) + rank.get(ids[j - 1])) / (j - i);
+                    for (int k = i; k < j; k++) {
+                        rank.set(ids[k], r2);
+                    }
+                }
+                i = j;
+            }
+            return rank;
+        }
+
+        @Override
+        public double similarity(SparseVector vec1, SparseVector vec2) {
+            return pearson.similarity(rank(vec1), rank(vec2));
+        }
+    }
+
+    static class SigWeighted extends Base {
+        private final VectorSimilarity delegate;
+        private final int threshold;
+
+        SigWeighted(VectorSimilarity sim, int thresh) {
+            delegate = sim;
+            threshold = thresh;
+        }
+
+        @Override
+        public double similarity(SparseVector vec1, SparseVector vec2) {
+            double s = delegate.similarity(vec1, vec2);
+            int n = countCommonKeys(vec1, vec2);
+            s *= n;
+            return s / Math.max(n, threshold);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.LenskitRecommenderEngine;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.api.ResultMap;
+import org.lenskit.data.dao.EventDAO;
+import org.lenskit.knn.item.ItemItemResult;
+import org.lenskit.knn.item.ItemItemScorer;
+import org.lenskit.knn.item.NeighborhoodScorer;
+import org.lenskit.knn.item.WeightedAverageNeighborhoodScorer;
+import org.lenskit.knn.item.model.ItemItemModel;
+import org.lenskit.knn.item.model.PackedSimilarityMatrixModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark item-item scoring against a model built from synthetic data.  The {@code map}
+ * implementation runs the old per-item map-based scoring loop, for comparison with the current
+ * {@code array} implementation; the {@code model} parameter selects the default similarity
+ * matrix or the packed (indexed) one.  Run with {@code -prof gc} to compare allocation rates
+ * as well as times:
+ *
+ * <pre>gradle :lenskit-benchmarks:jmh -Pjmh.include=ItemItemScorer '-Pjmh.args=-prof gc'</pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ItemItemScorerBenchmark extends RatingDataState {
+    @Param({"array", "map"})
+    public String implementation;
+    @Param({"matrix", "packed"})
+    public String model;
+
+    private LenskitRecommender recommender;
+    private ItemScorer scorer;
+
+    @Setup(Level.Trial)
+    public void setup() throws RecommenderBuildException {
+        loadData();
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(EventDAO.class).to(makeDAO());
+        config.bind(ItemScorer.class).to(ItemItemScorer.class);
+        switch (implementation) {
+        case "array":
+            config.bind(NeighborhoodScorer.class).to(WeightedAverageNeighborhoodScorer.class);
+            break;
+        case "map":
+            config.bind(NeighborhoodScorer.class).to(MapNeighborhoodScorer.class);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown implementation " + implementation);
+        }
+        switch (model) {
+        case "matrix":
+            break;
+        case "packed":
+            config.bind(ItemItemModel.class).to(PackedSimilarityMatrixModel.class);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown model " + model);
+        }
+        recommender = LenskitRecommenderEngine.build(config).createRecommender();
+        scorer = recommender.getItemScorer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        recommender.close();
+    }
+
+    @Benchmark
+    public ResultMap scoreWithDetails() {
+        int q = nextQuery();
+        return scorer.scoreWithDetails(queryUser(q), queryItems(q));
+    }
+
+    /**
+     * Weighted average scorer that overrides the map-based method, so the item scorer falls back
+     * to building a neighbor map for each item.
+     */
+    public static class MapNeighborhoodScorer extends WeightedAverageNeighborhoodScorer {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public ItemItemResult score(long item, Long2DoubleMap neighbors, Long2DoubleMap scores) {
+            return super.score(item, neighbors, scores);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.data.dao.EventCollectionDAO;
+import org.lenskit.data.dao.EventDAO;
+import org.lenskit.data.ratings.Rating;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Base class for benchmark states built on synthetic rating data.  It holds the data
+ * parameters and a fixed, cyclic sequence of queries (a user and a list of candidate items),
+ * so every run of a benchmark issues the same requests.
+ *
+ * <p>Subclasses call {@link #loadData()} from their trial-level setup method.  The query cursor
+ * is not synchronized; these states are meant for single-threaded benchmarks.
+ */
+public abstract class RatingDataState {
+    private static final int QUERY_COUNT = 1000;
+
+    @Param("1000")
+    public int users;
+    @Param("2000")
+    public int items;
+    @Param("0.02")
+    public double density;
+    @Param("100")
+    public int candidates;
+    @Param("42")
+    public long seed;
+
+    private List<Rating> ratings;
+    private long[] queryUsers;
+    private List<Long>[] queryItems;
+    private int cursor;
+
+    /**
+     * Generate the rating data and the query sequence.
+     */
+    @SuppressWarnings("unchecked")
+    protected void loadData() {
+        SyntheticRatings gen = new SyntheticRatings(users, items, density, seed);
+        ratings = gen.generate();
+
+        Random rng = new Random(seed + 1);
+        queryUsers = new long[QUERY_COUNT];
+        queryItems = new List[QUERY_COUNT];
+        LongSet picked = new LongOpenHashSet();
+        int ncand = Math.min(candidates, items);
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            queryUsers[i] = 1 + rng.nextInt(users);
+            picked.clear();
+            while (picked.size() < ncand) {
+                picked.add(1 + rng.nextInt(items));
+            }
+            queryItems[i] = new LongArrayList(picked);
+        }
+        cursor = 0;
+    }
+
+    /**
+     * Get the generated ratings.
+     * @return The ratings, sorted by user and item.
+     */
+    protected List<Rating> getRatings() {
+        return ratings;
+    }
+
+    /**
+     * Create an in-memory DAO over the generated ratings.
+     * @return The DAO.
+     */
+    protected EventDAO makeDAO() {
+        return EventCollectionDAO.create(ratings);
+    }
+
+    /**
+     * Advance to the next query.
+     * @return The index of the query, for use with {@link #queryUser(int)} and
+     *         {@link #queryItems(int)}.
+     */
+    protected int nextQuery() {
+        int q = cursor;
+        cursor = (cursor + 1) % QUERY_COUNT;
+        return q;
+    }
+
+    protected long queryUser(int q) {
+        return queryUsers[q];
+    }
+
+    protected List<Long> queryItems(int q) {
+        return queryItems[q];
+    }
+}
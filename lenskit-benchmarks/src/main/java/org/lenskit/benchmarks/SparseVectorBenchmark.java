@@ -0,0 +1,126 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark common {@link MutableSparseVector} operations on two partially-overlapping vectors.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+@SuppressWarnings("deprecation")
+public class SparseVectorBenchmark {
+    @Param({"20", "200", "2000"})
+    public int size;
+    @Param("42")
+    public long seed;
+
+    private MutableSparseVector left;
+    private MutableSparseVector right;
+    private long[] probes;
+    private int probe;
+
+    private static MutableSparseVector randomVector(Random rng, int size) {
+        long[] keys = new long[size];
+        double[] values = new double[size];
+        long k = 0;
+        for (int i = 0; i < size; i++) {
+            // keys spaced so that two vectors share about half their keys
+            k += 1 + rng.nextInt(3);
+            keys[i] = k;
+            values[i] = 1 + rng.nextInt(5);
+        }
+        return MutableSparseVector.wrap(keys, values);
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random rng = new Random(seed);
+        left = randomVector(rng, size);
+        right = randomVector(rng, size);
+        probes = new long[1024];
+        long max = left.keySet().lastLong();
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = 1 + (long) (rng.nextDouble() * max);
+        }
+    }
+
+    @Benchmark
+    public double dot() {
+        return left.dot(right);
+    }
+
+    @Benchmark
+    public double norm() {
+        return left.norm();
+    }
+
+    @Benchmark
+    public int countCommonKeys() {
+        return left.countCommonKeys(right);
+    }
+
+    @Benchmark
+    public double get() {
+        long key = probes[probe];
+        probe = (probe + 1) % probes.length;
+        return left.get(key, 0);
+    }
+
+    @Benchmark
+    public double iterate() {
+        double sum = 0;
+        for (VectorEntry e: left.fast()) {
+            sum += e.getValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public SparseVector copyAndAdd() {
+        MutableSparseVector v = left.copy();
+        v.add(right);
+        return v;
+    }
+
+    @Benchmark
+    public SparseVector copyAndMultiply() {
+        MutableSparseVector v = left.copy();
+        v.multiply(0.5);
+        return v;
+    }
+
+    @Benchmark
+    public SparseVector immutableCopy() {
+        return left.immutable();
+    }
+}
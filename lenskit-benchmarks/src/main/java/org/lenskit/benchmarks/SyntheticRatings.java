@@ -0,0 +1,174 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.lenskit.data.packed.BinaryFormatFlag;
+import org.lenskit.data.packed.BinaryRatingPacker;
+import org.lenskit.data.ratings.Rating;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic generator for synthetic rating data.  The same configuration and seed always
+ * produce the same ratings, so benchmark results are comparable across runs and releases.
+ *
+ * <p>The data is shaped to resemble real rating data: item popularity follows a power law, so a
+ * few items have many ratings and most have few; the number of ratings per user has a long
+ * tail; and rating values combine a user bias, an item bias, and noise, rounded to half stars
+ * on a 0.5&ndash;5 scale.  User IDs are 1 through the user count, and item IDs are 1 through
+ * the item count, with lower IDs being more popular.
+ */
+public class SyntheticRatings {
+    private final int userCount;
+    private final int itemCount;
+    private final double density;
+    private final long seed;
+
+    /**
+     * Create a new rating generator.
+     *
+     * @param users   The number of users.
+     * @param items   The number of items.
+     * @param density The fraction of the rating matrix to fill (on average).
+     * @param seed    The random seed.
+     */
+    public SyntheticRatings(int users, int items, double density, long seed) {
+        Preconditions.checkArgument(users > 0, "user count must be positive");
+        Preconditions.checkArgument(items > 1, "item count must be at least 2");
+        Preconditions.checkArgument(density > 0 && density <= 0.5, "density must be in (0, 0.5]");
+        userCount = users;
+        itemCount = items;
+        this.density = density;
+        this.seed = seed;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Generate the ratings.  Ratings are sorted by user, then by item, and have increasing
+     * timestamps.
+     *
+     * @return The list of ratings.
+     */
+    public List<Rating> generate() {
+        Random rng = new Random(seed);
+        double[] itemBias = new double[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            itemBias[i] = rng.nextGaussian() * 0.5;
+        }
+
+        final double meanCount = density * itemCount;
+        final int maxCount = itemCount / 2;
+        List<Rating> ratings = new ArrayList<Rating>((int) (meanCount * userCount * 1.1));
+        IntSet picked = new IntOpenHashSet();
+        long timestamp = 1000000000L;
+        for (int u = 0; u < userCount; u++) {
+            final long user = u + 1;
+            final double userBias = rng.nextGaussian() * 0.5;
+            // exponentially distributed profile sizes have the long tail we see in practice
+            int n = (int) Math.round(-meanCount * Math.log(1 - rng.nextDouble()));
+            n = Math.max(1, Math.min(n, maxCount));
+
+            picked.clear();
+            while (picked.size() < n) {
+                // squaring a uniform draw skews picks towards low (popular) item indexes
+                double x = rng.nextDouble();
+                picked.add((int) (x * x * itemCount));
+            }
+            int[] items = picked.toIntArray();
+            Arrays.sort(items);
+
+            for (int i: items) {
+                double v = 3.5 + userBias + itemBias[i] + rng.nextGaussian();
+                v = Math.round(v * 2) / 2.0;
+                v = Math.max(0.5, Math.min(5, v));
+                timestamp += 1 + rng.nextInt(1000);
+                ratings.add(Rating.create(user, i + 1, v, timestamp));
+            }
+        }
+        return ratings;
+    }
+
+    /**
+     * Write ratings to a comma-separated text file, with columns user, item, rating and timestamp.
+     *
+     * @param ratings The ratings to write.
+     * @param file    The output file.
+     * @throws IOException if there is an error writing the file.
+     */
+    public static void writeCSV(List<Rating> ratings, File file) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(file))) {
+            for (Rating r: ratings) {
+                out.write(Long.toString(r.getUserId()));
+                out.write(',');
+                out.write(Long.toString(r.getItemId()));
+                out.write(',');
+                out.write(Double.toString(r.getValue()));
+                out.write(',');
+                out.write(Long.toString(r.getTimestamp()));
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Write ratings to a packed binary rating file.
+     *
+     * @param ratings The ratings to write.
+     * @param file    The output file.
+     * @throws IOException if there is an error writing the file.
+     */
+    public static void writePacked(List<Rating> ratings, File file) throws IOException {
+        writePacked(ratings, file, false);
+    }
+
+    /**
+     * Write ratings to a packed binary rating file.
+     *
+     * @param ratings    The ratings to write.
+     * @param file       The output file.
+     * @param compressed Whether to write the compressed columnar layout.
+     * @throws IOException if there is an error writing the file.
+     */
+    public static void writePacked(List<Rating> ratings, File file, boolean compressed) throws IOException {
+        EnumSet<BinaryFormatFlag> flags = EnumSet.of(BinaryFormatFlag.TIMESTAMPS);
+        if (compressed) {
+            flags.add(BinaryFormatFlag.COMPRESSED);
+        }
+        try (BinaryRatingPacker packer = BinaryRatingPacker.open(file, flags)) {
+            packer.writeRatings(ratings);
+        }
+    }
+}
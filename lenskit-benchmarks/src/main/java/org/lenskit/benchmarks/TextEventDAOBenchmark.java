@@ -0,0 +1,74 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import org.grouplens.lenskit.data.text.TextEventDAO;
+import org.lenskit.data.events.Event;
+import org.lenskit.util.io.ObjectStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark parsing a delimited text rating file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TextEventDAOBenchmark extends RatingDataState {
+    private File file;
+    private TextEventDAO dao;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        loadData();
+        file = File.createTempFile("ratings", ".csv");
+        SyntheticRatings.writeCSV(getRatings(), file);
+        dao = TextEventDAO.ratings(file, ",");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Parse the whole file.
+     * @return The number of events read.
+     */
+    @Benchmark
+    public int streamEvents() {
+        int n = 0;
+        try (ObjectStream<Event> events = dao.streamEvents()) {
+            for (Event e: events) {
+                n += 1;
+            }
+        }
+        return n;
+    }
+}
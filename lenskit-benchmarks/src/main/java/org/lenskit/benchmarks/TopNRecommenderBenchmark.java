@@ -0,0 +1,69 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import org.lenskit.LenskitRecommender;
+import org.lenskit.LenskitRecommenderEngine;
+import org.lenskit.api.ItemRecommender;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.basic.TopNItemRecommender;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark {@link TopNItemRecommender} over all items, using an ALS-trained MF scorer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TopNRecommenderBenchmark extends RatingDataState {
+    @Param("10")
+    public int listSize;
+
+    private LenskitRecommender recommender;
+    private ItemRecommender itemRecommender;
+
+    @Setup(Level.Trial)
+    public void setup() throws RecommenderBuildException {
+        loadData();
+        recommender = LenskitRecommenderEngine.build(BiasedMFScorerBenchmark.configure(makeDAO(), "als", 40))
+                                              .createRecommender();
+        itemRecommender = recommender.getItemRecommender();
+        if (!(itemRecommender instanceof TopNItemRecommender)) {
+            throw new IllegalStateException("expected a top-N recommender, got " + itemRecommender);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        recommender.close();
+    }
+
+    @Benchmark
+    public List<Long> recommend() {
+        return itemRecommender.recommend(queryUser(nextQuery()), listSize);
+    }
+}
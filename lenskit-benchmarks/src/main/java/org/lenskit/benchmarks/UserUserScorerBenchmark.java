@@ -0,0 +1,87 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.LenskitRecommenderEngine;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.api.ResultMap;
+import org.lenskit.data.dao.EventDAO;
+import org.lenskit.knn.user.LiveNeighborFinder;
+import org.lenskit.knn.user.NeighborFinder;
+import org.lenskit.knn.user.SnapshotNeighborFinder;
+import org.lenskit.knn.user.UserUserItemScorer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark user-user scoring with live or snapshot neighbor search.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserUserScorerBenchmark extends RatingDataState {
+    /**
+     * The neighbor finder to use: {@code snapshot} or {@code live}.
+     */
+    @Param({"snapshot", "live"})
+    public String finder;
+
+    private LenskitRecommender recommender;
+    private ItemScorer scorer;
+
+    @Setup(Level.Trial)
+    public void setup() throws RecommenderBuildException {
+        loadData();
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(EventDAO.class).to(makeDAO());
+        config.bind(ItemScorer.class).to(UserUserItemScorer.class);
+        switch (finder) {
+        case "snapshot":
+            config.bind(NeighborFinder.class).to(SnapshotNeighborFinder.class);
+            break;
+        case "live":
+            config.bind(NeighborFinder.class).to(LiveNeighborFinder.class);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown neighbor finder " + finder);
+        }
+        recommender = LenskitRecommenderEngine.build(config).createRecommender();
+        scorer = recommender.getItemScorer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        recommender.close();
+    }
+
+    @Benchmark
+    public ResultMap scoreWithDetails() {
+        int q = nextQuery();
+        return scorer.scoreWithDetails(queryUser(q), queryItems(q));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.benchmarks;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.similarity.*;
+import org.lenskit.data.ratings.Rating;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark vector similarity functions over pairs of item rating vectors.  Using item vectors
+ * from the synthetic data gives the skewed mix of vector lengths that model builds see.  The
+ * {@code entry} implementation runs the old entry-iterator code, for comparison with the
+ * current {@code kernel} implementation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+@SuppressWarnings("deprecation")
+public class VectorSimilarityBenchmark extends RatingDataState {
+    private static final int PAIR_COUNT = 4096;
+
+    @Param({"cosine", "pearson", "spearman", "sigweight"})
+    public String similarity;
+    @Param({"kernel", "entry"})
+    public String implementation;
+
+    private VectorSimilarity function;
+    private SparseVector[] lefts;
+    private SparseVector[] rights;
+    private int pair;
+
+    static VectorSimilarity create(String name) {
+        switch (name) {
+        case "cosine":
+            return new CosineVectorSimilarity();
+        case "pearson":
+            return new PearsonCorrelation();
+        case "spearman":
+            return new SpearmanRankCorrelation();
+        case "sigweight":
+            return new SignificanceWeightedVectorSimilarity(50, new PearsonCorrelation());
+        default:
+            throw new IllegalArgumentException("unknown similarity " + name);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        loadData();
+        switch (implementation) {
+        case "kernel":
+            function = create(similarity);
+            break;
+        case "entry":
+            function = EntryIterationSimilarities.create(similarity);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown implementation " + implementation);
+        }
+
+        // ratings are sorted by user, so each item's user list comes out sorted
+        LongArrayList[] users = new LongArrayList[items];
+        DoubleArrayList[] values = new DoubleArrayList[items];
+        for (Rating r: getRatings()) {
+            int i = (int) r.getItemId() - 1;
+            if (users[i] == null) {
+                users[i] = new LongArrayList();
+                values[i] = new DoubleArrayList();
+            }
+            users[i].add(r.getUserId());
+            values[i].add(r.getValue());
+        }
+        List<SparseVector> vectors = new ArrayList<SparseVector>();
+        for (int i = 0; i < items; i++) {
+            if (users[i] != null) {
+                vectors.add(MutableSparseVector.wrap(users[i], values[i]).freeze());
+            }
+        }
+
+        Random rng = new Random(seed + 2);
+        lefts = new SparseVector[PAIR_COUNT];
+        rights = new SparseVector[PAIR_COUNT];
+        for (int i = 0; i < PAIR_COUNT; i++) {
+            lefts[i] = vectors.get(rng.nextInt(vectors.size()));
+            rights[i] = vectors.get(rng.nextInt(vectors.size()));
+        }
+    }
+
+    @Benchmark
+    public double similarity() {
+        int p = pair;
+        pair = (p + 1) % PAIR_COUNT;
+        return function.similarity(lefts[p], rights[p]);
+    }
+}
@@ -89,6 +89,14 @@ public class Crossfold implements Command {
         if (k != null) {
             cf.setPartitionCount(k);
         }
+        Integer threads = options.get("thread_count");
+        if (threads != null) {
+            cf.setThreadCount(threads);
+        }
+        Long seed = options.get("seed");
+        if (seed != null) {
+            cf.setRandomSeed(seed);
+        }
 
         String dir = options.get("output_dir");
         if (dir != null) {
@@ -97,6 +105,9 @@ public class Crossfold implements Command {
         if (options.getBoolean("pack_output")) {
             cf.setOutputFormat(OutputFormat.PACK);
         }
+        if (options.getBoolean("virtual_output")) {
+            cf.setOutputFormat(OutputFormat.VIRTUAL_PACK);
+        }
         if (!options.getBoolean("use_timestamps")) {
             cf.setWriteTimestamps(false);
         }
@@ -147,6 +158,10 @@ public class Crossfold implements Command {
               .action(Arguments.storeTrue())
               .dest("pack_output")
               .help("store output in binary-packed files");
+        parser.addArgument("--virtual-output")
+              .action(Arguments.storeTrue())
+              .dest("virtual_output")
+              .help("pack the input once and store partitions as views of it");
         parser.addArgument("--no-timestamps")
               .action(Arguments.storeFalse())
               .setDefault(true)
@@ -158,6 +173,15 @@ public class Crossfold implements Command {
               .dest("partitions")
               .type(Integer.class)
               .help("Fold into K partitions.");
+        parser.addArgument("-j", "--thread-count")
+              .metavar("N")
+              .dest("thread_count")
+              .type(Integer.class)
+              .help("Split users with N threads (default: 1; 0 for one per processor).");
+        parser.addArgument("--seed")
+              .metavar("SEED")
+              .type(Long.class)
+              .help("Seed the random number generator with SEED, for reproducible output.");
 
         MutuallyExclusiveGroup mode =
                 parser.addMutuallyExclusiveGroup("crossfold mode")
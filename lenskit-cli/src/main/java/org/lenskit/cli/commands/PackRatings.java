@@ -71,9 +71,14 @@ public class PackRatings implements Command {
         if (ctx.useTimestamps()) {
             flags.add(BinaryFormatFlag.TIMESTAMPS);
         }
+        if (ctx.compress()) {
+            flags.add(BinaryFormatFlag.COMPRESSED);
+        }
         logger.info("packing to {} with flags {}", ctx.getOutputFile(), flags);
         try (BinaryRatingPacker packer = BinaryRatingPacker.open(ctx.getOutputFile(), flags);
         ObjectStream<Rating> ratings = dao.streamEvents(Rating.class)) {
+            packer.setBufferSize(ctx.getBufferSize());
+            packer.setIndexBufferSize(ctx.getIndexBufferSize());
             packer.writeRatings(ratings);
             logger.info("packed {} ratings", packer.getRatingCount());
         }
@@ -92,6 +97,19 @@ public class PackRatings implements Command {
               .action(Arguments.storeFalse())
               .dest("use_timestamps")
               .help("don't include or use timestamps");
+        parser.addArgument("--compress")
+              .action(Arguments.storeTrue())
+              .help("store ratings in the compressed columnar layout");
+        parser.addArgument("--buffer-size")
+              .type(Integer.class)
+              .metavar("N")
+              .setDefault(BinaryRatingPacker.DEFAULT_BUFFER_SIZE)
+              .help("hold up to N ratings in memory while sorting");
+        parser.addArgument("--index-buffer-size")
+              .type(Integer.class)
+              .metavar("N")
+              .setDefault(BinaryRatingPacker.DEFAULT_INDEX_BUFFER_SIZE)
+              .help("hold up to N rating positions in memory while indexing");
         InputData.configureArguments(parser, true);
     }
 
@@ -115,5 +133,17 @@ public class PackRatings implements Command {
         public boolean useTimestamps() {
             return options.getBoolean("use_timestamps");
         }
+
+        public boolean compress() {
+            return options.getBoolean("compress");
+        }
+
+        public int getBufferSize() {
+            return options.getInt("buffer_size");
+        }
+
+        public int getIndexBufferSize() {
+            return options.getInt("index_buffer_size");
+        }
     }
 }
@@ -21,9 +21,13 @@
 package org.grouplens.lenskit.data.source;
 
 import com.google.common.base.Supplier;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import org.lenskit.LenskitConfiguration;
 import org.lenskit.data.dao.*;
 import org.lenskit.data.packed.BinaryRatingDAO;
+import org.lenskit.data.packed.PartitionAssignment;
 import org.lenskit.data.ratings.PreferenceDomain;
 import org.grouplens.lenskit.util.MoreSuppliers;
 import org.grouplens.lenskit.util.io.Describable;
@@ -31,27 +35,71 @@ import org.grouplens.lenskit.util.io.DescriptionWriter;
 import org.lenskit.specs.data.DataSourceSpec;
 import org.lenskit.specs.data.PackedDataSourceSpec;
 
+import javax.annotation.Nullable;
 import javax.inject.Provider;
 import java.io.File;
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.ExecutionException;
 
 /**
- * Data source backed by a packed rating file.
+ * Data source backed by a packed rating file.  The data source can optionally be restricted to the
+ * ratings in (or not in) one partition of a {@link PartitionAssignment}; in that case, its DAO is
+ * a masked view of the packed file, so several data sources can share one packed file without
+ * copying its ratings.
  *
  * @see org.grouplens.lenskit.data.source.PackedDataSourceBuilder
  * @since 2.2
  */
 public class PackedDataSource implements DataSource {
+    /**
+     * Packed files that are open, so the data sources over one file (in particular, the train
+     * and test views of every crossfold partition) share its index tables instead of reading them
+     * again.  A file is reopened if it changes, or if memory runs short and no one is using it.
+     */
+    private static final LoadingCache<PackedFileKey,BinaryRatingDAO> OPEN_FILES =
+            CacheBuilder.newBuilder()
+                        .softValues()
+                        .build(new CacheLoader<PackedFileKey, BinaryRatingDAO>() {
+                            @Override
+                            public BinaryRatingDAO load(PackedFileKey key) throws IOException {
+                                return BinaryRatingDAO.open(key.file);
+                            }
+                        });
+
     private final String name;
     private final File file;
     private final PreferenceDomain domain;
+    @Nullable
+    private final File partitionFile;
+    private final int partition;
+    private final boolean excludePartition;
     private final Supplier<BinaryRatingDAO> packedDao;
 
     public PackedDataSource(String name, File file, PreferenceDomain dom) {
+        this(name, file, dom, null, 0, false);
+    }
+
+    /**
+     * Create a packed data source restricted to a partition.
+     *
+     * @param name The data source name.
+     * @param file The packed rating file.
+     * @param dom The preference domain.
+     * @param partFile The partition assignment file, or {@code null} to use all ratings.
+     * @param part The partition to use.
+     * @param exclude {@code true} to use the ratings that are not in the partition.
+     * @since 3.0
+     */
+    public PackedDataSource(String name, File file, PreferenceDomain dom,
+                            @Nullable File partFile, int part, boolean exclude) {
         this.name = name;
         this.file = file;
         domain = dom;
-        packedDao = MoreSuppliers.weakMemoize(new DAOSupplier(file));
+        partitionFile = partFile;
+        partition = part;
+        excludePartition = exclude;
+        packedDao = MoreSuppliers.weakMemoize(new DAOSupplier(file, partFile, part, exclude));
     }
 
     @Override
@@ -63,6 +111,19 @@ public class PackedDataSource implements DataSource {
         return file;
     }
 
+    @Nullable
+    public File getPartitionFile() {
+        return partitionFile;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public boolean getExcludePartition() {
+        return excludePartition;
+    }
+
     @Override
     public PreferenceDomain getPreferenceDomain() {
         return domain;
@@ -75,7 +136,11 @@ public class PackedDataSource implements DataSource {
 
     @Override
     public long lastModified() {
-        return file.lastModified();
+        if (partitionFile != null) {
+            return Math.max(file.lastModified(), partitionFile.lastModified());
+        } else {
+            return file.lastModified();
+        }
     }
 
     @Override
@@ -121,6 +186,11 @@ public class PackedDataSource implements DataSource {
         if (domain != null) {
             spec.setDomain(domain.toSpec());
         }
+        if (partitionFile != null) {
+            spec.setPartitionFile(partitionFile.toPath());
+            spec.setPartition(partition);
+            spec.setExcludePartition(excludePartition);
+        }
         return spec;
     }
 
@@ -129,6 +199,11 @@ public class PackedDataSource implements DataSource {
         dsb.setName(spec.getName())
            .setFile(spec.getFile().toFile())
            .setDomain(PreferenceDomain.fromSpec(spec.getDomain()));
+        if (spec.getPartitionFile() != null) {
+            dsb.setPartitionFile(spec.getPartitionFile().toFile())
+               .setPartition(spec.getPartition())
+               .setExcludePartition(spec.getExcludePartition());
+        }
         return dsb.build();
     }
 
@@ -147,6 +222,12 @@ public class PackedDataSource implements DataSource {
             writer.putField("file", file.getAbsolutePath())
                   .putField("mtime", file.lastModified())
                   .putField("domain", domain);
+            if (partitionFile != null) {
+                writer.putField("partitionFile", partitionFile.getAbsolutePath())
+                      .putField("partitionMtime", partitionFile.lastModified())
+                      .putField("partition", partition)
+                      .putField("excludePartition", excludePartition);
+            }
             // FIXME Include the binary file header too
         }
 
@@ -168,18 +249,43 @@ public class PackedDataSource implements DataSource {
 
     private static class DAOSupplier implements Supplier<BinaryRatingDAO> {
         private final File packedFile;
+        @Nullable
+        private final File partitionFile;
+        private final int partition;
+        private final boolean excludePartition;
 
-        public DAOSupplier(File file) {
+        public DAOSupplier(File file, @Nullable File partFile, int part, boolean exclude) {
             packedFile = file;
+            partitionFile = partFile;
+            partition = part;
+            excludePartition = exclude;
         }
 
         @Override
         public BinaryRatingDAO get() {
+            BinaryRatingDAO dao;
+            try {
+                dao = OPEN_FILES.get(new PackedFileKey(packedFile));
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("error opening " + packedFile, ex.getCause());
+            }
+            if (partitionFile == null) {
+                return dao;
+            }
+
+            PartitionAssignment parts;
             try {
-                return BinaryRatingDAO.open(packedFile);
+                parts = PartitionAssignment.read(partitionFile.toPath());
             } catch (IOException ex) {
-                throw new RuntimeException("error opening " + packedFile, ex);
+                throw new RuntimeException("error opening " + partitionFile, ex);
             }
+            if (parts.size() != dao.getRatingPositions().size()) {
+                throw new IllegalStateException(partitionFile + " does not match " + packedFile);
+            }
+            BitSet mask = excludePartition
+                    ? parts.getOtherPositions(partition)
+                    : parts.getPositions(partition);
+            return dao.createMaskedView(mask);
         }
 
         @Override
@@ -190,13 +296,52 @@ public class PackedDataSource implements DataSource {
             DAOSupplier that = (DAOSupplier) o;
 
             if (!packedFile.equals(that.packedFile)) return false;
+            if (partitionFile != null ? !partitionFile.equals(that.partitionFile) : that.partitionFile != null) return false;
+            if (partition != that.partition) return false;
+            if (excludePartition != that.excludePartition) return false;
 
             return true;
         }
 
         @Override
         public int hashCode() {
-            return packedFile.hashCode();
+            int result = packedFile.hashCode();
+            result = 31 * result + (partitionFile != null ? partitionFile.hashCode() : 0);
+            result = 31 * result + partition;
+            result = 31 * result + (excludePartition ? 1 : 0);
+            return result;
+        }
+    }
+
+    /**
+     * Key identifying a version of a packed file.
+     */
+    private static final class PackedFileKey {
+        private final File file;
+        private final long modified;
+        private final long length;
+
+        PackedFileKey(File f) {
+            file = f.getAbsoluteFile();
+            modified = file.lastModified();
+            length = file.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            PackedFileKey that = (PackedFileKey) o;
+            return file.equals(that.file) && modified == that.modified && length == that.length;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = file.hashCode();
+            result = 31 * result + (int) (modified ^ (modified >>> 32));
+            result = 31 * result + (int) (length ^ (length >>> 32));
+            return result;
         }
     }
 }
@@ -24,6 +24,7 @@ import org.apache.commons.lang3.builder.Builder;
 import org.lenskit.data.ratings.PreferenceDomain;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 
 /**
@@ -33,6 +34,9 @@ public class PackedDataSourceBuilder implements Builder<PackedDataSource> {
     private File file;
     private PreferenceDomain domain;
     private String name;
+    private File partitionFile;
+    private int partition;
+    private boolean excludePartition;
 
     public PackedDataSourceBuilder() {}
 
@@ -109,8 +113,64 @@ public class PackedDataSourceBuilder implements Builder<PackedDataSource> {
         return this;
     }
 
+    /**
+     * Get the partition assignment file.
+     * @return The partition assignment file, or {@code null} if the data source uses all ratings.
+     */
+    @Nullable
+    public File getPartitionFile() {
+        return partitionFile;
+    }
+
+    /**
+     * Set a partition assignment file for the packed file.  If set, the data source only contains
+     * the ratings in (or not in) one of the partitions; see {@link #setPartition(int)} and
+     * {@link #setExcludePartition(boolean)}.
+     *
+     * @param f The {@linkplain org.lenskit.data.packed.PartitionAssignment partition assignment}
+     *          file, or {@code null} to use all ratings.
+     * @return The builder (for chaining).
+     */
+    public PackedDataSourceBuilder setPartitionFile(@Nullable File f) {
+        partitionFile = f;
+        return this;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    /**
+     * Set the partition to use, if there is a partition file.
+     *
+     * @param part The partition number.
+     * @return The builder (for chaining).
+     */
+    public PackedDataSourceBuilder setPartition(int part) {
+        partition = part;
+        return this;
+    }
+
+    public boolean getExcludePartition() {
+        return excludePartition;
+    }
+
+    /**
+     * Set whether to exclude the partition instead of selecting it.
+     *
+     * @param exclude {@code true} to use the ratings that are not in the partition (e.g. for the
+     *                training data of a crossfold), {@code false} to use the ratings that are in
+     *                it (the default).
+     * @return The builder (for chaining).
+     */
+    public PackedDataSourceBuilder setExcludePartition(boolean exclude) {
+        excludePartition = exclude;
+        return this;
+    }
+
     @Override
     public PackedDataSource build() {
-        return new PackedDataSource(getName(), file, getDomain());
+        return new PackedDataSource(getName(), file, getDomain(),
+                                    partitionFile, partition, excludePartition);
     }
 }
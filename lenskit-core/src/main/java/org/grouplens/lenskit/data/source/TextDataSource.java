@@ -47,6 +47,7 @@ public class TextDataSource extends AbstractDataSource {
     private final File sourceFile;
     private final PreferenceDomain domain;
     private final EventFormat format;
+    private final UserEventDAO streamingUserEvents;
 
     private final Provider<ItemListItemDAO> items;
     private final Provider<MapItemNameDAO> itemNames;
@@ -54,13 +55,14 @@ public class TextDataSource extends AbstractDataSource {
     private final Path itemNameFile;
 
     TextDataSource(String name, File file, EventFormat fmt, PreferenceDomain pdom,
-                   Path itemFile, Path itemNameFile) {
+                   Path itemFile, Path itemNameFile, boolean streamUserEvents) {
         this.name = name;
         sourceFile = file;
         domain = pdom;
         format = fmt;
 
         dao = TextEventDAO.create(file, format, CompressionMode.AUTO);
+        streamingUserEvents = streamUserEvents ? new StreamingUserEventDAO(dao) : null;
 
         if (itemFile != null) {
             items = Providers.memoize(new SimpleFileItemDAOProvider(itemFile.toFile()));
@@ -110,6 +112,24 @@ public class TextDataSource extends AbstractDataSource {
         return dao;
     }
 
+    /**
+     * Query whether this data source streams user events.
+     * @return {@code true} if {@link #getUserEventDAO()} streams user events from the file.
+     * @see TextDataSourceBuilder#setStreamUserEvents(boolean)
+     */
+    public boolean isStreamUserEvents() {
+        return streamingUserEvents != null;
+    }
+
+    @Override
+    public UserEventDAO getUserEventDAO() {
+        if (streamingUserEvents != null) {
+            return streamingUserEvents;
+        } else {
+            return super.getUserEventDAO();
+        }
+    }
+
     @Override
     public ItemDAO getItemDAO() {
         if (items != null) {
@@ -156,6 +176,7 @@ public class TextDataSource extends AbstractDataSource {
             spec.setItemFile(itemFile);
             spec.setItemNameFile(itemNameFile);
         }
+        spec.setStreamUserEvents(isStreamUserEvents());
         if (domain != null) {
             spec.setDomain(domain.toSpec());
         }
@@ -181,6 +202,7 @@ public class TextDataSource extends AbstractDataSource {
         bld.setFormat(fmt);
         bld.setItemFile(spec.getItemFile());
         bld.setItemNameFile(spec.getItemNameFile());
+        bld.setStreamUserEvents(spec.isStreamUserEvents());
         return bld.build();
     }
 }
@@ -46,6 +46,7 @@ public class TextDataSourceBuilder implements Builder<DataSource> {
     EventFormat format = dceFormat;
     private Path itemFile;
     private Path itemNameFile;
+    private boolean streamUserEvents;
 
     public TextDataSourceBuilder() {}
 
@@ -241,6 +242,32 @@ public class TextDataSourceBuilder implements Builder<DataSource> {
         return setItemNameFile(path);
     }
 
+    /**
+     * Query whether the data source will stream user events.
+     * @return {@code true} if the data source will stream user events.
+     * @see #setStreamUserEvents(boolean)
+     */
+    public boolean isStreamUserEvents() {
+        return streamUserEvents;
+    }
+
+    /**
+     * Set whether the data source streams user events.  By default, the data source's user event
+     * DAO loads all events into memory the first time it is used, which is fast for repeated
+     * lookups of individual users.  A streaming data source instead uses a
+     * {@link org.lenskit.data.dao.StreamingUserEventDAO}, which sorts the file externally and
+     * holds only one user's events at a time; this suits single passes over all users of files
+     * too large for memory, but makes looking up an individual user scan the file.
+     *
+     * @param stream {@code true} to stream user events.
+     * @return The builder (for chaining).
+     * @since 3.0
+     */
+    public TextDataSourceBuilder setStreamUserEvents(boolean stream) {
+        streamUserEvents = stream;
+        return this;
+    }
+
     /**
      * Build the data source. At least one of {@link #setName(String)} or
      * {@link #setFile(java.io.File)} must be called prior to building.
@@ -259,6 +286,7 @@ public class TextDataSourceBuilder implements Builder<DataSource> {
         }
         // by now we should have a file
         Preconditions.checkState(inputFile != null, "no input file specified");
-        return new TextDataSource(getName(), inputFile, format, domain, itemFile, itemNameFile);
+        return new TextDataSource(getName(), inputFile, format, domain, itemFile, itemNameFile,
+                                  streamUserEvents);
     }
 }
@@ -33,7 +33,7 @@ import javax.annotation.Nullable;
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 @SuppressWarnings("unused")
-public class BasicSQLStatementFactory implements SQLStatementFactory {
+public class BasicSQLStatementFactory implements BatchSQLStatementFactory {
     private static final Logger logger =
             LoggerFactory.getLogger(BasicSQLStatementFactory.class);
     @Nonnull
@@ -248,6 +248,24 @@ public class BasicSQLStatementFactory implements SQLStatementFactory {
         return query.toString();
     }
 
+    @Override
+    public String prepareUserBatchEvents(int count) {
+        StringBuilder query = new StringBuilder();
+        rqAddSelectFrom(query);
+        query.append(" WHERE ").append(userColumn).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                query.append(", ");
+            }
+            query.append("?");
+        }
+        query.append(")");
+        rqAddOrder(query, SortOrder.USER);
+        rqFinish(query);
+        logger.debug("User batch rating query: {}", query);
+        return query.toString();
+    }
+
     @Override
     public String prepareItemEvents() {
         StringBuilder query = new StringBuilder();
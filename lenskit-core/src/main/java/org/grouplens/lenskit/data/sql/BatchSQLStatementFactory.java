@@ -0,0 +1,45 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.data.sql;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Statement factory that can also fetch the events of several users in one query.  The JDBC DAO
+ * uses this, when its statement factory implements it, for
+ * {@link JDBCRatingDAO#getEventsForUsers(it.unimi.dsi.fastutil.longs.LongSet)}; other factories
+ * fall back to one query per user.
+ *
+ * @since 3.0
+ */
+@Immutable
+public interface BatchSQLStatementFactory extends SQLStatementFactory {
+    /**
+     * Prepare a statement to fetch the events of a batch of users.  The returned rows should be as
+     * in {@link #prepareEvents(org.lenskit.data.dao.SortOrder)}, and the statement should take one
+     * parameter for each user ID.
+     *
+     * @param count The number of users in the batch.
+     * @return A string for a sql query returning the users' rating data.  The ratings must be
+     *         ordered first by user ID, then by timestamp.
+     */
+    String prepareUserBatchEvents(int count);
+}
@@ -66,6 +66,14 @@ public class CachedPreparedStatement implements Callable<PreparedStatement>, Clo
         return cache;
     }
 
+    /**
+     * Get the SQL string for this statement.
+     * @return The statement's SQL.
+     */
+    String getSQL() {
+        return sql;
+    }
+
     /**
      * Close the prepared statement.
      *
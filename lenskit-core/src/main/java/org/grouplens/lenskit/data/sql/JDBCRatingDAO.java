@@ -26,6 +26,7 @@ import com.google.common.cache.CacheBuilderSpec;
 import com.google.common.collect.ImmutableList;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.util.io.AbstractObjectStream;
 import org.lenskit.util.io.ObjectStream;
 import org.lenskit.util.io.ObjectStreams;
 import org.lenskit.data.dao.*;
@@ -34,15 +35,19 @@ import org.lenskit.data.ratings.Rating;
 import org.lenskit.data.history.History;
 import org.lenskit.data.history.ItemEventCollection;
 import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.history.UserHistoryObjectStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.WillCloseWhenClosed;
+import javax.sql.DataSource;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.List;
@@ -53,6 +58,12 @@ import java.util.concurrent.ExecutionException;
 /**
  * Rating DAO backed by a JDBC connection.  This DAO can only store rating data;
  * no other events are supported.
+ * <p>
+ * A DAO built on a single {@link Connection} caches its prepared statements, and is not safe for
+ * concurrent use.  A DAO built on a {@link DataSource} (usually a connection pool) takes a
+ * connection from the data source for each query, and returns it when the query's results have
+ * been read (or, for streams, when the stream is closed); it is thread-safe if the data source
+ * is.
  *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
@@ -76,8 +87,15 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
 
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * The database connection, or {@code null} if the DAO uses a data source.
+     */
+    @Nullable
     protected final Connection connection;
     protected final boolean closeConnection;
+    @Nullable
+    private final DataSource dataSource;
+    private final int batchSize;
 
     private final SQLStatementFactory statementFactory;
 
@@ -127,9 +145,27 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
 
     JDBCRatingDAO(Connection dbc, SQLStatementFactory factory, boolean close,
                   Cache<QueryKey, Object> cache) {
+        this(dbc, null, factory, close, cache, JDBCRatingDAOBuilder.DEFAULT_BATCH_SIZE);
+    }
+
+    JDBCRatingDAO(Connection dbc, SQLStatementFactory factory, boolean close,
+                  Cache<QueryKey, Object> cache, int batch) {
+        this(dbc, null, factory, close, cache, batch);
+    }
+
+    JDBCRatingDAO(DataSource ds, SQLStatementFactory factory,
+                  Cache<QueryKey, Object> cache, int batch) {
+        this(null, ds, factory, false, cache, batch);
+    }
+
+    private JDBCRatingDAO(@Nullable Connection dbc, @Nullable DataSource ds,
+                          SQLStatementFactory factory, boolean close,
+                          Cache<QueryKey, Object> cache, int batch) {
         connection = dbc;
+        dataSource = ds;
         closeConnection = close;
         statementFactory = factory;
+        batchSize = batch;
 
         queryCache = cache;
 
@@ -167,7 +203,7 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
             }
             failed = failed || !closeStatement(userEventStatement);
             failed = failed || !closeStatement(itemEventStatement);
-            if (closeConnection) {
+            if (closeConnection && connection != null) {
                 connection.close();
             }
         } catch (SQLException e) {
@@ -178,6 +214,36 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
         }
     }
 
+    /**
+     * Lease one of the DAO's statements for a query.  With a connection, this is the cached
+     * statement; with a data source, the statement is prepared on a pooled connection.
+     */
+    private StatementLease lease(CachedPreparedStatement stmt) throws SQLException {
+        if (dataSource == null) {
+            return StatementLease.shared(stmt.call());
+        } else {
+            return lease(stmt.getSQL());
+        }
+    }
+
+    /**
+     * Prepare a statement for a single query.  It is closed, and its connection returned to the
+     * data source (if any), when the lease is closed.
+     */
+    private StatementLease lease(String sql) throws SQLException {
+        if (dataSource == null) {
+            assert connection != null;
+            return new StatementLease(connection.prepareStatement(sql), true, null);
+        }
+        Connection cxn = dataSource.getConnection();
+        try {
+            return new StatementLease(cxn.prepareStatement(sql), true, cxn);
+        } catch (SQLException | RuntimeException e) {
+            cxn.close();
+            throw e;
+        }
+    }
+
     protected LongSet getIdSet(PreparedStatement s) throws SQLException {
         ResultSet results = s.executeQuery();
         try {
@@ -197,7 +263,9 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
             return (LongSet) queryCache.get(QueryKey.userList(), new Callable<Object>() {
                 @Override
                 public Object call() throws SQLException {
-                    return getIdSet(userStatement.call());
+                    try (StatementLease lease = lease(userStatement)) {
+                        return getIdSet(lease.getStatement());
+                    }
                 }
             });
         } catch (ExecutionException e) {
@@ -211,7 +279,9 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
             return (LongSet) queryCache.get(QueryKey.itemList(), new Callable<Object>() {
                 @Override
                 public Object call() throws SQLException {
-                    return getIdSet(itemStatement.call());
+                    try (StatementLease lease = lease(itemStatement)) {
+                        return getIdSet(lease.getStatement());
+                    }
                 }
             });
         } catch (ExecutionException e) {
@@ -238,7 +308,7 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
         }
 
         try {
-            return (ObjectStream<E>) new ResultSetRatingObjectStream(eventStatements.get(order).call());
+            return (ObjectStream<E>) new ResultSetRatingObjectStream(lease(eventStatements.get(order)));
         } catch (SQLException e) {
             throw new DatabaseAccessException(e);
         }
@@ -252,13 +322,11 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
             cached = (List) queryCache.get(QueryKey.user(userId), new Callable<List<Rating>>() {
                 @Override
                 public List<Rating> call() throws Exception {
-                    PreparedStatement s = userEventStatement.call();
-                    s.setLong(1, userId);
-                    ObjectStream<Rating> ratings = new ResultSetRatingObjectStream(s);
-                    try {
-                        return ImmutableList.copyOf(ratings);
-                    } finally {
-                        ratings.close();
+                    try (StatementLease lease = lease(userEventStatement)) {
+                        lease.getStatement().setLong(1, userId);
+                        try (ObjectStream<Rating> ratings = new ResultSetRatingObjectStream(lease)) {
+                            return ImmutableList.copyOf(ratings);
+                        }
                     }
                 }
             });
@@ -295,13 +363,11 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
             events = (List) queryCache.get(QueryKey.item(itemId), new Callable<List<Rating>>() {
                 @Override
                 public List<Rating> call() throws Exception {
-                    PreparedStatement s = itemEventStatement.call();
-                    s.setLong(1, itemId);
-                    ObjectStream<Rating> ratings = new ResultSetRatingObjectStream(s);
-                    try {
-                        return ImmutableList.copyOf(ratings);
-                    } finally {
-                        ratings.close();
+                    try (StatementLease lease = lease(itemEventStatement)) {
+                        lease.getStatement().setLong(1, itemId);
+                        try (ObjectStream<Rating> ratings = new ResultSetRatingObjectStream(lease)) {
+                            return ImmutableList.copyOf(ratings);
+                        }
                     }
                 }
             });
@@ -333,9 +399,8 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
 
     @Override
     public LongSet getUsersForItem(long item) {
-        PreparedStatement s;
-        try {
-            s = itemUserStatement.call();
+        try (StatementLease lease = lease(itemUserStatement)) {
+            PreparedStatement s = lease.getStatement();
             s.setLong(1, item);
             return getIdSet(s);
         } catch (SQLException e) {
@@ -343,6 +408,23 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
         }
     }
 
+    /**
+     * Stream the histories of several users.  If the statement factory implements
+     * {@link BatchSQLStatementFactory}, users are fetched with one query per batch of users (see
+     * {@link JDBCRatingDAOBuilder#setBatchSize(int)}); otherwise, with one query per user.  These
+     * queries bypass the DAO's cache.
+     *
+     * @param users The users to fetch.
+     * @return A stream of the users' histories, in order of user ID.  Users with no ratings are
+     *         skipped.
+     * @since 3.0
+     */
+    public ObjectStream<UserHistory<Event>> getEventsForUsers(LongSet users) {
+        long[] ids = users.toLongArray();
+        Arrays.sort(ids);
+        return new UserHistoryObjectStream<Event>(new BatchRatingObjectStream(ids));
+    }
+
     @Override
     public ObjectStream<UserHistory<Event>> streamEventsByUser() {
         return streamEventsByUser(Event.class);
@@ -363,4 +445,71 @@ public class JDBCRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, User
         return new ItemCollectionObjectStream<E>(streamEvents(type, SortOrder.USER));
     }
 
+    /**
+     * Stream the ratings of a sorted array of users, running one batch query at a time.
+     */
+    private class BatchRatingObjectStream extends AbstractObjectStream<Rating> {
+        private final long[] users;
+        private int nextUser = 0;
+        @Nullable
+        private ObjectStream<Rating> batch;
+
+        BatchRatingObjectStream(long[] ids) {
+            users = ids;
+        }
+
+        @Override
+        public Rating readObject() {
+            while (true) {
+                if (batch != null) {
+                    Rating r = batch.readObject();
+                    if (r != null) {
+                        return r;
+                    }
+                    batch.close();
+                    batch = null;
+                }
+                if (nextUser >= users.length) {
+                    return null;
+                }
+                try {
+                    batch = openBatch();
+                } catch (SQLException e) {
+                    throw new DatabaseAccessException(e);
+                }
+            }
+        }
+
+        private ObjectStream<Rating> openBatch() throws SQLException {
+            StatementLease lease;
+            int n;
+            if (statementFactory instanceof BatchSQLStatementFactory) {
+                n = Math.min(batchSize, users.length - nextUser);
+                lease = lease(((BatchSQLStatementFactory) statementFactory).prepareUserBatchEvents(n));
+            } else {
+                n = 1;
+                lease = lease(userEventStatement);
+            }
+            try {
+                PreparedStatement s = lease.getStatement();
+                for (int i = 0; i < n; i++) {
+                    s.setLong(i + 1, users[nextUser + i]);
+                }
+            } catch (SQLException | RuntimeException e) {
+                lease.close();
+                throw e;
+            }
+            nextUser += n;
+            return new ResultSetRatingObjectStream(lease);
+        }
+
+        @Override
+        public void close() {
+            nextUser = users.length;
+            if (batch != null) {
+                batch.close();
+                batch = null;
+            }
+        }
+    }
 }
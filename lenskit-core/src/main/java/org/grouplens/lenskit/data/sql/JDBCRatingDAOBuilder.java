@@ -27,6 +27,7 @@ import com.google.common.cache.CacheBuilderSpec;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.sql.DataSource;
 import java.sql.Connection;
 import java.util.concurrent.TimeUnit;
 
@@ -37,11 +38,17 @@ import java.util.concurrent.TimeUnit;
  * @since 2.1
  */
 public class JDBCRatingDAOBuilder {
+    /**
+     * The default number of users to fetch in each batch query.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
     private SQLStatementFactory factory;
     private BasicSQLStatementFactory basicFactory;
     private boolean closeWhenClosed = true;
     private CacheBuilder<? super QueryKey, Object> cacheBuilder;
     private Cache<QueryKey, Object> queryCache;
+    private int batchSize = DEFAULT_BATCH_SIZE;
 
     JDBCRatingDAOBuilder() {
         factory = basicFactory = new BasicSQLStatementFactory();
@@ -186,6 +193,33 @@ public class JDBCRatingDAOBuilder {
         return this;
     }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the number of users to fetch in each query of
+     * {@link JDBCRatingDAO#getEventsForUsers(it.unimi.dsi.fastutil.longs.LongSet)}.  The default is
+     * {@value #DEFAULT_BATCH_SIZE}.
+     *
+     * @param size The number of users per batch query.
+     * @return The builder (for chaining).
+     * @since 3.0
+     */
+    public JDBCRatingDAOBuilder setBatchSize(int size) {
+        Preconditions.checkArgument(size > 0, "batch size must be positive");
+        batchSize = size;
+        return this;
+    }
+
+    private Cache<QueryKey, Object> makeCache() {
+        Cache<QueryKey, Object> cache = queryCache;
+        if (cache == null) {
+            cache = cacheBuilder.build();
+        }
+        return cache;
+    }
+
     /**
      * Create a DAO backed by a database connection.
      * @param con The database connection.
@@ -193,10 +227,20 @@ public class JDBCRatingDAOBuilder {
      */
     @SuppressWarnings("deprecation")
     public JDBCRatingDAO build(Connection con) {
-        Cache<QueryKey, Object> cache = queryCache;
-        if (cache == null) {
-            cache = cacheBuilder.build();
-        }
-        return new JDBCRatingDAO(con, factory, closeWhenClosed, cache);
+        return new JDBCRatingDAO(con, factory, closeWhenClosed, makeCache(), batchSize);
+    }
+
+    /**
+     * Create a DAO backed by a data source, such as a connection pool.  The DAO takes a connection
+     * from the data source for each query and closes it when the query is finished, so it is safe
+     * for concurrent use if the data source is.  Closing the DAO does not close the data source,
+     * so {@link #setCloseWhenClosed(boolean)} does not apply.
+     *
+     * @param ds The data source.
+     * @return A DAO backed by {@code ds}.
+     * @since 3.0
+     */
+    public JDBCRatingDAO build(DataSource ds) {
+        return new JDBCRatingDAO(ds, factory, makeCache(), batchSize);
     }
 }
@@ -25,6 +25,7 @@ import org.lenskit.data.ratings.RatingBuilder;
 import org.lenskit.util.io.AbstractObjectStream;
 
 import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -36,21 +37,40 @@ import java.sql.SQLException;
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 class ResultSetRatingObjectStream extends AbstractObjectStream<Rating> {
+    private final StatementLease lease;
     private ResultSet resultSet;
     private boolean hasTimestampColumn;
     private RatingBuilder builder;
 
     public ResultSetRatingObjectStream(PreparedStatement stmt) throws SQLException {
+        this(StatementLease.shared(stmt));
+    }
+
+    /**
+     * Create a stream over the results of a leased statement.  The lease is closed when the
+     * stream is closed, or if the query fails.
+     *
+     * @param sl The statement lease.
+     * @throws SQLException if there is an error running the query.
+     */
+    ResultSetRatingObjectStream(@WillCloseWhenClosed StatementLease sl) throws SQLException {
+        lease = sl;
         builder = new RatingBuilder();
-        resultSet = stmt.executeQuery();
+        try {
+            resultSet = lease.getStatement().executeQuery();
+        } catch (SQLException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
         try {
             // SUPPRESS CHECKSTYLE MagicNumber
             hasTimestampColumn = resultSet.getMetaData().getColumnCount() >= JDBCRatingDAO.COL_TIMESTAMP;
-        } catch (SQLException e) {
-            resultSet.close();
-            throw e;
-        } catch (RuntimeException e) {
-            resultSet.close();
+        } catch (SQLException | RuntimeException e) {
+            try {
+                resultSet.close();
+            } finally {
+                lease.close();
+            }
             throw e;
         }
     }
@@ -97,7 +117,11 @@ class ResultSetRatingObjectStream extends AbstractObjectStream<Rating> {
     @Override
     public void close() {
         try {
-            resultSet.close();
+            try {
+                resultSet.close();
+            } finally {
+                lease.close();
+            }
         } catch (SQLException e) {
             throw new DatabaseAccessException(e);
         }
@@ -0,0 +1,83 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.data.sql;
+
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A prepared statement checked out for a single query.  Closing the lease closes the statement
+ * if it was prepared for this query, and returns the connection to its pool if the connection was
+ * taken from a data source.
+ *
+ * @since 3.0
+ */
+class StatementLease implements AutoCloseable {
+    private final PreparedStatement statement;
+    private final boolean ownsStatement;
+    @Nullable
+    private final Connection connection;
+    private boolean closed;
+
+    /**
+     * Create a statement lease.
+     * @param stmt The statement.
+     * @param closeStmt Whether to close the statement when the lease is closed.
+     * @param cxn The connection to close when the lease is closed, if any.
+     */
+    StatementLease(PreparedStatement stmt, boolean closeStmt, @Nullable Connection cxn) {
+        statement = stmt;
+        ownsStatement = closeStmt;
+        connection = cxn;
+    }
+
+    /**
+     * Lease a statement that is shared and is not closed with the lease.
+     * @param stmt The statement.
+     * @return The lease.
+     */
+    static StatementLease shared(PreparedStatement stmt) {
+        return new StatementLease(stmt, false, null);
+    }
+
+    public PreparedStatement getStatement() {
+        return statement;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (ownsStatement) {
+                statement.close();
+            }
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.data.text;
+
+import org.lenskit.data.events.Event;
+import org.lenskit.data.events.EventBuilder;
+import org.lenskit.data.ratings.RatingBuilder;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Parse delimited lines directly from bytes, without creating strings.  This handles the common
+ * fields (user, item, rating, timestamp, and ignored fields) of a {@link DelimitedColumnEventFormat}
+ * with a single-character ASCII delimiter, and plain decimal numbers.  Anything else (exponents,
+ * non-ASCII text, missing fields) is left to the format's own string parser, so results and
+ * errors are the same either way.
+ * <p>
+ * A parser reuses its builder, so it must only be used from one thread.
+ * </p>
+ *
+ * @since 3.0
+ */
+@SuppressWarnings("rawtypes")
+final class ByteLineParser {
+    private static final int USER = 0;
+    private static final int ITEM = 1;
+    private static final int TIMESTAMP = 2;
+    private static final int OPTIONAL_TIMESTAMP = 3;
+    private static final int RATING = 4;
+    private static final int IGNORED = 5;
+    private static final int OPTIONAL_IGNORED = 6;
+
+    /**
+     * The longest run of digits that is certain to fit in a long.
+     */
+    private static final int MAX_LONG_DIGITS = 18;
+    /**
+     * The longest run of digits that is certain to fit exactly in a double's mantissa.
+     */
+    private static final int MAX_EXACT_DIGITS = 15;
+    /**
+     * Powers of ten that are exactly representable as doubles.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final byte delimiter;
+    private final int[] fields;
+    private final EventBuilder builder;
+    private boolean failed;
+
+    private ByteLineParser(byte delim, int[] flds, EventBuilder bld) {
+        delimiter = delim;
+        fields = flds;
+        builder = bld;
+    }
+
+    /**
+     * Create a byte parser for an event format.
+     * @param format The event format.
+     * @return A parser, or {@code null} if the format has fields or delimiters that cannot be
+     * parsed from bytes.
+     */
+    @Nullable
+    static ByteLineParser create(EventFormat format) {
+        if (!(format instanceof DelimitedColumnEventFormat)) {
+            return null;
+        }
+        DelimitedColumnEventFormat dcf = (DelimitedColumnEventFormat) format;
+        String delim = dcf.getDelimiter();
+        if (delim.length() != 1 || delim.charAt(0) >= 0x80 || delim.charAt(0) == '\n'
+                || delim.charAt(0) == '\r') {
+            return null;
+        }
+
+        List<Field> fieldList = dcf.getFields();
+        int[] kinds = new int[fieldList.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            Field field = fieldList.get(i);
+            if (field == Fields.user()) {
+                kinds[i] = USER;
+            } else if (field == Fields.item()) {
+                kinds[i] = ITEM;
+            } else if (field == Fields.timestamp(true)) {
+                kinds[i] = TIMESTAMP;
+            } else if (field == Fields.timestamp(false)) {
+                kinds[i] = OPTIONAL_TIMESTAMP;
+            } else if (field == Fields.ignored(false)) {
+                kinds[i] = IGNORED;
+            } else if (field == Fields.ignored(true)) {
+                kinds[i] = OPTIONAL_IGNORED;
+            } else if (field == Fields.rating() && RatingBuilder.class.isAssignableFrom(dcf.getBuilderType())) {
+                kinds[i] = RATING;
+            } else {
+                return null;
+            }
+        }
+
+        EventBuilder bld;
+        try {
+            bld = dcf.getBuilderType().newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            return null;
+        }
+        return new ByteLineParser((byte) delim.charAt(0), kinds, bld);
+    }
+
+    /**
+     * Parse a line.
+     * @param data The data buffer.
+     * @param start The start of the line.
+     * @param end The end of the line (excluding line terminators).
+     * @return The parsed event, or {@code null} if the line must be parsed from a string.
+     */
+    @Nullable
+    Event parse(byte[] data, int start, int end) {
+        builder.reset();
+        failed = false;
+        int pos = start;
+        for (int kind: fields) {
+            // consecutive delimiters are skipped, as with the string tokenizer
+            while (pos < end && data[pos] == delimiter) {
+                pos++;
+            }
+            if (pos >= end) {
+                // the field is missing
+                if (kind == OPTIONAL_TIMESTAMP) {
+                    builder.setTimestamp(-1);
+                } else if (kind != OPTIONAL_IGNORED) {
+                    return null;
+                }
+                continue;
+            }
+            int tokEnd = pos;
+            while (tokEnd < end && data[tokEnd] != delimiter) {
+                tokEnd++;
+            }
+
+            switch (kind) {
+            case USER:
+                builder.setUserId(parseLong(data, pos, tokEnd));
+                break;
+            case ITEM:
+                builder.setItemId(parseLong(data, pos, tokEnd));
+                break;
+            case TIMESTAMP:
+            case OPTIONAL_TIMESTAMP:
+                builder.setTimestamp(parseLong(data, pos, tokEnd));
+                break;
+            case RATING:
+                ((RatingBuilder) builder).setRating(parseDouble(data, pos, tokEnd));
+                break;
+            default:
+                /* ignored field */
+                break;
+            }
+            if (failed) {
+                return null;
+            }
+            pos = tokEnd;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Parse a decimal integer.  Sets {@link #failed} if the token is not a plain integer that is
+     * short enough to parse without overflow checks.
+     */
+    private long parseLong(byte[] data, int start, int end) {
+        boolean negative = data[start] == '-';
+        int pos = negative ? start + 1 : start;
+        if (pos == end || end - pos > MAX_LONG_DIGITS) {
+            failed = true;
+            return 0;
+        }
+        long value = 0;
+        for (; pos < end; pos++) {
+            int digit = data[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                failed = true;
+                return 0;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a decimal number.  Numbers with at most 15 significant digits and 22 fractional
+     * digits are computed by dividing two exactly-representable doubles, which gives the same
+     * correctly-rounded result as {@link Double#parseDouble(String)}; anything else sets
+     * {@link #failed}.
+     */
+    private double parseDouble(byte[] data, int start, int end) {
+        boolean negative = data[start] == '-';
+        int pos = negative ? start + 1 : start;
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        for (; pos < end; pos++) {
+            byte b = data[pos];
+            if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (seenPoint) {
+                    fractionDigits++;
+                }
+            } else {
+                failed = true;
+                return 0;
+            }
+        }
+        if (digits == 0 || digits > MAX_EXACT_DIGITS || fractionDigits >= POWERS_OF_TEN.length) {
+            failed = true;
+            return 0;
+        }
+        double value = mantissa;
+        if (fractionDigits > 0) {
+            value /= POWERS_OF_TEN[fractionDigits];
+        }
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.data.text;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.grouplens.lenskit.util.io.CompressionMode;
+import org.lenskit.data.dao.DataAccessException;
+import org.lenskit.data.events.Event;
+import org.lenskit.util.io.AbstractObjectStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Stream of events parsed from a text file in chunks.  The file is read in large blocks of whole
+ * lines (memory-mapped if it is not compressed), and the blocks are parsed in parallel; events
+ * are returned in file order.  Lines are split at {@code \n}, with an optional preceding
+ * {@code \r}; the file must be in an ASCII-compatible encoding.
+ *
+ * @since 3.0
+ */
+final class ChunkedEventStream extends AbstractObjectStream<Event> {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedEventStream.class);
+    /**
+     * The default size of a chunk.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final File file;
+    private final ChunkSource source;
+    private final EventFormat format;
+    private final Charset charset;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<ParsedChunk>> pending = new ArrayDeque<>();
+    private boolean exhausted;
+    @Nullable
+    private ParsedChunk current;
+    private int position;
+    private long linesBefore;
+
+    private ChunkedEventStream(File f, ChunkSource src, EventFormat fmt, int threads) {
+        file = f;
+        source = src;
+        format = fmt;
+        charset = Charset.defaultCharset();
+        if (threads == 1) {
+            executor = MoreExecutors.newDirectExecutorService();
+            maxPending = 1;
+        } else {
+            ThreadFactory factory = new ThreadFactoryBuilder().setDaemon(true)
+                                                              .setNameFormat("text-parser-%d")
+                                                              .build();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(),
+                                                             factory);
+            // let idle threads die, in case the stream is abandoned without being closed
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            maxPending = threads * 2;
+        }
+    }
+
+    /**
+     * Query whether the default character set can be split into lines at the byte level.
+     * @return {@code true} if newlines and ASCII characters encode as single bytes.
+     */
+    static boolean isCharsetSupported() {
+        byte[] bytes = "\n\r,\t0.-".getBytes(Charset.defaultCharset());
+        return new String(bytes, Charset.forName("US-ASCII")).equals("\n\r,\t0.-");
+    }
+
+    /**
+     * Open a chunked event stream.
+     * @param file The file to read.
+     * @param comp The compression mode.
+     * @param format The event format.
+     * @param threads The number of parsing threads.
+     * @param chunkSize The chunk size.
+     * @return The event stream.
+     * @throws IOException if there is an error opening the file.
+     */
+    static ChunkedEventStream open(File file, CompressionMode comp, EventFormat format,
+                                   int threads, int chunkSize) throws IOException {
+        Preconditions.checkArgument(threads > 0, "thread count must be positive");
+        Preconditions.checkArgument(chunkSize > 0, "chunk size must be positive");
+        CompressionMode effective = comp.getEffectiveCompressionMode(file.getName());
+        ChunkSource source;
+        if (effective == CompressionMode.NONE) {
+            source = new MappedChunkSource(new FileInputStream(file).getChannel(), chunkSize);
+        } else {
+            FileInputStream fin = new FileInputStream(file);
+            try {
+                source = new StreamChunkSource(effective.wrapInput(fin), chunkSize);
+            } catch (IOException e) {
+                fin.close();
+                throw e;
+            }
+        }
+        logger.debug("parsing {} with {} threads", file, threads);
+        ChunkedEventStream stream = new ChunkedEventStream(file, source, format, threads);
+        try {
+            stream.skipLines(format.getHeaderLines());
+        } catch (RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        return stream;
+    }
+
+    /**
+     * Skip header lines at the beginning of the file.
+     */
+    private void skipLines(int n) {
+        int skipped = 0;
+        while (skipped < n) {
+            ByteBuffer chunk = nextChunk();
+            if (chunk == null) {
+                return;
+            }
+            int pos = chunk.position();
+            while (skipped < n && pos < chunk.limit()) {
+                if (chunk.get(pos) == '\n') {
+                    skipped++;
+                }
+                pos++;
+            }
+            chunk.position(pos);
+            if (chunk.hasRemaining()) {
+                pending.add(executor.submit(new ParseTask(chunk)));
+            }
+        }
+        linesBefore = skipped;
+    }
+
+    @Nullable
+    private ByteBuffer nextChunk() {
+        try {
+            ByteBuffer chunk = source.next();
+            if (chunk == null) {
+                exhausted = true;
+            }
+            return chunk;
+        } catch (IOException e) {
+            throw new DataAccessException("error reading " + file, e);
+        }
+    }
+
+    /**
+     * Start parsing chunks until enough are in progress.
+     */
+    private void fill() {
+        while (!exhausted && pending.size() < maxPending) {
+            ByteBuffer chunk = nextChunk();
+            if (chunk != null) {
+                pending.add(executor.submit(new ParseTask(chunk)));
+            }
+        }
+    }
+
+    @Override
+    public Event readObject() {
+        while (true) {
+            if (current != null) {
+                if (position < current.events.size()) {
+                    return current.events.get(position++);
+                }
+                current.checkFailure(linesBefore);
+                linesBefore += current.lineCount;
+                current = null;
+            }
+
+            fill();
+            Future<ParsedChunk> next = pending.poll();
+            if (next == null) {
+                return null;
+            }
+            current = await(next);
+            position = 0;
+        }
+    }
+
+    private ParsedChunk await(Future<ParsedChunk> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataAccessException("interrupted while parsing " + file, e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        pending.clear();
+        try {
+            source.close();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * The result of parsing a chunk.
+     */
+    private static class ParsedChunk {
+        final List<Event> events;
+        final int lineCount;
+        @Nullable
+        final Exception failure;
+
+        ParsedChunk(List<Event> evts, int lines, @Nullable Exception ex) {
+            events = evts;
+            lineCount = lines;
+            failure = ex;
+        }
+
+        /**
+         * Throw the failure that stopped parsing this chunk, if any.
+         * @param linesBefore The number of lines before this chunk.
+         */
+        void checkFailure(long linesBefore) {
+            if (failure instanceof InvalidRowException) {
+                throw new DataAccessException("malformed input on line " + (linesBefore + lineCount),
+                                              failure);
+            } else if (failure != null) {
+                throw Throwables.propagate(failure);
+            }
+        }
+    }
+
+    /**
+     * Parse the lines of a chunk.  If a line fails to parse, the chunk stops there, and its line
+     * count is the number of the failing line.
+     */
+    private class ParseTask implements Callable<ParsedChunk> {
+        private final ByteBuffer chunk;
+
+        ParseTask(ByteBuffer buf) {
+            chunk = buf;
+        }
+
+        @Override
+        public ParsedChunk call() {
+            byte[] data;
+            int start, end;
+            if (chunk.hasArray()) {
+                data = chunk.array();
+                start = chunk.arrayOffset() + chunk.position();
+                end = chunk.arrayOffset() + chunk.limit();
+            } else {
+                data = new byte[chunk.remaining()];
+                chunk.duplicate().get(data);
+                start = 0;
+                end = data.length;
+            }
+
+            ByteLineParser fast = ByteLineParser.create(format);
+            Object context = format.newContext();
+            List<Event> events = new ArrayList<>();
+            int lines = 0;
+            int pos = start;
+            while (pos < end) {
+                int eol = pos;
+                while (eol < end && data[eol] != '\n') {
+                    eol++;
+                }
+                int lineEnd = eol;
+                if (lineEnd > pos && data[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                lines++;
+
+                try {
+                    Event evt = fast == null ? null : fast.parse(data, pos, lineEnd);
+                    if (evt == null) {
+                        String line = new String(data, pos, lineEnd - pos, charset);
+                        evt = format.parse(line, context);
+                    }
+                    events.add(evt);
+                } catch (InvalidRowException | RuntimeException e) {
+                    return new ParsedChunk(events, lines, e);
+                }
+                pos = eol + 1;
+            }
+            return new ParsedChunk(events, lines, null);
+        }
+    }
+
+    /**
+     * A source of chunks of whole lines.
+     */
+    private interface ChunkSource extends Closeable {
+        /**
+         * Get the next chunk.
+         * @return The next chunk, or {@code null} at the end of the input.
+         */
+        @Nullable
+        ByteBuffer next() throws IOException;
+    }
+
+    /**
+     * Chunk source that memory-maps successive regions of a file.
+     */
+    private static class MappedChunkSource implements ChunkSource {
+        private final FileChannel channel;
+        private final int chunkSize;
+        private final long size;
+        private long position;
+
+        MappedChunkSource(FileChannel chan, int csize) throws IOException {
+            channel = chan;
+            chunkSize = csize;
+            size = chan.size();
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (position >= size) {
+                return null;
+            }
+            long length = Math.min(chunkSize, size - position);
+            while (true) {
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if (position + length == size) {
+                    position = size;
+                    return buf;
+                }
+                int nl = lastNewline(buf);
+                if (nl >= 0) {
+                    buf.limit(nl + 1);
+                    position += nl + 1;
+                    return buf;
+                }
+                // no line ends in this chunk, try a bigger one
+                length = Math.min(Math.min(length * 2, Integer.MAX_VALUE), size - position);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Chunk source that reads a (decompressed) input stream.
+     */
+    private static class StreamChunkSource implements ChunkSource {
+        private final InputStream input;
+        private final int chunkSize;
+        private byte[] carry = new byte[0];
+        private int carryLength;
+        private boolean eof;
+
+        StreamChunkSource(InputStream in, int csize) {
+            input = in;
+            chunkSize = csize;
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (eof && carryLength == 0) {
+                return null;
+            }
+            byte[] buf = new byte[Math.max(chunkSize, carryLength + 1)];
+            System.arraycopy(carry, 0, buf, 0, carryLength);
+            int n = carryLength;
+            int end;
+            while (true) {
+                while (!eof && n < buf.length) {
+                    int read = input.read(buf, n, buf.length - n);
+                    if (read < 0) {
+                        eof = true;
+                    } else {
+                        n += read;
+                    }
+                }
+                if (eof) {
+                    end = n;
+                    break;
+                }
+                int nl = lastNewline(ByteBuffer.wrap(buf, 0, n));
+                if (nl >= 0) {
+                    end = nl + 1;
+                    break;
+                }
+                // no line ends in this chunk, try a bigger one
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+
+            // save the partial line at the end for the next chunk
+            carryLength = n - end;
+            if (carry.length < carryLength) {
+                carry = new byte[carryLength];
+            }
+            System.arraycopy(buf, end, carry, 0, carryLength);
+            if (end == 0) {
+                return null;
+            }
+            return ByteBuffer.wrap(buf, 0, end);
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Find the last newline in a buffer.
+     * @return The position of the last newline, or -1 if there is none.
+     */
+    private static int lastNewline(ByteBuffer buf) {
+        for (int i = buf.limit() - 1; i >= buf.position(); i--) {
+            if (buf.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -20,12 +20,13 @@
  */
 package org.grouplens.lenskit.data.text;
 
-import com.google.common.collect.Lists;
+import com.google.common.base.Preconditions;
 import org.grouplens.lenskit.util.io.CompressionMode;
 import org.grouplens.lenskit.util.io.Describable;
 import org.grouplens.lenskit.util.io.DescriptionWriter;
 import org.lenskit.data.dao.DataAccessException;
 import org.lenskit.data.dao.EventDAO;
+import org.lenskit.data.dao.ExternalEventSort;
 import org.lenskit.data.dao.SortOrder;
 import org.lenskit.data.events.Event;
 import org.lenskit.data.ratings.RatingBuilder;
@@ -38,9 +39,7 @@ import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.List;
 
 /**
  * DAO that reads events from a text file, one per line.  Events are formatted according to an
@@ -53,6 +52,10 @@ public class TextEventDAO implements EventDAO, Describable {
     private final File inputFile;
     private final CompressionMode compression;
     private final EventFormat eventFormat;
+    /**
+     * The number of parsing threads, or 0 to read a line at a time.
+     */
+    private final int parseThreads;
 
     @Inject
     public TextEventDAO(@EventFile File file, EventFormat format) {
@@ -60,9 +63,14 @@ public class TextEventDAO implements EventDAO, Describable {
     }
 
     private TextEventDAO(@EventFile File file, EventFormat format, CompressionMode comp) {
+        this(file, format, comp, 0);
+    }
+
+    private TextEventDAO(File file, EventFormat format, CompressionMode comp, int threads) {
         inputFile = file;
         compression = comp;
         eventFormat = format;
+        parseThreads = threads;
     }
 
     /**
@@ -105,8 +113,38 @@ public class TextEventDAO implements EventDAO, Describable {
         return new TextEventDAO(inputFile, format, comp);
     }
 
+    /**
+     * Create a DAO that parses its file in parallel.  The file is read in large chunks of lines,
+     * which are parsed on a pool of threads; common numeric fields are parsed directly from the
+     * bytes.  Events are still streamed in file order.  The file must use an ASCII-compatible
+     * encoding (such as UTF-8) and {@code \n} or {@code \r\n} line endings.
+     *
+     * @param inputFile The input file.
+     * @param format The event format.
+     * @param comp The compression mode.
+     * @param threads The number of parsing threads; 0 to use one per available processor.
+     * @return A text event DAO.
+     * @since 3.0
+     */
+    public static TextEventDAO createParallel(File inputFile, EventFormat format,
+                                              CompressionMode comp, int threads) {
+        Preconditions.checkArgument(threads >= 0, "thread count cannot be negative");
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return new TextEventDAO(inputFile, format, comp, threads);
+    }
+
     @Override
     public ObjectStream<Event> streamEvents() {
+        if (parseThreads > 0 && ChunkedEventStream.isCharsetSupported()) {
+            try {
+                return ChunkedEventStream.open(inputFile, compression, eventFormat, parseThreads,
+                                               ChunkedEventStream.DEFAULT_CHUNK_SIZE);
+            } catch (IOException e) {
+                throw new DataAccessException("cannot open " + inputFile, e);
+            }
+        }
         try {
             LineStream lines = LineStream.openFile(inputFile, compression);
             ObjectStreams.consume(eventFormat.getHeaderLines(), lines);
@@ -128,14 +166,8 @@ public class TextEventDAO implements EventDAO, Describable {
             return streamEvents(type);
         }
 
-        ObjectStream<E> objectStream = streamEvents(type);
-        try {
-            List<E> events = Lists.newArrayList(objectStream);
-            Collections.sort(events, evt);
-            return ObjectStreams.wrap(events);
-        } finally {
-            objectStream.close();
-        }
+        // sorted runs are spilled to disk, so files larger than memory can be sorted
+        return ExternalEventSort.sort(streamEvents(type), evt);
     }
 
     @Override
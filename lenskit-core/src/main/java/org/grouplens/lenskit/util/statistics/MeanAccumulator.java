@@ -62,6 +62,17 @@ public class MeanAccumulator {
         accCount++;
     }
 
+    /**
+     * Add all the data accumulated by another {@link MeanAccumulator} to this one.
+     *
+     * @param other The accumulator whose data should be added.
+     * @since 3.0
+     */
+    public void merge(MeanAccumulator other) {
+        accSum += other.accSum;
+        accCount += other.accCount;
+    }
+
     /**
      * @return average over all added datums
      */
@@ -23,6 +23,7 @@ package org.grouplens.lenskit.vectors.similarity;
 import com.google.common.base.Preconditions;
 import org.lenskit.inject.Shareable;
 import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorKernels;
 import org.lenskit.util.math.Scalars;
 
 import javax.inject.Inject;
@@ -58,10 +59,22 @@ public class CosineVectorSimilarity implements VectorSimilarity, Serializable {
         dampingFactor = damping;
     }
 
+    /**
+     * Get the damping term added to the denominator.
+     * @return The damping factor.
+     */
+    public double getDampingFactor() {
+        return dampingFactor;
+    }
+
     @Override
     public double similarity(SparseVector vec1, SparseVector vec2) {
-        final double dot = vec1.dot(vec2);
-        final double denom = vec1.norm() * vec2.norm() + dampingFactor;
+        final double[] stats = SimilarityScratch.get().stats;
+        VectorKernels.dotAndSquares(vec1, vec2, stats);
+        final double dot = stats[VectorKernels.DOT];
+        final double denom = Math.sqrt(stats[VectorKernels.LEFT_SQUARES])
+                             * Math.sqrt(stats[VectorKernels.RIGHT_SQUARES])
+                             + dampingFactor;
         if (Scalars.isZero(denom)) {
             return 0;
         } else {
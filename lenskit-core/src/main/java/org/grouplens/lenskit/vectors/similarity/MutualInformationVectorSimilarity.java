@@ -20,12 +20,10 @@
  */
 package org.grouplens.lenskit.vectors.similarity;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.lenskit.transform.quantize.Quantizer;
 import org.grouplens.lenskit.util.statistics.MutualInformationAccumulator;
 import org.grouplens.lenskit.vectors.SparseVector;
-import org.grouplens.lenskit.vectors.VectorEntry;
-import org.grouplens.lenskit.vectors.Vectors;
+import org.grouplens.lenskit.vectors.VectorKernels;
 
 import javax.inject.Inject;
 import java.io.Serializable;
@@ -74,9 +72,12 @@ public class MutualInformationVectorSimilarity implements VectorSimilarity, Seri
     public double similarity(SparseVector vec1, SparseVector vec2) {
         MutualInformationAccumulator accum = new MutualInformationAccumulator(quantizer.getCount());
 
-        for (Pair<VectorEntry,VectorEntry> e: Vectors.fastIntersect(vec1, vec2)) {
-            accum.count(quantizer.index(e.getLeft().getValue()),
-                        quantizer.index(e.getRight().getValue()));
+        SimilarityScratch scratch = SimilarityScratch.get();
+        scratch.ensureCapacity(Math.min(vec1.size(), vec2.size()));
+        int n = VectorKernels.gatherCommonValues(vec1, vec2, scratch.left, scratch.right);
+        for (int i = 0; i < n; i++) {
+            accum.count(quantizer.index(scratch.left[i]),
+                        quantizer.index(scratch.right[i]));
         }
 
         return accum.getMutualInformation();
@@ -21,11 +21,9 @@
 package org.grouplens.lenskit.vectors.similarity;
 
 import com.google.common.base.Preconditions;
-import org.apache.commons.lang3.tuple.Pair;
 import org.lenskit.inject.Shareable;
 import org.grouplens.lenskit.vectors.SparseVector;
-import org.grouplens.lenskit.vectors.VectorEntry;
-import org.grouplens.lenskit.vectors.Vectors;
+import org.grouplens.lenskit.vectors.VectorKernels;
 
 import javax.inject.Inject;
 import java.io.Serializable;
@@ -62,6 +60,14 @@ public class PearsonCorrelation implements VectorSimilarity, Serializable {
         shrinkage = s;
     }
 
+    /**
+     * Get the shrinkage term added to the denominator.
+     * @return The shrinkage (damping) factor.
+     */
+    public double getShrinkage() {
+        return shrinkage;
+    }
+
     @Override
     public double similarity(SparseVector vec1, SparseVector vec2) {
         // First check for empty vectors - then we can assume at least one element
@@ -70,25 +76,36 @@ public class PearsonCorrelation implements VectorSimilarity, Serializable {
         }
 
         /*
-         * Basic similarity: walk in parallel across the two vectors, computing
-         * the dot product and simultaneously computing the variance within each
-         * vector of the items also contained in the other vector.  Pearson
-         * correlation only considers items shared by both vectors; other items
-         * are discarded for the purpose of similarity computation.
+         * Basic similarity: walk in parallel across the two vectors, gathering
+         * the values of the items contained in both of them.  Pearson correlation
+         * only considers items shared by both vectors; other items are discarded
+         * for the purpose of similarity computation.
          */
+        SimilarityScratch scratch = SimilarityScratch.get();
+        scratch.ensureCapacity(Math.min(vec1.size(), vec2.size()));
+        int n = VectorKernels.gatherCommonValues(vec1, vec2, scratch.left, scratch.right);
+        return correlation(scratch.left, scratch.right, n);
+    }
+
+    /**
+     * Compute the correlation of gathered co-occurring values.
+     *
+     * @param xs The left values.
+     * @param ys The right values.
+     * @param n  The number of values.
+     * @return The damped correlation.
+     */
+    double correlation(double[] xs, double[] ys, int n) {
+        if (n == 0) {
+            return 0;
+        }
 
         // first compute means of common items
         double sum1 = 0;
         double sum2 = 0;
-        int n = 0;
-        for (Pair<VectorEntry,VectorEntry> pair: Vectors.fastIntersect(vec1, vec2)) {
-            sum1 += pair.getLeft().getValue();
-            sum2 += pair.getRight().getValue();
-            n += 1;
-        }
-
-        if (n == 0) {
-            return 0;
+        for (int i = 0; i < n; i++) {
+            sum1 += xs[i];
+            sum2 += ys[i];
         }
 
         final double mu1 = sum1 / n;
@@ -97,22 +114,16 @@ public class PearsonCorrelation implements VectorSimilarity, Serializable {
         double var1 = 0;
         double var2 = 0;
         double dot = 0;
-        int nCoratings = 0;
 
-        for (Pair<VectorEntry,VectorEntry> pair: Vectors.fastIntersect(vec1, vec2)) {
-            final double v1 = pair.getLeft().getValue() - mu1;
-            final double v2 = pair.getRight().getValue() - mu2;
+        for (int i = 0; i < n; i++) {
+            final double v1 = xs[i] - mu1;
+            final double v2 = ys[i] - mu2;
             var1 += v1 * v1;
             var2 += v2 * v2;
             dot += v1 * v2;
-            nCoratings += 1;
         }
 
-        if (nCoratings == 0) {
-            return 0;
-        } else {
-            return dot / (sqrt(var1 * var2) + shrinkage);
-        }
+        return dot / (sqrt(var1 * var2) + shrinkage);
     }
 
     @Override
@@ -22,6 +22,7 @@ package org.grouplens.lenskit.vectors.similarity;
 
 import org.lenskit.inject.Shareable;
 import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorKernels;
 
 import javax.inject.Inject;
 import java.io.Serializable;
@@ -72,7 +73,7 @@ public class SignificanceWeightedVectorSimilarity implements VectorSimilarity, S
     @Override
     public double similarity(SparseVector vec1, SparseVector vec2) {
         double s = delegate.similarity(vec1, vec2);
-        int n = vec1.countCommonKeys(vec2);
+        int n = VectorKernels.countCommonKeys(vec1, vec2);
         s *= n;
         return s / max(n, threshold);
     }
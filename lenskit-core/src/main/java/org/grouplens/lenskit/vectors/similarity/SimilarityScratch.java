@@ -0,0 +1,142 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.vectors.similarity;
+
+import com.google.common.primitives.Doubles;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.lenskit.util.math.Scalars;
+
+/**
+ * Per-thread scratch space for the similarity kernels.  Similarity functions are shared across
+ * threads and called for every pair of vectors a model build compares, so they gather values
+ * into these reusable arrays instead of allocating.
+ */
+final class SimilarityScratch {
+    private static final ThreadLocal<SimilarityScratch> scratch = new ThreadLocal<SimilarityScratch>() {
+        @Override
+        protected SimilarityScratch initialValue() {
+            return new SimilarityScratch();
+        }
+    };
+
+    /**
+     * Get the scratch space for the current thread.
+     * @return The current thread's scratch space.
+     */
+    static SimilarityScratch get() {
+        return scratch.get();
+    }
+
+    /**
+     * Statistics output for {@link org.grouplens.lenskit.vectors.VectorKernels}.
+     */
+    final double[] stats = new double[3];
+    double[] left = new double[64];
+    double[] right = new double[64];
+    double[] leftRanks = new double[64];
+    double[] rightRanks = new double[64];
+    private int[] order = new int[64];
+    private double[] rankValues;
+    private final AbstractIntComparator byValueDecreasing = new AbstractIntComparator() {
+        @Override
+        public int compare(int i1, int i2) {
+            return Doubles.compare(rankValues[i2], rankValues[i1]);
+        }
+    };
+
+    private SimilarityScratch() {}
+
+    /**
+     * Make sure the gather arrays ({@link #left} and {@link #right}) can hold {@code n} values.
+     * @param n The required capacity.
+     */
+    void ensureCapacity(int n) {
+        if (left.length < n) {
+            int cap = Math.max(n, left.length * 2);
+            left = new double[cap];
+            right = new double[cap];
+        }
+    }
+
+    /**
+     * Make sure the rank arrays ({@link #leftRanks} and {@link #rightRanks}) can hold the ranks
+     * of vectors of the given sizes.
+     * @param n1 The left vector size.
+     * @param n2 The right vector size.
+     */
+    void ensureRankCapacity(int n1, int n2) {
+        if (leftRanks.length < n1) {
+            leftRanks = new double[Math.max(n1, leftRanks.length * 2)];
+        }
+        if (rightRanks.length < n2) {
+            rightRanks = new double[Math.max(n2, rightRanks.length * 2)];
+        }
+        int n = Math.max(n1, n2);
+        if (order.length < n) {
+            order = new int[Math.max(n, order.length * 2)];
+        }
+    }
+
+    /**
+     * Replace values with their ranks, in decreasing order of value.  The largest value gets
+     * rank 1; tied values share a combined rank.
+     *
+     * @param values The values; on return, they are replaced with their ranks.
+     * @param n      The number of values.
+     */
+    void rankInPlace(double[] values, int n) {
+        if (order.length < n) {
+            order = new int[Math.max(n, order.length * 2)];
+        }
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        rankValues = values;
+        try {
+            IntArrays.quickSort(order, 0, n, byValueDecreasing);
+
+            // walk the groups of equal values, assigning ranks as we go
+            int i = 0;
+            while (i < n) {
+                final double v = values[order[i]];
+                int j;
+                for (j = i + 1; j < n; j++) {
+                    // compare difference to 0 with tolerance - more robust
+                    if (!Scalars.isZero(values[order[j]] - v)) {
+                        break;
+                    }
+                }
+                if (j - i > 1) {
+                    double r2 = (double) (i + 1 + j) / (j - i);
+                    for (int k = i; k < j; k++) {
+                        values[order[k]] = r2;
+                    }
+                } else {
+                    values[order[i]] = i + 1;
+                }
+                i = j;
+            }
+        } finally {
+            rankValues = null;
+        }
+    }
+}
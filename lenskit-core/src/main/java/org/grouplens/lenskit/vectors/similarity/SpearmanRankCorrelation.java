@@ -21,13 +21,11 @@
 package org.grouplens.lenskit.vectors.similarity;
 
 import com.google.common.base.Preconditions;
-import com.google.common.primitives.Doubles;
-import it.unimi.dsi.fastutil.longs.AbstractLongComparator;
-import it.unimi.dsi.fastutil.longs.LongArrays;
 import org.lenskit.inject.Shareable;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
-import org.lenskit.util.math.Scalars;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.lenskit.vectors.VectorKernels;
 
 import javax.inject.Inject;
 import java.io.Serializable;
@@ -54,50 +52,41 @@ public class SpearmanRankCorrelation implements VectorSimilarity, Serializable {
     }
 
     static SparseVector rank(final SparseVector vec) {
-        long[] ids = vec.keySet().toLongArray();
-        // sort ID set by value (decreasing)
-        LongArrays.quickSort(ids, new AbstractLongComparator() {
-            @Override
-            public int compare(long k1, long k2) {
-                return Doubles.compare(vec.get(k2), vec.get(k1));
-            }
-        });
+        final int n = vec.size();
+        double[] ranks = new double[n];
+        VectorKernels.copyValues(vec, ranks);
+        SimilarityScratch.get().rankInPlace(ranks, n);
 
-        final int n = ids.length;
-        final double[] values = new double[n];
         MutableSparseVector rank = vec.mutableCopy();
-        // assign ranks to each item
-        for (int i = 0; i < n; i++) {
-            rank.set(ids[i], i + 1);
-            values[i] = vec.get(ids[i]);
-        }
-
-        // average ranks for items with same values
+        // ranks are in key order, as is vector iteration
         int i = 0;
-        while (i < n) {
-            int j;
-            for (j = i + 1; j < n; j++) {
-                // compare difference to 0 with tolerance - more robust
-                if (!Scalars.isZero(values[j] - values[i])) {
-                    break;
-                }
-            }
-            if (j - i > 1) {
-                double r2 = (rank.get(ids[i]) + rank.get(ids[j - 1])) / (j - i);
-                for (int k = i; k < j; k++) {
-                    rank.set(ids[k], r2);
-                }
-            }
-            i = j;
+        for (VectorEntry e: rank.fast()) {
+            rank.set(e, ranks[i++]);
         }
-
-        // Make a sparse vector out of it
         return rank;
     }
 
     @Override
     public double similarity(SparseVector vec1, SparseVector vec2) {
-        return pearson.similarity(rank(vec1), rank(vec2));
+        // ranking is the expensive part, so skip it for vectors with nothing in common
+        if (VectorKernels.countCommonKeys(vec1, vec2) == 0) {
+            return 0;
+        }
+
+        final int n1 = vec1.size();
+        final int n2 = vec2.size();
+        SimilarityScratch scratch = SimilarityScratch.get();
+        scratch.ensureRankCapacity(n1, n2);
+        scratch.ensureCapacity(Math.min(n1, n2));
+
+        VectorKernels.copyValues(vec1, scratch.leftRanks);
+        scratch.rankInPlace(scratch.leftRanks, n1);
+        VectorKernels.copyValues(vec2, scratch.rightRanks);
+        scratch.rankInPlace(scratch.rightRanks, n2);
+
+        int n = VectorKernels.gatherCommonValues(vec1, scratch.leftRanks, vec2, scratch.rightRanks,
+                                                 scratch.left, scratch.right);
+        return pearson.correlation(scratch.left, scratch.right, n);
     }
 
     @Override
@@ -0,0 +1,298 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.dao;
+
+import com.google.common.base.Preconditions;
+import org.lenskit.data.events.Event;
+import org.lenskit.util.io.AbstractObjectStream;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.WillClose;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sort event streams that may not fit in memory.  Events are read in runs of bounded size; each
+ * run is sorted in memory and, if more events follow, spilled to a temporary file with Java
+ * serialization.  The runs are then merged as the result stream is read.  Streams that fit in a
+ * single run are sorted entirely in memory.
+ *
+ * <p>The sort is stable.  Events that are spilled to disk must be {@link Serializable}; all of
+ * LensKit's built-in event types are.
+ *
+ * @since 3.0
+ */
+public final class ExternalEventSort {
+    private static final Logger logger = LoggerFactory.getLogger(ExternalEventSort.class);
+    /**
+     * The default number of events to sort in memory at a time.
+     */
+    public static final int DEFAULT_RUN_SIZE = 1 << 20;
+    /**
+     * How often to reset the run output streams, so they do not hold on to written events.
+     */
+    private static final int RESET_INTERVAL = 1024;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private ExternalEventSort() {}
+
+    /**
+     * Sort an event stream with the default run size and temporary directory.
+     *
+     * @param events The events to sort.  This stream is consumed and closed.
+     * @param order The sort order.
+     * @param <E> The event type.
+     * @return A stream of the sorted events.  Close it to delete any temporary files.
+     * @see #sort(ObjectStream, Comparator, int, File)
+     */
+    public static <E extends Event> ObjectStream<E> sort(@WillClose ObjectStream<E> events,
+                                                         Comparator<? super E> order) {
+        return sort(events, order, DEFAULT_RUN_SIZE, null);
+    }
+
+    /**
+     * Sort an event stream.
+     *
+     * @param events The events to sort.  This stream is consumed and closed.
+     * @param order The sort order.
+     * @param runSize The maximum number of events to hold in memory while sorting.  At most this
+     *                many events are held while reading the input; while merging, one event from
+     *                each run is held, in addition to the final run.
+     * @param tempDir The directory for temporary files, or {@code null} to use the system default.
+     * @param <E> The event type.
+     * @return A stream of the sorted events.  Close it to delete any temporary files.
+     * @throws DataAccessException if there is an error writing or reading a spilled run, or if an
+     *                             event that must be spilled is not serializable.
+     */
+    public static <E extends Event> ObjectStream<E> sort(@WillClose ObjectStream<E> events,
+                                                         Comparator<? super E> order,
+                                                         int runSize, @Nullable File tempDir) {
+        Preconditions.checkArgument(runSize > 0, "run size must be positive");
+        List<File> runFiles = new ArrayList<>();
+        boolean finished = false;
+        try {
+            List<E> buffer = new ArrayList<>();
+            try {
+                E evt;
+                while ((evt = events.readObject()) != null) {
+                    if (buffer.size() >= runSize) {
+                        runFiles.add(writeRun(buffer, order, tempDir));
+                        buffer.clear();
+                    }
+                    buffer.add(evt);
+                }
+            } finally {
+                events.close();
+            }
+
+            Collections.sort(buffer, order);
+            ObjectStream<E> result;
+            if (runFiles.isEmpty()) {
+                result = ObjectStreams.wrap(buffer);
+            } else {
+                logger.debug("merging {} sorted runs of up to {} events", runFiles.size() + 1, runSize);
+                result = new MergeStream<>(runFiles, buffer, order);
+            }
+            finished = true;
+            return result;
+        } catch (IOException e) {
+            throw new DataAccessException("error sorting events", e);
+        } finally {
+            if (!finished) {
+                deleteFiles(runFiles);
+            }
+        }
+    }
+
+    /**
+     * Sort a buffer of events and write them to a temporary file.
+     */
+    private static <E extends Event> File writeRun(List<E> buffer, Comparator<? super E> order,
+                                                   @Nullable File tempDir) throws IOException {
+        Collections.sort(buffer, order);
+        File file = File.createTempFile("lenskit-events", ".run", tempDir);
+        boolean written = false;
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE))) {
+            int n = 0;
+            for (E evt: buffer) {
+                if (!(evt instanceof Serializable)) {
+                    throw new DataAccessException("cannot spill unserializable event type "
+                                                  + evt.getClass().getName());
+                }
+                out.writeObject(evt);
+                n += 1;
+                if (n % RESET_INTERVAL == 0) {
+                    out.reset();
+                }
+            }
+            // mark the end of the run
+            out.writeObject(null);
+            written = true;
+        } finally {
+            if (!written && !file.delete()) {
+                logger.warn("could not delete temporary file {}", file);
+            }
+        }
+        logger.debug("wrote run of {} events to {}", buffer.size(), file);
+        return file;
+    }
+
+    private static void deleteFiles(List<File> files) {
+        for (File file: files) {
+            if (!file.delete()) {
+                logger.warn("could not delete temporary file {}", file);
+            }
+        }
+    }
+
+    /**
+     * A sorted run being merged.  It is either read from a file or from the in-memory final run.
+     */
+    private static final class Run<E> implements Closeable {
+        private final int index;
+        @Nullable
+        private final ObjectInputStream input;
+        @Nullable
+        private final Iterator<E> iterator;
+        private E head;
+
+        Run(int idx, ObjectInputStream in) {
+            index = idx;
+            input = in;
+            iterator = null;
+        }
+
+        Run(int idx, Iterator<E> iter) {
+            index = idx;
+            input = null;
+            iterator = iter;
+        }
+
+        /**
+         * Advance to the next event in the run.
+         * @return {@code true} if there is a next event.
+         */
+        @SuppressWarnings("unchecked")
+        boolean advance() {
+            if (iterator != null) {
+                head = iterator.hasNext() ? iterator.next() : null;
+            } else {
+                assert input != null;
+                try {
+                    head = (E) input.readObject();
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new DataAccessException("error reading sorted events", e);
+                }
+            }
+            return head != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            head = null;
+            if (input != null) {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Stream that merges sorted runs.  Runs are ordered by their current events, and then by run
+     * index so that the merge is stable.
+     */
+    private static final class MergeStream<E extends Event> extends AbstractObjectStream<E> {
+        private final List<File> files;
+        private final List<Run<E>> runs;
+        private final PriorityQueue<Run<E>> queue;
+
+        MergeStream(List<File> runFiles, List<E> lastRun,
+                    final Comparator<? super E> order) throws IOException {
+            files = runFiles;
+            runs = new ArrayList<>(runFiles.size() + 1);
+            queue = new PriorityQueue<>(runFiles.size() + 1, new Comparator<Run<E>>() {
+                @Override
+                public int compare(Run<E> r1, Run<E> r2) {
+                    int cmp = order.compare(r1.head, r2.head);
+                    if (cmp == 0) {
+                        cmp = Integer.compare(r1.index, r2.index);
+                    }
+                    return cmp;
+                }
+            });
+            boolean opened = false;
+            try {
+                for (File file: runFiles) {
+                    ObjectInputStream in = new ObjectInputStream(
+                            new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+                    runs.add(new Run<E>(runs.size(), in));
+                }
+                runs.add(new Run<>(runs.size(), lastRun.iterator()));
+                for (Run<E> run: runs) {
+                    if (run.advance()) {
+                        queue.add(run);
+                    }
+                }
+                opened = true;
+            } finally {
+                if (!opened) {
+                    closeRuns();
+                }
+            }
+        }
+
+        @Override
+        public E readObject() {
+            Run<E> run = queue.poll();
+            if (run == null) {
+                return null;
+            }
+            E evt = run.head;
+            if (run.advance()) {
+                queue.add(run);
+            }
+            return evt;
+        }
+
+        private void closeRuns() {
+            for (Run<E> run: runs) {
+                try {
+                    run.close();
+                } catch (IOException e) {
+                    logger.warn("error closing sorted run", e);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            queue.clear();
+            closeRuns();
+            runs.clear();
+            deleteFiles(files);
+            files.clear();
+        }
+    }
+}
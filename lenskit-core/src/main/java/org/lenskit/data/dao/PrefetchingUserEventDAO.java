@@ -24,10 +24,13 @@ import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.Lists;
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import com.google.common.primitives.Longs;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lenskit.util.io.AbstractObjectStream;
 import org.lenskit.util.io.ObjectStream;
 import org.lenskit.util.io.ObjectStreams;
+import org.lenskit.util.keys.SortedKeyIndex;
 import org.lenskit.data.events.Event;
 import org.lenskit.data.history.History;
 import org.lenskit.data.history.UserHistory;
@@ -36,17 +39,24 @@ import org.grouplens.lenskit.util.io.DescriptionWriter;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 /**
- * User event DAO that pre-loads all events from an event DAO.
+ * User event DAO that pre-loads all events from an event DAO.  The events are kept in a single
+ * array grouped by user, with an index of each user's range in the array and a history viewing
+ * each range.  Each user's events are in the order the event DAO streamed them, and users are
+ * streamed in order of user ID.
+ * <p>
+ * For data that does not fit in memory, use {@link StreamingUserEventDAO}.
  *
  * @since 2.0
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public final class PrefetchingUserEventDAO implements UserEventDAO, Describable {
     private final EventDAO eventDAO;
-    private final Supplier<Long2ObjectMap<UserHistory<Event>>> cache;
+    private final Supplier<UserEventIndex> cache;
 
     /**
      * A function that wraps an event DAO in a prefetching user event DAO.  If the DAO already
@@ -79,7 +89,19 @@ public final class PrefetchingUserEventDAO implements UserEventDAO, Describable
 
     @Override
     public ObjectStream<UserHistory<Event>> streamEventsByUser() {
-        return ObjectStreams.wrap(cache.get().values());
+        final UserEventIndex index = cache.get();
+        return new AbstractObjectStream<UserHistory<Event>>() {
+            int next = 0;
+
+            @Override
+            public UserHistory<Event> readObject() {
+                if (next < index.histories.length) {
+                    return index.histories[next++];
+                } else {
+                    return null;
+                }
+            }
+        };
     }
 
     @Override
@@ -95,7 +117,9 @@ public final class PrefetchingUserEventDAO implements UserEventDAO, Describable
 
     @Override
     public UserHistory<Event> getEventsForUser(long user) {
-        return cache.get().get(user);
+        UserEventIndex index = cache.get();
+        int idx = index.users.tryGetIndex(user);
+        return idx >= 0 ? index.histories[idx] : null;
     }
 
     @Override
@@ -114,32 +138,63 @@ public final class PrefetchingUserEventDAO implements UserEventDAO, Describable
               .putField("delegate", eventDAO);
     }
 
-    private class UserProfileScanner implements Supplier<Long2ObjectMap<UserHistory<Event>>> {
+    /**
+     * Compare events by user only, so a stable sort keeps each user's events in stream order.
+     */
+    private static final Comparator<Event> USER_COMPARATOR = new Comparator<Event>() {
+        @Override
+        public int compare(Event e1, Event e2) {
+            return Longs.compare(e1.getUserId(), e2.getUserId());
+        }
+    };
+
+    /**
+     * The pre-loaded users and their histories, which are views of ranges of one event array.
+     */
+    private static class UserEventIndex {
+        final SortedKeyIndex users;
+        final UserHistory<Event>[] histories;
+
+        @SuppressWarnings("unchecked")
+        UserEventIndex(Event[] events, SortedKeyIndex us, int[] offsets) {
+            users = us;
+            histories = new UserHistory[us.size()];
+            List<Event> list = Arrays.asList(events);
+            for (int i = 0; i < histories.length; i++) {
+                histories[i] = History.forUser(us.getKey(i), list.subList(offsets[i], offsets[i + 1]));
+            }
+        }
+    }
+
+    private class UserProfileScanner implements Supplier<UserEventIndex> {
         @Override
-        public Long2ObjectMap<UserHistory<Event>> get() {
-            Long2ObjectMap<List<Event>> table =
-                    new Long2ObjectOpenHashMap<List<Event>>();
-            ObjectStream<Event> events = eventDAO.streamEvents();
+        public UserEventIndex get() {
+            List<Event> list = Lists.newArrayList();
+            ObjectStream<Event> stream = eventDAO.streamEvents();
             try {
-                for (Event evt: events) {
-                    final long iid = evt.getUserId();
-                    List<Event> list = table.get(iid);
-                    if (list == null) {
-                        list = Lists.newArrayList();
-                        table.put(iid, list);
-                    }
+                for (Event evt: stream) {
                     list.add(evt);
                 }
             } finally {
-                events.close();
+                stream.close();
             }
-            Long2ObjectMap<UserHistory<Event>> result = new Long2ObjectOpenHashMap<UserHistory<Event>>(table.size());
-            for (Long2ObjectMap.Entry<List<Event>> evt: table.long2ObjectEntrySet()) {
-                long user = evt.getLongKey();
-                result.put(user, History.forUser(user, evt.getValue()));
-                evt.setValue(null);
+            Event[] events = list.toArray(new Event[list.size()]);
+            list = null;
+            // stable, so each user's events stay in stream order
+            Arrays.sort(events, USER_COMPARATOR);
+
+            LongArrayList users = new LongArrayList();
+            IntArrayList offsets = new IntArrayList();
+            for (int i = 0; i < events.length; i++) {
+                long user = events[i].getUserId();
+                if (i == 0 || user != events[i - 1].getUserId()) {
+                    users.add(user);
+                    offsets.add(i);
+                }
             }
-            return result;
+            offsets.add(events.length);
+            return new UserEventIndex(events, SortedKeyIndex.wrap(users.elements(), users.size()),
+                                      offsets.toIntArray());
         }
     }
 }
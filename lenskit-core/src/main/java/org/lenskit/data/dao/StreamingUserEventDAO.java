@@ -0,0 +1,100 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.dao;
+
+import com.google.common.collect.Lists;
+import org.grouplens.lenskit.util.io.Describable;
+import org.grouplens.lenskit.util.io.DescriptionWriter;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.history.History;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.history.UserHistoryObjectStream;
+import org.lenskit.util.io.ObjectStream;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * User event DAO that groups events as they are streamed, without caching them.  User histories
+ * are produced, in user order, from the delegate DAO's {@link SortOrder#USER} event stream; with a
+ * DAO that sorts externally (such as {@link org.grouplens.lenskit.data.text.TextEventDAO}) or in
+ * its database, memory use is bounded by the largest user history.
+ * <p>
+ * Looking up a single user's events scans the entire event stream, so this DAO is meant for
+ * passes over all users.  Use {@link PrefetchingUserEventDAO} for random access to data that fits
+ * in memory.
+ *
+ * @since 3.0
+ */
+public final class StreamingUserEventDAO implements UserEventDAO, Describable {
+    private final EventDAO eventDAO;
+
+    @Inject
+    public StreamingUserEventDAO(EventDAO dao) {
+        eventDAO = dao;
+    }
+
+    @Override
+    public ObjectStream<UserHistory<Event>> streamEventsByUser() {
+        return streamEventsByUser(Event.class);
+    }
+
+    @Override
+    public <E extends Event> ObjectStream<UserHistory<E>> streamEventsByUser(Class<E> type) {
+        return new UserHistoryObjectStream<>(eventDAO.streamEvents(type, SortOrder.USER));
+    }
+
+    @Nullable
+    @Override
+    public UserHistory<Event> getEventsForUser(long user) {
+        List<Event> events = Lists.newArrayList();
+        try (ObjectStream<Event> stream = eventDAO.streamEvents()) {
+            for (Event evt: stream) {
+                if (evt.getUserId() == user) {
+                    events.add(evt);
+                }
+            }
+        }
+        if (events.isEmpty()) {
+            return null;
+        } else {
+            return History.forUser(user, events);
+        }
+    }
+
+    @Nullable
+    @Override
+    public <E extends Event> UserHistory<E> getEventsForUser(long user, Class<E> type) {
+        UserHistory<Event> events = getEventsForUser(user);
+        if (events == null) {
+            return null;
+        } else {
+            return events.filter(type);
+        }
+    }
+
+    @Override
+    public void describeTo(DescriptionWriter writer) {
+        writer.putField("daoType", "UserEvent")
+              .putField("delegate", eventDAO);
+    }
+}
@@ -23,6 +23,8 @@ package org.lenskit.data.events;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
+import java.io.Serializable;
+
 /**
  * Generic interface representing a batch of unary interactions.  Events of this type will generally
  * not have timestamps.  An example of a use of this event type is to represent play counts in a
@@ -34,7 +36,9 @@ import org.apache.commons.lang3.builder.HashCodeBuilder;
  * @see Like
  */
 @BuiltBy(LikeBatchBuilder.class)
-public class LikeBatch implements Event {
+public class LikeBatch implements Event, Serializable {
+    private static final long serialVersionUID = 1L;
+
     private final long userId;
     private final long itemId;
     private final int count;
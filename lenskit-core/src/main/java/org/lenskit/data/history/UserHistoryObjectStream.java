@@ -18,14 +18,12 @@
  * this program; if not, write to the Free Software Foundation, Inc., 51
  * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
  */
-package org.grouplens.lenskit.data.sql;
+package org.lenskit.data.history;
 
 import com.google.common.collect.ImmutableList;
 import org.lenskit.util.io.ObjectStream;
 import org.lenskit.util.io.GroupingObjectStream;
 import org.lenskit.data.events.Event;
-import org.lenskit.data.history.UserHistory;
-import org.lenskit.data.history.History;
 
 import javax.annotation.Nonnull;
 import javax.annotation.WillCloseWhenClosed;
@@ -36,8 +34,9 @@ import java.util.List;
  * them into user histories.
  *
  * @param <E> The event type.
+ * @since 3.0
  */
-class UserHistoryObjectStream<E extends Event> extends GroupingObjectStream<UserHistory<E>,E> {
+public class UserHistoryObjectStream<E extends Event> extends GroupingObjectStream<UserHistory<E>,E> {
     private ImmutableList.Builder<E> builder;
     private long userId;
 
@@ -109,6 +109,23 @@ final class BinaryFormat {
         return compactUsers;
     }
 
+    /**
+     * Query whether this format is for a file that is larger than 2GB.
+     * @return {@code true} if the file requires a segmented reader.
+     */
+    public boolean isLargeFile() {
+        return formatFlags.contains(PackHeaderFlag.LARGE_FILE);
+    }
+
+    /**
+     * Query whether this format stores ratings in compressed column blocks.  If it does, the
+     * rating size is the size of the fixed-width records used while packing.
+     * @return {@code true} if the rating data is columnar.
+     */
+    public boolean isColumnar() {
+        return formatFlags.contains(PackHeaderFlag.COLUMNAR);
+    }
+
     public boolean isCompact() {
         return compactUsers || compactItems;
     }
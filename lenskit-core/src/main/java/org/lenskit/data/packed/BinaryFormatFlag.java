@@ -36,7 +36,13 @@ public enum BinaryFormatFlag {
      * Do not use compact user and item IDs.  This can make packing more efficient if you know that
      * some user or item IDs do not fit in ints.
      */
-    NO_COMPACT;
+    NO_COMPACT,
+    /**
+     * Compress the rating data.  Compressed files store delta-encoded IDs and timestamps and
+     * dictionary-coded rating values; they are usually several times smaller, at the cost of
+     * decoding a block of ratings to read any one of them.
+     */
+    COMPRESSED;
 
     public static EnumSet<BinaryFormatFlag> makeSet(BinaryFormatFlag... flags) {
         EnumSet<BinaryFormatFlag> flagSet = EnumSet.noneOf(BinaryFormatFlag.class);
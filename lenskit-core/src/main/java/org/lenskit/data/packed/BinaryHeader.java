@@ -132,8 +132,12 @@ class BinaryHeader {
         return itemCount;
     }
 
-    public int getRatingDataSize() {
-        return getRatingCount() * format.getRatingSize();
+    /**
+     * Get the size of the rating data.  This can exceed 2GB for large files.
+     * @return The number of bytes of rating data following the header.
+     */
+    public long getRatingDataSize() {
+        return (long) getRatingCount() * format.getRatingSize();
     }
 
     @Override
@@ -20,7 +20,12 @@
  */
 package org.lenskit.data.packed;
 
+import com.google.common.primitives.Ints;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntIterators;
 import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntLists;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.apache.commons.lang3.tuple.Pair;
 import org.grouplens.lenskit.collections.LongKeyDomain;
@@ -28,11 +33,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.AbstractCollection;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
 
@@ -54,6 +62,10 @@ import java.util.Iterator;
 @ThreadSafe
 class BinaryIndexTable implements Serializable {
     static final int TABLE_ENTRY_SIZE = BinaryFormat.LONG_SIZE + 2 * BinaryFormat.INT_SIZE;
+    /**
+     * The number of table entries to read at a time when reading from a channel.
+     */
+    private static final int READ_BLOCK_ENTRIES = 4096;
 
     private static final long serialVersionUID = -1L;
     private static final Logger logger = LoggerFactory.getLogger(BinaryIndexTable.class);
@@ -72,15 +84,37 @@ class BinaryIndexTable implements Serializable {
     /**
      * The index store.
      */
-    private final IntBuffer indexStore;
+    private final SegmentedBuffer indexStore;
+    /**
+     * Int views of the index store segments.
+     */
+    private final IntBuffer[] storeSegments;
+    private final int segmentInts;
+    /**
+     * The rating positions visible through this table, or {@code null} if all are visible.
+     */
+    @Nullable
+    private final BitSet mask;
+
+    private BinaryIndexTable(LongKeyDomain keytbl, int[] offtbl, int[] sztbl, SegmentedBuffer store) {
+        this(keytbl, offtbl, sztbl, store, null);
+    }
 
-    private BinaryIndexTable(LongKeyDomain keytbl, int[] offtbl, int[] sztbl, IntBuffer buf) {
+    private BinaryIndexTable(LongKeyDomain keytbl, int[] offtbl, int[] sztbl, SegmentedBuffer store,
+                             @Nullable BitSet mask) {
         assert offtbl.length == keytbl.domainSize();
         assert sztbl.length == keytbl.domainSize();
         keys = keytbl;
         offsets = offtbl;
         sizes = sztbl;
-        indexStore = buf;
+        indexStore = store;
+        ByteBuffer[] segs = store.duplicateSegments();
+        storeSegments = new IntBuffer[segs.length];
+        for (int i = 0; i < segs.length; i++) {
+            storeSegments[i] = segs[i].asIntBuffer();
+        }
+        segmentInts = Math.max(store.getSegmentSize() / BinaryFormat.INT_SIZE, 1);
+        this.mask = mask;
     }
 
     /**
@@ -95,8 +129,78 @@ class BinaryIndexTable implements Serializable {
         int[] offsets = new int[nentries];
         int[] sizes = new int[nentries];
         // Read the index table's header (IDs, offsets, and counts/sizes).
-        int nextExpectedOffset = 0;
-        for (int i = 0; i < nentries; i++) {
+        long storeSize = readEntries(buffer, 0, nentries, keys, offsets, sizes, 0);
+
+        // Set up the integer store
+        long storeBytes = storeSize * BinaryFormat.INT_SIZE;
+        if (buffer.remaining() < storeBytes) {
+            throw new IllegalArgumentException("buffer not large enough");
+        }
+        int end = Ints.checkedCast(buffer.position() + storeBytes);
+        ByteBuffer dup = buffer.duplicate();
+        dup.limit(end);
+        // update input indexStore's position
+        buffer.position(end);
+        // create index table object
+        LongKeyDomain dom = LongKeyDomain.wrap(keys, keys.length, true);
+        return new BinaryIndexTable(dom, offsets, sizes, SegmentedBuffer.wrap(dup));
+    }
+
+    /**
+     * Read a binary index table from a file.  The table's entries are read into memory, and its
+     * index store is memory-mapped in segments, so it can be larger than 2GB.
+     * @param nentries The number of entries in the table.
+     * @param chan The channel.  Its position will be advanced to the end of the table.
+     * @return The index table.
+     * @throws IOException if there is an error reading the table.
+     */
+    public static BinaryIndexTable fromChannel(int nentries, FileChannel chan) throws IOException {
+        return fromChannel(nentries, chan, SegmentedBuffer.MAX_SEGMENT_SIZE);
+    }
+
+    static BinaryIndexTable fromChannel(int nentries, FileChannel chan, int maxSegment) throws IOException {
+        logger.debug("reading table of {} entries", nentries);
+        long[] keys = new long[nentries];
+        int[] offsets = new int[nentries];
+        int[] sizes = new int[nentries];
+        ByteBuffer buf = ByteBuffer.allocateDirect(TABLE_ENTRY_SIZE * Math.min(nentries, READ_BLOCK_ENTRIES));
+        long storeSize = 0;
+        int start = 0;
+        try {
+            while (start < nentries) {
+                int end = Math.min(start + READ_BLOCK_ENTRIES, nentries);
+                buf.clear();
+                buf.limit((end - start) * TABLE_ENTRY_SIZE);
+                BinaryUtils.readBuffer(chan, buf);
+                buf.flip();
+                storeSize = readEntries(buf, start, end, keys, offsets, sizes, storeSize);
+                start = end;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("invalid index table", e);
+        }
+
+        long storeStart = chan.position();
+        long storeBytes = storeSize * BinaryFormat.INT_SIZE;
+        SegmentedBuffer store = SegmentedBuffer.map(chan, storeStart, storeBytes,
+                                                    BinaryFormat.INT_SIZE, maxSegment);
+        chan.position(storeStart + storeBytes);
+        LongKeyDomain dom = LongKeyDomain.wrap(keys, keys.length, true);
+        return new BinaryIndexTable(dom, offsets, sizes, store);
+    }
+
+    /**
+     * Read table entries from a buffer.
+     * @param buffer The buffer, positioned at entry {@code start}.
+     * @param start The first entry to read.
+     * @param end The end of the entries to read.
+     * @param nextExpectedOffset The expected offset of entry {@code start}.
+     * @return The expected offset of entry {@code end}.
+     */
+    private static long readEntries(ByteBuffer buffer, int start, int end,
+                                    long[] keys, int[] offsets, int[] sizes,
+                                    long nextExpectedOffset) {
+        for (int i = start; i < end; i++) {
             keys[i] = buffer.getLong();
             if (i > 0 && keys[i-1] >= keys[i]) {
                 logger.error("key {} is not greater than previous key {}", keys[i], keys[i-1]);
@@ -110,26 +214,18 @@ class BinaryIndexTable implements Serializable {
             }
             nextExpectedOffset += sizes[i];
         }
+        return nextExpectedOffset;
+    }
 
-        // Set up the integer store
-        if (buffer.remaining() < nextExpectedOffset * 4) {
-            throw new IllegalArgumentException("buffer not large enough");
-        }
-        int end = buffer.position() + nextExpectedOffset * 4;
-        ByteBuffer dup = buffer.duplicate();
-        dup.limit(end);
-        // update input indexStore's position
-        buffer.position(end);
-        // create index table object
-        LongKeyDomain dom = LongKeyDomain.wrap(keys, keys.length, true);
-        return new BinaryIndexTable(dom, offsets, sizes, dup.asIntBuffer());
+    private int storeGet(int i) {
+        return indexStore.getInt((long) i * BinaryFormat.INT_SIZE);
     }
 
     public BinaryIndexTable createLimitedView(int limit) {
         LongKeyDomain newKeys = keys.clone();
         int[] newSizes = new int[sizes.length];
         for (int i=0;i<offsets.length;i++) {
-            if (indexStore.get(offsets[i])>=limit||sizes[i]==0) {
+            if (sizes[i]==0||storeGet(offsets[i])>=limit) {
                 newSizes[i]=0;
                 newKeys.setActive(i, false);
             } else {
@@ -139,12 +235,52 @@ class BinaryIndexTable implements Serializable {
                     * find the new 'size' value; this is the number of indexes for this key that
                     * are less than the limit
                     */
-                    if(indexStore.get(j)<limit)
+                    if(storeGet(j)<limit)
                         newSizes[i]+=1;
                 }
+                if (!hasVisible(offsets[i], newSizes[i], mask)) {
+                    newKeys.setActive(i, false);
+                }
             }
         }
-        return new BinaryIndexTable(newKeys,offsets, newSizes, indexStore);
+        return new BinaryIndexTable(newKeys,offsets, newSizes, indexStore, mask);
+    }
+
+    /**
+     * Create a view of this table that only contains the rating positions in a mask.  Keys with no
+     * positions in the mask are inactive in the view.  The view shares this table's index store.
+     *
+     * @param positions The rating positions to keep.  If this table is already masked, the view
+     *                  contains the positions in both masks.  The view takes ownership of the mask.
+     * @return The masked view of the table.
+     */
+    public BinaryIndexTable createMaskedView(BitSet positions) {
+        BitSet newMask = positions;
+        if (mask != null) {
+            newMask.and(mask);
+        }
+        LongKeyDomain newKeys = keys.clone();
+        for (int i = 0; i < offsets.length; i++) {
+            if (newKeys.indexIsActive(i) && !hasVisible(offsets[i], sizes[i], newMask)) {
+                newKeys.setActive(i, false);
+            }
+        }
+        return new BinaryIndexTable(newKeys, offsets, sizes, indexStore, newMask);
+    }
+
+    /**
+     * Query whether a range of the index store has any positions in a mask.
+     */
+    private boolean hasVisible(int offset, int size, @Nullable BitSet mask) {
+        if (mask == null) {
+            return size > 0;
+        }
+        for (int j = offset; j < offset + size; j++) {
+            if (mask.get(storeGet(j))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public LongSet getKeys() {
@@ -167,17 +303,47 @@ class BinaryIndexTable implements Serializable {
     private IntList getEntryInternal(int idx) {
         int offset = offsets[idx];
         int size = sizes[idx];
-        IntBuffer buf = indexStore.duplicate();
-        buf.position(offset).limit(offset + size);
-        return BufferBackedIntList.create(buf);
+        if (size == 0) {
+            return IntLists.EMPTY_LIST;
+        }
+        if (mask != null) {
+            IntArrayList visible = new IntArrayList(size);
+            for (int i = 0; i < size; i++) {
+                int pos = storeGet(offset + i);
+                if (mask.get(pos)) {
+                    visible.add(pos);
+                }
+            }
+            return visible;
+        }
+        int seg = offset / segmentInts;
+        int segOffset = offset - seg * segmentInts;
+        IntBuffer buf = storeSegments[seg];
+        if (segOffset + size <= buf.limit()) {
+            return BufferBackedIntList.create(buf, segOffset, size);
+        } else {
+            // the entry spans a segment boundary; copy it out
+            int[] indexes = new int[size];
+            for (int i = 0; i < size; i++) {
+                indexes[i] = storeGet(offset + i);
+            }
+            return IntArrayList.wrap(indexes);
+        }
     }
 
+    /**
+     * Get the entries of this table.  In a masked view, only the active keys (those with positions
+     * in the mask) have entries; otherwise, every key in the domain has one, possibly with an empty
+     * position list if a window excludes all of its positions.
+     *
+     * @return The table entries, in key order.
+     */
     public Collection<Pair<Long,IntList>> entries() {
         return new EntryCollection();
     }
 
     private Object writeReplace() throws ObjectStreamException {
-        return new SerialProxy(keys, offsets, sizes, indexStore);
+        return new SerialProxy(keys, offsets, sizes, indexStore, mask);
     }
 
     private Object readObject(ObjectInputStream in) throws IOException {
@@ -188,7 +354,7 @@ class BinaryIndexTable implements Serializable {
     private class EntryCollection extends AbstractCollection<Pair<Long, IntList>> {
         @Override
         public int size() {
-            return keys.domainSize();
+            return mask != null ? keys.size() : keys.domainSize();
         }
 
         @Override
@@ -199,17 +365,19 @@ class BinaryIndexTable implements Serializable {
     }
 
     private class IterImpl implements Iterator<Pair<Long,IntList>> {
-        int pos = 0;
+        // masked views skip the keys the mask hides entirely
+        final IntIterator indexes = mask != null
+                ? keys.activeIndexIterator(false)
+                : IntIterators.fromTo(0, keys.domainSize());
 
         @Override
         public boolean hasNext() {
-            return pos < keys.domainSize();
+            return indexes.hasNext();
         }
 
         @Override
         public Pair<Long, IntList> next() {
-            int i = pos;
-            pos += 1;
+            int i = indexes.nextInt();
             return Pair.of(keys.getKey(i), getEntryInternal(i));
         }
 
@@ -220,46 +388,51 @@ class BinaryIndexTable implements Serializable {
     }
 
     private static class SerialProxy implements Serializable {
-        private static final long serialVersionUID = 2L;
+        private static final long serialVersionUID = 3L;
 
         private final LongKeyDomain keys;
         private final int[] offsets;
         private final int[] sizes;
-        private transient IntBuffer buffer;
+        @Nullable
+        private final BitSet mask;
+        private transient SegmentedBuffer buffer;
 
-        private SerialProxy(LongKeyDomain keys, int [] offsets, int[] sizes, IntBuffer buffer) {
+        private SerialProxy(LongKeyDomain keys, int [] offsets, int[] sizes, SegmentedBuffer buffer,
+                            @Nullable BitSet mask) {
             this.keys = keys.clone();
             this.offsets = offsets;
             this.sizes = sizes;
-            this.buffer = buffer.duplicate();
-            this.buffer.clear();
+            this.mask = mask;
+            this.buffer = buffer;
         }
 
         private void writeObject(ObjectOutputStream out) throws IOException {
             out.defaultWriteObject();
-            out.writeInt(buffer.limit());
-            while (buffer.hasRemaining()) {
-                out.writeInt(buffer.get());
+            int size = (int) (buffer.size() / BinaryFormat.INT_SIZE);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(buffer.getInt((long) i * BinaryFormat.INT_SIZE));
             }
         }
 
         private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
             in.defaultReadObject();
             int size = in.readInt();
-            ByteBuffer store = ByteBuffer.allocateDirect(size * 4);
-            buffer = store.asIntBuffer();
-            assert buffer.remaining() == size;
-            while (buffer.hasRemaining()) {
-                buffer.put(in.readInt());
+            buffer = SegmentedBuffer.allocateDirect((long) size * BinaryFormat.INT_SIZE,
+                                                    BinaryFormat.INT_SIZE);
+            for (ByteBuffer seg: buffer.duplicateSegments()) {
+                IntBuffer ints = seg.asIntBuffer();
+                while (ints.hasRemaining()) {
+                    ints.put(in.readInt());
+                }
             }
-            buffer.clear();
         }
 
         private Object readResolve() throws ObjectStreamException {
             if (keys.domainSize() != offsets.length || keys.domainSize() != sizes.length) {
                 throw new InvalidObjectException("arrays not the same length");
             }
-            return new BinaryIndexTable(keys, offsets, sizes, buffer.duplicate());
+            return new BinaryIndexTable(keys, offsets, sizes, buffer, mask);
         }
     }
 }
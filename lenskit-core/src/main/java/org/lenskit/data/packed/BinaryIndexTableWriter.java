@@ -71,17 +71,29 @@ class BinaryIndexTableWriter {
      * @throws IOException if there is an I/O error
      */
     public void writeEntry(long id, int[] indexes) throws IOException {
-        writeEntryHeader(id, indexes.length);
+        writeEntry(id, indexes, 0, indexes.length);
+    }
+
+    /**
+     * Write an entry into the index table from a slice of an array.
+     * @param id The ID.
+     * @param indexes An array containing the indexes to store.
+     * @param offset The position in {@code indexes} of the first index to store.
+     * @param length The number of indexes to store.
+     * @throws IOException if there is an I/O error
+     */
+    public void writeEntry(long id, int[] indexes, int offset, int length) throws IOException {
+        writeEntryHeader(id, length);
 
-        int storeBytes = indexes.length * BinaryFormat.INT_SIZE;
+        int storeBytes = length * BinaryFormat.INT_SIZE;
         if (storeBuffer == null || storeBuffer.capacity() < storeBytes) {
             storeBuffer = ByteBuffer.allocateDirect(storeBytes);
         }
         assert storeBuffer.position() == 0;
         assert storeBuffer.limit() >= storeBytes;
 
-        for (int idx: indexes) {
-            storeBuffer.putInt(idx);
+        for (int i = offset; i < offset + length; i++) {
+            storeBuffer.putInt(indexes[i]);
         }
         storeBuffer.flip();
         assert storeBuffer.limit() == storeBytes;
@@ -89,7 +101,7 @@ class BinaryIndexTableWriter {
         BinaryUtils.writeBuffer(channel, storeBuffer);
         storeBuffer.clear();
 
-        currentOffset += indexes.length;
+        currentOffset += length;
 
         assert channel.position() == tableStartPosition
                                      + (entryCount * BinaryIndexTable.TABLE_ENTRY_SIZE)
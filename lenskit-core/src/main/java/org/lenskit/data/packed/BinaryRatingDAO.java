@@ -25,6 +25,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.primitives.Ints;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
@@ -53,20 +54,28 @@ import javax.inject.Provider;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.BitSet;
 import java.util.List;
 
 /**
  * DAO implementation using binary-packed data.  This DAO reads ratings from a compact binary format
  * using memory-mapped IO, so the data is efficiently readable (subject to available memory and
- * operating system caching logic) without expanding the Java heap.
+ * operating system caching logic) without expanding the Java heap.  Files are mapped in segments,
+ * so they may be larger than 2GB.
  * <p/>
  * To create a file compatible with this DAO, use the {@link BinaryRatingPacker} class or the
- * <tt>pack</tt> command in the LensKit command line tool.
+ * <tt>pack</tt> command in the LensKit command line tool.  Files packed with
+ * {@link BinaryFormatFlag#COMPRESSED} are several times smaller, and are decoded a block of
+ * ratings at a time.
  * <p/>
  * Currently, serializing a binary rating DAO puts all the rating data into the serialized output
- * stream. When deserialized, the data be written back to a direct buffer (allocated with
+ * stream. When deserialized, the data be written back to direct buffers (allocated with
  * {@link ByteBuffer#allocateDirect(int)}).  When deserializing this DAO, make sure your
  * system has enough virtual memory (beyond what is allowed for Java) to contain the entire data set.
+ * <p/>
+ * Views of a subset of the ratings, such as the training or test data of a crossfold partition,
+ * can be created with {@link #createMaskedView(BitSet)}; they share the rating data and index
+ * tables of the full DAO instead of copying them.
  *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  * @since 2.1
@@ -80,14 +89,22 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
     @Nullable
     private final transient File backingFile;
     private final BinaryHeader header;
-    private final ByteBuffer ratingData;
+    private final BinaryRatingData ratingData;
     private final BinaryIndexTable userTable;
     private final BinaryIndexTable itemTable;
     private final int limitIndex;
     private final long limitTimestamp;
+    /**
+     * The rating positions visible in this DAO, or {@code null} if all are visible.
+     */
+    @Nullable
+    private final BitSet mask;
+
+    private BinaryRatingDAO(@Nullable File file, BinaryHeader hdr, BinaryRatingData data, BinaryIndexTable users, BinaryIndexTable items, int idx, Long timestamp) {
+        this(file, hdr, data, users, items, idx, timestamp, null);
+    }
 
-    private BinaryRatingDAO(@Nullable File file, BinaryHeader hdr, ByteBuffer data, BinaryIndexTable users, BinaryIndexTable items, int idx, Long timestamp) {
-        Preconditions.checkArgument(data.position() == 0, "data is not at position 0");
+    private BinaryRatingDAO(@Nullable File file, BinaryHeader hdr, BinaryRatingData data, BinaryIndexTable users, BinaryIndexTable items, int idx, Long timestamp, @Nullable BitSet mask) {
         backingFile = file;
         header = hdr;
         ratingData = data;
@@ -95,6 +112,7 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
         itemTable = items;
         limitIndex = idx;
         limitTimestamp = timestamp;
+        this.mask = mask;
     }
 
     static BinaryRatingDAO fromBuffer(ByteBuffer buffer) {
@@ -104,19 +122,25 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
         // the header read advanced the buffer position past the header; prepare a data slice
         // first slice to remove the header
         ByteBuffer data = buffer.slice();
-        // then limit to the rating data size
-        data.limit(header.getRatingDataSize());
-        assert data.remaining() == header.getRatingDataSize();
+        // then limit to the rating data size; a single buffer cannot hold more than 2GB
+        long fullSize = header.getFormat().isColumnar()
+                ? data.getLong(0)
+                : header.getRatingDataSize();
+        int dataSize = Ints.checkedCast(fullSize);
+        data.limit(dataSize);
+        assert data.remaining() == dataSize;
 
         // prepare to read tables
         ByteBuffer tableBuffer = buffer.duplicate();
         // skip the header and the rating data
-        tableBuffer.position(tableBuffer.position() + header.getRatingDataSize());
+        tableBuffer.position(tableBuffer.position() + dataSize);
         // each of the following reads advances the buffer by the amount read
         BinaryIndexTable utbl = BinaryIndexTable.fromBuffer(header.getUserCount(), tableBuffer);
         BinaryIndexTable itbl = BinaryIndexTable.fromBuffer(header.getItemCount(), tableBuffer);
 
-        return new BinaryRatingDAO(null, header, data, utbl, itbl, header.getRatingCount(), Long.MAX_VALUE);
+        BinaryRatingData ratings = BinaryRatingData.create(header, SegmentedBuffer.wrap(data));
+        return new BinaryRatingDAO(null, header, ratings, utbl, itbl,
+                                   header.getRatingCount(), Long.MAX_VALUE);
     }
 
     /**
@@ -127,6 +151,14 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
      * @throws IOException If there is
      */
     public static BinaryRatingDAO open(File file) throws IOException {
+        return open(file, SegmentedBuffer.MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open a binary rating DAO, mapping it in segments of at most a specified size.
+     * @see #open(File)
+     */
+    static BinaryRatingDAO open(File file, int maxSegment) throws IOException {
         try (FileInputStream input = new FileInputStream(file)) {
             FileChannel channel = input.getChannel();
             BinaryHeader header = BinaryHeader.read(channel);
@@ -134,14 +166,26 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
                         header.getRatingCount(), header.getItemCount(), header.getUserCount());
             // the channel position has been advanced to end of header
 
-            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
-                                          channel.position(), header.getRatingDataSize());
-            channel.position(channel.position() + header.getRatingDataSize());
+            // map the rating data in segments, so files over 2GB can be read
+            BinaryFormat format = header.getFormat();
+            long dataSize = format.isColumnar()
+                    ? ColumnarRatingData.readRegionSize(channel, channel.position())
+                    : header.getRatingDataSize();
+            SegmentedBuffer buffer = SegmentedBuffer.map(channel, channel.position(), dataSize,
+                                                         BinaryRatingData.unitSize(format),
+                                                         maxSegment);
+            logger.debug("mapped rating data in {} segments", buffer.getSegmentCount());
+            channel.position(channel.position() + dataSize);
+            BinaryRatingData data;
+            try {
+                data = BinaryRatingData.create(header, buffer);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("invalid rating data", e);
+            }
 
-            ByteBuffer tableBuffer = channel.map(FileChannel.MapMode.READ_ONLY,
-                                                 channel.position(), channel.size() - channel.position());
-            BinaryIndexTable utbl = BinaryIndexTable.fromBuffer(header.getUserCount(), tableBuffer);
-            BinaryIndexTable itbl = BinaryIndexTable.fromBuffer(header.getItemCount(), tableBuffer);
+            // each of the following reads advances the channel by the amount read
+            BinaryIndexTable utbl = BinaryIndexTable.fromChannel(header.getUserCount(), channel, maxSegment);
+            BinaryIndexTable itbl = BinaryIndexTable.fromChannel(header.getItemCount(), channel, maxSegment);
 
             return new BinaryRatingDAO(file, header, data, utbl, itbl, header.getRatingCount(), Long.MAX_VALUE);
         }
@@ -153,22 +197,83 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
             return this;
         }
 
-        List<Rating> ratingsList = getRatingList();
+        // search all ratings, not just the visible ones, since the limit applies to positions
+        List<Rating> ratingsList = getRatingList(CollectionUtils.interval(0, limitIndex));
         SearchBinaryRating search = new SearchBinaryRating(timestamp, ratingsList);
-        int idx = search.search(0, getRatingList().size());
+        int idx = search.search(0, ratingsList.size());
 
         idx = BinarySearch.resultToIndex(idx);
 
-        ByteBuffer data = ratingData.duplicate();
-        data.limit(idx * header.getFormat().getRatingSize());
+        BinaryRatingData data = ratingData.truncate(idx);
 
         BinaryIndexTable utbl = userTable.createLimitedView(idx);
         BinaryIndexTable itbl = itemTable.createLimitedView(idx);
-        return new BinaryRatingDAO(null, header, data, utbl, itbl, idx, timestamp);
+        return new BinaryRatingDAO(null, header, data, utbl, itbl, idx, timestamp, mask);
+    }
+
+    /**
+     * Create a view of this DAO that only contains the ratings at some positions.  The view shares
+     * this DAO's rating data and index tables; it only needs memory for the mask and for the
+     * active-key flags of its index tables.
+     *
+     * @param positions The positions of the ratings to keep, as returned by
+     *                  {@link #getRatingPositions()}.  The mask is copied.
+     * @return A DAO containing the ratings at the positions in {@code positions} that are also
+     * visible in this DAO.
+     * @since 3.0
+     */
+    public BinaryRatingDAO createMaskedView(BitSet positions) {
+        BitSet newMask = (BitSet) positions.clone();
+        if (mask != null) {
+            newMask.and(mask);
+        }
+        BinaryIndexTable utbl = userTable.createMaskedView(newMask);
+        BinaryIndexTable itbl = itemTable.createMaskedView(newMask);
+        return new BinaryRatingDAO(backingFile, header, ratingData, utbl, itbl,
+                                   limitIndex, limitTimestamp, newMask);
+    }
+
+    /**
+     * Get the positions of the ratings in this DAO.  Positions identify ratings within the packed
+     * file, and can be used to build masks for {@link #createMaskedView(BitSet)}.
+     *
+     * @return The positions of the ratings visible in this DAO, in increasing order.
+     * @since 3.0
+     */
+    public IntList getRatingPositions() {
+        if (mask == null) {
+            return CollectionUtils.interval(0, limitIndex);
+        } else {
+            return new MaskedPositionList(mask, limitIndex);
+        }
+    }
+
+    /**
+     * Get the positions of a user's ratings.
+     *
+     * @param user The user ID.
+     * @return The positions of the user's ratings, or {@code null} if the user is unknown.
+     * @since 3.0
+     */
+    @Nullable
+    public IntList getUserRatingPositions(long user) {
+        return userTable.getEntry(user);
+    }
+
+    /**
+     * Get the ratings at some positions.
+     *
+     * @param positions The rating positions.
+     * @return A list of the ratings at the positions, in the same order.  The list reads ratings
+     * as they are accessed, and is not thread-safe.
+     * @since 3.0
+     */
+    public List<Rating> getRatingsAt(IntList positions) {
+        return getRatingList(positions);
     }
 
     private Object writeReplace() {
-        return new SerialProxy(header, ratingData, userTable, itemTable, limitIndex, limitTimestamp);
+        return new SerialProxy(header, ratingData, userTable, itemTable, limitIndex, limitTimestamp, mask);
     }
 
     private void readObject(ObjectInputStream in) throws IOException {
@@ -176,11 +281,11 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
     }
 
     private BinaryRatingList getRatingList() {
-        return getRatingList(CollectionUtils.interval(0, limitIndex));
+        return getRatingList(getRatingPositions());
     }
 
     private BinaryRatingList getRatingList(IntList indexes) {
-        return new BinaryRatingList(header.getFormat(), ratingData, indexes);
+        return new BinaryRatingList(ratingData, indexes);
     }
 
     public Long getLimitTimestamp() {
@@ -340,6 +445,10 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
                   .putField("mtime", 0);
         }
         writer.putField("header", header.render());
+        if (mask != null) {
+            writer.putField("maskSize", mask.cardinality())
+                  .putField("maskHash", mask.hashCode());
+        }
     }
 
     private class EntryToStreamTransformer implements Function<Pair<Long, IntList>, ObjectStream<Rating>> {
@@ -388,23 +497,25 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
     }
 
     private static class SerialProxy implements Serializable {
-        private static final long serialVersionUID = 2L;
+        private static final long serialVersionUID = 4L;
 
         private BinaryHeader header;
-        private ByteBuffer ratingData;
+        private BinaryRatingData ratingData;
         private BinaryIndexTable userTable;
         private BinaryIndexTable itemTable;
         private int limitIndex;
         private long limitTimestamp;
+        private BitSet mask;
 
 
-        public SerialProxy(BinaryHeader hdr, ByteBuffer ratings, BinaryIndexTable users, BinaryIndexTable items, int limitIdx, long limitTms) {
+        public SerialProxy(BinaryHeader hdr, BinaryRatingData ratings, BinaryIndexTable users, BinaryIndexTable items, int limitIdx, long limitTms, BitSet mask) {
             header = hdr;
-            ratingData = ratings.duplicate();
+            ratingData = ratings;
             userTable = users;
             itemTable = items;
             limitIndex = limitIdx;
             limitTimestamp = limitTms;
+            this.mask = mask;
         }
 
         private void writeObject(ObjectOutputStream out) throws IOException {
@@ -418,16 +529,18 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
             out.writeObject(itemTable);
             out.writeInt(limitIndex);
             out.writeLong(limitTimestamp);
+            out.writeObject(mask);
 
             // TODO Write this with a compound file
-            ByteBuffer write = ratingData.duplicate();
-            write.clear();
-            out.writeInt(write.limit());
+            SegmentedBuffer data = ratingData.getBuffer();
+            out.writeLong(data.size());
             byte[] buf = new byte[4096];
-            while (write.hasRemaining()) {
-                final int n = Math.min(4096, write.remaining());
-                write.get(buf, 0, n);
-                out.write(buf, 0, n);
+            for (ByteBuffer write: data.duplicateSegments()) {
+                while (write.hasRemaining()) {
+                    final int n = Math.min(4096, write.remaining());
+                    write.get(buf, 0, n);
+                    out.write(buf, 0, n);
+                }
             }
         }
 
@@ -448,26 +561,31 @@ public class BinaryRatingDAO implements EventDAO, UserEventDAO, ItemEventDAO, Us
             itemTable = (BinaryIndexTable) in.readObject();
             limitIndex = in.readInt();
             limitTimestamp = in.readLong();
+            mask = (BitSet) in.readObject();
 
-            int dataLength = in.readInt();
+            long dataLength = in.readLong();
             byte[] buf = new byte[4096];
-            ByteBuffer data = ByteBuffer.allocateDirect(dataLength);
-            assert data.position() == 0;
-            assert data.limit() == dataLength;
-            while (data.hasRemaining()) {
-                final int n = Math.min(4096, data.remaining());
-                int read = in.read(buf, 0, n);
-                if (read < 0) {
-                    throw new InvalidObjectException("unexpected EOF");
+            SegmentedBuffer data = SegmentedBuffer.allocateDirect(dataLength,
+                                                                  BinaryRatingData.unitSize(header.getFormat()));
+            for (ByteBuffer seg: data.duplicateSegments()) {
+                while (seg.hasRemaining()) {
+                    final int n = Math.min(4096, seg.remaining());
+                    int read = in.read(buf, 0, n);
+                    if (read < 0) {
+                        throw new InvalidObjectException("unexpected EOF");
+                    }
+                    seg.put(buf, 0, read);
                 }
-                data.put(buf, 0, read);
             }
-            data.clear();
-            ratingData = data;
+            try {
+                ratingData = BinaryRatingData.create(header, data);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidObjectException("invalid rating data: " + e.getMessage());
+            }
         }
 
         private Object readResolve() throws ObjectStreamException {
-            return new BinaryRatingDAO(null, header, ratingData, userTable, itemTable, limitIndex, limitTimestamp);
+            return new BinaryRatingDAO(null, header, ratingData, userTable, itemTable, limitIndex, limitTimestamp, mask);
         }
     }
 
@@ -0,0 +1,95 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import org.lenskit.data.ratings.Rating;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The rating records of a packed rating file.  Ratings are addressed by their index in the file;
+ * depending on the format, they are stored as fixed-width records ({@link FixedRatingData}) or in
+ * compressed column blocks ({@link ColumnarRatingData}).
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@ThreadSafe
+abstract class BinaryRatingData {
+    /**
+     * Create rating data from a buffer.
+     * @param header The file header.
+     * @param buffer The rating data region of the file.
+     * @return The rating data.
+     */
+    static BinaryRatingData create(BinaryHeader header, SegmentedBuffer buffer) {
+        BinaryFormat format = header.getFormat();
+        if (format.isColumnar()) {
+            return ColumnarRatingData.create(format, header.getRatingCount(), buffer);
+        } else {
+            return new FixedRatingData(format, buffer);
+        }
+    }
+
+    /**
+     * Get the unit size to use when segmenting the rating data of a format.
+     * @param format The format.
+     * @return The unit size; no value of this size will span segments.
+     */
+    static int unitSize(BinaryFormat format) {
+        if (format.isColumnar()) {
+            return BinaryFormat.LONG_SIZE;
+        } else {
+            return format.getRatingSize();
+        }
+    }
+
+    /**
+     * Get the buffer backing this rating data.
+     * @return The buffer, containing the rating data region of the file.
+     */
+    public abstract SegmentedBuffer getBuffer();
+
+    /**
+     * Restrict this data to a prefix of the ratings.  The restricted data may still contain the
+     * later ratings, so callers must not read them.
+     * @param n The number of ratings to keep.
+     * @return Rating data with (at least) the first {@code n} ratings.
+     */
+    public abstract BinaryRatingData truncate(int n);
+
+    /**
+     * Create a new reader for the ratings.
+     * @return A reader.  Readers are not thread-safe, but separate readers can be used concurrently.
+     */
+    public abstract Reader newReader();
+
+    /**
+     * A reader for packed ratings.
+     */
+    interface Reader {
+        /**
+         * Read a rating.
+         * @param position The rating's index.
+         * @return The rating.
+         */
+        Rating read(int position);
+    }
+}
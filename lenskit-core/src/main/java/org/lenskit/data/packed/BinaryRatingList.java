@@ -26,7 +26,6 @@ import org.lenskit.data.ratings.Rating;
 import org.lenskit.util.io.AbstractObjectStream;
 import org.lenskit.util.io.ObjectStream;
 
-import java.nio.ByteBuffer;
 import java.util.AbstractList;
 
 /**
@@ -34,21 +33,17 @@ import java.util.AbstractList;
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 class BinaryRatingList extends AbstractList<Rating> {
-    private final BinaryFormat format;
-    private final ByteBuffer buffer;
+    private final BinaryRatingData.Reader reader;
     private final IntList positions;
-    private final int ratingSize;
 
     /**
      * Create a new binary rating list.
-     * @param buf The buffer. It is duplicated, so it can be repositioned later.
+     * @param data The rating data.
+     * @param idxes The positions of the list's ratings.
      */
-    public BinaryRatingList(BinaryFormat fmt, ByteBuffer buf, IntList idxes) {
-        format = fmt;
-        buffer = buf.slice();
+    public BinaryRatingList(BinaryRatingData data, IntList idxes) {
+        reader = data.newReader();
         positions = idxes;
-
-        ratingSize = fmt.getRatingSize();
     }
 
     @Override
@@ -58,10 +53,7 @@ class BinaryRatingList extends AbstractList<Rating> {
     }
 
     private Rating getRating(int position) {
-        int bidx = position * ratingSize;
-        buffer.position(bidx);
-        assert buffer.remaining() >= format.getRatingSize();
-        return format.readRating(buffer);
+        return reader.read(position);
     }
 
     @Override
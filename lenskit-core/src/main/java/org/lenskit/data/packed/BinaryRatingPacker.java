@@ -21,18 +21,14 @@
 package org.lenskit.data.packed;
 
 import com.google.common.base.Preconditions;
-import it.unimi.dsi.fastutil.Arrays;
-import it.unimi.dsi.fastutil.Swapper;
 import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
-import it.unimi.dsi.fastutil.longs.LongSortedSet;
-import org.lenskit.data.events.Events;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import org.lenskit.data.ratings.Rating;
-import org.lenskit.util.collections.LongUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,32 +39,62 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Set;
 
 /**
  * Creates rating pack files for the {@link BinaryRatingDAO}.
  *
+ * <p>Ratings are written to the file through a large reusable buffer as they arrive.  The
+ * packer keeps only a rating count for each distinct user and item in memory; when it is
+ * closed, it builds each of the user and item index tables with one scan of the packed ratings,
+ * scattering the rating positions through a temporary file if they do not fit in memory.  If
+ * the file has timestamps and they arrive out of order, the packer sorts the ratings with an
+ * external merge sort: it sorts runs of ratings in place, and then merges the runs through a
+ * temporary file next to the output.  See {@link #setBufferSize(int)} and
+ * {@link #setIndexBufferSize(int)} for controlling the memory this takes.
+ *
  * @since 2.1
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 @NotThreadSafe
 public class BinaryRatingPacker implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(BinaryRatingPacker.class);
+    /**
+     * The default number of ratings to hold in memory when sorting.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+    /**
+     * The default number of rating positions to hold in memory when building an index table.
+     */
+    public static final int DEFAULT_INDEX_BUFFER_SIZE = 1 << 24;
+    /**
+     * The size, in bytes, of buffers used to stream ratings to and from the file.
+     */
+    static final int IO_BUFFER_SIZE = 1 << 20;
+    /**
+     * The smallest number of positions to stage for each key range when scattering an index.
+     */
+    private static final int MIN_STAGE_SIZE = 256;
+
     private final File outputFile;
     private RandomAccessFile output;
     private FileChannel channel;
-    private Long2ObjectMap<IntList> userMap;
-    private Long2ObjectMap<IntList> itemMap;
+    private final IdTable users;
+    private final IdTable items;
     private BinaryFormat format;
-    private ByteBuffer ratingBuffer;
+    private ByteBuffer writeBuffer;
     private long lastTimestamp;
     private boolean needsSorting;
     private int index;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int indexBufferSize = DEFAULT_INDEX_BUFFER_SIZE;
     /**
-     * Map insertion-order indexes to post-sorting indexes.
+     * The distinct rating values seen so far (as long bits), for dictionary-coding compressed
+     * files; {@code null} if there are too many or the file is not compressed.
      */
-    private int[] translationMap;
+    private LongOpenHashSet valueBits;
 
     /**
      * Create a new binary rating packer.
@@ -84,8 +110,8 @@ public class BinaryRatingPacker implements Closeable {
         output = new RandomAccessFile(file, "rw");
         channel = output.getChannel();
 
-        userMap = new Long2ObjectOpenHashMap<IntList>();
-        itemMap = new Long2ObjectOpenHashMap<IntList>();
+        users = new IdTable();
+        items = new IdTable();
 
         lastTimestamp = Long.MIN_VALUE;
         needsSorting = false;
@@ -94,7 +120,10 @@ public class BinaryRatingPacker implements Closeable {
         // skip the header
         channel.position(BinaryHeader.HEADER_SIZE);
 
-        ratingBuffer = ByteBuffer.allocateDirect(format.getRatingSize());
+        writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        if (format.isColumnar()) {
+            valueBits = new LongOpenHashSet();
+        }
     }
 
     /**
@@ -119,23 +148,58 @@ public class BinaryRatingPacker implements Closeable {
         return new BinaryRatingPacker(file, flags);
     }
 
-    public void writeRating(Rating rating) throws IOException {
-        // the buffer should already be clear
-        assert ratingBuffer.position() == 0;
-        assert ratingBuffer.limit() == ratingBuffer.capacity();
+    /**
+     * Set the number of ratings the packer holds in memory at once when sorting the ratings by
+     * timestamp.  Larger buffers make longer sorted runs, and so fewer runs to merge.  Sorting
+     * holds two copies of each run (32 bytes per rating with timestamps) plus a timestamp and a
+     * sort index for each rating, so the packer needs about 76 bytes of heap per buffered rating
+     * (briefly 80, while the merge sort's copy of the sort indexes is live), plus a few bytes per
+     * distinct user and item.
+     *
+     * @param n The buffer size, in ratings.
+     */
+    public void setBufferSize(int n) {
+        Preconditions.checkArgument(n > 0, "buffer size must be positive");
+        bufferSize = n;
+    }
+
+    /**
+     * Set the number of rating positions the packer holds in memory at once when building an
+     * index table.  If a table's positions all fit, they are collected directly in a 4-byte
+     * array.  Otherwise, the keys are split into ranges whose positions fit, and the positions are
+     * staged with their slots (8 bytes each, up to about this many in all) and scattered to a
+     * temporary file next to the output; each range is then read back in turn.  Either way, the
+     * ratings are scanned once per table.
+     *
+     * @param n The index buffer size, in rating positions.
+     */
+    public void setIndexBufferSize(int n) {
+        Preconditions.checkArgument(n > 0, "index buffer size must be positive");
+        indexBufferSize = n;
+    }
 
-        checkUpgrade(rating.getUserId(), rating.getItemId());
+    public void writeRating(Rating rating) throws IOException {
+        final long uid = rating.getUserId();
+        final long iid = rating.getItemId();
+        checkUpgrade(uid, iid);
 
-        // and use it
-        format.renderRating(rating, ratingBuffer);
-        ratingBuffer.flip();
-        BinaryUtils.writeBuffer(channel, ratingBuffer);
-        ratingBuffer.clear();
+        if (writeBuffer.remaining() < format.getRatingSize()) {
+            flushBuffer();
+        }
+        format.renderRating(rating, writeBuffer);
 
-        saveIndex(userMap, rating.getUserId(), index);
-        saveIndex(itemMap, rating.getItemId(), index);
+        users.count(uid);
+        items.count(iid);
         index += 1;
 
+        if (valueBits != null) {
+            valueBits.add(Double.doubleToLongBits(rating.getValue()));
+            if (valueBits.size() > ColumnarRatingData.MAX_DICTIONARY_SIZE) {
+                logger.debug("too many distinct rating values, not using a value dictionary");
+                valueBits = null;
+            }
+        }
+
         if (format.hasTimestamps()) {
             long ts = rating.getTimestamp();
             // did this timestamp send us backwards?
@@ -157,25 +221,37 @@ public class BinaryRatingPacker implements Closeable {
         return index;
     }
 
-    private void saveIndex(Long2ObjectMap<IntList> map, long key, int index) {
-        IntList list = map.get(key);
-        if (list == null) {
-            list = new IntArrayList();
-            map.put(key, list);
-        }
-        list.add(index);
+    /**
+     * Write the buffered ratings to the file.
+     */
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        BinaryUtils.writeBuffer(channel, writeBuffer);
+        writeBuffer.clear();
     }
 
     @Override
     public void close() throws IOException {
         try {
             logger.debug("closing binary pack file {}", outputFile);
+            flushBuffer();
             if (needsSorting) {
                 logger.info("sorting {} ratings", index);
                 sortRatings();
             }
-            writeIndex(userMap);
-            writeIndex(itemMap);
+            channel.position(ratingPos(index));
+            writeIndex(users, true);
+            writeIndex(items, false);
+            if (format.isColumnar()) {
+                compressRatings(ratingPos(index), channel.position());
+            }
+            if (channel.size() > Integer.MAX_VALUE) {
+                // too large to map in one buffer; mark it so older readers refuse it
+                logger.info("pack file is {} bytes, marking as large file", channel.size());
+                Set<PackHeaderFlag> newFlags = EnumSet.copyOf(format.getFlags());
+                newFlags.add(PackHeaderFlag.LARGE_FILE);
+                format = BinaryFormat.createWithFlags(newFlags);
+            }
             writeHeader();
             channel.force(true);
         } finally {
@@ -186,36 +262,105 @@ public class BinaryRatingPacker implements Closeable {
 
     private void writeHeader() throws IOException {
         ByteBuffer buf = ByteBuffer.allocateDirect(BinaryHeader.HEADER_SIZE);
-        BinaryHeader header = BinaryHeader.create(format, index, userMap.size(), itemMap.size());
+        BinaryHeader header = BinaryHeader.create(format, index, users.size(), items.size());
         header.render(buf);
         buf.flip();
         BinaryUtils.writeBuffer(channel, buf, 0);
     }
 
     /**
-     * Write a user or item index to the file.
-     * @param map The index to write.
+     * Write a user or item index to the file.  The positions of each ID's ratings are collected
+     * with one scan of the packed ratings; see {@link #setIndexBufferSize(int)}.
+     *
+     * @param ids The ID table to write.
+     * @param user {@code true} to index by user ID, {@code false} for item ID.
      */
-    private void writeIndex(Long2ObjectMap<IntList> map) throws IOException {
-        LongSortedSet keys = LongUtils.packedSet(map.keySet());
+    private void writeIndex(IdTable ids, boolean user) throws IOException {
+        ids.finish();
+        final int nkeys = ids.size();
+        final long[] keys = ids.keys;
+        final int[] offsets = ids.offsets;
+        logger.debug("writing index table for {} {}s", nkeys, user ? "user" : "item");
 
         BinaryIndexTableWriter tableWriter =
-                BinaryIndexTableWriter.create(format, channel, keys.size());
-
-        LongIterator iter = keys.iterator();
-        while (iter.hasNext()) {
-            final long key = iter.nextLong();
-            int[] indexes = map.get(key).toIntArray();
+                BinaryIndexTableWriter.create(format, channel, nkeys);
+
+        // split the keys into ranges whose positions fit in the buffer (at least one key each)
+        IntArrayList rangeStarts = new IntArrayList();
+        int k0 = 0;
+        while (k0 < nkeys) {
+            rangeStarts.add(k0);
+            final int base = offsets[k0];
+            int k1 = k0 + 1;
+            while (k1 < nkeys && offsets[k1 + 1] - base <= indexBufferSize) {
+                k1 += 1;
+            }
+            k0 = k1;
+        }
+        rangeStarts.add(nkeys);
+        final int nranges = rangeStarts.size() - 1;
+
+        if (nranges <= 1) {
+            int[] positions = new int[index];
+            scanPositions(ids, user, positions, null);
+            for (int k = 0; k < nkeys; k++) {
+                tableWriter.writeEntry(keys[k], positions, offsets[k], offsets[k + 1] - offsets[k]);
+            }
+            return;
+        }
 
-            if (translationMap != null) {
-                for (int i = 0; i < indexes.length; i++) {
-                    indexes[i] = translationMap[indexes[i]];
+        logger.debug("scattering {} positions in {} ranges", index, nranges);
+        int[] rangeBases = new int[nranges + 1];
+        for (int r = 0; r <= nranges; r++) {
+            rangeBases[r] = offsets[rangeStarts.getInt(r)];
+        }
+        try (PositionScatter scatter = new PositionScatter(rangeBases)) {
+            scanPositions(ids, user, null, scatter);
+            scatter.flush();
+            int[] positions = null;
+            for (int r = 0; r < nranges; r++) {
+                positions = scatter.load(r, positions);
+                final int base = rangeBases[r];
+                for (int k = rangeStarts.getInt(r); k < rangeStarts.getInt(r + 1); k++) {
+                    tableWriter.writeEntry(keys[k], positions, offsets[k] - base,
+                                           offsets[k + 1] - offsets[k]);
                 }
-                java.util.Arrays.sort(indexes);
             }
+        }
+    }
 
-            logger.debug("writing {} indices for id {}", key, indexes.length);
-            tableWriter.writeEntry(key, indexes);
+    /**
+     * Scan the packed ratings once, giving each rating the next index slot of its ID.  Slots are
+     * handed out in rating order, so each ID's positions come out sorted.
+     *
+     * @param ids The ID table, with offsets computed.
+     * @param user {@code true} to index by user ID, {@code false} for item ID.
+     * @param positions The array to store each position at its slot, or {@code null} to scatter.
+     * @param scatter The scatter to add positions to, if {@code positions} is {@code null}.
+     */
+    private void scanPositions(IdTable ids, boolean user, int[] positions,
+                               PositionScatter scatter) throws IOException {
+        final int[] cursors = Arrays.copyOf(ids.offsets, ids.size());
+        final int rsz = format.getRatingSize();
+        final int block = Math.max(1, IO_BUFFER_SIZE / rsz);
+        final int idOffset = user ? 0 : format.getUserIdSize();
+        final boolean compact = user ? format.hasCompactUsers() : format.hasCompactItems();
+        ByteBuffer buf = ByteBuffer.allocateDirect(block * rsz);
+        for (int start = 0; start < index; start += block) {
+            final int n = Math.min(block, index - start);
+            buf.clear();
+            buf.limit(n * rsz);
+            BinaryUtils.readBuffer(channel, buf, ratingPos(start));
+            for (int j = 0; j < n; j++) {
+                int p = j * rsz + idOffset;
+                long id = compact ? buf.getInt(p) : buf.getLong(p);
+                int slot = cursors[ids.rank(id)]++;
+                if (positions != null) {
+                    positions[slot] = start + j;
+                } else {
+                    scatter.add(slot, start + j);
+                }
+            }
         }
     }
 
@@ -244,61 +389,216 @@ public class BinaryRatingPacker implements Closeable {
         }
     }
 
+    /**
+     * Rewrite the ratings written so far in a wider format.  Ratings are converted a block at a
+     * time, working backwards from the end of the file; since the new ratings are wider, each
+     * converted block lands after all unconverted ratings.
+     */
     private void upgradeRatings(BinaryFormat newFormat) throws IOException {
         Preconditions.checkArgument(newFormat.getRatingSize() > format.getRatingSize(),
                                     "new format is not wider than old");
+        flushBuffer();
         logger.info("upgrading {} ratings from {} to {}", index, format, newFormat);
 
-        ByteBuffer oldBuffer = ByteBuffer.allocateDirect(format.getRatingSize());
-        ByteBuffer newBuffer = ByteBuffer.allocateDirect(newFormat.getRatingSize());
-
-        long oldPos = BinaryHeader.HEADER_SIZE + index * format.getRatingSize();
-        Preconditions.checkState(channel.position() == oldPos,
+        final int oldSize = format.getRatingSize();
+        final int newSize = newFormat.getRatingSize();
+        Preconditions.checkState(channel.position() == ratingPos(index),
                                  "channel is at the wrong position");
-        long newPos = BinaryHeader.HEADER_SIZE + index * newFormat.getRatingSize();
-        channel.position(newPos);
-        // loop backwards, coping each rating to later in the file
-        for (int i = index - 1; i >= 0; i--) {
-            oldPos -= format.getRatingSize();
-            newPos -= newFormat.getRatingSize();
-
-            // read the old rating
-            BinaryUtils.readBuffer(channel, oldBuffer, oldPos);
-            oldBuffer.flip();
-            Rating scratch = format.readRating(oldBuffer);
+        final int block = Math.max(1, IO_BUFFER_SIZE / newSize);
+        ByteBuffer oldBuffer = ByteBuffer.allocateDirect(block * oldSize);
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(block * newSize);
+
+        final long start = BinaryHeader.HEADER_SIZE;
+        int end = index;
+        while (end > 0) {
+            final int first = Math.max(0, end - block);
+            final int n = end - first;
+
             oldBuffer.clear();
+            oldBuffer.limit(n * oldSize);
+            BinaryUtils.readBuffer(channel, oldBuffer, start + first * (long) oldSize);
+            oldBuffer.flip();
 
-            // write the new rating
-            newFormat.renderRating(scratch, newBuffer);
-            newBuffer.flip();
-            BinaryUtils.writeBuffer(channel, newBuffer, newPos);
             newBuffer.clear();
+            for (int i = 0; i < n; i++) {
+                newFormat.writeUserId(newBuffer, format.readUserId(oldBuffer));
+                newFormat.writeItemId(newBuffer, format.readItemId(oldBuffer));
+                newBuffer.putDouble(oldBuffer.getDouble());
+                if (format.hasTimestamps()) {
+                    newBuffer.putLong(oldBuffer.getLong());
+                }
+            }
+            newBuffer.flip();
+            BinaryUtils.writeBuffer(channel, newBuffer, start + first * (long) newSize);
+            end = first;
         }
-        assert oldPos == BinaryHeader.HEADER_SIZE;
-        assert newPos == BinaryHeader.HEADER_SIZE;
+
         format = newFormat;
-        ratingBuffer = ByteBuffer.allocateDirect(newFormat.getRatingSize());
+        channel.position(ratingPos(index));
     }
 
     /**
-     * Sort the ratings.
+     * Sort the ratings by timestamp.  The sort is stable, so ratings with the same timestamp
+     * stay in the order they were written.
      */
-    private void sortRatings() {
-        if (translationMap != null) {
-            throw new IllegalStateException("sort already invoked");
+    private void sortRatings() throws IOException {
+        final int rsz = format.getRatingSize();
+        final int runSize = Math.min(Math.min(bufferSize, index), Integer.MAX_VALUE / rsz);
+        if (runSize == 0) {
+            return;
+        }
+        int nruns = sortRuns(runSize);
+        if (nruns > 1) {
+            mergeRuns(runSize, nruns);
         }
-        // the inv map will map post-sort indexes to original indexes
-        int[] invMap = new int[index];
-        for (int i = index - 1; i >= 0; i--) {
-            invMap[i] = i;
+    }
+
+    /**
+     * Sort consecutive runs of ratings in place.
+     *
+     * @param runSize The number of ratings in each run.
+     * @return The number of runs.
+     */
+    private int sortRuns(int runSize) throws IOException {
+        final int rsz = format.getRatingSize();
+        final int tsOffset = rsz - BinaryFormat.LONG_SIZE;
+        ByteBuffer input = ByteBuffer.allocate(runSize * rsz);
+        ByteBuffer sorted = ByteBuffer.allocate(runSize * rsz);
+        final long[] timestamps = new long[runSize];
+        int[] order = new int[runSize];
+        AbstractIntComparator cmp = new AbstractIntComparator() {
+            @Override
+            public int compare(int i1, int i2) {
+                return Long.compare(timestamps[i1], timestamps[i2]);
+            }
+        };
+
+        int nruns = 0;
+        for (int start = 0; start < index; start += runSize) {
+            final int n = Math.min(runSize, index - start);
+            nruns += 1;
+            input.clear();
+            input.limit(n * rsz);
+            BinaryUtils.readBuffer(channel, input, ratingPos(start));
+
+            boolean inOrder = true;
+            for (int i = 0; i < n; i++) {
+                timestamps[i] = input.getLong(i * rsz + tsOffset);
+                order[i] = i;
+                if (i > 0 && timestamps[i] < timestamps[i - 1]) {
+                    inOrder = false;
+                }
+            }
+            if (inOrder) {
+                continue;
+            }
+
+            // merge sort is stable
+            IntArrays.mergeSort(order, 0, n, cmp);
+            byte[] src = input.array();
+            byte[] dst = sorted.array();
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(src, order[i] * rsz, dst, i * rsz, rsz);
+            }
+            sorted.clear();
+            sorted.limit(n * rsz);
+            BinaryUtils.writeBuffer(channel, sorted, ratingPos(start));
+        }
+        logger.debug("sorted {} runs of up to {} ratings", nruns, runSize);
+        return nruns;
+    }
+
+    /**
+     * Merge sorted runs of ratings into a temporary file, and copy the result back.
+     *
+     * @param runSize The number of ratings in each run.
+     * @param nruns   The number of runs.
+     */
+    private void mergeRuns(int runSize, int nruns) throws IOException {
+        File dir = outputFile.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(outputFile.getName(), ".sort", dir);
+        logger.debug("merging {} runs through {}", nruns, tmpFile);
+        try (RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+             FileChannel tmpChannel = tmp.getChannel()) {
+            RunMerger merger = new RunMerger(runSize, nruns);
+            merger.merge(tmpChannel);
+
+            // copy the merged ratings back over the data
+            final long total = index * (long) format.getRatingSize();
+            copy(tmpChannel, 0, channel, ratingPos(0), total);
+        } finally {
+            if (!tmpFile.delete()) {
+                logger.warn("could not delete temporary file {}", tmpFile);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the file with compressed rating data.  The ratings and index tables have been
+     * written in the fixed-width format; the compressed ratings and the tables are assembled in
+     * a temporary file and then copied over them.
+     *
+     * @param tableStart The start of the index tables.
+     * @param tableEnd The end of the index tables.
+     */
+    private void compressRatings(long tableStart, long tableEnd) throws IOException {
+        double[] dict = null;
+        if (valueBits != null) {
+            dict = new double[valueBits.size()];
+            int i = 0;
+            for (LongIterator iter = valueBits.iterator(); iter.hasNext();) {
+                dict[i++] = Double.longBitsToDouble(iter.nextLong());
+            }
+            Arrays.sort(dict);
         }
 
-        Arrays.quickSort(0, index, new SortComparator(), new SortSwapper(invMap));
+        File dir = outputFile.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(outputFile.getName(), ".pack", dir);
+        logger.debug("compressing {} ratings through {}", index, tmpFile);
+        try (RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+             FileChannel tmpChannel = tmp.getChannel()) {
+            ColumnarRatingData.Encoder encoder =
+                    new ColumnarRatingData.Encoder(format, tmpChannel, index, dict);
+            final int rsz = format.getRatingSize();
+            final int block = Math.max(1, IO_BUFFER_SIZE / rsz);
+            ByteBuffer buf = ByteBuffer.allocateDirect(block * rsz);
+            for (int start = 0; start < index; start += block) {
+                final int n = Math.min(block, index - start);
+                buf.clear();
+                buf.limit(n * rsz);
+                BinaryUtils.readBuffer(channel, buf, ratingPos(start));
+                buf.flip();
+                for (int j = 0; j < n; j++) {
+                    encoder.add(format.readRating(buf));
+                }
+            }
+            long dataSize = encoder.finish();
+            logger.info("compressed {} bytes of ratings to {}", tableStart - ratingPos(0), dataSize);
+
+            // append the index tables, then copy everything back after the header
+            long tableSize = tableEnd - tableStart;
+            copy(channel, tableStart, tmpChannel, dataSize, tableSize);
+            copy(tmpChannel, 0, channel, ratingPos(0), dataSize + tableSize);
+            channel.truncate(ratingPos(0) + dataSize + tableSize);
+        } finally {
+            if (!tmpFile.delete()) {
+                logger.warn("could not delete temporary file {}", tmpFile);
+            }
+        }
+    }
 
-        // invert the inv map, so we map pre-sort to post-sort indexes
-        translationMap = new int[index];
-        for (int i = 0; i < invMap.length; i++) {
-            translationMap[invMap[i]] = i;
+    /**
+     * Copy bytes from one file to another.
+     */
+    private static void copy(FileChannel src, long srcPos, FileChannel dst, long dstPos, long count) throws IOException {
+        long done = 0;
+        src.position(srcPos);
+        while (done < count) {
+            long n = dst.transferFrom(src, dstPos + done, count - done);
+            if (n <= 0) {
+                throw new IOException("could not copy file data");
+            }
+            done += n;
         }
     }
 
@@ -307,63 +607,288 @@ public class BinaryRatingPacker implements Closeable {
         return offset + idx * (long) format.getRatingSize();
     }
 
-    private class SortComparator extends AbstractIntComparator {
-        private ByteBuffer buf = ByteBuffer.allocateDirect(format.getRatingSize());
-        @Override
-        public int compare(int i1, int i2) {
-            if (translationMap != null) {
-                i1 = translationMap[i1];
-                i2 = translationMap[i2];
+    /**
+     * K-way merge of sorted runs in the rating data.  Each run gets an equal share of the buffer
+     * budget as its read buffer; a heap of runs, ordered by their current timestamps (and then by
+     * run, for stability), picks the next rating.
+     */
+    private class RunMerger {
+        private final int rsz = format.getRatingSize();
+        private final int tsOffset = rsz - BinaryFormat.LONG_SIZE;
+        private final ByteBuffer[] buffers;
+        private final int[] next;
+        private final int[] end;
+        private final int[] heap;
+        private int heapSize;
+        private final int chunk;
+
+        RunMerger(int runSize, int nruns) {
+            chunk = Math.max(1, runSize / nruns);
+            buffers = new ByteBuffer[nruns];
+            next = new int[nruns];
+            end = new int[nruns];
+            heap = new int[nruns];
+            for (int r = 0; r < nruns; r++) {
+                next[r] = r * runSize;
+                end[r] = (int) Math.min(index, (r + 1) * (long) runSize);
+                buffers[r] = ByteBuffer.allocate(Math.min(chunk, end[r] - next[r]) * rsz);
             }
-            try {
-                BinaryUtils.readBuffer(channel, buf, ratingPos(i1));
-                buf.flip();
-                Rating r1 = format.readRating(buf);
-                buf.clear();
+        }
 
-                BinaryUtils.readBuffer(channel, buf, ratingPos(i2));
-                buf.flip();
-                Rating r2 = format.readRating(buf);
-                buf.clear();
+        private long head(int r) {
+            ByteBuffer buf = buffers[r];
+            return buf.getLong(buf.position() + tsOffset);
+        }
+
+        private boolean less(int r1, int r2) {
+            long t1 = head(r1);
+            long t2 = head(r2);
+            return t1 < t2 || (t1 == t2 && r1 < r2);
+        }
+
+        /**
+         * Load the next chunk of a run.
+         * @return {@code false} if the run is exhausted.
+         */
+        private boolean fill(int r) throws IOException {
+            if (next[r] >= end[r]) {
+                return false;
+            }
+            int n = Math.min(chunk, end[r] - next[r]);
+            ByteBuffer buf = buffers[r];
+            buf.clear();
+            buf.limit(n * rsz);
+            BinaryUtils.readBuffer(channel, buf, ratingPos(next[r]));
+            buf.flip();
+            next[r] += n;
+            return true;
+        }
 
-                return Events.TIMESTAMP_COMPARATOR.compare(r1, r2);
-            } catch (IOException ex) {
-                throw new RuntimeException("I/O error while sorting", ex);
+        private void siftDown(int i) {
+            while (true) {
+                int least = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < heapSize && less(heap[left], heap[least])) {
+                    least = left;
+                }
+                if (right < heapSize && less(heap[right], heap[least])) {
+                    least = right;
+                }
+                if (least == i) {
+                    return;
+                }
+                int tmp = heap[i];
+                heap[i] = heap[least];
+                heap[least] = tmp;
+                i = least;
             }
         }
+
+        void merge(FileChannel out) throws IOException {
+            heapSize = 0;
+            for (int r = 0; r < buffers.length; r++) {
+                if (fill(r)) {
+                    heap[heapSize++] = r;
+                }
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+
+            ByteBuffer outBuf = ByteBuffer.allocateDirect(Math.max(1, IO_BUFFER_SIZE / rsz) * rsz);
+            while (heapSize > 0) {
+                final int r = heap[0];
+                ByteBuffer buf = buffers[r];
+                if (outBuf.remaining() < rsz) {
+                    outBuf.flip();
+                    BinaryUtils.writeBuffer(out, outBuf);
+                    outBuf.clear();
+                }
+                outBuf.put(buf.array(), buf.position(), rsz);
+                buf.position(buf.position() + rsz);
+
+                if (!buf.hasRemaining() && !fill(r)) {
+                    heapSize -= 1;
+                    heap[0] = heap[heapSize];
+                }
+                siftDown(0);
+            }
+            outBuf.flip();
+            BinaryUtils.writeBuffer(out, outBuf);
+        }
     }
 
-    private class SortSwapper implements Swapper {
-        private final int[] inverseTranslationMap;
-        private ByteBuffer b1 = ByteBuffer.allocateDirect(format.getRatingSize());
-        private ByteBuffer b2 = ByteBuffer.allocateDirect(format.getRatingSize());
+    /**
+     * Table of the distinct user or item IDs seen, with rating counts.  While ratings are being
+     * written, it maps each ID to a slot in order of first appearance; {@link #finish()} sorts the
+     * IDs and switches the mapping to sorted rank, with index list offsets.
+     */
+    /**
+     * Scatters index positions to a temporary file, in one region for each range of index slots.
+     * Each range stages its positions, with their slots, in a small buffer, and appends them to
+     * its region when the buffer fills.  A range is loaded by placing each position at its slot.
+     */
+    private class PositionScatter implements Closeable {
+        private static final int ENTRY_SIZE = BinaryFormat.LONG_SIZE;
+        /**
+         * The first slot of each range, followed by the total number of slots.
+         */
+        private final int[] rangeBases;
+        private final long[][] stages;
+        private final int[] staged;
+        private final int[] written;
+        private final ByteBuffer ioBuffer;
+        private final File tmpFile;
+        private final RandomAccessFile tmp;
+        private final FileChannel tmpChannel;
+
+        PositionScatter(int[] bases) throws IOException {
+            rangeBases = bases;
+            int nranges = bases.length - 1;
+            int stageSize = Math.max(MIN_STAGE_SIZE, indexBufferSize / nranges);
+            stages = new long[nranges][];
+            for (int r = 0; r < nranges; r++) {
+                stages[r] = new long[Math.min(stageSize, bases[r + 1] - bases[r])];
+            }
+            staged = new int[nranges];
+            written = new int[nranges];
+            ioBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+
+            File dir = outputFile.getAbsoluteFile().getParentFile();
+            tmpFile = File.createTempFile(outputFile.getName(), ".index", dir);
+            logger.debug("scattering index positions through {}", tmpFile);
+            tmp = new RandomAccessFile(tmpFile, "rw");
+            tmpChannel = tmp.getChannel();
+        }
+
+        private int findRange(int slot) {
+            int r = Arrays.binarySearch(rangeBases, 0, stages.length, slot);
+            // ranges are non-empty, so bases are distinct
+            return r >= 0 ? r : -r - 2;
+        }
+
+        void add(int slot, int pos) throws IOException {
+            int r = findRange(slot);
+            long[] stage = stages[r];
+            stage[staged[r]++] = ((long) slot << 32) | pos;
+            if (staged[r] == stage.length) {
+                flushRange(r);
+            }
+        }
 
-        SortSwapper(int[] map) {
-            inverseTranslationMap = map;
+        private void flushRange(int r) throws IOException {
+            final long start = (rangeBases[r] + (long) written[r]) * ENTRY_SIZE;
+            final long[] stage = stages[r];
+            final int n = staged[r];
+            final int block = ioBuffer.capacity() / ENTRY_SIZE;
+            for (int i = 0; i < n; i += block) {
+                int m = Math.min(block, n - i);
+                ioBuffer.clear();
+                for (int j = 0; j < m; j++) {
+                    ioBuffer.putLong(stage[i + j]);
+                }
+                ioBuffer.flip();
+                BinaryUtils.writeBuffer(tmpChannel, ioBuffer, start + i * (long) ENTRY_SIZE);
+            }
+            written[r] += n;
+            staged[r] = 0;
+        }
+
+        /**
+         * Write out all staged positions.
+         */
+        void flush() throws IOException {
+            for (int r = 0; r < stages.length; r++) {
+                if (staged[r] > 0) {
+                    flushRange(r);
+                }
+            }
+        }
+
+        /**
+         * Load the positions of a range.
+         *
+         * @param r The range.
+         * @param positions An array to reuse, or {@code null}.
+         * @return An array with the position for each of the range's slots, relative to its first.
+         */
+        int[] load(int r, int[] positions) throws IOException {
+            final int base = rangeBases[r];
+            final int len = rangeBases[r + 1] - base;
+            assert written[r] == len;
+            if (positions == null || positions.length < len) {
+                positions = new int[len];
+            }
+            final int block = ioBuffer.capacity() / ENTRY_SIZE;
+            for (int i = 0; i < len; i += block) {
+                int m = Math.min(block, len - i);
+                ioBuffer.clear();
+                ioBuffer.limit(m * ENTRY_SIZE);
+                BinaryUtils.readBuffer(tmpChannel, ioBuffer, (base + (long) i) * ENTRY_SIZE);
+                ioBuffer.flip();
+                for (int j = 0; j < m; j++) {
+                    long entry = ioBuffer.getLong();
+                    positions[(int) (entry >>> 32) - base] = (int) entry;
+                }
+            }
+            return positions;
         }
 
         @Override
-        public void swap(int i1, int i2) {
-            long p1 = ratingPos(i1);
-            long p2 = ratingPos(i2);
+        public void close() throws IOException {
             try {
-                BinaryUtils.readBuffer(channel, b1, p1);
-                b1.flip();
-                BinaryUtils.readBuffer(channel, b2, p2);
-                b2.flip();
+                tmpChannel.close();
+                tmp.close();
+            } finally {
+                if (!tmpFile.delete()) {
+                    logger.warn("could not delete temporary file {}", tmpFile);
+                }
+            }
+        }
+    }
 
-                BinaryUtils.writeBuffer(channel, b1, p2);
-                BinaryUtils.writeBuffer(channel, b2, p1);
+    private static class IdTable {
+        private final Long2IntMap slots;
+        private IntArrayList counts;
+        long[] keys;
+        int[] offsets;
 
-                b1.clear();
-                b2.clear();
+        IdTable() {
+            slots = new Long2IntOpenHashMap();
+            slots.defaultReturnValue(-1);
+            counts = new IntArrayList();
+        }
 
-                int j = inverseTranslationMap[i1];
-                inverseTranslationMap[i1] = inverseTranslationMap[i2];
-                inverseTranslationMap[i2] = j;
-            } catch (IOException ex) {
-                throw new RuntimeException("I/O error while sorting", ex);
+        void count(long id) {
+            int slot = slots.get(id);
+            if (slot < 0) {
+                slot = counts.size();
+                slots.put(id, slot);
+                counts.add(1);
+            } else {
+                counts.elements()[slot] += 1;
             }
         }
+
+        int size() {
+            return slots.size();
+        }
+
+        void finish() {
+            keys = slots.keySet().toLongArray();
+            Arrays.sort(keys);
+            offsets = new int[keys.length + 1];
+            for (int k = 0; k < keys.length; k++) {
+                int slot = slots.get(keys[k]);
+                offsets[k + 1] = offsets[k] + counts.getInt(slot);
+                slots.put(keys[k], k);
+            }
+            counts = null;
+        }
+
+        int rank(long id) {
+            return slots.get(id);
+        }
     }
 }
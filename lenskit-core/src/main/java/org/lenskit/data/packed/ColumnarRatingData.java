@@ -0,0 +1,501 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Rating data stored in compressed column blocks.  Ratings are grouped into blocks of a fixed
+ * number of ratings; each block stores its user IDs, item IDs, values, and timestamps as separate
+ * columns.  IDs and timestamps are delta-encoded within the block as zig-zag variable-length
+ * integers, and values are coded as single bytes against a dictionary of the distinct rating
+ * values when there are few enough of them.  A rating is read by decoding its block.
+ * <p>
+ * Blocks are in file (timestamp) order, so the ratings of one user or item, reached through the
+ * index tables, are usually scattered over many blocks, and reading one of them costs decoding a
+ * whole block.  Each reader therefore keeps the last {@link #READER_CACHE_SIZE} decoded blocks,
+ * so that traversing a short rating list again, or a long list with several ratings in the same
+ * block, does not decode them again; the {@code BinaryRatingDAOBenchmark} benchmarks measure
+ * the cost against fixed-width records.
+ * </p>
+ * <p>
+ * The data region is laid out as follows:
+ * </p>
+ * <ol>
+ * <li>The size of the region (long), the number of ratings per block (int), and the size of the
+ * value dictionary (int; 0 if values are stored as raw doubles).</li>
+ * <li>The value dictionary (doubles).</li>
+ * <li>The block directory: the offset of each block from the start of the region, plus the end
+ * of the last block (longs).</li>
+ * <li>The blocks.</li>
+ * </ol>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@ThreadSafe
+final class ColumnarRatingData extends BinaryRatingData {
+    private static final Logger logger = LoggerFactory.getLogger(ColumnarRatingData.class);
+    /**
+     * The number of ratings in a block.
+     */
+    static final int DEFAULT_BLOCK_SIZE = 128;
+    /**
+     * The maximum number of distinct values that can be dictionary-coded.
+     */
+    static final int MAX_DICTIONARY_SIZE = 256;
+    static final int PRELUDE_SIZE = BinaryFormat.LONG_SIZE + 2 * BinaryFormat.INT_SIZE;
+    /**
+     * The maximum size of a variable-length long.
+     */
+    private static final int MAX_VARLONG_SIZE = 10;
+    /**
+     * The number of decoded blocks each reader keeps.
+     */
+    static final int READER_CACHE_SIZE = 8;
+
+    private final BinaryFormat format;
+    private final SegmentedBuffer buffer;
+    private final int ratingCount;
+    private final int blockSize;
+    @Nullable
+    private final double[] dictionary;
+    private final long directoryOffset;
+    /**
+     * The number of ratings that can be read, at most {@link #ratingCount}.
+     */
+    private final int limit;
+
+    private ColumnarRatingData(BinaryFormat fmt, SegmentedBuffer buf, int n, int bsize,
+                               @Nullable double[] dict, long dirOff, int lim) {
+        format = fmt;
+        buffer = buf;
+        ratingCount = n;
+        blockSize = bsize;
+        dictionary = dict;
+        directoryOffset = dirOff;
+        limit = lim;
+    }
+
+    /**
+     * Read columnar rating data.
+     * @param fmt The format.
+     * @param n The number of ratings.
+     * @param buf The data region.
+     * @return The rating data.
+     */
+    static ColumnarRatingData create(BinaryFormat fmt, int n, SegmentedBuffer buf) {
+        Preconditions.checkArgument(buf.size() >= PRELUDE_SIZE, "buffer too small");
+        Preconditions.checkArgument(buf.getLong(0) == buf.size(), "invalid data region size");
+        int bsize = buf.getInt(BinaryFormat.LONG_SIZE);
+        int dsize = buf.getInt(BinaryFormat.LONG_SIZE + BinaryFormat.INT_SIZE);
+        Preconditions.checkArgument(bsize > 0, "invalid block size");
+        Preconditions.checkArgument(dsize >= 0 && dsize <= MAX_DICTIONARY_SIZE,
+                                    "invalid dictionary size");
+        double[] dict = null;
+        if (dsize > 0) {
+            dict = new double[dsize];
+            for (int i = 0; i < dsize; i++) {
+                dict[i] = Double.longBitsToDouble(buf.getLong(PRELUDE_SIZE + (long) i * BinaryFormat.DOUBLE_SIZE));
+            }
+        }
+        long dirOff = PRELUDE_SIZE + (long) dsize * BinaryFormat.DOUBLE_SIZE;
+        long nblocks = blockCount(n, bsize);
+        Preconditions.checkArgument(dirOff + (nblocks + 1) * BinaryFormat.LONG_SIZE <= buf.size(),
+                                    "buffer too small for block directory");
+        return new ColumnarRatingData(fmt, buf, n, bsize, dict, dirOff, n);
+    }
+
+    /**
+     * Read the size of a columnar data region from a file.
+     * @param chan The channel.
+     * @param pos The start of the data region.
+     * @return The size of the data region.
+     */
+    static long readRegionSize(FileChannel chan, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BinaryFormat.LONG_SIZE);
+        BinaryUtils.readBuffer(chan, buf, pos);
+        return buf.getLong(0);
+    }
+
+    private static int blockCount(int n, int bsize) {
+        return (int) ((n + (long) bsize - 1) / bsize);
+    }
+
+    @Override
+    public SegmentedBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public BinaryRatingData truncate(int n) {
+        Preconditions.checkArgument(n >= 0 && n <= limit, "invalid rating count");
+        if (n == limit) {
+            return this;
+        }
+        // blocks are variable-sized, so keep all of them, but refuse to read past the limit
+        return new ColumnarRatingData(format, buffer, ratingCount, blockSize, dictionary,
+                                      directoryOffset, n);
+    }
+
+    @Override
+    public Reader newReader() {
+        return new ReaderImpl();
+    }
+
+    /**
+     * Decode a block.
+     * @param b The block number.
+     * @param block The block to decode into.
+     */
+    void decodeBlock(int b, Block block) {
+        long start = buffer.getLong(directoryOffset + (long) b * BinaryFormat.LONG_SIZE);
+        long end = buffer.getLong(directoryOffset + (long) (b + 1) * BinaryFormat.LONG_SIZE);
+        int n = Math.min(blockSize, ratingCount - b * blockSize);
+        ByteBuffer buf = buffer.slice(start, (int) (end - start));
+        block.decode(buf, n, format.hasTimestamps(), dictionary);
+    }
+
+    /**
+     * Reader that keeps the most recently used decoded blocks.  Blocks are allocated as the
+     * cache fills, so a reader for a short list only allocates the blocks it uses.
+     */
+    private class ReaderImpl implements Reader {
+        private final Block[] blocks = new Block[READER_CACHE_SIZE];
+        private final int[] blockNumbers = new int[READER_CACHE_SIZE];
+        private final long[] lastUse = new long[READER_CACHE_SIZE];
+        private int nblocks;
+        private long clock;
+
+        @Override
+        public Rating read(int position) {
+            Preconditions.checkElementIndex(position, limit);
+            int b = position / blockSize;
+            Block block = getBlock(b);
+            return block.getRating(position - b * blockSize, format.hasTimestamps());
+        }
+
+        private Block getBlock(int b) {
+            clock += 1;
+            int victim = 0;
+            for (int i = 0; i < nblocks; i++) {
+                if (blockNumbers[i] == b) {
+                    lastUse[i] = clock;
+                    return blocks[i];
+                } else if (lastUse[i] < lastUse[victim]) {
+                    victim = i;
+                }
+            }
+
+            if (nblocks < READER_CACHE_SIZE) {
+                victim = nblocks;
+                blocks[victim] = new Block(blockSize);
+                nblocks += 1;
+            }
+            decodeBlock(b, blocks[victim]);
+            blockNumbers[victim] = b;
+            lastUse[victim] = clock;
+            return blocks[victim];
+        }
+    }
+
+    static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static void putVarLong(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    static long getVarLong(ByteBuffer buf) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift >= 64) {
+                throw new IllegalArgumentException("malformed variable-length integer");
+            }
+            b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    /**
+     * A block of ratings in column form.  Blocks are not thread-safe.
+     */
+    static final class Block {
+        final long[] users;
+        final long[] items;
+        final double[] values;
+        final long[] timestamps;
+        int size;
+
+        Block(int capacity) {
+            users = new long[capacity];
+            items = new long[capacity];
+            values = new double[capacity];
+            timestamps = new long[capacity];
+        }
+
+        /**
+         * Add a rating to the block.
+         * @param r The rating.
+         */
+        void add(Rating r) {
+            users[size] = r.getUserId();
+            items[size] = r.getItemId();
+            values[size] = r.getValue();
+            timestamps[size] = r.getTimestamp();
+            size += 1;
+        }
+
+        Rating getRating(int i, boolean withTimestamps) {
+            assert i < size;
+            RatingBuilder rb = new RatingBuilder();
+            rb.setUserId(users[i]);
+            rb.setItemId(items[i]);
+            if (!Double.isNaN(values[i])) {
+                rb.setRating(values[i]);
+            }
+            if (withTimestamps) {
+                rb.setTimestamp(timestamps[i]);
+            }
+            return rb.build();
+        }
+
+        /**
+         * Get an upper bound on the encoded size of the block.
+         */
+        int maxEncodedSize() {
+            return size * (3 * MAX_VARLONG_SIZE + BinaryFormat.DOUBLE_SIZE);
+        }
+
+        /**
+         * Encode the block.
+         * @param buf The output buffer.
+         * @param withTimestamps Whether to write timestamps.
+         * @param codes The dictionary codes for the value bits, or {@code null} to write raw values.
+         */
+        void encode(ByteBuffer buf, boolean withTimestamps, @Nullable Long2IntMap codes) {
+            encodeDeltas(buf, users);
+            encodeDeltas(buf, items);
+            for (int i = 0; i < size; i++) {
+                if (codes != null) {
+                    int code = codes.get(Double.doubleToLongBits(values[i]));
+                    assert code >= 0;
+                    buf.put((byte) code);
+                } else {
+                    buf.putDouble(values[i]);
+                }
+            }
+            if (withTimestamps) {
+                encodeDeltas(buf, timestamps);
+            }
+        }
+
+        private void encodeDeltas(ByteBuffer buf, long[] column) {
+            long prev = 0;
+            for (int i = 0; i < size; i++) {
+                putVarLong(buf, zigZag(column[i] - prev));
+                prev = column[i];
+            }
+        }
+
+        /**
+         * Decode a block.
+         * @param buf The encoded block.
+         * @param n The number of ratings in the block.
+         * @param withTimestamps Whether the block has timestamps.
+         * @param dict The value dictionary, or {@code null} if values are raw.
+         */
+        void decode(ByteBuffer buf, int n, boolean withTimestamps, @Nullable double[] dict) {
+            size = n;
+            decodeDeltas(buf, users);
+            decodeDeltas(buf, items);
+            for (int i = 0; i < n; i++) {
+                if (dict != null) {
+                    values[i] = dict[buf.get() & 0xFF];
+                } else {
+                    values[i] = buf.getDouble();
+                }
+            }
+            if (withTimestamps) {
+                decodeDeltas(buf, timestamps);
+            }
+        }
+
+        private void decodeDeltas(ByteBuffer buf, long[] column) {
+            long prev = 0;
+            for (int i = 0; i < size; i++) {
+                prev += unZigZag(getVarLong(buf));
+                column[i] = prev;
+            }
+        }
+    }
+
+    /**
+     * Write columnar rating data to a file.  Ratings are added in order; the data region is
+     * complete when {@link #finish()} is called.
+     */
+    static final class Encoder {
+        private final BinaryFormat format;
+        private final FileChannel channel;
+        private final int ratingCount;
+        private final int blockSize;
+        @Nullable
+        private final double[] dictionary;
+        @Nullable
+        private final Long2IntMap codes;
+        private final long[] blockOffsets;
+        private final Block block;
+        private final ByteBuffer output;
+        private int nblocks;
+        private long position;
+
+        /**
+         * Create a new encoder.
+         * @param fmt The rating format.
+         * @param chan The output channel.  The region is written starting at position 0.
+         * @param n The number of ratings that will be written.
+         * @param dict The value dictionary, or {@code null} to store raw values.
+         */
+        Encoder(BinaryFormat fmt, FileChannel chan, int n, @Nullable double[] dict) {
+            Preconditions.checkArgument(dict == null || dict.length <= MAX_DICTIONARY_SIZE,
+                                        "dictionary too large");
+            format = fmt;
+            channel = chan;
+            ratingCount = n;
+            blockSize = DEFAULT_BLOCK_SIZE;
+            dictionary = dict;
+            if (dict != null) {
+                codes = new Long2IntOpenHashMap(dict.length);
+                codes.defaultReturnValue(-1);
+                for (int i = 0; i < dict.length; i++) {
+                    codes.put(Double.doubleToLongBits(dict[i]), i);
+                }
+            } else {
+                codes = null;
+            }
+            blockOffsets = new long[blockCount(n, blockSize) + 1];
+            block = new Block(blockSize);
+            output = ByteBuffer.allocateDirect(BinaryRatingPacker.IO_BUFFER_SIZE);
+            int dsize = dict == null ? 0 : dict.length;
+            position = PRELUDE_SIZE + (long) dsize * BinaryFormat.DOUBLE_SIZE
+                    + (long) blockOffsets.length * BinaryFormat.LONG_SIZE;
+        }
+
+        /**
+         * Add a rating.
+         * @param r The rating.
+         */
+        void add(Rating r) throws IOException {
+            if (codes != null && !codes.containsKey(Double.doubleToLongBits(r.getValue()))) {
+                throw new IllegalArgumentException("rating value " + r.getValue() + " not in dictionary");
+            }
+            block.add(r);
+            if (block.size == blockSize) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (output.remaining() < block.maxEncodedSize()) {
+                flush();
+            }
+            blockOffsets[nblocks] = position + output.position();
+            block.encode(output, format.hasTimestamps(), codes);
+            nblocks += 1;
+            block.size = 0;
+        }
+
+        private void flush() throws IOException {
+            output.flip();
+            int n = output.remaining();
+            BinaryUtils.writeBuffer(channel, output, position);
+            position += n;
+            output.clear();
+        }
+
+        /**
+         * Finish the data region, writing its directory.
+         * @return The size of the data region.
+         */
+        long finish() throws IOException {
+            if (block.size > 0) {
+                writeBlock();
+            }
+            Preconditions.checkState(nblocks == blockOffsets.length - 1,
+                                     "expected %s blocks, found %s", blockOffsets.length - 1, nblocks);
+            flush();
+            blockOffsets[nblocks] = position;
+            final long size = position;
+
+            int dsize = dictionary == null ? 0 : dictionary.length;
+            long dirEnd = PRELUDE_SIZE + (long) dsize * BinaryFormat.DOUBLE_SIZE
+                    + (long) blockOffsets.length * BinaryFormat.LONG_SIZE;
+            logger.debug("encoded {} ratings in {} blocks ({} bytes)", ratingCount, nblocks, size);
+            ByteBuffer head = ByteBuffer.allocateDirect(BinaryRatingPacker.IO_BUFFER_SIZE);
+            head.putLong(size).putInt(blockSize).putInt(dsize);
+            for (int i = 0; i < dsize; i++) {
+                head.putDouble(dictionary[i]);
+            }
+            long pos = 0;
+            for (long off: blockOffsets) {
+                if (head.remaining() < BinaryFormat.LONG_SIZE) {
+                    pos += writeHead(head, pos);
+                }
+                head.putLong(off);
+            }
+            pos += writeHead(head, pos);
+            assert pos == dirEnd;
+            return size;
+        }
+
+        private int writeHead(ByteBuffer head, long pos) throws IOException {
+            head.flip();
+            int n = head.remaining();
+            BinaryUtils.writeBuffer(channel, head, pos);
+            head.clear();
+            return n;
+        }
+    }
+}
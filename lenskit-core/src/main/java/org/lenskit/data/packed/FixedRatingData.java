@@ -0,0 +1,73 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import org.lenskit.data.ratings.Rating;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+
+/**
+ * Rating data stored as fixed-width records, as described by {@link BinaryFormat}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@ThreadSafe
+final class FixedRatingData extends BinaryRatingData {
+    private final BinaryFormat format;
+    private final SegmentedBuffer buffer;
+
+    FixedRatingData(BinaryFormat fmt, SegmentedBuffer buf) {
+        format = fmt;
+        buffer = buf;
+    }
+
+    @Override
+    public SegmentedBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public BinaryRatingData truncate(int n) {
+        return new FixedRatingData(format, buffer.truncate((long) n * format.getRatingSize()));
+    }
+
+    @Override
+    public Reader newReader() {
+        return new ReaderImpl();
+    }
+
+    private class ReaderImpl implements Reader {
+        private final ByteBuffer[] segments = buffer.duplicateSegments();
+        private final long segmentSize = buffer.getSegmentSize();
+        private final int ratingSize = format.getRatingSize();
+
+        @Override
+        public Rating read(int position) {
+            long bidx = (long) position * ratingSize;
+            int seg = (int) (bidx / segmentSize);
+            ByteBuffer buf = segments[seg];
+            buf.position((int) (bidx - seg * segmentSize));
+            assert buf.remaining() >= ratingSize;
+            return format.readRating(buf);
+        }
+    }
+}
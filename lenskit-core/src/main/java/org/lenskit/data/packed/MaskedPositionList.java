@@ -0,0 +1,91 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.AbstractIntList;
+
+import java.util.BitSet;
+
+/**
+ * The list of rating positions set in a mask, in increasing order.  Positions are found from the
+ * mask instead of being stored, so the list is only a small fraction of the size of the mask.
+ * Sequential access is constant-time; random access scans the mask from the nearest sampled
+ * position.  Like {@link BinaryRatingList}, this is not thread-safe.
+ */
+class MaskedPositionList extends AbstractIntList {
+    private static final int SAMPLE_INTERVAL = 256;
+
+    private final BitSet mask;
+    private final int size;
+    /**
+     * Every {@link #SAMPLE_INTERVAL}th position in the list.
+     */
+    private final int[] samples;
+
+    private int lastIndex = -1;
+    private int lastPosition = -1;
+
+    /**
+     * Create a list of the positions in a mask.
+     * @param mask The mask.  It must not be modified while the list is in use.
+     * @param limit The upper bound (exclusive) of positions to include.
+     */
+    MaskedPositionList(BitSet mask, int limit) {
+        this.mask = mask;
+        int n = 0;
+        for (int p = mask.nextSetBit(0); p >= 0 && p < limit; p = mask.nextSetBit(p + 1)) {
+            n++;
+        }
+        size = n;
+        samples = new int[(n + SAMPLE_INTERVAL - 1) / SAMPLE_INTERVAL];
+        int i = 0;
+        for (int p = mask.nextSetBit(0); i < n; p = mask.nextSetBit(p + 1), i++) {
+            if (i % SAMPLE_INTERVAL == 0) {
+                samples[i / SAMPLE_INTERVAL] = p;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getInt(int index) {
+        Preconditions.checkElementIndex(index, size);
+        int pos;
+        if (index == lastIndex + 1 && lastIndex >= 0) {
+            pos = mask.nextSetBit(lastPosition + 1);
+        } else if (index == lastIndex) {
+            pos = lastPosition;
+        } else {
+            pos = samples[index / SAMPLE_INTERVAL];
+            for (int i = index % SAMPLE_INTERVAL; i > 0; i--) {
+                pos = mask.nextSetBit(pos + 1);
+            }
+        }
+        lastIndex = index;
+        lastPosition = pos;
+        return pos;
+    }
+}
@@ -29,7 +29,17 @@ import java.util.Set;
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 enum PackHeaderFlag {
-    TIMESTAMPS, COMPACT_ITEMS, COMPACT_USERS;
+    TIMESTAMPS, COMPACT_ITEMS, COMPACT_USERS,
+    /**
+     * The file is larger than 2GB, and must be read with segmented memory maps.  The layout is
+     * unchanged; this flag keeps readers that map the file with a single buffer from opening it.
+     */
+    LARGE_FILE,
+    /**
+     * The ratings are stored in compressed column blocks (see {@link ColumnarRatingData}) instead
+     * of fixed-width records.
+     */
+    COLUMNAR;
 
     public static EnumSet<PackHeaderFlag> fromFormatFlags(Set<BinaryFormatFlag> flags) {
         EnumSet<PackHeaderFlag> set = EnumSet.noneOf(PackHeaderFlag.class);
@@ -39,6 +49,9 @@ enum PackHeaderFlag {
             set.add(PackHeaderFlag.COMPACT_ITEMS);
             set.add(PackHeaderFlag.COMPACT_USERS);
         }
+        if (flags.contains(BinaryFormatFlag.COMPRESSED)) {
+            set.add(PackHeaderFlag.COLUMNAR);
+        }
         return set;
     }
 
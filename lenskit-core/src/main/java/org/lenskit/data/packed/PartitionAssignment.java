@@ -0,0 +1,183 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import com.google.common.base.Preconditions;
+import org.lenskit.util.io.StagedWrite;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Assignment of the ratings in a packed rating file to partitions, such as the test sets of a
+ * crossfold.  The assignment stores one byte per rating position, so a data set can be split
+ * into several train-test partitions by storing the packed file once along with an assignment,
+ * and opening each side of each partition as a {@linkplain BinaryRatingDAO#createMaskedView(BitSet)
+ * masked view} of the packed file.
+ *
+ * The file format is a 4-byte magic number, the number of partitions and the number of ratings
+ * (as 4-byte integers), and then the partition of each rating as a byte, with -1 marking ratings
+ * that are not in any partition.
+ *
+ * @since 3.0
+ */
+public class PartitionAssignment {
+    /**
+     * The maximum number of partitions.
+     */
+    public static final int MAX_PARTITIONS = Byte.MAX_VALUE;
+    private static final int MAGIC = 0x4C4B5041; // LKPA
+
+    private final int partitionCount;
+    private final byte[] partitions;
+
+    private PartitionAssignment(int nparts, byte[] parts) {
+        partitionCount = nparts;
+        partitions = parts;
+    }
+
+    /**
+     * Create a new partition assignment in which no rating is assigned to a partition.
+     *
+     * @param nparts The number of partitions.
+     * @param nratings The number of rating positions.
+     * @return The partition assignment.
+     */
+    public static PartitionAssignment create(int nparts, int nratings) {
+        Preconditions.checkArgument(nparts > 0 && nparts <= MAX_PARTITIONS,
+                                    "partition count %s out of range", nparts);
+        byte[] parts = new byte[nratings];
+        Arrays.fill(parts, (byte) -1);
+        return new PartitionAssignment(nparts, parts);
+    }
+
+    /**
+     * Read a partition assignment from a file.
+     *
+     * @param file The file to read.
+     * @return The partition assignment.
+     * @throws IOException if there is an error reading the file.
+     */
+    public static PartitionAssignment read(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            if (data.readInt() != MAGIC) {
+                throw new IOException(file + " is not a partition assignment file");
+            }
+            int nparts = data.readInt();
+            int nratings = data.readInt();
+            if (nparts <= 0 || nparts > MAX_PARTITIONS || nratings < 0) {
+                throw new IOException("invalid partition assignment header in " + file);
+            }
+            byte[] parts = new byte[nratings];
+            data.readFully(parts);
+            return new PartitionAssignment(nparts, parts);
+        }
+    }
+
+    /**
+     * Write this partition assignment to a file.
+     *
+     * @param file The file to write.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void write(Path file) throws IOException {
+        try (StagedWrite stage = StagedWrite.begin(file)) {
+            try (OutputStream out = stage.openOutputStream();
+                 DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+                data.writeInt(MAGIC);
+                data.writeInt(partitionCount);
+                data.writeInt(partitions.length);
+                data.write(partitions);
+            }
+            stage.commit();
+        }
+    }
+
+    /**
+     * Get the number of partitions.
+     * @return The number of partitions.
+     */
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Get the number of rating positions.
+     * @return The number of rating positions in the assignment.
+     */
+    public int size() {
+        return partitions.length;
+    }
+
+    /**
+     * Get the partition of a rating.
+     *
+     * @param pos The rating position.
+     * @return The rating's partition, or -1 if it is not in any partition.
+     */
+    public int getPartition(int pos) {
+        return partitions[pos];
+    }
+
+    /**
+     * Assign a rating to a partition.
+     *
+     * @param pos The rating position.
+     * @param part The partition, or -1 to remove the rating from its partition.
+     */
+    public void setPartition(int pos, int part) {
+        Preconditions.checkArgument(part >= -1 && part < partitionCount,
+                                    "partition %s out of range", part);
+        partitions[pos] = (byte) part;
+    }
+
+    /**
+     * Get the positions of the ratings in a partition.
+     *
+     * @param part The partition.
+     * @return A mask of the positions of the ratings in partition {@code part}.
+     */
+    public BitSet getPositions(int part) {
+        BitSet mask = new BitSet(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            if (partitions[i] == part) {
+                mask.set(i);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Get the positions of the ratings that are not in a partition.
+     *
+     * @param part The partition.
+     * @return A mask of the positions of the ratings not in partition {@code part}.
+     */
+    public BitSet getOtherPositions(int part) {
+        BitSet mask = getPositions(part);
+        mask.flip(0, partitions.length);
+        return mask;
+    }
+}
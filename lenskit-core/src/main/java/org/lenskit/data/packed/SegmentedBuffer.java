@@ -0,0 +1,244 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only region of bytes stored in a sequence of buffers and addressed with long offsets.
+ * A single {@link ByteBuffer} can only address 2GB, so large pack files are mapped as several
+ * segments.  Segments are a multiple of a unit size (the record size) long, so no record spans
+ * two segments; the absolute accessors rely on this.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@ThreadSafe
+final class SegmentedBuffer {
+    /**
+     * The maximum size of a single segment.
+     */
+    static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private final ByteBuffer[] segments;
+    private final int segmentSize;
+    private final long size;
+
+    private SegmentedBuffer(ByteBuffer[] segs, int segSize, long sz) {
+        assert segs.length > 0;
+        assert segSize > 0;
+        segments = segs;
+        segmentSize = segSize;
+        size = sz;
+    }
+
+    /**
+     * Compute the segment size for a unit size.
+     * @param unit The unit (record) size.
+     * @param maxSize The maximum segment size.
+     * @return The largest multiple of {@code unit} that is no larger than {@code maxSize}.
+     */
+    static int alignedSegmentSize(int unit, int maxSize) {
+        Preconditions.checkArgument(unit > 0, "unit size must be positive");
+        Preconditions.checkArgument(maxSize >= unit, "segment size smaller than unit");
+        return maxSize - maxSize % unit;
+    }
+
+    /**
+     * Wrap a single buffer.  The segmented buffer covers the bytes from the buffer's position to
+     * its limit.
+     * @param buf The buffer.
+     * @return The segmented buffer.
+     */
+    public static SegmentedBuffer wrap(ByteBuffer buf) {
+        ByteBuffer slice = buf.slice();
+        return new SegmentedBuffer(new ByteBuffer[]{slice}, Math.max(slice.capacity(), 1),
+                                   slice.capacity());
+    }
+
+    /**
+     * Map a region of a file.
+     * @param chan The file channel.
+     * @param position The start of the region.
+     * @param size The size of the region.
+     * @param unit The record size; records will not span segments.
+     * @return The mapped buffer.
+     * @throws IOException if there is an error mapping the file.
+     */
+    public static SegmentedBuffer map(FileChannel chan, long position, long size, int unit) throws IOException {
+        return map(chan, position, size, unit, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Map a region of a file with a specified maximum segment size.
+     * @see #map(FileChannel, long, long, int)
+     */
+    static SegmentedBuffer map(FileChannel chan, long position, long size, int unit, int maxSegment) throws IOException {
+        Preconditions.checkArgument(size >= 0, "negative size");
+        if (position + size > chan.size()) {
+            throw new IOException("region extends past end of file");
+        }
+        int segSize = alignedSegmentSize(unit, maxSegment);
+        ByteBuffer[] segs = new ByteBuffer[segmentCount(size, segSize)];
+        for (int i = 0; i < segs.length; i++) {
+            long start = (long) i * segSize;
+            int len = (int) Math.min(segSize, size - start);
+            segs[i] = chan.map(FileChannel.MapMode.READ_ONLY, position + start, len);
+        }
+        return new SegmentedBuffer(segs, segSize, size);
+    }
+
+    /**
+     * Allocate a new segmented buffer in direct memory.  Use {@link #duplicateSegments()} to fill
+     * it.
+     * @param size The buffer size.
+     * @param unit The record size.
+     * @return The new buffer.
+     */
+    public static SegmentedBuffer allocateDirect(long size, int unit) {
+        Preconditions.checkArgument(size >= 0, "negative size");
+        int segSize = alignedSegmentSize(unit, MAX_SEGMENT_SIZE);
+        ByteBuffer[] segs = new ByteBuffer[segmentCount(size, segSize)];
+        for (int i = 0; i < segs.length; i++) {
+            long start = (long) i * segSize;
+            segs[i] = ByteBuffer.allocateDirect((int) Math.min(segSize, size - start));
+        }
+        return new SegmentedBuffer(segs, segSize, size);
+    }
+
+    private static int segmentCount(long size, int segSize) {
+        long n = (size + segSize - 1) / segSize;
+        Preconditions.checkArgument(n <= Integer.MAX_VALUE, "too many segments");
+        // an empty buffer still has one (empty) segment
+        return Math.max((int) n, 1);
+    }
+
+    /**
+     * Get the size of this buffer.
+     * @return The number of bytes in the buffer.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get the segment size.  Every segment but the last is exactly this long.
+     * @return The segment size.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Get independent views of the segments, each positioned at 0 with its limit at the segment
+     * size.  Callers can reposition the returned buffers without affecting other users.
+     * @return The segment views.
+     */
+    public ByteBuffer[] duplicateSegments() {
+        ByteBuffer[] dups = new ByteBuffer[segments.length];
+        for (int i = 0; i < dups.length; i++) {
+            dups[i] = segments[i].duplicate();
+        }
+        return dups;
+    }
+
+    /**
+     * Read an int at an absolute offset.
+     * @param offset The byte offset.
+     * @return The int at the offset.
+     */
+    public int getInt(long offset) {
+        assert offset >= 0 && offset + BinaryFormat.INT_SIZE <= size;
+        int seg = (int) (offset / segmentSize);
+        return segments[seg].getInt((int) (offset - (long) seg * segmentSize));
+    }
+
+    /**
+     * Read a long at an absolute offset.
+     * @param offset The byte offset.
+     * @return The long at the offset.
+     */
+    public long getLong(long offset) {
+        assert offset >= 0 && offset + BinaryFormat.LONG_SIZE <= size;
+        int seg = (int) (offset / segmentSize);
+        return segments[seg].getLong((int) (offset - (long) seg * segmentSize));
+    }
+
+    /**
+     * Get a range of bytes as a single buffer.  If the range lies within one segment, the result
+     * is a view of that segment; if it spans segments, the bytes are copied into a new buffer.
+     * @param offset The start of the range.
+     * @param length The length of the range.
+     * @return A buffer whose position is 0 and whose limit is {@code length}.
+     */
+    public ByteBuffer slice(long offset, int length) {
+        Preconditions.checkArgument(offset >= 0 && length >= 0 && offset + length <= size,
+                                    "invalid range");
+        int seg = (int) (offset / segmentSize);
+        int start = (int) (offset - (long) seg * segmentSize);
+        ByteBuffer first = segments[Math.min(seg, segments.length - 1)].duplicate();
+        if (start + length <= first.limit()) {
+            first.position(start).limit(start + length);
+            return first.slice();
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        while (copy.hasRemaining()) {
+            ByteBuffer src = segments[seg].duplicate();
+            src.position(start);
+            if (src.remaining() > copy.remaining()) {
+                src.limit(start + copy.remaining());
+            }
+            copy.put(src);
+            seg += 1;
+            start = 0;
+        }
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Create a view of a prefix of this buffer.
+     * @param newSize The size of the view.
+     * @return A buffer containing the first {@code newSize} bytes of this buffer.
+     */
+    public SegmentedBuffer truncate(long newSize) {
+        Preconditions.checkArgument(newSize >= 0 && newSize <= size, "invalid size");
+        if (newSize == size) {
+            return this;
+        }
+        ByteBuffer[] segs = new ByteBuffer[segmentCount(newSize, segmentSize)];
+        for (int i = 0; i < segs.length; i++) {
+            segs[i] = segments[i].duplicate();
+        }
+        int last = segs.length - 1;
+        segs[last].limit((int) (newSize - (long) last * segmentSize));
+        return new SegmentedBuffer(segs, segmentSize, newSize);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.inject;
+
+/**
+ * Interface for model builders that can cheaply estimate how much heap memory building their
+ * model will take.  The evaluator asks a component's builder for this estimate to schedule the
+ * build against its memory budget when it has not measured the component in a previous run.  It
+ * instantiates the builder to do so (after building its shareable dependencies), so builders
+ * implementing this interface should do no real work in their constructors.
+ *
+ * @since 3.0
+ */
+public interface MemoryEstimator {
+    /**
+     * Estimate the peak heap memory needed to build the model, including the model itself.  The
+     * estimate does not need to be precise, but it should not take long to compute.
+     *
+     * @return The estimated memory use, in bytes, or 0 if no estimate is available.
+     */
+    long estimateMemoryUse();
+}
@@ -0,0 +1,150 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.data.sql
+
+import com.google.common.cache.CacheBuilderSpec
+import groovy.sql.Sql
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet
+import org.lenskit.util.io.ObjectStreams
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import javax.sql.DataSource
+import java.sql.Connection
+import java.sql.DriverManager
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+import static org.hamcrest.Matchers.*
+import static org.junit.Assert.assertThat
+
+/**
+ * Test the JDBC DAO on a data source, and its batched user queries.
+ */
+class JDBCRatingDAOPoolTest {
+    private String url
+    private Connection keeper
+    private DataSource dataSource
+    private int opened = 0
+
+    @Before
+    public void createDatabase() {
+        url = "jdbc:h2:mem:pool${System.identityHashCode(this)}"
+        // keep the in-memory database alive while the DAO opens and closes connections
+        keeper = DriverManager.getConnection(url)
+        def sql = new Sql(keeper)
+        sql.execute('CREATE TABLE ratings (userId INTEGER NOT NULL, itemId INTEGER NOT NULL, rating REAL NOT NULL, ratingTime BIGINT NOT NULL)')
+        def ratings = sql.dataSet('ratings')
+        for (user in 1..20) {
+            // users 4, 8, ... have no ratings
+            for (int item = 1; item <= user % 4; item++) {
+                ratings.add userId: user, itemId: item, rating: 3.5, ratingTime: 100 - item
+            }
+        }
+        dataSource = [getConnection: { ->
+            synchronized (this) {
+                opened += 1
+            }
+            DriverManager.getConnection(url)
+        }] as DataSource
+    }
+
+    @After
+    public void closeDatabase() {
+        keeper.close()
+    }
+
+    private JDBCRatingDAOBuilder builder() {
+        return JDBCRatingDAO.newBuilder()
+                            .setTableName('ratings')
+                            .setUserColumn('userId')
+                            .setItemColumn('itemId')
+                            .setRatingColumn('rating')
+                            .setTimestampColumn('ratingTime')
+    }
+
+    private int openSessions() {
+        return new Sql(keeper).firstRow('SELECT COUNT(*) AS n FROM INFORMATION_SCHEMA.SESSIONS').n
+    }
+
+    @Test
+    public void testPooledQueries() {
+        def dao = builder().build(dataSource)
+        assertThat dao.getEventsForUser(3)*.itemId, contains(3l, 2l, 1l)
+        assertThat dao.getEventsForUser(4), nullValue()
+        assertThat dao.getEventsForItem(3)*.userId, hasSize(5)
+        assertThat dao.getUsersForItem(3), hasSize(5)
+        assertThat dao.userIds, hasSize(15)
+        def stream = dao.streamEventsByUser()
+        try {
+            assertThat stream.readObject().userId, equalTo(1l)
+        } finally {
+            stream.close()
+        }
+        dao.close()
+        assertThat opened, greaterThan(0)
+        // every connection has been returned
+        assertThat openSessions(), equalTo(1)
+    }
+
+    @Test
+    public void testConcurrentQueries() {
+        def dao = builder().setCacheBuilder(CacheBuilderSpec.disableCaching()).build(dataSource)
+        def exec = Executors.newFixedThreadPool(4)
+        try {
+            def tasks = (1..200).collect { n ->
+                { -> dao.getEventsForUser(n % 20 + 1)?.size() ?: 0 } as Callable<Integer>
+            }
+            def results = exec.invokeAll(tasks)*.get()
+            assertThat results, equalTo((1..200).collect { n -> (n % 20 + 1) % 4 })
+        } finally {
+            exec.shutdownNow()
+        }
+        assertThat openSessions(), equalTo(1)
+    }
+
+    @Test
+    public void testBatchedUsers() {
+        def dao = builder().setBatchSize(3).build(dataSource)
+        def users = new LongOpenHashSet([1l, 2l, 3l, 4l, 5l, 7l, 8l, 11l, 42l])
+        def histories = ObjectStreams.makeList(dao.getEventsForUsers(users))
+        assertThat histories*.userId, contains(1l, 2l, 3l, 5l, 7l, 11l)
+        assertThat histories*.size(), contains(1, 2, 3, 1, 3, 3)
+        assertThat histories[2]*.itemId, contains(3l, 2l, 1l)
+        // 9 users in batches of 3
+        assertThat opened, equalTo(3)
+        assertThat openSessions(), equalTo(1)
+    }
+
+    @Test
+    public void testBatchedUsersOnConnection() {
+        def cxn = DriverManager.getConnection(url)
+        def dao = builder().setBatchSize(2).build(cxn)
+        try {
+            def histories = ObjectStreams.makeList(dao.getEventsForUsers(new LongOpenHashSet([3l, 4l, 6l])))
+            assertThat histories*.userId, contains(3l, 6l)
+            assertThat histories*.size(), contains(3, 2)
+        } finally {
+            dao.close()
+        }
+    }
+}
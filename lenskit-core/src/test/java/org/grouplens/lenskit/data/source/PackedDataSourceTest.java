@@ -0,0 +1,67 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.data.source;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.dao.EventDAO;
+import org.lenskit.data.packed.BinaryFormatFlag;
+import org.lenskit.data.packed.BinaryRatingPacker;
+import org.lenskit.data.ratings.Rating;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PackedDataSourceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void pack(File file, List<Rating> ratings) throws IOException {
+        try (BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.TIMESTAMPS)) {
+            packer.writeRatings(ratings);
+        }
+    }
+
+    @Test
+    public void testSourcesShareOpenFile() throws IOException {
+        File file = folder.newFile("ratings.pack");
+        pack(file, ImmutableList.of(Rating.create(1, 10, 3.5, 1000L),
+                                    Rating.create(2, 10, 2.5, 1050L)));
+        PackedDataSource first = new PackedDataSource("first", file, null);
+        PackedDataSource second = new PackedDataSource("second", file, null);
+        EventDAO dao = first.getEventDAO();
+        assertThat(second.getEventDAO(), sameInstance(dao));
+
+        // a changed file is opened again
+        pack(file, ImmutableList.of(Rating.create(1, 10, 3.5, 1000L),
+                                    Rating.create(2, 10, 2.5, 1050L),
+                                    Rating.create(2, 11, 4.0, 1100L)));
+        PackedDataSource third = new PackedDataSource("third", file, null);
+        assertThat(third.getEventDAO(), not(sameInstance(dao)));
+        assertThat(third.getUserEventDAO().getEventsForUser(2), hasSize(2));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.data.text;
+
+import org.lenskit.data.events.Event;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ByteLineParserTest {
+    private static Event parse(ByteLineParser parser, String line) {
+        byte[] bytes = ("xx" + line + "yy").getBytes(StandardCharsets.US_ASCII);
+        return parser.parse(bytes, 2, bytes.length - 2);
+    }
+
+    @Test
+    public void testMatchesStringParser() throws InvalidRowException {
+        DelimitedColumnEventFormat format = Formats.csvRatings();
+        ByteLineParser parser = ByteLineParser.create(format);
+        assertThat(parser, notNullValue());
+        String[] lines = {
+                "1,10,3.5", "42,7,5,1234567890", "3,4,-0.25", "3,,4,2.0,",
+                "5,6,0.1", "5,6,4.123456789012", "-2,9,1"
+        };
+        for (String line: lines) {
+            assertThat(line, parse(parser, line), equalTo(format.parse(line)));
+        }
+    }
+
+    @Test
+    public void testFallsBack() {
+        ByteLineParser parser = ByteLineParser.create(Formats.csvRatings());
+        assertThat(parser, notNullValue());
+        assertThat(parse(parser, "1,10,1e1"), nullValue());
+        assertThat(parse(parser, "1,10,NaN"), nullValue());
+        assertThat(parse(parser, "42"), nullValue());
+        assertThat(parse(parser, "1234567890123456789012,10,3"), nullValue());
+    }
+
+    @Test
+    public void testUnsupportedFormat() {
+        assertThat(ByteLineParser.create(Formats.delimitedRatings("::")), nullValue());
+    }
+}
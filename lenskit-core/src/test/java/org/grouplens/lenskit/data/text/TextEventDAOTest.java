@@ -20,6 +20,10 @@
  */
 package org.grouplens.lenskit.data.text;
 
+import org.grouplens.lenskit.util.io.CompressionMode;
+import org.lenskit.data.dao.DataAccessException;
+import org.lenskit.data.events.Event;
+import org.lenskit.util.io.ObjectStream;
 import org.lenskit.util.io.ObjectStreams;
 import org.lenskit.data.ratings.Rating;
 import org.junit.Rule;
@@ -27,9 +31,13 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -84,4 +92,100 @@ public class TextEventDAOTest {
                                                Rating.create(1, 4, 2.5),
                                                Rating.create(2, 42, 5)));
     }
+
+    private void writeMixedLines(Writer out) throws IOException {
+        out.write("user,item,rating,timestamp\n");
+        for (int i = 0; i < 2000; i++) {
+            String value;
+            switch (i % 5) {
+            case 0:
+                value = Integer.toString(i % 6);
+                break;
+            case 1:
+                value = (i % 5) + ".5";
+                break;
+            case 2:
+                value = "0.1";
+                break;
+            case 3:
+                value = "1e-1";
+                break;
+            default:
+                value = Double.toString(i / 7.0);
+            }
+            out.write(i % 97 + "," + (i * 31) % 1003 + "," + value);
+            if (i % 3 != 0) {
+                out.write("," + (i * 1000L));
+            }
+            out.write(i % 4 == 0 ? "\r\n" : "\n");
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws IOException {
+        File file = folder.newFile("ratings.csv");
+        try (Writer out = new PrintWriter(file)) {
+            writeMixedLines(out);
+        }
+        DelimitedColumnEventFormat format = Formats.csvRatings().setHeaderLines(1);
+        List<Event> expected = ObjectStreams.makeList(TextEventDAO.create(file, format).streamEvents());
+        assertThat(expected, hasSize(2000));
+
+        // small chunks so the lines are spread over many parallel tasks
+        for (int threads: new int[]{1, 4}) {
+            try (ObjectStream<Event> stream = ChunkedEventStream.open(file, CompressionMode.AUTO,
+                                                                      format, threads, 256)) {
+                assertThat(ObjectStreams.makeList(stream), equalTo(expected));
+            }
+        }
+        TextEventDAO dao = TextEventDAO.createParallel(file, format, CompressionMode.AUTO, 0);
+        assertThat(ObjectStreams.makeList(dao.streamEvents()), equalTo(expected));
+    }
+
+    @Test
+    public void testParallelCompressed() throws IOException {
+        File file = folder.newFile("ratings.csv.gz");
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), "UTF-8")) {
+            writeMixedLines(out);
+        }
+        DelimitedColumnEventFormat format = Formats.csvRatings().setHeaderLines(1);
+        List<Event> expected = ObjectStreams.makeList(TextEventDAO.create(file, format).streamEvents());
+        try (ObjectStream<Event> stream = ChunkedEventStream.open(file, CompressionMode.AUTO,
+                                                                  format, 3, 100)) {
+            assertThat(ObjectStreams.makeList(stream), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void testParallelMalformedLine() throws IOException {
+        File file = folder.newFile("ratings.csv");
+        try (PrintWriter pw = new PrintWriter(file)) {
+            for (int i = 0; i < 500; i++) {
+                pw.println(i + ",10,3.5");
+            }
+            pw.println("42");
+            pw.println("1,10,3.5");
+        }
+
+        TextEventDAO dao = TextEventDAO.createParallel(file, Formats.csvRatings(), CompressionMode.AUTO, 2);
+        int n = 0;
+        try (ObjectStream<Event> stream = ChunkedEventStream.open(file, CompressionMode.AUTO,
+                                                                  Formats.csvRatings(), 2, 64)) {
+            for (Event e: stream) {
+                n += 1;
+            }
+            fail("malformed line should fail");
+        } catch (DataAccessException e) {
+            assertThat(e.getMessage(), endsWith("line 501"));
+        }
+        // every event before the bad line is delivered, in order
+        assertThat(n, equalTo(500));
+
+        try {
+            ObjectStreams.makeList(dao.streamEvents());
+            fail("malformed line should fail");
+        } catch (DataAccessException e) {
+            assertThat(e.getMessage(), endsWith("line 501"));
+        }
+    }
 }
@@ -99,4 +99,18 @@ public class MeanAccumulatorTest {
         avg.add(13);
         Assert.assertEquals(2, avg.getCount());
     }
+
+    @Test
+    public void testMerge() {
+        MeanAccumulator avg = new MeanAccumulator();
+        avg.add(5);
+        avg.add(13);
+        MeanAccumulator other = new MeanAccumulator();
+        other.add(3);
+
+        avg.merge(other);
+        Assert.assertEquals(7, avg.getMean(), PRECISION);
+        Assert.assertEquals(3, avg.getCount());
+        Assert.assertEquals(1, other.getCount());
+    }
 }
@@ -25,6 +25,8 @@ import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.junit.Test;
 
+import java.util.Random;
+
 import static org.grouplens.lenskit.vectors.similarity.SpearmanRankCorrelation.rank;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -75,4 +77,31 @@ public class SpearmanRankCorrelationTest {
         assertEquals(5, r.get(4), 1.0e-6);
     }
 
+    @Test
+    public void testSimilarityMatchesRankedPearson() {
+        Random rng = new Random(17);
+        SpearmanRankCorrelation spearman = new SpearmanRankCorrelation();
+        PearsonCorrelation pearson = new PearsonCorrelation();
+        for (int trial = 0; trial < 50; trial++) {
+            long[] k1 = new long[20 + rng.nextInt(30)];
+            long[] k2 = new long[20 + rng.nextInt(30)];
+            double[] x1 = new double[k1.length];
+            double[] x2 = new double[k2.length];
+            for (int i = 0; i < k1.length; i++) {
+                k1[i] = i * 2;
+                // integer ratings, so there are plenty of ties
+                x1[i] = 1 + rng.nextInt(5);
+            }
+            for (int i = 0; i < k2.length; i++) {
+                k2[i] = i * 3;
+                x2[i] = 1 + rng.nextInt(5);
+            }
+            MutableSparseVector v1 = MutableSparseVector.wrap(k1, x1);
+            MutableSparseVector v2 = MutableSparseVector.wrap(k2, x2);
+            v2.unset(k2[0]);
+
+            assertEquals(pearson.similarity(rank(v1), rank(v2)),
+                         spearman.similarity(v1, v2), 1.0e-10);
+        }
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.dao;
+
+import com.google.common.collect.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.events.Events;
+import org.lenskit.data.events.LikeBatch;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ExternalEventSortTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Event> randomEvents(int n) {
+        Random rng = new Random(42);
+        List<Event> events = Lists.newArrayList();
+        for (int i = 0; i < n; i++) {
+            long user = rng.nextInt(50);
+            long item = rng.nextInt(200);
+            if (i % 10 == 0) {
+                events.add(LikeBatch.create(user, item, rng.nextInt(5) + 1));
+            } else {
+                // few distinct timestamps, so stability matters
+                events.add(Rating.create(user, item, rng.nextInt(5) + 1, rng.nextInt(20)));
+            }
+        }
+        return events;
+    }
+
+    @Test
+    public void testEmpty() {
+        List<Event> events = Collections.emptyList();
+        ObjectStream<Event> sorted = ExternalEventSort.sort(ObjectStreams.wrap(events),
+                                                           Events.USER_TIME_COMPARATOR);
+        assertThat(sorted.readObject(), nullValue());
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        List<Event> events = randomEvents(100);
+        List<Event> expected = Lists.newArrayList(events);
+        Collections.sort(expected, Events.USER_TIME_COMPARATOR);
+
+        File dir = folder.newFolder();
+        try (ObjectStream<Event> sorted = ExternalEventSort.sort(ObjectStreams.wrap(events),
+                                                                 Events.USER_TIME_COMPARATOR,
+                                                                 100, dir)) {
+            assertThat(dir.list(), emptyArray());
+            assertThat(ObjectStreams.makeList(sorted), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void testSpilledRuns() throws Exception {
+        List<Event> events = randomEvents(1000);
+        List<Event> expected = Lists.newArrayList(events);
+        Collections.sort(expected, Events.USER_TIME_COMPARATOR);
+
+        File dir = folder.newFolder();
+        ObjectStream<Event> sorted = ExternalEventSort.sort(ObjectStreams.wrap(events),
+                                                           Events.USER_TIME_COMPARATOR,
+                                                           64, dir);
+        try {
+            // 1000 events in runs of 64: 15 spilled runs and one in memory
+            assertThat(dir.list(), arrayWithSize(15));
+            assertThat(ObjectStreams.makeList(sorted), equalTo(expected));
+        } finally {
+            sorted.close();
+        }
+        assertThat(dir.list(), emptyArray());
+    }
+}
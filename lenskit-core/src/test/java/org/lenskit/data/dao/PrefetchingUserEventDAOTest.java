@@ -21,7 +21,10 @@
 package org.lenskit.data.dao;
 
 import com.google.common.collect.Lists;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.history.UserHistory;
 import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStreams;
 import org.junit.Test;
 
 import java.util.List;
@@ -43,4 +46,34 @@ public class PrefetchingUserEventDAOTest {
         assertThat(iedao.getEventsForUser(1), hasSize(2));
         assertThat(iedao.getEventsForUser(4), nullValue());
     }
+
+    @Test
+    public void testStreamUsersInOrder() {
+        List<Rating> ratings = Lists.newArrayList(
+                Rating.create(5, 2, 3.5, 10),
+                Rating.create(1, 3, 4, 20),
+                Rating.create(5, 3, 2, 5),
+                Rating.create(3, 2, 3, 7),
+                Rating.create(1, 7, 1, 15)
+        );
+        PrefetchingUserEventDAO dao = new PrefetchingUserEventDAO(EventCollectionDAO.create(ratings));
+        List<UserHistory<Event>> users = ObjectStreams.makeList(dao.streamEventsByUser());
+        assertThat(users, hasSize(3));
+        assertThat(users.get(0).getUserId(), equalTo(1L));
+        assertThat(users.get(1).getUserId(), equalTo(3L));
+        assertThat(users.get(2).getUserId(), equalTo(5L));
+        // each user's events stay in stream order, not timestamp order
+        assertThat(users.get(0), contains((Event) ratings.get(1), ratings.get(4)));
+        assertThat(users.get(2), contains((Event) ratings.get(0), ratings.get(2)));
+    }
+
+    @Test
+    public void testHistoriesReused() {
+        List<Rating> ratings = Lists.newArrayList(
+                Rating.create(1, 2, 3.5),
+                Rating.create(2, 2, 3)
+        );
+        PrefetchingUserEventDAO dao = new PrefetchingUserEventDAO(EventCollectionDAO.create(ratings));
+        assertThat(dao.getEventsForUser(1), sameInstance(dao.getEventsForUser(1)));
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.dao;
+
+import com.google.common.collect.Lists;
+import org.grouplens.lenskit.data.source.TextDataSource;
+import org.grouplens.lenskit.data.source.TextDataSourceBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.events.Events;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStream;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class StreamingUserEventDAOTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Event DAO that sorts externally in small runs, so sorted streams spill to disk.
+     */
+    private static class SpillingEventDAO implements EventDAO {
+        private final EventDAO base;
+        private final File tempDir;
+
+        SpillingEventDAO(List<Event> events, File dir) {
+            base = new EventCollectionDAO(events);
+            tempDir = dir;
+        }
+
+        @Override
+        public ObjectStream<Event> streamEvents() {
+            return base.streamEvents();
+        }
+
+        @Override
+        public <E extends Event> ObjectStream<E> streamEvents(Class<E> type) {
+            return base.streamEvents(type);
+        }
+
+        @Override
+        public <E extends Event> ObjectStream<E> streamEvents(Class<E> type, SortOrder order) {
+            return ExternalEventSort.sort(base.streamEvents(type), order.getEventComparator(),
+                                          64, tempDir);
+        }
+    }
+
+    @Test
+    public void testStreamSpilledUsers() throws Exception {
+        Random rng = new Random(42);
+        List<Event> events = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            // few distinct timestamps, so the order of ties matters
+            events.add(Rating.create(rng.nextInt(30), rng.nextInt(100),
+                                     rng.nextInt(5) + 1, rng.nextInt(20)));
+        }
+        List<Event> expected = Lists.newArrayList(events);
+        Collections.sort(expected, Events.USER_TIME_COMPARATOR);
+
+        File dir = folder.newFolder();
+        UserEventDAO dao = new StreamingUserEventDAO(new SpillingEventDAO(events, dir));
+        List<Event> seen = Lists.newArrayList();
+        long lastUser = Long.MIN_VALUE;
+        try (ObjectStream<UserHistory<Event>> users = dao.streamEventsByUser()) {
+            assertThat(dir.list(), not(emptyArray()));
+            for (UserHistory<Event> history: users) {
+                assertThat(history.getUserId(), greaterThan(lastUser));
+                lastUser = history.getUserId();
+                assertThat(history, not(empty()));
+                for (Event e: history) {
+                    assertThat(e.getUserId(), equalTo(history.getUserId()));
+                }
+                seen.addAll(history);
+            }
+        }
+        // grouping kept every event, in user and time order with ties in input order
+        assertThat(seen, equalTo(expected));
+        assertThat(dir.list(), emptyArray());
+    }
+
+    @Test
+    public void testTextSourceStreamsUsers() throws Exception {
+        File file = folder.newFile("ratings.csv");
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("3,10,4,5");
+            out.println("1,10,3,7");
+            out.println("2,11,5,1");
+            out.println("1,12,2,3");
+            out.println("3,11,1,2");
+        }
+        TextDataSource source = new TextDataSourceBuilder(file)
+                .setStreamUserEvents(true)
+                .build();
+        assertThat(source.getUserEventDAO(), instanceOf(StreamingUserEventDAO.class));
+
+        List<Long> users = Lists.newArrayList();
+        try (ObjectStream<UserHistory<Rating>> stream =
+                     source.getUserEventDAO().streamEventsByUser(Rating.class)) {
+            for (UserHistory<Rating> history: stream) {
+                users.add(history.getUserId());
+                for (int i = 1; i < history.size(); i++) {
+                    assertThat(history.get(i).getTimestamp(),
+                               greaterThanOrEqualTo(history.get(i - 1).getTimestamp()));
+                }
+            }
+        }
+        assertThat(users, contains(1L, 2L, 3L));
+
+        UserHistory<Event> user3 = source.getUserEventDAO().getEventsForUser(3);
+        assertThat(user3, hasSize(2));
+        assertThat(source.getUserEventDAO().getEventsForUser(4), nullValue());
+    }
+
+    @Test
+    public void testTextSourcePrefetchesByDefault() throws Exception {
+        File file = folder.newFile("ratings.csv");
+        TextDataSource source = new TextDataSourceBuilder(file).build();
+        assertThat(source.getUserEventDAO(), not(instanceOf(StreamingUserEventDAO.class)));
+    }
+}
@@ -189,6 +189,134 @@ public class BinaryRatingDAOTest {
         verifySimpleDAO(dao);
     }
 
+    @Test
+    public void testSegmentedDAO() throws IOException {
+        File file = folder.newFile("ratings.bin");
+        List<Rating> all = new ArrayList<>();
+        BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.TIMESTAMPS);
+        try {
+            for (int i = 0; i < 100; i++) {
+                Rating r = Rating.create(i % 7, i % 13, (i % 5) + 0.5, i * 10L);
+                all.add(r);
+                packer.writeRating(r);
+            }
+        } finally {
+            packer.close();
+        }
+
+        // use tiny segments so ratings and index entries are spread across many maps
+        BinaryRatingDAO dao = BinaryRatingDAO.open(file, 64);
+        BinaryRatingDAO whole = BinaryRatingDAO.open(file);
+        assertThat(ObjectStreams.makeList(dao.streamEvents(Rating.class)),
+                   equalTo(all));
+        for (long u = 0; u < 7; u++) {
+            assertThat(dao.getEventsForUser(u, Rating.class),
+                       equalTo(whole.getEventsForUser(u, Rating.class)));
+        }
+        for (long i = 0; i < 13; i++) {
+            assertThat(dao.getEventsForItem(i, Rating.class),
+                       equalTo(whole.getEventsForItem(i, Rating.class)));
+        }
+
+        BinaryRatingDAO limited = dao.createWindowedView(495);
+        assertThat(ObjectStreams.makeList(limited.streamEvents(Rating.class)),
+                   equalTo(all.subList(0, 50)));
+
+        BinaryRatingDAO clone = SerializationUtils.clone(limited);
+        assertThat(ObjectStreams.makeList(clone.streamEvents(Rating.class)),
+                   equalTo(all.subList(0, 50)));
+        assertThat(clone.getEventsForUser(3, Rating.class),
+                   equalTo(limited.getEventsForUser(3, Rating.class)));
+    }
+
+    @Test
+    public void testCompressedDAO() throws IOException {
+        File file = folder.newFile("ratings.bin");
+        BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.COMPRESSED);
+        try {
+            packer.writeRatings(ratings);
+        } finally {
+            packer.close();
+        }
+
+        BinaryRatingDAO dao = BinaryRatingDAO.open(file);
+        verifySimpleDAO(dao);
+        verifySimpleDAO(SerializationUtils.clone(dao));
+
+        ByteBuffer buffer;
+        try (FileInputStream istr = new FileInputStream(file)) {
+            FileChannel chan = istr.getChannel();
+            buffer = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+        }
+        verifySimpleDAO(BinaryRatingDAO.fromBuffer(buffer));
+    }
+
+    @Test
+    public void testCompressedMatchesFixed() throws IOException {
+        File fixedFile = folder.newFile("fixed.bin");
+        File packedFile = folder.newFile("compressed.bin");
+        List<Rating> all = new ArrayList<>();
+        BinaryRatingPacker fixed = BinaryRatingPacker.open(fixedFile, BinaryFormatFlag.TIMESTAMPS);
+        BinaryRatingPacker packed = BinaryRatingPacker.open(packedFile, BinaryFormatFlag.TIMESTAMPS,
+                                                            BinaryFormatFlag.COMPRESSED);
+        try {
+            // out of order, so the staged ratings are sorted before compression
+            for (int i = 0; i < 1000; i++) {
+                Rating r = Rating.create(i % 37, (i * 7) % 101, (i % 10) * 0.5, (i * 13) % 1000);
+                all.add(r);
+                fixed.writeRating(r);
+                packed.writeRating(r);
+            }
+        } finally {
+            fixed.close();
+            packed.close();
+        }
+        assertThat(packedFile.length(), lessThan(fixedFile.length() / 2));
+
+        BinaryRatingDAO expected = BinaryRatingDAO.open(fixedFile);
+        // small segments so some blocks span segment boundaries
+        BinaryRatingDAO dao = BinaryRatingDAO.open(packedFile, 256);
+        assertThat(ObjectStreams.makeList(dao.streamEvents(Rating.class)),
+                   equalTo(ObjectStreams.makeList(expected.streamEvents(Rating.class))));
+        for (long u = 0; u < 37; u++) {
+            assertThat(dao.getEventsForUser(u, Rating.class),
+                       equalTo(expected.getEventsForUser(u, Rating.class)));
+        }
+        for (long i = 0; i < 101; i++) {
+            assertThat(dao.getEventsForItem(i, Rating.class),
+                       equalTo(expected.getEventsForItem(i, Rating.class)));
+        }
+
+        BinaryRatingDAO limited = dao.createWindowedView(500);
+        assertThat(ObjectStreams.makeList(limited.streamEvents(Rating.class)),
+                   equalTo(ObjectStreams.makeList(expected.createWindowedView(500)
+                                                          .streamEvents(Rating.class))));
+        BinaryRatingDAO clone = SerializationUtils.clone(limited);
+        assertThat(clone.getEventsForUser(5, Rating.class),
+                   equalTo(limited.getEventsForUser(5, Rating.class)));
+    }
+
+    @Test
+    public void testCompressedRawValues() throws IOException {
+        File file = folder.newFile("ratings.bin");
+        List<Rating> all = new ArrayList<>();
+        BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.COMPRESSED);
+        try {
+            // too many distinct values for the dictionary
+            for (int i = 0; i < 500; i++) {
+                Rating r = Rating.create(i % 10, i, i / 100.0);
+                all.add(r);
+                packer.writeRating(r);
+            }
+        } finally {
+            packer.close();
+        }
+
+        BinaryRatingDAO dao = BinaryRatingDAO.open(file);
+        assertThat(ObjectStreams.makeList(dao.streamEvents(Rating.class)),
+                   equalTo(all));
+    }
+
     private void verifySimpleDAO(BinaryRatingDAO dao) {
         assertThat(ObjectStreams.makeList(dao.streamEvents()),
                    hasSize(3));
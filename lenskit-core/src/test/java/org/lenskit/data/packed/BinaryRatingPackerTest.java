@@ -0,0 +1,188 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class BinaryRatingPackerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Comparator<Rating> BY_TIMESTAMP = new Comparator<Rating>() {
+        @Override
+        public int compare(Rating r1, Rating r2) {
+            return Long.compare(r1.getTimestamp(), r2.getTimestamp());
+        }
+    };
+
+    /**
+     * Make ratings with shuffled timestamps, with plenty of ties.
+     */
+    private static List<Rating> randomRatings(Random rng, int n, int nusers, int nitems) {
+        List<Rating> ratings = new ArrayList<Rating>(n);
+        for (int i = 0; i < n; i++) {
+            ratings.add(Rating.create(rng.nextInt(nusers), rng.nextInt(nitems),
+                                      1 + rng.nextInt(5), rng.nextInt(n / 4)));
+        }
+        return ratings;
+    }
+
+    private static void checkIndexes(BinaryRatingDAO dao, List<Rating> expected) {
+        Map<Long,List<Rating>> byUser = new HashMap<Long, List<Rating>>();
+        Map<Long,List<Rating>> byItem = new HashMap<Long, List<Rating>>();
+        for (Rating r: expected) {
+            if (!byUser.containsKey(r.getUserId())) {
+                byUser.put(r.getUserId(), new ArrayList<Rating>());
+            }
+            byUser.get(r.getUserId()).add(r);
+            if (!byItem.containsKey(r.getItemId())) {
+                byItem.put(r.getItemId(), new ArrayList<Rating>());
+            }
+            byItem.get(r.getItemId()).add(r);
+        }
+
+        assertThat(dao.getUserIds(), hasSize(byUser.size()));
+        for (Map.Entry<Long,List<Rating>> e: byUser.entrySet()) {
+            assertThat(dao.getEventsForUser(e.getKey(), Rating.class),
+                       contains(e.getValue().toArray()));
+        }
+        assertThat(dao.getItemIds(), hasSize(byItem.size()));
+        for (Map.Entry<Long,List<Rating>> e: byItem.entrySet()) {
+            assertThat(dao.getEventsForItem(e.getKey(), Rating.class),
+                       contains(e.getValue().toArray()));
+        }
+    }
+
+    @Test
+    public void testMultiPassIndex() throws IOException {
+        List<Rating> ratings = randomRatings(new Random(42), 5000, 100, 300);
+        Collections.sort(ratings, BY_TIMESTAMP);
+
+        File file = folder.newFile("ratings.pack");
+        try (BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.TIMESTAMPS)) {
+            // small enough that each index table is scattered in many ranges
+            packer.setIndexBufferSize(97);
+            packer.writeRatings(ratings);
+        }
+
+        BinaryRatingDAO dao = BinaryRatingDAO.open(file);
+        assertThat(ObjectStreams.makeList(dao.streamEvents(Rating.class)),
+                   equalTo(ratings));
+        checkIndexes(dao, ratings);
+        // and we should not leave the scatter file around
+        assertThat(folder.getRoot().list(), arrayContaining("ratings.pack"));
+    }
+
+    @Test
+    public void testIndexKeyLargerThanBuffer() throws IOException {
+        List<Rating> ratings = randomRatings(new Random(42), 5000, 100, 300);
+        // one user with more ratings than the index buffer holds
+        for (int i = 0; i < 500; i++) {
+            ratings.add(Rating.create(50, i, 3.0, 5000 + i));
+        }
+        Collections.sort(ratings, BY_TIMESTAMP);
+
+        File file = folder.newFile("ratings.pack");
+        try (BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.TIMESTAMPS)) {
+            packer.setIndexBufferSize(97);
+            packer.writeRatings(ratings);
+        }
+
+        BinaryRatingDAO dao = BinaryRatingDAO.open(file);
+        checkIndexes(dao, ratings);
+    }
+
+    @Test
+    public void testExternalSort() throws IOException {
+        List<Rating> ratings = randomRatings(new Random(42), 5000, 100, 300);
+
+        File file = folder.newFile("ratings.pack");
+        try (BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.TIMESTAMPS)) {
+            // force many sorted runs to merge
+            packer.setBufferSize(97);
+            packer.writeRatings(ratings);
+        }
+
+        // the sort is stable, so ties stay in input order
+        List<Rating> sorted = new ArrayList<Rating>(ratings);
+        Collections.sort(sorted, BY_TIMESTAMP);
+
+        BinaryRatingDAO dao = BinaryRatingDAO.open(file);
+        assertThat(ObjectStreams.makeList(dao.streamEvents(Rating.class)),
+                   equalTo(sorted));
+        checkIndexes(dao, sorted);
+        // and we should not leave the merge file around
+        assertThat(folder.getRoot().list(), arrayContaining("ratings.pack"));
+    }
+
+    @Test
+    public void testInMemorySort() throws IOException {
+        List<Rating> ratings = randomRatings(new Random(42), 5000, 100, 300);
+
+        File file = folder.newFile("ratings.pack");
+        try (BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.TIMESTAMPS)) {
+            packer.writeRatings(ratings);
+        }
+
+        List<Rating> sorted = new ArrayList<Rating>(ratings);
+        Collections.sort(sorted, BY_TIMESTAMP);
+
+        BinaryRatingDAO dao = BinaryRatingDAO.open(file);
+        assertThat(ObjectStreams.makeList(dao.streamEvents(Rating.class)),
+                   equalTo(sorted));
+        checkIndexes(dao, sorted);
+    }
+
+    @Test
+    public void testUpgradeManyBlocks() throws IOException {
+        // enough ratings to span several I/O buffers
+        int n = 3 * BinaryRatingPacker.IO_BUFFER_SIZE / 16;
+        List<Rating> ratings = new ArrayList<Rating>(n + 1);
+        for (int i = 0; i < n; i++) {
+            ratings.add(Rating.create(i % 1000, i % 777, 0.5 * (1 + i % 10), i));
+        }
+        ratings.add(Rating.create(5, Integer.MAX_VALUE + 100L, 4.0, n));
+
+        File file = folder.newFile("ratings.pack");
+        try (BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.TIMESTAMPS)) {
+            packer.writeRatings(ratings);
+        }
+
+        BinaryRatingDAO dao = BinaryRatingDAO.open(file);
+        assertThat(ObjectStreams.makeList(dao.streamEvents(Rating.class)),
+                   equalTo(ratings));
+        assertThat(dao.getEventsForItem(Integer.MAX_VALUE + 100L, Rating.class),
+                   contains(ratings.get(n)));
+        assertThat(dao.getEventsForUser(5, Rating.class),
+                   hasItem(ratings.get(n)));
+    }
+}
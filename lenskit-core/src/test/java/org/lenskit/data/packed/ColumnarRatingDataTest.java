@@ -0,0 +1,140 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.ratings.Rating;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ColumnarRatingDataTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testVarLongRoundTrip() {
+        long[] values = {0, 1, -1, 63, -64, 64, 127, 128, 300, -300,
+                         Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 10);
+        for (long v: values) {
+            ColumnarRatingData.putVarLong(buf, ColumnarRatingData.zigZag(v));
+        }
+        buf.flip();
+        for (long v: values) {
+            assertThat(ColumnarRatingData.unZigZag(ColumnarRatingData.getVarLong(buf)),
+                       equalTo(v));
+        }
+        assertThat(buf.hasRemaining(), equalTo(false));
+    }
+
+    @Test
+    public void testSmallValuesAreShort() {
+        ByteBuffer buf = ByteBuffer.allocate(10);
+        ColumnarRatingData.putVarLong(buf, ColumnarRatingData.zigZag(-5));
+        assertThat(buf.position(), equalTo(1));
+    }
+
+    @Test
+    public void testBlockRoundTrip() {
+        ColumnarRatingData.Block block = new ColumnarRatingData.Block(4);
+        block.add(Rating.create(42, 105, 3.5, 100L));
+        block.add(Rating.create(42, 120, 2.5, 110L));
+        block.add(Rating.create(39, Integer.MAX_VALUE + 100L, 4.5, 90L));
+        block.add(Rating.createUnrate(39, 120, 120L));
+
+        ByteBuffer buf = ByteBuffer.allocate(block.maxEncodedSize());
+        block.encode(buf, true, null);
+        buf.flip();
+
+        ColumnarRatingData.Block decoded = new ColumnarRatingData.Block(4);
+        decoded.decode(buf, 4, true, null);
+        assertThat(buf.hasRemaining(), equalTo(false));
+        for (int i = 0; i < 4; i++) {
+            assertThat(decoded.getRating(i, true), equalTo(block.getRating(i, true)));
+        }
+        assertThat(decoded.getRating(3, true).hasValue(), equalTo(false));
+    }
+
+    private List<Rating> makeRatings(int n) {
+        List<Rating> ratings = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            ratings.add(Rating.create(i % 37, 1000 + (i * 7) % 101, 0.5 * (1 + i % 10), 10L * i));
+        }
+        return ratings;
+    }
+
+    private ColumnarRatingData encode(List<Rating> ratings) throws IOException {
+        BinaryFormat format = BinaryFormat.create(EnumSet.of(BinaryFormatFlag.TIMESTAMPS,
+                                                             BinaryFormatFlag.COMPRESSED));
+        File file = folder.newFile("ratings.dat");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel chan = raf.getChannel()) {
+            ColumnarRatingData.Encoder encoder =
+                    new ColumnarRatingData.Encoder(format, chan, ratings.size(), null);
+            for (Rating r: ratings) {
+                encoder.add(r);
+            }
+            long size = encoder.finish();
+            SegmentedBuffer buf = SegmentedBuffer.map(chan, 0, size, BinaryFormat.LONG_SIZE);
+            return ColumnarRatingData.create(format, ratings.size(), buf);
+        }
+    }
+
+    @Test
+    public void testScatteredReads() throws IOException {
+        List<Rating> ratings = makeRatings(3000);
+        BinaryRatingData.Reader reader = encode(ratings).newReader();
+        // strides that visit more blocks than the reader caches, then come back to them
+        for (int stride: new int[]{1, 131, 997, 1}) {
+            for (int i = 0; i < ratings.size(); i++) {
+                int pos = (int) ((long) i * stride % ratings.size());
+                assertThat(reader.read(pos), equalTo(ratings.get(pos)));
+            }
+        }
+    }
+
+    @Test
+    public void testTruncateLimitsReads() throws IOException {
+        List<Rating> ratings = makeRatings(300);
+        BinaryRatingData data = encode(ratings);
+        BinaryRatingData.Reader reader = data.truncate(200).newReader();
+        assertThat(reader.read(199), equalTo(ratings.get(199)));
+        try {
+            reader.read(200);
+            fail("reading past the truncated count should fail");
+        } catch (IndexOutOfBoundsException e) {
+            /* expected */
+        }
+        assertThat(data.newReader().read(250), equalTo(ratings.get(250)));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.dao.SortOrder;
+import org.lenskit.data.history.ItemEventCollection;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MaskedBinaryRatingDAOTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private BinaryRatingDAO dao;
+    private List<Rating> ratings;
+
+    @Before
+    public void createDao() throws IOException {
+        ratings = ImmutableList.of(Rating.create(13, 102, 3.5, 1000L),
+                                   Rating.create(39, 105, 3.5, 1000L),
+                                   Rating.create(12, 102, 2.5, 1050L),
+                                   Rating.create(40, 111, 4.5, 1050L),
+                                   Rating.create(13, 111, 4.5, 1200L),
+                                   Rating.create(41, 105, 2.5, 1400L),
+                                   Rating.create(39, 120, 4.5, 1650L),
+                                   Rating.create(12, 120, 4.5, 1650L));
+
+        File file = folder.newFile("ratings.bin");
+        try (BinaryRatingPacker packer = BinaryRatingPacker.open(file, BinaryFormatFlag.TIMESTAMPS)) {
+            packer.writeRatings(ratings);
+        }
+        dao = BinaryRatingDAO.open(file);
+    }
+
+    private static BitSet mask(int... positions) {
+        BitSet mask = new BitSet();
+        for (int p: positions) {
+            mask.set(p);
+        }
+        return mask;
+    }
+
+    @Test
+    public void testPositions() {
+        assertThat(dao.getRatingPositions(), hasSize(8));
+        assertThat(dao.getRatingsAt(dao.getUserRatingPositions(13)),
+                   contains(ratings.get(0), ratings.get(4)));
+        assertThat(dao.getUserRatingPositions(42), nullValue());
+    }
+
+    @Test
+    public void testMaskedView() {
+        BinaryRatingDAO view = dao.createMaskedView(mask(0, 1, 4, 6));
+        assertThat(ObjectStreams.makeList(view.streamEvents(Rating.class)),
+                   contains(ratings.get(0), ratings.get(1), ratings.get(4), ratings.get(6)));
+        assertThat(view.getRatingPositions(), contains(0, 1, 4, 6));
+        assertThat(view.getUserIds(), containsInAnyOrder(13L, 39L));
+        assertThat(view.getItemIds(), containsInAnyOrder(102L, 105L, 111L, 120L));
+        assertThat(view.getEventsForUser(12), nullValue());
+        assertThat(view.getEventsForUser(39, Rating.class),
+                   contains(ratings.get(1), ratings.get(6)));
+        assertThat(view.getEventsForItem(102, Rating.class),
+                   contains(ratings.get(0)));
+        assertThat(view.getUsersForItem(111), contains(13L));
+        // the original is unchanged
+        assertThat(dao.getUserIds(), hasSize(5));
+    }
+
+    @Test
+    public void testMaskedGroupedStreams() {
+        BinaryRatingDAO view = dao.createMaskedView(mask(0, 1, 4, 6));
+
+        // users and items hidden by the mask get no (empty) groups
+        List<UserHistory<Rating>> users = ObjectStreams.makeList(view.streamEventsByUser(Rating.class));
+        assertThat(users, hasSize(2));
+        assertThat(users.get(0).getUserId(), equalTo(13L));
+        assertThat(users.get(0), contains(ratings.get(0), ratings.get(4)));
+        assertThat(users.get(1).getUserId(), equalTo(39L));
+        assertThat(users.get(1), contains(ratings.get(1), ratings.get(6)));
+
+        List<ItemEventCollection<Rating>> items =
+                ObjectStreams.makeList(view.streamEventsByItem(Rating.class));
+        assertThat(items, hasSize(4));
+        for (ItemEventCollection<Rating> item: items) {
+            assertThat(item, hasSize(1));
+        }
+
+        assertThat(ObjectStreams.makeList(view.streamEvents(Rating.class, SortOrder.USER)),
+                   contains(ratings.get(0), ratings.get(4), ratings.get(1), ratings.get(6)));
+
+        // train views of a partition skip the users whose ratings are all held out
+        BinaryRatingDAO train = dao.createMaskedView(mask(0, 2, 3, 4, 5, 7));
+        List<UserHistory<Rating>> trainUsers =
+                ObjectStreams.makeList(train.streamEventsByUser(Rating.class));
+        assertThat(trainUsers, hasSize(4));
+        for (UserHistory<Rating> user: trainUsers) {
+            assertThat(user.getUserId(), not(equalTo(39L)));
+            assertThat(user, not(empty()));
+        }
+    }
+
+    @Test
+    public void testNestedViews() {
+        BinaryRatingDAO view = dao.createMaskedView(mask(0, 1, 4, 6))
+                                  .createMaskedView(mask(1, 2, 6, 7));
+        assertThat(ObjectStreams.makeList(view.streamEvents(Rating.class)),
+                   contains(ratings.get(1), ratings.get(6)));
+        assertThat(view.getUserIds(), contains(39L));
+    }
+
+    @Test
+    public void testWindowedMaskedView() {
+        BinaryRatingDAO view = dao.createMaskedView(mask(0, 3, 5, 6))
+                                  .createWindowedView(1400L);
+        assertThat(ObjectStreams.makeList(view.streamEvents(Rating.class)),
+                   contains(ratings.get(0), ratings.get(3)));
+        assertThat(view.getUserIds(), containsInAnyOrder(13L, 40L));
+    }
+
+    @Test
+    public void testSerializeMaskedView() {
+        BinaryRatingDAO view = dao.createMaskedView(mask(2, 3, 7));
+        BinaryRatingDAO clone = SerializationUtils.clone(view);
+        assertThat(ObjectStreams.makeList(clone.streamEvents(Rating.class)),
+                   contains(ratings.get(2), ratings.get(3), ratings.get(7)));
+        assertThat(clone.getUserIds(), containsInAnyOrder(12L, 40L));
+        assertThat(clone.getEventsForUser(12, Rating.class),
+                   contains(ratings.get(2), ratings.get(7)));
+    }
+
+    @Test
+    public void testPartitionAssignment() throws IOException {
+        PartitionAssignment parts = PartitionAssignment.create(2, 8);
+        parts.setPartition(1, 0);
+        parts.setPartition(6, 0);
+        parts.setPartition(5, 1);
+        Path file = folder.getRoot().toPath().resolve("parts.dat");
+        parts.write(file);
+
+        PartitionAssignment read = PartitionAssignment.read(file);
+        assertThat(read.getPartitionCount(), equalTo(2));
+        assertThat(read.size(), equalTo(8));
+        assertThat(read.getPartition(0), equalTo(-1));
+        assertThat(read.getPartition(6), equalTo(0));
+        assertThat(read.getPositions(0), equalTo(mask(1, 6)));
+
+        BinaryRatingDAO train = dao.createMaskedView(read.getOtherPositions(0));
+        BinaryRatingDAO test = dao.createMaskedView(read.getPositions(0));
+        assertThat(test.getUserIds(), contains(39L));
+        assertThat(ObjectStreams.makeList(train.streamEvents()), hasSize(6));
+        assertThat(train.getEventsForUser(39), nullValue());
+    }
+}
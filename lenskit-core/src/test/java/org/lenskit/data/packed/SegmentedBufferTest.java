@@ -0,0 +1,121 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.data.packed;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class SegmentedBufferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAlignedSegmentSize() {
+        assertThat(SegmentedBuffer.alignedSegmentSize(4, 64), equalTo(64));
+        assertThat(SegmentedBuffer.alignedSegmentSize(24, 64), equalTo(48));
+        assertThat(SegmentedBuffer.alignedSegmentSize(24, 24), equalTo(24));
+    }
+
+    @Test
+    public void testWrapEmpty() {
+        SegmentedBuffer buf = SegmentedBuffer.wrap(ByteBuffer.allocate(0));
+        assertThat(buf.size(), equalTo(0L));
+        assertThat(buf.getSegmentCount(), equalTo(1));
+    }
+
+    @Test
+    public void testWrap() {
+        ByteBuffer bytes = ByteBuffer.allocate(24);
+        bytes.putInt(7).putLong(42).putInt(-3);
+        bytes.position(4);
+        SegmentedBuffer buf = SegmentedBuffer.wrap(bytes);
+        assertThat(buf.size(), equalTo(20L));
+        assertThat(buf.getLong(0), equalTo(42L));
+        assertThat(buf.getInt(8), equalTo(-3));
+    }
+
+    @Test
+    public void testMapSegments() throws IOException {
+        File file = folder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel chan = raf.getChannel();
+            ByteBuffer out = ByteBuffer.allocate(8 + 12 * 10);
+            out.putLong(-1);
+            for (int i = 0; i < 10; i++) {
+                out.putLong(i * 100L).putInt(i);
+            }
+            out.flip();
+            BinaryUtils.writeBuffer(chan, out);
+
+            // 12-byte records in segments of at most 40 bytes: 3 records per segment
+            SegmentedBuffer buf = SegmentedBuffer.map(chan, 8, 120, 12, 40);
+            assertThat(buf.size(), equalTo(120L));
+            assertThat(buf.getSegmentSize(), equalTo(36));
+            assertThat(buf.getSegmentCount(), equalTo(4));
+            for (int i = 0; i < 10; i++) {
+                assertThat(buf.getLong(i * 12L), equalTo(i * 100L));
+                assertThat(buf.getInt(i * 12L + 8), equalTo(i));
+            }
+
+            ByteBuffer[] segs = buf.duplicateSegments();
+            assertThat(segs.length, equalTo(4));
+            assertThat(segs[3].remaining(), equalTo(12));
+            segs[0].position(12);
+            assertThat(buf.duplicateSegments()[0].position(), equalTo(0));
+
+            SegmentedBuffer prefix = buf.truncate(48);
+            assertThat(prefix.size(), equalTo(48L));
+            assertThat(prefix.getSegmentCount(), equalTo(2));
+            assertThat(prefix.duplicateSegments()[1].remaining(), equalTo(12));
+            assertThat(prefix.getLong(36), equalTo(300L));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMapPastEnd() throws IOException {
+        File file = folder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            SegmentedBuffer.map(raf.getChannel(), 0, 16, 4);
+        }
+    }
+
+    @Test
+    public void testAllocateDirect() {
+        SegmentedBuffer buf = SegmentedBuffer.allocateDirect(16, 4);
+        for (ByteBuffer seg: buf.duplicateSegments()) {
+            while (seg.hasRemaining()) {
+                seg.putInt(seg.position());
+            }
+        }
+        assertThat(buf.getInt(0), equalTo(0));
+        assertThat(buf.getInt(12), equalTo(12));
+    }
+}
@@ -496,13 +496,7 @@ public abstract class SparseVector implements Iterable<VectorEntry>, Serializabl
      * @return The L2 norm of the vector
      */
     public double norm() {
-        double ssq = 0;
-        DoubleIterator iter = values().iterator();
-        while (iter.hasNext()) {
-            double v = iter.nextDouble();
-            ssq += v * v;
-        }
-        return Math.sqrt(ssq);
+        return Math.sqrt(VectorKernels.sumOfSquares(this));
     }
 
     /**
@@ -562,59 +556,7 @@ public abstract class SparseVector implements Iterable<VectorEntry>, Serializabl
      * @return The dot (inner) product between this vector and <var>o</var>.
      */
     public double dot(SparseVector o) {
-        if (keys.isCompletelySet() && o.keys.isCompletelySet()) {
-            return fastDotProduct(o);
-        } else {
-            return slowDotProduct(o);
-        }
-    }
-
-    private double fastDotProduct(SparseVector o) {
-        double dot = 0;
-
-        int sz1 = keys.domainSize();
-        int sz2 = o.keys.domainSize();
-
-        int i1 = 0, i2 = 0;
-        while (i1 < sz1 && i2 < sz2) {
-            final long k1 = keys.getKey(i1);
-            final long k2 = o.keys.getKey(i2);
-            if (k1 < k2) {
-                i1++;
-            } else if (k2 < k1) {
-                i2++;
-            } else {
-                dot += values[i1] * o.values[i2];
-                i1++;
-                i2++;
-            }
-        }
-        return dot;
-    }
-
-    private double slowDotProduct(SparseVector o) {
-        // FIXME This code was tested, but no longer is.  Add relevant tests.
-        double dot = 0;
-        Iterator<VectorEntry> i1 = iterator();
-        Iterator<VectorEntry> i2 = o.iterator();
-
-        VectorEntry e1 = i1.hasNext() ? i1.next() : null;
-        VectorEntry e2 = i2.hasNext() ? i2.next() : null;
-
-        while (e1 != null && e2 != null) {
-            final long k1 = e1.getKey();
-            final long k2 = e2.getKey();
-            if (k1 < k2) {
-                e1 = i1.hasNext() ? i1.next() : null;
-            } else if (k2 < k1) {
-                e2 = i2.hasNext() ? i2.next() : null;
-            } else {
-                dot += e1.getValue() * e2.getValue();
-                e1 = i1.hasNext() ? i1.next() : null;
-                e2 = i2.hasNext() ? i2.next() : null;
-            }
-        }
-        return dot;
+        return VectorKernels.dot(this, o);
     }
 
     /**
@@ -624,27 +566,7 @@ public abstract class SparseVector implements Iterable<VectorEntry>, Serializabl
      * @return The number of keys appearing in both this and the other vector.
      */
     public int countCommonKeys(SparseVector o) {
-        int count = 0;
-        Iterator<VectorEntry> i1 = iterator();
-        Iterator<VectorEntry> i2 = o.iterator();
-
-        VectorEntry e1 = i1.hasNext() ? i1.next() : null;
-        VectorEntry e2 = i2.hasNext() ? i2.next() : null;
-
-        while (e1 != null && e2 != null) {
-            final long k1 = e1.getKey();
-            final long k2 = e2.getKey();
-            if (k1 < k2) {
-                e1 = i1.hasNext() ? i1.next() : null;
-            } else if (k2 < k1) {
-                e2 = i2.hasNext() ? i2.next() : null;
-            } else {
-                count += 1;
-                e1 = i1.hasNext() ? i1.next() : null;
-                e2 = i2.hasNext() ? i2.next() : null;
-            }
-        }
-        return count;
+        return VectorKernels.countCommonKeys(this, o);
     }
 
     /**
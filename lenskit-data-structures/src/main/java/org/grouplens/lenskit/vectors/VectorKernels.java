@@ -0,0 +1,334 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.vectors;
+
+import org.grouplens.lenskit.collections.LongKeyDomain;
+
+import java.util.BitSet;
+
+/**
+ * Primitive merge-join kernels over the sorted key and value arrays backing sparse vectors.
+ *
+ * <p>These methods walk the two vectors' key domains directly, with no entry objects or
+ * iterators, and compute everything they report in a single pass.  They are the building
+ * blocks for vector similarity functions, which call them for every pair of vectors they
+ * compare.  Methods that gather values write into caller-supplied arrays so that callers can
+ * reuse scratch space across calls.
+ *
+ * <p>All results are accumulated in key order, so they are identical to the corresponding
+ * entry-based computations.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public final class VectorKernels {
+    /**
+     * Index of the dot product in the output of {@link #dotAndSquares(SparseVector, SparseVector, double[])}.
+     */
+    public static final int DOT = 0;
+    /**
+     * Index of the left sum of squares in the output of
+     * {@link #dotAndSquares(SparseVector, SparseVector, double[])}.
+     */
+    public static final int LEFT_SQUARES = 1;
+    /**
+     * Index of the right sum of squares in the output of
+     * {@link #dotAndSquares(SparseVector, SparseVector, double[])}.
+     */
+    public static final int RIGHT_SQUARES = 2;
+
+    private VectorKernels() {}
+
+    /**
+     * Get the first active index of a key domain.
+     */
+    private static int first(BitSet mask, boolean full, int size) {
+        if (full) {
+            return size > 0 ? 0 : -1;
+        } else {
+            int n = mask.nextSetBit(0);
+            return n < size ? n : -1;
+        }
+    }
+
+    /**
+     * Get the active index after {@code i}, or a negative value if there is none.
+     */
+    private static int next(BitSet mask, boolean full, int size, int i) {
+        if (full) {
+            return i + 1 < size ? i + 1 : -1;
+        } else {
+            int n = mask.nextSetBit(i + 1);
+            return n < size ? n : -1;
+        }
+    }
+
+    /**
+     * Count the keys two vectors have in common.
+     *
+     * @param v1 The left vector.
+     * @param v2 The right vector.
+     * @return The number of keys set in both vectors.
+     */
+    public static int countCommonKeys(SparseVector v1, SparseVector v2) {
+        final LongKeyDomain d1 = v1.keys, d2 = v2.keys;
+        final BitSet m1 = d1.getActiveMask(), m2 = d2.getActiveMask();
+        final boolean f1 = d1.isCompletelySet(), f2 = d2.isCompletelySet();
+        final int n1 = d1.domainSize(), n2 = d2.domainSize();
+
+        int count = 0;
+        int i1 = first(m1, f1, n1);
+        int i2 = first(m2, f2, n2);
+        while (i1 >= 0 && i2 >= 0) {
+            final long k1 = d1.getKey(i1);
+            final long k2 = d2.getKey(i2);
+            if (k1 < k2) {
+                i1 = next(m1, f1, n1, i1);
+            } else if (k2 < k1) {
+                i2 = next(m2, f2, n2, i2);
+            } else {
+                count += 1;
+                i1 = next(m1, f1, n1, i1);
+                i2 = next(m2, f2, n2, i2);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Compute the dot product of two vectors.
+     *
+     * @param v1 The left vector.
+     * @param v2 The right vector.
+     * @return The dot product of the two vectors.
+     */
+    public static double dot(SparseVector v1, SparseVector v2) {
+        final LongKeyDomain d1 = v1.keys, d2 = v2.keys;
+        final BitSet m1 = d1.getActiveMask(), m2 = d2.getActiveMask();
+        final boolean f1 = d1.isCompletelySet(), f2 = d2.isCompletelySet();
+        final int n1 = d1.domainSize(), n2 = d2.domainSize();
+        final double[] x1 = v1.values, x2 = v2.values;
+
+        double dot = 0;
+        int i1 = first(m1, f1, n1);
+        int i2 = first(m2, f2, n2);
+        while (i1 >= 0 && i2 >= 0) {
+            final long k1 = d1.getKey(i1);
+            final long k2 = d2.getKey(i2);
+            if (k1 < k2) {
+                i1 = next(m1, f1, n1, i1);
+            } else if (k2 < k1) {
+                i2 = next(m2, f2, n2, i2);
+            } else {
+                dot += x1[i1] * x2[i2];
+                i1 = next(m1, f1, n1, i1);
+                i2 = next(m2, f2, n2, i2);
+            }
+        }
+        return dot;
+    }
+
+    /**
+     * Compute the sum of the squares of a vector's values.
+     *
+     * @param v The vector.
+     * @return The sum of squares (the square of the L2 norm).
+     */
+    public static double sumOfSquares(SparseVector v) {
+        final LongKeyDomain d = v.keys;
+        final BitSet m = d.getActiveMask();
+        final boolean f = d.isCompletelySet();
+        final int n = d.domainSize();
+        final double[] x = v.values;
+
+        double ssq = 0;
+        for (int i = first(m, f, n); i >= 0; i = next(m, f, n, i)) {
+            ssq += x[i] * x[i];
+        }
+        return ssq;
+    }
+
+    /**
+     * Compute the dot product of two vectors along with the sum of squares of each, in one
+     * pass.  This provides all the statistics needed for cosine similarity.
+     *
+     * @param v1  The left vector.
+     * @param v2  The right vector.
+     * @param out An array of length at least 3 to receive the dot product and the left and
+     *            right sums of squares, at indexes {@link #DOT}, {@link #LEFT_SQUARES}, and
+     *            {@link #RIGHT_SQUARES}.
+     * @return The number of keys set in both vectors.
+     */
+    public static int dotAndSquares(SparseVector v1, SparseVector v2, double[] out) {
+        final LongKeyDomain d1 = v1.keys, d2 = v2.keys;
+        final BitSet m1 = d1.getActiveMask(), m2 = d2.getActiveMask();
+        final boolean f1 = d1.isCompletelySet(), f2 = d2.isCompletelySet();
+        final int n1 = d1.domainSize(), n2 = d2.domainSize();
+        final double[] x1 = v1.values, x2 = v2.values;
+
+        double dot = 0, ss1 = 0, ss2 = 0;
+        int count = 0;
+        int i1 = first(m1, f1, n1);
+        int i2 = first(m2, f2, n2);
+        while (i1 >= 0 && i2 >= 0) {
+            final long k1 = d1.getKey(i1);
+            final long k2 = d2.getKey(i2);
+            if (k1 < k2) {
+                ss1 += x1[i1] * x1[i1];
+                i1 = next(m1, f1, n1, i1);
+            } else if (k2 < k1) {
+                ss2 += x2[i2] * x2[i2];
+                i2 = next(m2, f2, n2, i2);
+            } else {
+                final double a = x1[i1], b = x2[i2];
+                dot += a * b;
+                ss1 += a * a;
+                ss2 += b * b;
+                count += 1;
+                i1 = next(m1, f1, n1, i1);
+                i2 = next(m2, f2, n2, i2);
+            }
+        }
+        // finish off whichever vector has entries left
+        for (; i1 >= 0; i1 = next(m1, f1, n1, i1)) {
+            ss1 += x1[i1] * x1[i1];
+        }
+        for (; i2 >= 0; i2 = next(m2, f2, n2, i2)) {
+            ss2 += x2[i2] * x2[i2];
+        }
+
+        out[DOT] = dot;
+        out[LEFT_SQUARES] = ss1;
+        out[RIGHT_SQUARES] = ss2;
+        return count;
+    }
+
+    /**
+     * Copy the values of a vector, in key order, into an array.
+     *
+     * @param v   The vector.
+     * @param out The output array; it must be at least as long as the vector's size.
+     * @return The number of values copied (the size of the vector).
+     */
+    public static int copyValues(SparseVector v, double[] out) {
+        final LongKeyDomain d = v.keys;
+        final BitSet m = d.getActiveMask();
+        final boolean f = d.isCompletelySet();
+        final int n = d.domainSize();
+        final double[] x = v.values;
+
+        int j = 0;
+        for (int i = first(m, f, n); i >= 0; i = next(m, f, n, i)) {
+            out[j++] = x[i];
+        }
+        return j;
+    }
+
+    /**
+     * Gather the values of the keys two vectors have in common.  After this method returns
+     * {@code n}, the first {@code n} entries of {@code out1} and {@code out2} are the two
+     * vectors' values for their common keys, in key order.
+     *
+     * @param v1   The left vector.
+     * @param v2   The right vector.
+     * @param out1 The array to receive left values; it must be at least as long as the smaller
+     *             of the two vectors.
+     * @param out2 The array to receive right values; same requirements as {@code out1}.
+     * @return The number of common keys.
+     */
+    public static int gatherCommonValues(SparseVector v1, SparseVector v2,
+                                         double[] out1, double[] out2) {
+        final LongKeyDomain d1 = v1.keys, d2 = v2.keys;
+        final BitSet m1 = d1.getActiveMask(), m2 = d2.getActiveMask();
+        final boolean f1 = d1.isCompletelySet(), f2 = d2.isCompletelySet();
+        final int n1 = d1.domainSize(), n2 = d2.domainSize();
+        final double[] x1 = v1.values, x2 = v2.values;
+
+        int count = 0;
+        int i1 = first(m1, f1, n1);
+        int i2 = first(m2, f2, n2);
+        while (i1 >= 0 && i2 >= 0) {
+            final long k1 = d1.getKey(i1);
+            final long k2 = d2.getKey(i2);
+            if (k1 < k2) {
+                i1 = next(m1, f1, n1, i1);
+            } else if (k2 < k1) {
+                i2 = next(m2, f2, n2, i2);
+            } else {
+                out1[count] = x1[i1];
+                out2[count] = x2[i2];
+                count += 1;
+                i1 = next(m1, f1, n1, i1);
+                i2 = next(m2, f2, n2, i2);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gather substitute values for the keys two vectors have in common.  This works like
+     * {@link #gatherCommonValues(SparseVector, SparseVector, double[], double[])}, except that
+     * it reads values from the arrays {@code vals1} and {@code vals2} instead of the vectors.
+     * These arrays are in key order, as produced by {@link #copyValues(SparseVector, double[])}:
+     * element <em>j</em> corresponds to the vector's <em>j</em>th key.  This supports
+     * computations over transformed values, such as ranks.
+     *
+     * @param v1    The left vector.
+     * @param vals1 The values to use for the left vector, in key order.
+     * @param v2    The right vector.
+     * @param vals2 The values to use for the right vector, in key order.
+     * @param out1  The array to receive left values.
+     * @param out2  The array to receive right values.
+     * @return The number of common keys.
+     */
+    public static int gatherCommonValues(SparseVector v1, double[] vals1,
+                                         SparseVector v2, double[] vals2,
+                                         double[] out1, double[] out2) {
+        final LongKeyDomain d1 = v1.keys, d2 = v2.keys;
+        final BitSet m1 = d1.getActiveMask(), m2 = d2.getActiveMask();
+        final boolean f1 = d1.isCompletelySet(), f2 = d2.isCompletelySet();
+        final int n1 = d1.domainSize(), n2 = d2.domainSize();
+
+        int count = 0;
+        // j1 and j2 track the positions of i1 and i2 among the active keys
+        int i1 = first(m1, f1, n1), j1 = 0;
+        int i2 = first(m2, f2, n2), j2 = 0;
+        while (i1 >= 0 && i2 >= 0) {
+            final long k1 = d1.getKey(i1);
+            final long k2 = d2.getKey(i2);
+            if (k1 < k2) {
+                i1 = next(m1, f1, n1, i1);
+                j1++;
+            } else if (k2 < k1) {
+                i2 = next(m2, f2, n2, i2);
+                j2++;
+            } else {
+                out1[count] = vals1[j1];
+                out2[count] = vals2[j2];
+                count += 1;
+                i1 = next(m1, f1, n1, i1);
+                j1++;
+                i2 = next(m2, f2, n2, i2);
+                j2++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.grouplens.lenskit.vectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class VectorKernelsTest {
+    private static final double EPSILON = 1.0e-10;
+
+    private static MutableSparseVector vector(long[] keys, double[] values) {
+        return MutableSparseVector.wrap(keys, values);
+    }
+
+    /**
+     * Make a random vector, with some keys in its domain left unset.
+     */
+    private static MutableSparseVector randomVector(Random rng, int domain, int size) {
+        long[] keys = new long[size];
+        double[] values = new double[size];
+        long k = 0;
+        for (int i = 0; i < size; i++) {
+            k += 1 + rng.nextInt(domain / size + 1);
+            keys[i] = k;
+            values[i] = rng.nextGaussian();
+        }
+        MutableSparseVector v = MutableSparseVector.wrap(keys, values);
+        for (int i = 0; i < size; i++) {
+            if (rng.nextInt(5) == 0) {
+                v.unset(keys[i]);
+            }
+        }
+        return v;
+    }
+
+    @Test
+    public void testEmpty() {
+        SparseVector e = MutableSparseVector.create();
+        SparseVector v = vector(new long[]{1, 2}, new double[]{3, 4});
+        double[] stats = new double[3];
+        assertThat(VectorKernels.countCommonKeys(e, v), equalTo(0));
+        assertThat(VectorKernels.dot(v, e), equalTo(0.0));
+        assertThat(VectorKernels.dotAndSquares(e, v, stats), equalTo(0));
+        assertThat(stats[VectorKernels.DOT], equalTo(0.0));
+        assertThat(stats[VectorKernels.LEFT_SQUARES], equalTo(0.0));
+        assertThat(stats[VectorKernels.RIGHT_SQUARES], closeTo(25, EPSILON));
+        assertThat(VectorKernels.sumOfSquares(e), equalTo(0.0));
+    }
+
+    @Test
+    public void testSimpleVectors() {
+        SparseVector v1 = vector(new long[]{1, 3, 5, 7}, new double[]{1, 2, 3, 4});
+        SparseVector v2 = vector(new long[]{2, 3, 4, 7, 9}, new double[]{5, 6, 7, 8, 9});
+        double[] stats = new double[3];
+        assertThat(VectorKernels.countCommonKeys(v1, v2), equalTo(2));
+        assertThat(VectorKernels.dot(v1, v2), closeTo(2 * 6 + 4 * 8, EPSILON));
+        assertThat(VectorKernels.dotAndSquares(v1, v2, stats), equalTo(2));
+        assertThat(stats[VectorKernels.DOT], closeTo(44, EPSILON));
+        assertThat(stats[VectorKernels.LEFT_SQUARES], closeTo(30, EPSILON));
+        assertThat(stats[VectorKernels.RIGHT_SQUARES], closeTo(255, EPSILON));
+
+        double[] out1 = new double[4];
+        double[] out2 = new double[4];
+        assertThat(VectorKernels.gatherCommonValues(v1, v2, out1, out2), equalTo(2));
+        assertThat(out1[0], equalTo(2.0));
+        assertThat(out1[1], equalTo(4.0));
+        assertThat(out2[0], equalTo(6.0));
+        assertThat(out2[1], equalTo(8.0));
+    }
+
+    @Test
+    public void testSubstituteValues() {
+        MutableSparseVector v1 = vector(new long[]{1, 3, 5, 7}, new double[]{1, 2, 3, 4});
+        v1.unset(3);
+        SparseVector v2 = vector(new long[]{2, 5, 7}, new double[]{5, 6, 7});
+        double[] vals1 = new double[3];
+        double[] vals2 = new double[3];
+        assertThat(VectorKernels.copyValues(v1, vals1), equalTo(3));
+        assertThat(vals1[1], equalTo(3.0));
+        for (int i = 0; i < 3; i++) {
+            vals1[i] = 10 + i;
+            vals2[i] = 20 + i;
+        }
+        double[] out1 = new double[3];
+        double[] out2 = new double[3];
+        assertThat(VectorKernels.gatherCommonValues(v1, vals1, v2, vals2, out1, out2),
+                   equalTo(2));
+        // keys 5 and 7 are the 2nd and 3rd set keys of v1, and the 2nd and 3rd keys of v2
+        assertThat(out1[0], equalTo(11.0));
+        assertThat(out1[1], equalTo(12.0));
+        assertThat(out2[0], equalTo(21.0));
+        assertThat(out2[1], equalTo(22.0));
+    }
+
+    @Test
+    public void testMatchesEntryIteration() {
+        Random rng = new Random(42);
+        double[] stats = new double[3];
+        double[] out1 = new double[100];
+        double[] out2 = new double[100];
+        for (int trial = 0; trial < 100; trial++) {
+            SparseVector v1 = randomVector(rng, 200, 1 + rng.nextInt(100));
+            SparseVector v2 = randomVector(rng, 200, 1 + rng.nextInt(100));
+
+            int count = 0;
+            double dot = 0;
+            for (Pair<VectorEntry,VectorEntry> p: Vectors.fastIntersect(v1, v2)) {
+                dot += p.getLeft().getValue() * p.getRight().getValue();
+                count += 1;
+            }
+            double ss1 = 0;
+            for (VectorEntry e: v1) {
+                ss1 += e.getValue() * e.getValue();
+            }
+            double ss2 = 0;
+            for (VectorEntry e: v2) {
+                ss2 += e.getValue() * e.getValue();
+            }
+
+            assertThat(VectorKernels.countCommonKeys(v1, v2), equalTo(count));
+            assertThat(VectorKernels.dot(v1, v2), closeTo(dot, EPSILON));
+            assertThat(VectorKernels.dotAndSquares(v1, v2, stats), equalTo(count));
+            assertThat(stats[VectorKernels.DOT], closeTo(dot, EPSILON));
+            assertThat(stats[VectorKernels.LEFT_SQUARES], closeTo(ss1, EPSILON));
+            assertThat(stats[VectorKernels.RIGHT_SQUARES], closeTo(ss2, EPSILON));
+            assertThat(VectorKernels.sumOfSquares(v1), closeTo(ss1, EPSILON));
+
+            assertThat(VectorKernels.gatherCommonValues(v1, v2, out1, out2), equalTo(count));
+            int i = 0;
+            for (Pair<VectorEntry,VectorEntry> p: Vectors.fastIntersect(v1, v2)) {
+                assertThat(out1[i], equalTo(p.getLeft().getValue()));
+                assertThat(out2[i], equalTo(p.getRight().getValue()));
+                i++;
+            }
+        }
+    }
+}
@@ -37,20 +37,32 @@ class CrossfoldOutput implements Closeable {
     private final Random random;
     private final Closer closer;
     private final int count;
-    private final List<RatingWriter> trainWriters, testWriters;
+    private final int threadCount;
+    private final List<PartitionWriter> writers;
 
     public CrossfoldOutput(Crossfolder cf, Random rng) throws IOException {
         random = rng;
         closer = Closer.create();
         count = cf.getPartitionCount();
-        trainWriters = Lists.newArrayListWithCapacity(count);
-        testWriters = Lists.newArrayListWithCapacity(count);
+        threadCount = cf.getThreadCount();
+        writers = Lists.newArrayListWithCapacity(count);
+        List<Path> trainFiles = cf.getTrainingFiles();
+        List<Path> testFiles = cf.getTestFiles();
         try {
-            for (Path path: cf.getTrainingFiles()) {
-                trainWriters.add(closer.register(cf.openWriter(path)));
-            }
-            for (Path path: cf.getTestFiles()) {
-                testWriters.add(closer.register(cf.openWriter(path)));
+            for (int i = 0; i < count; i++) {
+                // register each writer until its partition writer owns it
+                Closer pc = Closer.create();
+                try {
+                    RatingWriter train = pc.register(cf.openWriter(trainFiles.get(i)));
+                    RatingWriter test = pc.register(cf.openWriter(testFiles.get(i)));
+                    writers.add(closer.register(new PartitionWriter(Integer.toString(i + 1), train, test)));
+                } catch (Throwable th) {
+                    try {
+                        throw pc.rethrow(th);
+                    } finally {
+                        pc.close();
+                    }
+                }
             }
         } catch (Exception ex) {
             // this funny logic is needed to make the closer add any close exceptions as suppressed exceptions
@@ -76,12 +88,32 @@ class CrossfoldOutput implements Closeable {
         return count;
     }
 
+    /**
+     * Get the number of threads to use for splitting data.
+     * @return The number of worker threads.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Get the training data writer for a partition.  The writers only queue ratings for the
+     * partition's writer thread, so they must all be used from a single thread.
+     * @param i The partition number.
+     * @return The training data writer.
+     */
     public RatingWriter getTrainWriter(int i) {
-        return trainWriters.get(i);
+        return writers.get(i).getTrainWriter();
     }
 
+    /**
+     * Get the test data writer for a partition.
+     * @param i The partition number.
+     * @return The test data writer.
+     * @see #getTrainWriter(int)
+     */
     public RatingWriter getTestWriter(int i) {
-        return testWriters.get(i);
+        return writers.get(i).getTestWriter();
     }
 
     @Override
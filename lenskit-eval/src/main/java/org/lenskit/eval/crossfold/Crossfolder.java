@@ -20,14 +20,19 @@
  */
 package org.lenskit.eval.crossfold;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import org.lenskit.data.packed.BinaryFormatFlag;
+import org.lenskit.data.packed.BinaryRatingDAO;
+import org.lenskit.data.packed.PartitionAssignment;
+import org.lenskit.data.ratings.Rating;
 import org.grouplens.lenskit.data.source.CSVDataSourceBuilder;
 import org.grouplens.lenskit.data.source.DataSource;
 import org.grouplens.lenskit.data.source.PackedDataSourceBuilder;
 import org.lenskit.data.output.RatingWriter;
 import org.lenskit.data.output.RatingWriters;
 import org.grouplens.lenskit.util.io.UpToDateChecker;
+import org.lenskit.util.io.ObjectStream;
 import org.lenskit.eval.traintest.DataSet;
 import org.lenskit.eval.traintest.DataSetBuilder;
 import org.lenskit.specs.SpecUtils;
@@ -63,6 +68,7 @@ public class Crossfolder {
     private CrossfoldMethod method = CrossfoldMethods.partitionUsers(SortOrder.RANDOM, HistoryPartitions.holdout(10));
     private boolean isolate = false;
     private boolean writeTimestamps = true;
+    private int threadCount = 1;
 
     public Crossfolder() {
         this(null);
@@ -140,7 +146,10 @@ public class Crossfolder {
     }
 
     /**
-     * Set the output format for the crossfolder.
+     * Set the output format for the crossfolder.  With {@link OutputFormat#VIRTUAL_PACK}, the
+     * input is packed once and the partitions are views of the packed file; this requires one of
+     * the built-in crossfold methods.
+     *
      * @param format The output format.
      * @return The crossfolder (for chaining).
      */
@@ -264,6 +273,42 @@ public class Crossfolder {
         return writeTimestamps;
     }
 
+    /**
+     * Set the random seed for crossfolding.  With a fixed seed, the crossfolder produces the same
+     * partitions from the same data, regardless of the number of threads it uses.
+     * @param seed The random seed.
+     * @return The crossfolder (for chaining).
+     */
+    public Crossfolder setRandomSeed(long seed) {
+        rng = new Random(seed);
+        return this;
+    }
+
+    /**
+     * Set the number of threads to use for splitting users' histories.  Each partition is also
+     * written by its own thread, independent of this setting.  The default is 1; more threads
+     * only help when the crossfold method is expensive relative to reading the input.
+     * @param n The number of threads, or 0 to use one thread per available processor.
+     * @return The crossfolder (for chaining).
+     */
+    public Crossfolder setThreadCount(int n) {
+        Preconditions.checkArgument(n >= 0, "thread count cannot be negative");
+        threadCount = n;
+        return this;
+    }
+
+    /**
+     * Get the number of threads to use for splitting users' histories.
+     * @return The number of threads.
+     */
+    public int getThreadCount() {
+        if (threadCount > 0) {
+            return threadCount;
+        } else {
+            return Runtime.getRuntime().availableProcessors();
+        }
+    }
+
     /**
      * Get the visible name of this crossfold split.
      *
@@ -319,7 +364,7 @@ public class Crossfolder {
         if (skipIfUpToDate) {
             UpToDateChecker check = new UpToDateChecker();
             check.addInput(source.lastModified());
-            for (Path p: Iterables.concat(getTrainingFiles(), getTestFiles(), getSpecFiles())) {
+            for (Path p: Iterables.concat(getDataFiles(), getSpecFiles())) {
                 check.addOutput(p.toFile());
             }
             if (check.isUpToDate()) {
@@ -335,6 +380,37 @@ public class Crossfolder {
         }
     }
 
+    /**
+     * Get the data files this crossfolder writes.
+     */
+    List<Path> getDataFiles() {
+        if (isVirtual()) {
+            return Arrays.asList(getPackFile(), getPartitionFile());
+        } else {
+            List<Path> files = new ArrayList<>(getTrainingFiles());
+            files.addAll(getTestFiles());
+            return files;
+        }
+    }
+
+    private boolean isVirtual() {
+        return outputFormat.equals(OutputFormat.VIRTUAL_PACK);
+    }
+
+    /**
+     * Get the packed rating file for virtual partitions.
+     */
+    Path getPackFile() {
+        return getOutputDir().resolve("ratings.pack");
+    }
+
+    /**
+     * Get the partition assignment file for virtual partitions.
+     */
+    Path getPartitionFile() {
+        return getOutputDir().resolve("partitions.dat");
+    }
+
     List<Path> getTrainingFiles() {
         return getFileList("part%02d.train." + getOutputSuffix());
     }
@@ -356,6 +432,7 @@ public class Crossfolder {
         case CSV_XZ:
             return "csv.xz";
         case PACK:
+        case VIRTUAL_PACK:
             return "pack";
         default:
             throw new IllegalArgumentException("invalid output format");
@@ -376,9 +453,13 @@ public class Crossfolder {
      * @throws IOException if there is an error writing the files.
      */
     private void createTTFiles() throws IOException {
-        Files.createDirectories(outputDir);
-        try (CrossfoldOutput out = new CrossfoldOutput(this, rng)) {
-            method.crossfold(source, out);
+        Files.createDirectories(getOutputDir());
+        if (isVirtual()) {
+            createVirtualPartitions();
+        } else {
+            try (CrossfoldOutput out = new CrossfoldOutput(this, rng)) {
+                method.crossfold(source, out);
+            }
         }
 
         List<Path> specFiles = getSpecFiles();
@@ -397,6 +478,29 @@ public class Crossfolder {
         SpecUtils.write(specs, fullSpecFile);
     }
 
+    /**
+     * Pack the input data and write the assignment of its ratings to test partitions.
+     *
+     * @throws IOException if there is an error writing the files.
+     */
+    private void createVirtualPartitions() throws IOException {
+        if (!(method instanceof VirtualCrossfoldMethod)) {
+            throw new UnsupportedOperationException("crossfold method " + method + " does not support virtual partitions");
+        }
+        Path packFile = getPackFile();
+        logger.info("packing {} to {}", source.getName(), packFile);
+        try (RatingWriter writer = openWriter(packFile);
+             ObjectStream<Rating> ratings = source.getEventDAO().streamEvents(Rating.class)) {
+            for (Rating r: ratings) {
+                writer.writeRating(r);
+            }
+        }
+
+        BinaryRatingDAO data = BinaryRatingDAO.open(packFile.toFile());
+        PartitionAssignment parts = ((VirtualCrossfoldMethod) method).assignPartitions(data, partitionCount, rng);
+        parts.write(getPartitionFile());
+    }
+
     /**
      * Get the train-test splits as data sets.
      * 
@@ -412,9 +516,14 @@ public class Crossfolder {
                 dsb.setIsolationGroup(UUID.randomUUID());
             }
 
-            dataSets.add(dsb.setTest(makeDataSource(testFiles.get(i)))
-                            .setTrain(makeDataSource(trainFiles.get(i)))
-                            .setAttribute("DataSet", getName())
+            if (isVirtual()) {
+                dsb.setTest(makePartitionSource(i, false))
+                   .setTrain(makePartitionSource(i, true));
+            } else {
+                dsb.setTest(makeDataSource(testFiles.get(i)))
+                   .setTrain(makeDataSource(trainFiles.get(i)));
+            }
+            dataSets.add(dsb.setAttribute("DataSet", getName())
                             .setAttribute("Partition", i)
                             .build());
         }
@@ -422,7 +531,7 @@ public class Crossfolder {
     }
 
     RatingWriter openWriter(Path file) throws IOException {
-        if (outputFormat.equals(OutputFormat.PACK)) {
+        if (outputFormat.equals(OutputFormat.PACK) || isVirtual()) {
             EnumSet<BinaryFormatFlag> flags = BinaryFormatFlag.makeSet();
             if (writeTimestamps) {
                 flags.add(BinaryFormatFlag.TIMESTAMPS);
@@ -450,6 +559,24 @@ public class Crossfolder {
         }
     }
 
+    /**
+     * Make a data source for one side of a virtual partition.
+     *
+     * @param part The partition number.
+     * @param train {@code true} for the training data, {@code false} for the test data.
+     * @return The data source, a view of the packed file.
+     */
+    protected DataSource makePartitionSource(int part, boolean train) {
+        return new PackedDataSourceBuilder()
+                .setName(String.format("%s.%d.%s", getName(), part, train ? "train" : "test"))
+                .setDomain(source.getPreferenceDomain())
+                .setFile(getPackFile().toFile())
+                .setPartitionFile(getPartitionFile().toFile())
+                .setPartition(part)
+                .setExcludePartition(train)
+                .build();
+    }
+
     @Override
     public String toString() {
         return String.format("{CXManager %s}", source);
@@ -0,0 +1,204 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.eval.crossfold;
+
+import com.google.common.io.Closer;
+import org.lenskit.data.output.RatingWriter;
+import org.lenskit.data.ratings.Rating;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the training and test data of one crossfold partition on a thread of its own.  The
+ * rating writers it exposes only collect ratings into batches; the partition's thread does the
+ * formatting, compression, and I/O.  Each partition having its own thread lets the partitions be
+ * written in parallel, while the ratings of each file are written in the order they are given.
+ *
+ * The exposed writers must all be used from the same thread.
+ */
+class PartitionWriter implements Closeable {
+    private static final int BATCH_SIZE = 4096;
+    private static final int QUEUE_SIZE = 8;
+    private static final Batch END = new Batch(null, null);
+
+    private final Closer closer = Closer.create();
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BatchingWriter trainWriter;
+    private final BatchingWriter testWriter;
+    private final Thread thread;
+    private volatile Throwable error;
+    private boolean closed;
+
+    /**
+     * Create a partition writer and start its thread.
+     *
+     * @param name The partition name (for the thread name).
+     * @param train The training data writer.  The partition writer takes ownership of it.
+     * @param test The test data writer.  The partition writer takes ownership of it.
+     */
+    PartitionWriter(String name, RatingWriter train, RatingWriter test) {
+        closer.register(train);
+        closer.register(test);
+        trainWriter = new BatchingWriter(train);
+        testWriter = new BatchingWriter(test);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, "crossfold-writer-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    RatingWriter getTrainWriter() {
+        return trainWriter;
+    }
+
+    RatingWriter getTestWriter() {
+        return testWriter;
+    }
+
+    private void writeBatches() {
+        try {
+            Batch batch = queue.take();
+            while (batch != END) {
+                // after an error, keep draining the queue so the producer does not block
+                if (error == null) {
+                    try {
+                        for (Rating r: batch.ratings) {
+                            batch.target.writeRating(r);
+                        }
+                    } catch (Throwable th) {
+                        error = th;
+                    }
+                }
+                batch = queue.take();
+            }
+        } catch (InterruptedException e) {
+            error = e;
+        }
+    }
+
+    private void checkError() throws IOException {
+        Throwable th = error;
+        if (th instanceof IOException) {
+            throw new IOException("error writing partition", th);
+        } else if (th instanceof InterruptedException) {
+            throw new InterruptedIOException("partition writer interrupted");
+        } else if (th instanceof Error) {
+            throw (Error) th;
+        } else if (th != null) {
+            throw new RuntimeException("error writing partition", th);
+        }
+    }
+
+    private void enqueue(Batch batch) throws IOException {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing partition");
+        }
+    }
+
+    /**
+     * Write all remaining ratings, stop the partition's thread, and close the underlying writers.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            try {
+                if (thread.isAlive()) {
+                    trainWriter.flush();
+                    testWriter.flush();
+                    enqueue(END);
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                thread.interrupt();
+                throw new InterruptedIOException("interrupted while finishing partition");
+            }
+            checkError();
+        } catch (Throwable th) {
+            throw closer.rethrow(th);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static class Batch {
+        private final RatingWriter target;
+        private final List<Rating> ratings;
+
+        Batch(RatingWriter target, List<Rating> ratings) {
+            this.target = target;
+            this.ratings = ratings;
+        }
+    }
+
+    /**
+     * Rating writer that collects ratings into batches for the partition thread.
+     */
+    private class BatchingWriter implements RatingWriter {
+        private final RatingWriter target;
+        private List<Rating> buffer = new ArrayList<>(BATCH_SIZE);
+
+        BatchingWriter(RatingWriter target) {
+            this.target = target;
+        }
+
+        @Override
+        public void writeRating(Rating r) throws IOException {
+            buffer.add(r);
+            if (buffer.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            checkError();
+            if (!buffer.isEmpty()) {
+                enqueue(new Batch(target, buffer));
+                buffer = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+
+        /**
+         * Closing is a no-op; the partition writer closes the underlying writer.
+         */
+        @Override
+        public void close() {
+            /* no-op */
+        }
+    }
+}
@@ -20,6 +20,8 @@
  */
 package org.lenskit.eval.crossfold;
 
+import org.lenskit.data.packed.BinaryRatingDAO;
+import org.lenskit.data.packed.PartitionAssignment;
 import org.lenskit.util.io.ObjectStreams;
 import org.lenskit.data.ratings.Rating;
 import org.grouplens.lenskit.data.source.DataSource;
@@ -29,11 +31,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Random;
 
 /**
  * Partition ratings into outputs.
  */
-class RatingPartitionCrossfoldMethod implements CrossfoldMethod {
+class RatingPartitionCrossfoldMethod implements VirtualCrossfoldMethod {
     private static final Logger logger = LoggerFactory.getLogger(RatingPartitionCrossfoldMethod.class);
 
     @Override
@@ -42,7 +45,7 @@ class RatingPartitionCrossfoldMethod implements CrossfoldMethod {
         logger.info("splitting data source {} to {} partitions by ratings",
                     input.getName(), count);
         ArrayList<Rating> ratings = ObjectStreams.makeList(input.getEventDAO().streamEvents(Rating.class));
-        Collections.shuffle(ratings);
+        Collections.shuffle(ratings, output.getRandom());
 
         final int n = ratings.size();
         for (int i = 0; i < n; i++) {
@@ -56,4 +59,24 @@ class RatingPartitionCrossfoldMethod implements CrossfoldMethod {
             }
         }
     }
+
+    @Override
+    public PartitionAssignment assignPartitions(BinaryRatingDAO data, int count, Random rng) {
+        // shuffle positions instead of ratings, so no rating needs to be read
+        int[] positions = data.getRatingPositions().toIntArray();
+        final int n = positions.length;
+        logger.info("assigning {} ratings to {} partitions", n, count);
+        for (int i = n - 1; i > 0; i--) {
+            int j = rng.nextInt(i + 1);
+            int tmp = positions[i];
+            positions[i] = positions[j];
+            positions[j] = tmp;
+        }
+
+        PartitionAssignment parts = PartitionAssignment.create(count, n);
+        for (int i = 0; i < n; i++) {
+            parts.setPartition(positions[i], i % count);
+        }
+        return parts;
+    }
 }
@@ -20,8 +20,18 @@
  */
 package org.lenskit.eval.crossfold;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.longs.Long2IntMap;
 import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.lenskit.data.dao.StreamingUserEventDAO;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.packed.BinaryRatingDAO;
+import org.lenskit.data.packed.PartitionAssignment;
 import org.lenskit.util.io.ObjectStream;
 import org.lenskit.data.ratings.Rating;
 import org.lenskit.data.history.UserHistory;
@@ -30,11 +40,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+abstract class UserBasedCrossfoldMethod implements VirtualCrossfoldMethod {
+    private static final int CHUNK_SIZE = 256;
 
-abstract class UserBasedCrossfoldMethod implements CrossfoldMethod {
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     protected final SortOrder order;
     protected final HistoryPartitionMethod partition;
@@ -46,41 +58,158 @@ abstract class UserBasedCrossfoldMethod implements CrossfoldMethod {
 
     public void crossfold(DataSource input, CrossfoldOutput output) throws IOException {
         final int count = output.getCount();
-        logger.info("splitting data source {} to {} partitions by users",
-                    input.getName(), count);
+        final int threads = output.getThreadCount();
+        logger.info("splitting data source {} to {} partitions by users with {} threads",
+                    input.getName(), count, threads);
         Long2IntMap splits = splitUsers(input.getUserDAO().getUserIds(), count, output.getRandom());
         splits.defaultReturnValue(-1); // unpartitioned users should only be trained
-        ObjectStream<UserHistory<Rating>> historyObjectStream = input.getUserEventDAO().streamEventsByUser(Rating.class);
+        final long seed = output.getRandom().nextLong();
+
+        ExecutorService executor;
+        int maxPending;
+        if (threads == 1) {
+            executor = MoreExecutors.newDirectExecutorService();
+            maxPending = 1;
+        } else {
+            ThreadFactory factory = new ThreadFactoryBuilder().setDaemon(true)
+                                                              .setNameFormat("crossfold-splitter-%d")
+                                                              .build();
+            executor = Executors.newFixedThreadPool(threads, factory);
+            maxPending = threads * 2;
+        }
 
+        // histories are split in chunks on the workers, and written in stream order by this thread
+        Deque<Future<List<UserSplit>>> pending = new ArrayDeque<>();
+        ObjectStream<UserHistory<Rating>> historyObjectStream = streamUsers(input);
         try {
+            List<UserHistory<Rating>> chunk = new ArrayList<>(CHUNK_SIZE);
             for (UserHistory<Rating> history : historyObjectStream) {
-                int foldNum = splits.get(history.getUserId());
-                List<Rating> ratings = new ArrayList<>(history);
-                final int n = ratings.size();
-
-                for (int f = 0; f < count; f++) {
-                    if (f == foldNum) {
-                        order.apply(ratings, output.getRandom());
-                        final int p = partition.partition(ratings);
-                        for (int j = 0; j < p; j++) {
-                            output.getTrainWriter(f).writeRating(ratings.get(j));
-                        }
-                        for (int j = p; j < n; j++) {
-                            output.getTestWriter(f).writeRating(ratings.get(j));
-                        }
-                    } else {
-                        for (Rating rating : ratings) {
-                            output.getTrainWriter(f).writeRating(rating);
-                        }
+                chunk.add(history);
+                if (chunk.size() >= CHUNK_SIZE) {
+                    pending.add(executor.submit(new SplitTask(chunk, splits, seed)));
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                    while (pending.size() >= maxPending) {
+                        writeSplits(await(pending.remove()), output);
                     }
                 }
-
+            }
+            if (!chunk.isEmpty()) {
+                pending.add(executor.submit(new SplitTask(chunk, splits, seed)));
+            }
+            while (!pending.isEmpty()) {
+                writeSplits(await(pending.remove()), output);
             }
         } finally {
+            executor.shutdownNow();
             historyObjectStream.close();
         }
     }
 
+    /**
+     * Stream the users' rating histories for a single pass.  A prefetching user event DAO would
+     * load every history into memory first, so it is replaced with one that groups the events as
+     * they are streamed in user order (the text DAO sorts them externally).
+     */
+    private static ObjectStream<UserHistory<Rating>> streamUsers(DataSource input) {
+        UserEventDAO dao = input.getUserEventDAO();
+        if (dao instanceof PrefetchingUserEventDAO) {
+            dao = new StreamingUserEventDAO(input.getEventDAO());
+        }
+        return dao.streamEventsByUser(Rating.class);
+    }
+
+    private void writeSplits(List<UserSplit> users, CrossfoldOutput output) throws IOException {
+        final int count = output.getCount();
+        for (UserSplit user: users) {
+            List<Rating> ratings = user.ratings;
+            final int n = ratings.size();
+            for (int f = 0; f < count; f++) {
+                if (f == user.foldNum) {
+                    for (int j = 0; j < user.trainCount; j++) {
+                        output.getTrainWriter(f).writeRating(ratings.get(j));
+                    }
+                    for (int j = user.trainCount; j < n; j++) {
+                        output.getTestWriter(f).writeRating(ratings.get(j));
+                    }
+                } else {
+                    for (Rating rating : ratings) {
+                        output.getTrainWriter(f).writeRating(rating);
+                    }
+                }
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while splitting users");
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new UncheckedExecutionException(e.getCause());
+        }
+    }
+
+    /**
+     * Compute the random seed for a user's history.  Seeding each user independently makes the
+     * ordering of their history depend only on the crossfold seed, not on which thread splits it
+     * or on what other users it has processed.
+     *
+     * @param seed The seed for the whole crossfold operation.
+     * @param user The user ID.
+     * @return The seed for the user's random number generator.
+     */
+    static long userSeed(long seed, long user) {
+        return mix(seed ^ mix(user));
+    }
+
+    /**
+     * The finalization step of MurmurHash3's 64-bit hash, to spread user IDs over the seed space.
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public PartitionAssignment assignPartitions(BinaryRatingDAO data, int count, Random rng) {
+        LongSet users = data.getUserIds();
+        logger.info("assigning ratings of {} users to {} partitions", users.size(), count);
+        PartitionAssignment parts = PartitionAssignment.create(count, data.getRatingPositions().size());
+        Long2IntMap splits = splitUsers(users, count, rng);
+        splits.defaultReturnValue(-1);
+        final long seed = rng.nextLong();
+
+        // the user set is sorted, so the assignment does not depend on hash order
+        for (long user: users) {
+            int foldNum = splits.get(user);
+            if (foldNum < 0) {
+                continue;
+            }
+            IntList positions = data.getUserRatingPositions(user);
+            assert positions != null;
+            List<Rating> ratings = new ArrayList<>(data.getRatingsAt(positions));
+            // each rating is a distinct object, so we can find its position after reordering
+            Map<Rating, Integer> ratingPositions = new IdentityHashMap<>(ratings.size());
+            for (int i = 0; i < ratings.size(); i++) {
+                ratingPositions.put(ratings.get(i), positions.getInt(i));
+            }
+
+            order.apply(ratings, new Random(userSeed(seed, user)));
+            final int p = partition.partition(ratings);
+            for (int j = p; j < ratings.size(); j++) {
+                parts.setPartition(ratingPositions.get(ratings.get(j)), foldNum);
+            }
+        }
+        return parts;
+    }
+
     /**
      * Assign users to partitions.
      * @param users The users to partition.
@@ -89,4 +218,51 @@ abstract class UserBasedCrossfoldMethod implements CrossfoldMethod {
      * @return A mapping of users to their test partitions.
      */
     protected abstract Long2IntMap splitUsers(LongSet users, int np, Random rng);
+
+    /**
+     * A user's history, split into training and test ratings.
+     */
+    private static class UserSplit {
+        final List<Rating> ratings;
+        final int foldNum;
+        final int trainCount;
+
+        UserSplit(List<Rating> ratings, int fold, int ntrain) {
+            this.ratings = ratings;
+            foldNum = fold;
+            trainCount = ntrain;
+        }
+    }
+
+    /**
+     * Task to split a chunk of user histories.
+     */
+    private class SplitTask implements Callable<List<UserSplit>> {
+        private final List<UserHistory<Rating>> histories;
+        private final Long2IntMap splits;
+        private final long seed;
+
+        SplitTask(List<UserHistory<Rating>> hs, Long2IntMap sps, long s) {
+            histories = hs;
+            splits = sps;
+            seed = s;
+        }
+
+        @Override
+        public List<UserSplit> call() {
+            List<UserSplit> result = new ArrayList<>(histories.size());
+            for (UserHistory<Rating> history: histories) {
+                long user = history.getUserId();
+                int foldNum = splits.get(user);
+                List<Rating> ratings = new ArrayList<>(history);
+                int p = ratings.size();
+                if (foldNum >= 0) {
+                    order.apply(ratings, new Random(userSeed(seed, user)));
+                    p = partition.partition(ratings);
+                }
+                result.add(new UserSplit(ratings, foldNum, p));
+            }
+            return result;
+        }
+    }
 }
@@ -0,0 +1,43 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.eval.crossfold;
+
+import org.lenskit.data.packed.BinaryRatingDAO;
+import org.lenskit.data.packed.PartitionAssignment;
+
+import java.util.Random;
+
+/**
+ * A crossfold method that can split packed data into virtual partitions.  Instead of writing out
+ * the training and test data, it assigns each rating to the partition whose test data it belongs
+ * to; the training data of each partition is every rating not in its test data.
+ */
+interface VirtualCrossfoldMethod extends CrossfoldMethod {
+    /**
+     * Assign the ratings of packed data to test partitions.
+     *
+     * @param data The packed rating data.
+     * @param count The number of partitions.
+     * @param rng The random number generator.
+     * @return The partition assignment, indexed by the rating positions of {@code data}.
+     */
+    PartitionAssignment assignPartitions(BinaryRatingDAO data, int count, Random rng);
+}
@@ -21,8 +21,8 @@
 package org.lenskit.eval.traintest;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
-import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.grouplens.grapht.Component;
@@ -49,10 +49,12 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Individual job evaluating a single experimental condition.
@@ -68,6 +70,8 @@ class ExperimentJob implements Runnable {
     @Nullable
     private final ComponentCache cache;
     private final MergePool<Component, Dependency> mergePool;
+    private DAGNode<Component, Dependency> configGraph;
+    private volatile long memoryUse;
 
     ExperimentJob(TrainTestExperiment exp,
                   @Nonnull AlgorithmInstance algo,
@@ -93,86 +97,45 @@ class ExperimentJob implements Runnable {
         RowBuilder outputRow = globalOutput.getLayout().newRowBuilder();
 
         logger.info("Building {} on {}", algorithm, dataSet);
+        HeapMonitor.Watch memWatch = experiment.getHeapMonitor().start();
         Stopwatch buildTimer = Stopwatch.createStarted();
-        try (LenskitRecommender rec = buildRecommender()) {
+        DAGNode<Component, Dependency> graph = buildRecommenderGraph();
+        try (LenskitRecommender rec = new LenskitRecommender(graph)) {
             buildTimer.stop();
             logger.info("Built {} in {}", algorithm.getName(), buildTimer);
 
             logger.info("Measuring {} on {}", algorithm.getName(), dataSet.getName());
 
-            RowBuilder userRow = userOutput != null ? userOutput.getLayout().newRowBuilder() : null;
-
             Stopwatch testTimer = Stopwatch.createStarted();
 
-            List<ConditionEvaluator> accumulators = Lists.newArrayList();
-
-            for (EvalTask eval : experiment.getTasks()) {
-                accumulators.add(eval.createConditionEvaluator(algorithm, dataSet, rec));
-            }
+            List<ConditionEvaluator> accumulators = createEvaluators(rec);
 
             LongSet testUsers = dataSet.getTestData().getUserDAO().getUserIds();
-            UserEventDAO trainEvents = dataSet.getTrainingData().getUserEventDAO();
-            UserEventDAO userEvents = dataSet.getTestData().getUserEventDAO();
-            final NumberFormat pctFormat = NumberFormat.getPercentInstance();
-            pctFormat.setMaximumFractionDigits(2);
-            pctFormat.setMinimumFractionDigits(2);
             final int nusers = testUsers.size();
+            int nthreads = Math.min(experiment.getUserThreadCount(), nusers);
             logger.info("Testing {} on {} ({} users)", algorithm, dataSet, nusers);
-            int ndone = 0;
-            for (LongIterator iter = testUsers.iterator(); iter.hasNext(); ) {
-                if (Thread.interrupted()) {
-                    throw new RuntimeException("eval job interrupted");
-                }
-                long uid = iter.nextLong();
-                if (userRow != null) {
-                    userRow.add("User", uid);
-                }
-
-                UserHistory<Event> trainData = trainEvents.getEventsForUser(uid);
-                if (trainData == null) {
-                    trainData = History.forUser(uid);
-                }
-                UserHistory<Event> userData = userEvents.getEventsForUser(uid);
-                TestUser user = new TestUser(trainData, userData);
-
-                Stopwatch userTimer = Stopwatch.createStarted();
-
-                for (ConditionEvaluator eval : accumulators) {
-                    Map<String, Object> ures = eval.measureUser(user);
-                    if (userRow != null) {
-                        userRow.addAll(ures);
-                    }
-                }
-                userTimer.stop();
-                if (userRow != null) {
-                    userRow.add("TestTime", userTimer.elapsed(TimeUnit.MILLISECONDS) * 0.001);
-                    assert userOutput != null;
-                    try {
-                        userOutput.writeRow(userRow.buildList());
-                    } catch (IOException e) {
-                        throw new EvaluationException("error writing user row", e);
-                    }
-                    userRow.clear();
-                }
-
-                ndone += 1;
-                if (ndone % 100 == 0) {
-                    double time = testTimer.elapsed(TimeUnit.MILLISECONDS) * 0.001;
-                    double tpu = time / ndone;
-                    double tleft = (nusers - ndone) * tpu;
-                    logger.info("tested {} of {} users ({}), ETA {}",
-                                ndone, nusers, pctFormat.format(((double) ndone) / nusers),
-                                DurationFormatUtils.formatDurationHMS((long) tleft));
+            UserTester tester = new UserTester(testUsers.toLongArray(), testTimer);
+            if (nthreads > 1 && isMergeable(accumulators)) {
+                testParallel(tester, graph, accumulators, userOutput, nthreads);
+            } else {
+                if (nthreads > 1) {
+                    logger.warn("metrics for {} cannot be merged, testing users sequentially", algorithm);
                 }
+                tester.testUsers(accumulators, userOutput);
             }
 
             testTimer.stop();
             logger.info("Tested {} in {}", algorithm.getName(), testTimer);
+            long peakMemory = memWatch.stop();
+            memoryUse = memWatch.getGrowth();
             outputRow.add("BuildTime", buildTimer.elapsed(TimeUnit.MILLISECONDS) * 0.001);
             outputRow.add("TestTime", testTimer.elapsed(TimeUnit.MILLISECONDS) * 0.001);
+            outputRow.add("PeakMemory", peakMemory);
             for (ConditionEvaluator eval: accumulators) {
                 outputRow.addAll(eval.finish());
             }
+        } finally {
+            memWatch.stop();
         }
 
         try {
@@ -182,17 +145,125 @@ class ExperimentJob implements Runnable {
         }
     }
 
-    private LenskitRecommender buildRecommender() throws RecommenderBuildException {
-        logger.debug("Starting recommender build");
-        LenskitConfiguration dataConfig = new LenskitConfiguration(sharedConfig);
-        dataSet.configure(dataConfig);
-        DAGNode<Component, Dependency> cfgGraph = algorithm.buildRecommenderGraph(dataConfig);
-        if (mergePool != null) {
-            logger.debug("deduplicating configuration graph");
-            synchronized (mergePool) {
-                cfgGraph = mergePool.merge(cfgGraph);
+    private List<ConditionEvaluator> createEvaluators(LenskitRecommender rec) {
+        List<ConditionEvaluator> accumulators = Lists.newArrayList();
+        for (EvalTask eval : experiment.getTasks()) {
+            accumulators.add(eval.createConditionEvaluator(algorithm, dataSet, rec));
+        }
+        return accumulators;
+    }
+
+    private static boolean isMergeable(List<ConditionEvaluator> accumulators) {
+        for (ConditionEvaluator eval: accumulators) {
+            if (!(eval instanceof MergeableConditionEvaluator)
+                    || !((MergeableConditionEvaluator) eval).isMergeable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Test the users with several worker threads.  Recommenders are per-thread sessions, so each
+     * worker but the first gets its own recommender over the same (already instantiated) graph, and
+     * its own condition evaluators; their measurements are merged into the primary evaluators when
+     * all workers are done.
+     */
+    private void testParallel(final UserTester tester,
+                              final DAGNode<Component, Dependency> graph,
+                              final List<ConditionEvaluator> accumulators,
+                              final TableWriter userOutput,
+                              int nthreads) {
+        logger.info("testing users with {} threads", nthreads);
+        final List<List<ConditionEvaluator>> workerEvals = new ArrayList<>(nthreads);
+        ExecutorService service = Executors.newFixedThreadPool(nthreads);
+        List<Future<?>> results = new ArrayList<>(nthreads);
+        try {
+            results.add(service.submit(new Runnable() {
+                @Override
+                public void run() {
+                    tester.testUsers(accumulators, userOutput);
+                }
+            }));
+            for (int i = 1; i < nthreads; i++) {
+                results.add(service.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (LenskitRecommender rec = new LenskitRecommender(graph)) {
+                            List<ConditionEvaluator> evals = createEvaluators(rec);
+                            tester.testUsers(evals, userOutput);
+                            synchronized (workerEvals) {
+                                workerEvals.add(evals);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> result: results) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new EvaluationException("eval job interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause());
+            throw new EvaluationException("error testing users", ex.getCause());
+        } finally {
+            service.shutdownNow();
+        }
+
+        for (List<ConditionEvaluator> evals: workerEvals) {
+            for (int i = 0; i < accumulators.size(); i++) {
+                ((MergeableConditionEvaluator) accumulators.get(i)).merge(evals.get(i));
+            }
+        }
+    }
+
+    /**
+     * Get the memory this job used when it ran, measured as the growth of the heap from when it
+     * started building its recommender to its high-water mark.  This includes memory used by any
+     * other jobs running at the same time.
+     *
+     * @return The memory used, in bytes, or 0 if the job has not run.
+     */
+    long getMemoryUse() {
+        return memoryUse;
+    }
+
+    /**
+     * Get the component cache used by this job.
+     * @return The component cache, or {@code null} if components are not shared.
+     */
+    @Nullable
+    ComponentCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Get this job's configuration graph, deduplicated against the other jobs sharing its merge
+     * pool.  The graph is computed once, so the shared nodes are the same objects every time.
+     *
+     * @return The configuration graph.
+     */
+    synchronized DAGNode<Component, Dependency> getConfigGraph() throws RecommenderBuildException {
+        if (configGraph == null) {
+            LenskitConfiguration dataConfig = new LenskitConfiguration(sharedConfig);
+            dataSet.configure(dataConfig);
+            DAGNode<Component, Dependency> cfgGraph = algorithm.buildRecommenderGraph(dataConfig);
+            if (mergePool != null) {
+                logger.debug("deduplicating configuration graph");
+                synchronized (mergePool) {
+                    cfgGraph = mergePool.merge(cfgGraph);
+                }
             }
+            configGraph = cfgGraph;
         }
+        return configGraph;
+    }
+
+    private DAGNode<Component, Dependency> buildRecommenderGraph() throws RecommenderBuildException {
+        logger.debug("Starting recommender build");
+        DAGNode<Component, Dependency> cfgGraph = getConfigGraph();
         DAGNode<Component, Dependency> graph;
         if (cache == null) {
             logger.debug("Building directly without a cache");
@@ -212,6 +283,96 @@ class ExperimentJob implements Runnable {
                 throw new RecommenderBuildException("Pre-processing of algorithm components for sharing failed.", e);
             }
         }
-        return new LenskitRecommender(graph);
+        return graph;
+    }
+
+    @Override
+    public String toString() {
+        return "job " + algorithm.getName() + " on " + dataSet.getName();
+    }
+
+    /**
+     * Tests users from the job's list of test users.  Several threads can share a tester, each with
+     * its own condition evaluators; each user is tested exactly once.
+     */
+    private class UserTester {
+        private final long[] users;
+        private final Stopwatch testTimer;
+        private final UserEventDAO trainEvents;
+        private final UserEventDAO userEvents;
+        private final AtomicInteger nextUser = new AtomicInteger();
+        private final AtomicInteger usersDone = new AtomicInteger();
+
+        UserTester(long[] users, Stopwatch timer) {
+            this.users = users;
+            testTimer = timer;
+            trainEvents = dataSet.getTrainingData().getUserEventDAO();
+            userEvents = dataSet.getTestData().getUserEventDAO();
+        }
+
+        /**
+         * Test users until there are none left.
+         *
+         * @param evals The condition evaluators to use.
+         * @param userOutput The per-user output table, if any.
+         */
+        void testUsers(List<ConditionEvaluator> evals, @Nullable TableWriter userOutput) {
+            RowBuilder userRow = userOutput != null ? userOutput.getLayout().newRowBuilder() : null;
+            for (int i = nextUser.getAndIncrement(); i < users.length; i = nextUser.getAndIncrement()) {
+                if (Thread.interrupted()) {
+                    throw new RuntimeException("eval job interrupted");
+                }
+                long uid = users[i];
+                if (userRow != null) {
+                    userRow.add("User", uid);
+                }
+
+                UserHistory<Event> trainData = trainEvents.getEventsForUser(uid);
+                if (trainData == null) {
+                    trainData = History.forUser(uid);
+                }
+                UserHistory<Event> userData = userEvents.getEventsForUser(uid);
+                TestUser user = new TestUser(trainData, userData);
+
+                Stopwatch userTimer = Stopwatch.createStarted();
+
+                for (ConditionEvaluator eval : evals) {
+                    Map<String, Object> ures = eval.measureUser(user);
+                    if (userRow != null) {
+                        userRow.addAll(ures);
+                    }
+                }
+                userTimer.stop();
+                if (userRow != null) {
+                    userRow.add("TestTime", userTimer.elapsed(TimeUnit.MILLISECONDS) * 0.001);
+                    assert userOutput != null;
+                    try {
+                        // table writers are thread-safe, so the rows of different threads do not mix
+                        userOutput.writeRow(userRow.buildList());
+                    } catch (IOException e) {
+                        throw new EvaluationException("error writing user row", e);
+                    }
+                    userRow.clear();
+                }
+
+                int ndone = usersDone.incrementAndGet();
+                if (ndone % 100 == 0) {
+                    logProgress(ndone);
+                }
+            }
+        }
+
+        private void logProgress(int ndone) {
+            final int nusers = users.length;
+            final NumberFormat pctFormat = NumberFormat.getPercentInstance();
+            pctFormat.setMaximumFractionDigits(2);
+            pctFormat.setMinimumFractionDigits(2);
+            double time = testTimer.elapsed(TimeUnit.MILLISECONDS) * 0.001;
+            double tpu = time / ndone;
+            double tleft = (nusers - ndone) * tpu;
+            logger.info("tested {} of {} users ({}), ETA {}",
+                        ndone, nusers, pctFormat.format(((double) ndone) / nusers),
+                        DurationFormatUtils.formatDurationHMS((long) tleft));
+        }
     }
 }
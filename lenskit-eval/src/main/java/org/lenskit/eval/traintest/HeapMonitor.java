@@ -0,0 +1,165 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.eval.traintest;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the heap usage of the JVM in a background thread, so that the evaluator can track the
+ * high-water mark of heap use while a job or component build is running.
+ *
+ * Heap usage is process-wide, so each watch tracks two things: the actual heap high-water mark,
+ * and its own share of the heap growth.  Between two samples, the change in heap usage is split
+ * evenly among the watches running at the time; a watch's growth is the highest its accumulated
+ * share reached.  When several jobs run at once, this keeps each one's measured growth from
+ * including all of the others' memory.  It still includes garbage that has not yet been
+ * collected, so it is a rough measure of what a job needs, not an exact size.
+ */
+@ThreadSafe
+class HeapMonitor implements Closeable {
+    private final ScheduledExecutorService sampler;
+    private final Set<Watch> watches = new HashSet<>();
+    private long lastUsage;
+
+    /**
+     * Create and start a heap monitor.
+     *
+     * @param interval The sampling interval, in milliseconds.
+     */
+    HeapMonitor(long interval) {
+        lastUsage = getUsedHeap();
+        sampler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true)
+                                          .setNameFormat("heap-monitor")
+                                          .build());
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the amount of heap memory currently in use.
+     * @return The number of bytes of heap currently in use.
+     */
+    static long getUsedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Sample the heap and share its change since the last sample among the running watches.
+     */
+    private synchronized void sample() {
+        long used = getUsedHeap();
+        if (!watches.isEmpty()) {
+            long share = (used - lastUsage) / watches.size();
+            for (Watch w: watches) {
+                w.update(used, share);
+            }
+        }
+        lastUsage = used;
+    }
+
+    /**
+     * Start tracking heap usage.
+     * @return A watch that records the heap high-water mark until it is stopped.
+     */
+    synchronized Watch start() {
+        // charge the growth so far to the watches that were already running
+        sample();
+        Watch w = new Watch(lastUsage);
+        watches.add(w);
+        return w;
+    }
+
+    @Override
+    public synchronized void close() {
+        sampler.shutdownNow();
+        watches.clear();
+    }
+
+    /**
+     * A tracker for the heap high-water mark over some period of time.
+     */
+    class Watch {
+        private final long startUsage;
+        private long peakUsage;
+        private long share;
+        private long peakShare;
+
+        private Watch(long start) {
+            startUsage = start;
+            peakUsage = start;
+        }
+
+        private void update(long used, long delta) {
+            peakUsage = Math.max(peakUsage, used);
+            share += delta;
+            peakShare = Math.max(peakShare, share);
+        }
+
+        /**
+         * Get the heap usage when this watch was started.
+         * @return The heap usage, in bytes, when the watch was started.
+         */
+        long getStartUsage() {
+            return startUsage;
+        }
+
+        /**
+         * Stop the watch.  It is safe to stop a watch more than once.
+         *
+         * @return The highest heap usage, in bytes, observed while the watch was running.
+         */
+        long stop() {
+            synchronized (HeapMonitor.this) {
+                if (watches.contains(this)) {
+                    sample();
+                    watches.remove(this);
+                }
+                return peakUsage;
+            }
+        }
+
+        /**
+         * Get the amount of memory the watched code used, as the highest share of the heap's
+         * growth charged to this watch.
+         *
+         * @return The watch's peak share of heap growth, in bytes.
+         */
+        long getGrowth() {
+            synchronized (HeapMonitor.this) {
+                return peakShare;
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.eval.traintest;
+
+import org.grouplens.grapht.CachePolicy;
+import org.grouplens.grapht.Component;
+import org.grouplens.grapht.Dependency;
+import org.grouplens.grapht.InjectionException;
+import org.grouplens.grapht.graph.DAGEdge;
+import org.grouplens.grapht.graph.DAGNode;
+import org.grouplens.grapht.graph.DAGNodeBuilder;
+import org.grouplens.grapht.reflect.AbstractSatisfactionVisitor;
+import org.grouplens.grapht.reflect.Satisfactions;
+import org.grouplens.lenskit.util.parallel.TaskGraphExecutor;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.inject.GraphtUtils;
+import org.lenskit.inject.MemoryEstimator;
+import org.lenskit.inject.NodeInstantiator;
+import org.lenskit.inject.NodeProcessors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Provider;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Builds the task graph for running a group of experiment jobs.
+ *
+ * Every shareable model component used by the jobs becomes a task of its own, which depends on the
+ * tasks of the shareable components it uses; every job depends on the tasks of all the shareable
+ * components in its configuration graph.  Running this graph with a {@link TaskGraphExecutor}
+ * builds each shared component exactly once, as soon as its dependencies are available, instead
+ * of having jobs block on each other in the {@link ComponentCache}.  A component is pinned in
+ * memory from the time it is built until the last job or component using it has finished, so its
+ * soft reference in the cache cannot be cleared while it is still needed.
+ *
+ * Component builds and jobs are also subject to a {@link MemoryBudget}: each task is admitted
+ * with its estimate from previous runs, and the heap growth measured while it runs updates that
+ * estimate for later runs.  A component that has not been measured yet is admitted with the
+ * estimate of its builder, if the builder is a {@link MemoryEstimator}.  A built component keeps
+ * its measured memory reserved as long as it is pinned.
+ */
+class JobGraph {
+    private static final Logger logger = LoggerFactory.getLogger(JobGraph.class);
+
+    private final Map<DAGNode<Component, Dependency>, DAGNode<Callable<?>, String>> componentTasks =
+            new HashMap<>();
+    private final MemoryBudget budget;
+    private final HeapMonitor monitor;
+
+    private JobGraph(MemoryBudget budget, HeapMonitor monitor) {
+        this.budget = budget;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Create the task graph for a list of jobs.
+     *
+     * @param jobs The jobs to run.
+     * @param budget The memory budget for admitting tasks.
+     * @param monitor The heap monitor for measuring the memory use of component builds.
+     * @return The root of the task graph.  It does nothing itself, but depends on all the jobs.
+     */
+    static DAGNode<Callable<?>, String> create(List<ExperimentJob> jobs, MemoryBudget budget,
+                                               HeapMonitor monitor) {
+        JobGraph graph = new JobGraph(budget, monitor);
+        DAGNodeBuilder<Callable<?>, String> root = DAGNode.<Callable<?>, String>newBuilder(new RootTask());
+        for (ExperimentJob job: jobs) {
+            root.addEdge(graph.makeJobTask(job), "job");
+        }
+        logger.debug("created task graph for {} jobs with {} shared components",
+                     jobs.size(), graph.componentTasks.size());
+        return root.build();
+    }
+
+    private DAGNode<Callable<?>, String> makeJobTask(ExperimentJob job) {
+        ComponentCache cache = job.getCache();
+        List<DAGNode<Callable<?>, String>> depTasks = new ArrayList<>();
+        if (cache != null) {
+            for (DAGNode<Component, Dependency> node: GraphtUtils.getShareableNodes(job.getConfigGraph())) {
+                depTasks.add(getComponentTask(node, cache));
+            }
+        }
+        return makeTask(new JobTask(job, addConsumer(depTasks)), depTasks);
+    }
+
+    /**
+     * Get the task for a shared component, creating it (and the tasks for its dependencies) if
+     * needed.
+     */
+    private DAGNode<Callable<?>, String> getComponentTask(DAGNode<Component, Dependency> node,
+                                                         ComponentCache cache) {
+        DAGNode<Callable<?>, String> task = componentTasks.get(node);
+        if (task == null) {
+            List<DAGNode<Callable<?>, String>> depTasks = new ArrayList<>();
+            // shareable nodes are in topological order, so the node itself is last
+            for (DAGNode<Component, Dependency> dep: GraphtUtils.getShareableNodes(node)) {
+                if (dep != node) {
+                    depTasks.add(getComponentTask(dep, cache));
+                }
+            }
+            task = makeTask(new ComponentTask(node, cache, addConsumer(depTasks)), depTasks);
+            componentTasks.put(node, task);
+        }
+        return task;
+    }
+
+    private static DAGNode<Callable<?>, String> makeTask(Callable<?> task,
+                                                         List<DAGNode<Callable<?>, String>> deps) {
+        DAGNodeBuilder<Callable<?>, String> bld = DAGNode.<Callable<?>, String>newBuilder(task);
+        for (DAGNode<Callable<?>, String> dep: deps) {
+            bld.addEdge(dep, "component");
+        }
+        return bld.build();
+    }
+
+    /**
+     * Register a consumer with each of a list of component tasks.
+     * @return The component tasks, for the consumer to release when it is finished.
+     */
+    private static List<ComponentTask> addConsumer(List<DAGNode<Callable<?>, String>> tasks) {
+        List<ComponentTask> components = new ArrayList<>(tasks.size());
+        for (DAGNode<Callable<?>, String> task: tasks) {
+            ComponentTask ct = (ComponentTask) task.getLabel();
+            ct.addConsumer();
+            components.add(ct);
+        }
+        return components;
+    }
+
+    private static void releaseAll(List<ComponentTask> tasks) {
+        for (ComponentTask task: tasks) {
+            task.release();
+        }
+    }
+
+    /**
+     * Task that builds a shared component into the component cache.
+     */
+    private class ComponentTask implements Callable<Void> {
+        private final DAGNode<Component, Dependency> node;
+        private final ComponentCache cache;
+        private final List<ComponentTask> dependencies;
+        private final String memoryKey;
+        private int consumers;
+        @Nullable
+        private DAGNode<Component, Dependency> pinned;
+        private long pinnedMemory;
+
+        ComponentTask(DAGNode<Component, Dependency> node, ComponentCache cache,
+                      List<ComponentTask> deps) {
+            this.node = node;
+            this.cache = cache;
+            dependencies = deps;
+            memoryKey = "component." + ComponentCache.makeNodeKey(node);
+        }
+
+        synchronized void addConsumer() {
+            consumers += 1;
+        }
+
+        /**
+         * Release this component for one of its consumers, unpinning it if it was the last.
+         */
+        synchronized void release() {
+            consumers -= 1;
+            if (consumers == 0 && pinned != null) {
+                logger.debug("releasing {}", this);
+                pinned = null;
+                budget.free(pinnedMemory);
+                pinnedMemory = 0;
+            }
+        }
+
+        /**
+         * Ask the component's builder for an estimate of its memory use.  The builder is
+         * instantiated with the component's shareable dependencies, which are already in the cache.
+         *
+         * @return The builder's estimate, or 0 if its builder is not a {@link MemoryEstimator}.
+         */
+        private long estimateFromBuilder() throws InjectionException {
+            Class<?> builderType = node.getLabel().getSatisfaction().visit(
+                    new AbstractSatisfactionVisitor<Class<?>>(null) {
+                        @Override
+                        public Class<?> visitProviderClass(Class<? extends Provider<?>> pclass) {
+                            return pclass;
+                        }
+                    });
+            if (builderType == null || !MemoryEstimator.class.isAssignableFrom(builderType)) {
+                return 0;
+            }
+
+            List<DAGNode<Component, Dependency>> deps = new ArrayList<>();
+            for (DAGNode<Component, Dependency> dep: GraphtUtils.getShareableNodes(node)) {
+                if (dep != node) {
+                    deps.add(dep);
+                }
+            }
+            DAGNode<Component, Dependency> resolved = NodeProcessors.processNodes(node, deps, cache);
+            // the builder itself, with the edges of the component it provides
+            DAGNodeBuilder<Component, Dependency> bld =
+                    DAGNode.newBuilder(Component.create(Satisfactions.type(builderType),
+                                                        CachePolicy.NEW_INSTANCE));
+            for (DAGEdge<Component, Dependency> edge: resolved.getOutgoingEdges()) {
+                bld.addEdge(edge.getTail(), edge.getLabel());
+            }
+            MemoryEstimator builder = (MemoryEstimator) NodeInstantiator.create().instantiate(bld.build());
+            long estimate = builder.estimateMemoryUse();
+            logger.debug("{} estimates {} MiB for {}", builderType.getSimpleName(), estimate >> 20, this);
+            return estimate;
+        }
+
+        @Override
+        public Void call() throws InjectionException, InterruptedException {
+            long estimate = budget.getEstimate(memoryKey);
+            if (estimate == 0) {
+                estimate = estimateFromBuilder();
+            }
+            budget.admit(this, estimate);
+            boolean pinning = false;
+            try {
+                HeapMonitor.Watch watch = monitor.start();
+                DAGNode<Component, Dependency> result;
+                try {
+                    // dependencies are already in the cache, so this only instantiates the node itself
+                    result = NodeProcessors.processNodes(node, GraphtUtils.getShareableNodes(node), cache);
+                } finally {
+                    watch.stop();
+                }
+                long used = watch.getGrowth();
+                budget.recordUse(memoryKey, used);
+                synchronized (this) {
+                    if (consumers > 0) {
+                        pinned = result;
+                        // hold what the component actually used, instead of what we expected
+                        pinnedMemory = used;
+                        budget.resize(estimate, used);
+                        pinning = true;
+                    }
+                }
+            } catch (InjectionException e) {
+                throw new RecommenderBuildException("error building shared component " + this, e);
+            } finally {
+                budget.finished();
+                if (!pinning) {
+                    budget.free(estimate);
+                }
+                releaseAll(dependencies);
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "component " + node.getLabel().getSatisfaction();
+        }
+    }
+
+    /**
+     * Task that runs an experiment job.
+     */
+    private class JobTask implements Callable<Void> {
+        private final ExperimentJob job;
+        private final List<ComponentTask> components;
+        private final String memoryKey;
+
+        JobTask(ExperimentJob job, List<ComponentTask> comps) {
+            this.job = job;
+            components = comps;
+            memoryKey = "job." + ComponentCache.makeNodeKey(job.getConfigGraph());
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            long estimate = budget.getEstimate(memoryKey);
+            budget.admit(this, estimate);
+            try {
+                job.run();
+                budget.recordUse(memoryKey, job.getMemoryUse());
+            } finally {
+                budget.finished();
+                budget.free(estimate);
+                releaseAll(components);
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return job.toString();
+        }
+    }
+
+    /**
+     * Task for the root of the graph, which has nothing to do.
+     */
+    private static class RootTask implements Callable<Void> {
+        @Override
+        public Void call() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "experiment root";
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.eval.traintest;
+
+import org.lenskit.util.io.StagedWrite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Admission control for evaluation tasks based on their expected memory use.  Each task declares
+ * the memory it is expected to need when it asks to be admitted; it is admitted only if the memory
+ * reserved by admitted tasks, plus its own estimate, fits within the budget.  Otherwise, it waits
+ * until enough memory is freed.
+ *
+ * Memory is reserved and freed separately from the task running and finishing, because a shared
+ * component holds on to its memory after it is built until the last job using it is done.  To keep
+ * that from blocking the jobs forever, a task is always admitted if no other admitted task is
+ * still running, even if it does not fit in the budget.
+ *
+ * The budget also keeps the estimates, which are smoothed averages of the memory use measured for
+ * each task in previous runs.  If the budget has a directory (the component cache directory), the
+ * estimates are loaded from and saved to a file there, so later evaluator runs can use them.
+ */
+@ThreadSafe
+class MemoryBudget {
+    private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+    static final String ESTIMATE_FILE = "memory-estimates.properties";
+    /**
+     * The weight of a new measurement in a task's estimate.
+     */
+    static final double SMOOTHING = 0.5;
+
+    private final long limit;
+    @Nullable
+    private final Path estimateFile;
+    private final Properties estimates;
+
+    private long reserved;
+    private int running;
+
+    private MemoryBudget(long limit, @Nullable Path file, Properties estimates) {
+        this.limit = limit;
+        estimateFile = file;
+        this.estimates = estimates;
+    }
+
+    /**
+     * Create a memory budget.
+     *
+     * @param limit The memory budget, in bytes.
+     * @param dir The directory for storing memory estimates, or {@code null} to only keep them in
+     *            memory.
+     * @return The memory budget.
+     */
+    static MemoryBudget create(long limit, @Nullable Path dir) {
+        Properties props = new Properties();
+        Path file = null;
+        if (dir != null) {
+            file = dir.resolve(ESTIMATE_FILE);
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    props.load(in);
+                } catch (IOException e) {
+                    logger.warn("cannot read memory estimates from {}: {}", file, e.toString());
+                    props.clear();
+                }
+                logger.debug("loaded {} memory estimates", props.size());
+            }
+        }
+        return new MemoryBudget(limit, file, props);
+    }
+
+    /**
+     * Get the memory limit.
+     * @return The budget's limit, in bytes.
+     */
+    long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get the memory currently reserved by admitted tasks.
+     * @return The reserved memory, in bytes.
+     */
+    synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Get the estimated memory use of a task.
+     *
+     * @param key The task's key.
+     * @return The memory use recorded for the task, or 0 if there is no record for it.
+     */
+    long getEstimate(String key) {
+        String value = estimates.getProperty(key);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warn("invalid memory estimate {} for {}", value, key);
+            return 0;
+        }
+    }
+
+    /**
+     * Record the measured memory use of a task.  The first measurement becomes the task's
+     * estimate; later ones are blended into it with an exponential moving average, so a single
+     * noisy measurement (for example, one inflated by uncollected garbage) does not stick.
+     *
+     * @param key The task's key.
+     * @param bytes The measured memory use, in bytes.
+     */
+    synchronized void recordUse(String key, long bytes) {
+        long old = getEstimate(key);
+        long estimate = bytes;
+        if (old > 0) {
+            estimate = Math.round(SMOOTHING * bytes + (1 - SMOOTHING) * old);
+        }
+        estimates.setProperty(key, Long.toString(estimate));
+    }
+
+    /**
+     * Wait until a task fits in the budget and admit it.  The task must call {@link #finished()}
+     * when it stops running, and {@link #free(long)} when its memory is no longer in use.
+     *
+     * @param task The task (for logging).
+     * @param bytes The memory the task is expected to use.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    synchronized void admit(Object task, long bytes) throws InterruptedException {
+        if (running > 0 && reserved + bytes > limit) {
+            logger.info("waiting for {} MiB of memory for {} ({} MiB in use)",
+                        bytes >> 20, task, reserved >> 20);
+            while (running > 0 && reserved + bytes > limit) {
+                wait();
+            }
+            logger.debug("admitting {}", task);
+        }
+        running += 1;
+        reserved += bytes;
+    }
+
+    /**
+     * Record that an admitted task has stopped running.
+     */
+    synchronized void finished() {
+        running -= 1;
+        notifyAll();
+    }
+
+    /**
+     * Free memory reserved by a task.
+     *
+     * @param bytes The amount of memory to free.
+     */
+    synchronized void free(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Change the amount of memory reserved by a task, without waiting for it to fit.  This is used
+     * when a task's actual memory use becomes known.
+     *
+     * @param oldBytes The memory the task had reserved.
+     * @param newBytes The memory the task now needs.
+     */
+    synchronized void resize(long oldBytes, long newBytes) {
+        reserved += newBytes - oldBytes;
+        notifyAll();
+    }
+
+    /**
+     * Save the memory estimates, if the budget has a directory.
+     *
+     * @throws IOException if there is an error writing the estimates.
+     */
+    synchronized void save() throws IOException {
+        if (estimateFile == null) {
+            return;
+        }
+        Files.createDirectories(estimateFile.getParent());
+        try (StagedWrite stage = StagedWrite.begin(estimateFile)) {
+            try (OutputStream out = stage.openOutputStream()) {
+                estimates.store(out, "estimated memory use of evaluation tasks");
+            }
+            stage.commit();
+        }
+        logger.debug("saved {} memory estimates to {}", estimates.size(), estimateFile);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.eval.traintest;
+
+/**
+ * A condition evaluator whose measurements can be combined with those of other evaluators for the
+ * same condition.  This allows the users of a condition to be measured in parallel, with a separate
+ * recommender and condition evaluator for each worker thread.
+ *
+ * @since 3.0
+ */
+public interface MergeableConditionEvaluator extends ConditionEvaluator {
+    /**
+     * Query whether this evaluator can actually be merged (e.g. whether all of its metrics support
+     * merging their contexts).
+     *
+     * @return {@code true} if {@link #merge(ConditionEvaluator)} is supported.
+     */
+    boolean isMergeable();
+
+    /**
+     * Merge another evaluator's measurements into this one.
+     *
+     * @param other Another evaluator, created by the same task for the same condition.  It is not
+     *              used again after merging.
+     * @throws IllegalArgumentException if the other evaluator is not compatible with this one.
+     */
+    void merge(ConditionEvaluator other);
+}
@@ -30,12 +30,14 @@ import com.google.common.io.Closer;
 import groovy.lang.Closure;
 import org.grouplens.grapht.Component;
 import org.grouplens.grapht.Dependency;
+import org.grouplens.grapht.graph.DAGNode;
 import org.grouplens.grapht.graph.MergePool;
 import org.grouplens.grapht.util.ClassLoaders;
 import org.lenskit.config.ConfigHelpers;
 import org.lenskit.config.ConfigurationLoader;
 import org.lenskit.LenskitConfiguration;
 import org.grouplens.lenskit.util.io.CompressionMode;
+import org.grouplens.lenskit.util.parallel.TaskGraphExecutor;
 import org.lenskit.config.LenskitConfigScript;
 import org.lenskit.util.table.Table;
 import org.lenskit.util.table.TableBuilder;
@@ -78,11 +80,17 @@ import java.util.concurrent.*;
  */
 public class TrainTestExperiment {
     private static final Logger logger = LoggerFactory.getLogger(TrainTestExperiment.class);
+    /**
+     * How often to sample heap usage, in milliseconds.
+     */
+    private static final long HEAP_SAMPLE_INTERVAL = 50;
     private Path outputFile;
     private Path userOutputFile;
     private Path cacheDir;
     private boolean shareModelComponents = true;
     private int threadCount;
+    private int userThreadCount;
+    private long memoryBudget;
     private ClassLoader classLoader = ClassLoaders.inferDefault(TrainTestExperiment.class);
 
     private List<AlgorithmInstance> algorithms = new ArrayList<>();
@@ -94,6 +102,7 @@ public class TrainTestExperiment {
     private TableBuilder resultBuilder;
     private Closer resultCloser;
     private ExperimentOutputLayout outputLayout;
+    private HeapMonitor heapMonitor;
 
     /**
      * Set the primary output file.
@@ -288,6 +297,76 @@ public class TrainTestExperiment {
         threadCount = tc;
     }
 
+    /**
+     * Get the number of threads each job uses to test its users.
+     *
+     * @return The number of threads used to test the users of a single algorithm and data set.
+     */
+    public int getUserThreadCount() {
+        int tc = userThreadCount;
+        if (tc <= 0) {
+            String prop = System.getProperty("lenskit.eval.userThreadCount");
+            if (prop != null) {
+                tc = Integer.parseInt(prop);
+            }
+        }
+        if (tc <= 0) {
+            tc = 1;
+        }
+        return tc;
+    }
+
+    /**
+     * Set the number of threads each job uses to test its users.  Each job (algorithm and data set pair)
+     * is run in one of the {@linkplain #setThreadCount(int) experiment's threads}; if this is greater
+     * than 1, the job splits its test users across this many worker threads, each with its own
+     * recommender session, so an experiment may use up to the product of the two thread counts.
+     * Users are only tested in parallel if all metrics support {@linkplain
+     * org.lenskit.eval.traintest.metrics.Metric#mergeContexts(Object, Object) merging} their
+     * contexts, and the rows of the per-user output file are then not in any particular order.
+     *
+     * @param tc The number of user test threads.  If 0 (the default), consults the property
+     *           `lenskit.eval.userThreadCount`, and if that is unset, uses a single thread.
+     */
+    public void setUserThreadCount(int tc) {
+        userThreadCount = tc;
+    }
+
+    /**
+     * Get the memory budget for running jobs.
+     *
+     * @return The maximum memory, in bytes, that jobs running at the same time are expected to use.
+     */
+    public long getMemoryBudget() {
+        long budget = memoryBudget;
+        if (budget <= 0) {
+            String prop = System.getProperty("lenskit.eval.memoryBudget");
+            if (prop != null) {
+                budget = Long.parseLong(prop);
+            }
+        }
+        if (budget <= 0) {
+            budget = Long.MAX_VALUE;
+        }
+        return budget;
+    }
+
+    /**
+     * Set the memory budget for running jobs.  When running multiple threads, a job or shared
+     * component build is only started if the memory it used in previous runs, plus the memory of
+     * the jobs and pinned shared components already running, fits in the budget; otherwise, it
+     * waits for memory to be freed.  Memory use is measured in every run and saved in the
+     * {@linkplain #setCacheDirectory(Path) cache directory}, if there is one; without a cache
+     * directory, only builds measured earlier in the same run have estimates.  Tasks with no
+     * estimate are assumed to need no memory.
+     *
+     * @param bytes The memory budget in bytes.  If 0 (the default), consults the property
+     *              `lenskit.eval.memoryBudget`, and if that is unset, does not limit memory.
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
     /**
      * Get the class loader for this experiment.
      * @return The class loader that will be used.
@@ -370,6 +449,7 @@ public class TrainTestExperiment {
         try {
             try {
                 resultCloser = Closer.create();
+                heapMonitor = resultCloser.register(new HeapMonitor(HEAP_SAMPLE_INTERVAL));
                 logger.debug("setting up output");
                 ExperimentOutputLayout layout = makeExperimentOutputLayout();
                 openOutputs(layout);
@@ -378,7 +458,7 @@ public class TrainTestExperiment {
                 }
 
                 logger.debug("gathering jobs");
-                ListMultimap<UUID,Runnable> jobs = makeJobList();
+                ListMultimap<UUID,ExperimentJob> jobs = makeJobList();
                 runJobList(jobs);
 
                 logger.info("train-test evaluation complete");
@@ -388,6 +468,7 @@ public class TrainTestExperiment {
                 throw resultCloser.rethrow(th);
             } finally {
                 outputLayout = null;
+                heapMonitor = null;
                 // FIXME Handle exceptions in task shutdown cleanly
                 for (EvalTask task: tasks) {
                     task.finish();
@@ -407,6 +488,16 @@ public class TrainTestExperiment {
         return outputLayout;
     }
 
+    /**
+     * Get the heap monitor for measuring the memory use of jobs.
+     */
+    HeapMonitor getHeapMonitor() {
+        if (heapMonitor == null) {
+            throw new IllegalStateException("experiment not started");
+        }
+        return heapMonitor;
+    }
+
     private ExperimentOutputLayout makeExperimentOutputLayout() {
         Set<String> dataColumns = Sets.newLinkedHashSet();
         Set<String> algoColumns = Sets.newLinkedHashSet();
@@ -439,7 +530,8 @@ public class TrainTestExperiment {
     private TableLayout makeGlobalResultLayout(ExperimentOutputLayout eol) {
         TableLayoutBuilder tlb = TableLayoutBuilder.copy(eol.getConditionLayout());
         tlb.addColumn("BuildTime")
-           .addColumn("TestTime");
+           .addColumn("TestTime")
+           .addColumn("PeakMemory");
         for (EvalTask task: tasks) {
             tlb.addColumns(task.getGlobalColumns());
         }
@@ -461,12 +553,12 @@ public class TrainTestExperiment {
      * Create the list of jobs to run in this experiment.
      * @return The jobs, as a multimap from isolation group IDs to tasks.
      */
-    private ListMultimap<UUID,Runnable> makeJobList() {
+    private ListMultimap<UUID,ExperimentJob> makeJobList() {
         ComponentCache cache = null;
         if (shareModelComponents) {
             cache = new ComponentCache(cacheDir, classLoader);
         }
-        ListMultimap<UUID, Runnable> jobs = MultimapBuilder.linkedHashKeys()
+        ListMultimap<UUID, ExperimentJob> jobs = MultimapBuilder.linkedHashKeys()
                                                            .linkedListValues()
                                                            .build();
 
@@ -496,58 +588,46 @@ public class TrainTestExperiment {
     }
 
     /**
-     * Run the jobs.
+     * Run the jobs.  Each isolation group is run as a task graph in which the shared model
+     * components are built as tasks of their own, before the jobs that use them; see
+     * {@link JobGraph}.  Jobs and component builds are admitted subject to the
+     * {@linkplain #setMemoryBudget(long) memory budget}.
+     *
      * @param jobs The jobs to run.
      */
-    private void runJobList(ListMultimap<UUID, Runnable> jobs) {
-        ExecutorService service = null;
-        ExecutorCompletionService<Void> ecs = null;
+    private void runJobList(ListMultimap<UUID, ExperimentJob> jobs) {
+        TaskGraphExecutor executor;
         int nthreads = getThreadCount();
         if (nthreads > 1) {
             logger.info("running with {} threads", nthreads);
-            service = Executors.newFixedThreadPool(nthreads);
-            ecs = new ExecutorCompletionService<>(service);
+            executor = TaskGraphExecutor.create(nthreads, "eval");
         } else {
             logger.info("running in a single thread");
+            executor = TaskGraphExecutor.singleThreaded();
+        }
+        MemoryBudget budget = MemoryBudget.create(getMemoryBudget(), cacheDir);
+        if (budget.getLimit() < Long.MAX_VALUE) {
+            logger.info("limiting jobs to {} MiB of memory", budget.getLimit() >> 20);
         }
         try {
             for (UUID group: jobs.keySet()) {
                 logger.info("running group {}", group);
-                List<Future<?>> results = new ArrayList<>();
-                for (Runnable job: jobs.get(group)) {
-                    if (ecs == null) {
-                        job.run();
-                    } else {
-                        results.add(ecs.submit(job, null));
-                    }
-                }
-                if (ecs != null) {
-                    // handle completion in order, cancelling tasks if we are interrupted or if there is an errors
-                    int remaining = results.size();
-                    while (remaining > 0) {
-                        try {
-                            Future<Void> r = ecs.take();
-                            r.get();
-                            remaining -= 1;
-                        } catch (InterruptedException ex) {
-                            logger.debug("thread interrupted, cancelling", ex);
-                            for (Future<?> r: results) {
-                                r.cancel(true);
-                            }
-                            // FIXME What should we do with remaining here?
-                        } catch (ExecutionException ex) {
-                            Throwables.propagateIfInstanceOf(ex.getCause(), EvaluationException.class);
-                            for (Future<?> r: results) {
-                                r.cancel(true);
-                            }
-                            throw new EvaluationException("error running evaluation", ex.getCause());
-                        }
-                    }
+                DAGNode<Callable<?>, String> graph = JobGraph.create(jobs.get(group), budget, getHeapMonitor());
+                try {
+                    executor.execute(graph);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new EvaluationException("evaluation interrupted", ex);
+                } catch (ExecutionException ex) {
+                    Throwables.propagateIfInstanceOf(ex.getCause(), EvaluationException.class);
+                    throw new EvaluationException("error running evaluation", ex.getCause());
                 }
             }
-        } finally{
-            if (service != null) {
-                service.shutdown();
+        } finally {
+            try {
+                budget.save();
+            } catch (IOException e) {
+                logger.warn("could not save memory estimates", e);
             }
         }
     }
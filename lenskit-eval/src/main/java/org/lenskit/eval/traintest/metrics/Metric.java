@@ -59,7 +59,9 @@ import java.util.Set;
  * case, there is a single instance of the metric, or an instance per parameterization.
  *
  * Metrics may be used from multiple threads.  LensKit may use multiple threads with
- * the same context.
+ * the same context.  If a metric supports {@linkplain #mergeContexts(Object, Object) merging}
+ * its contexts, the users of a single experimental condition may also be measured in parallel,
+ * each thread with a separate context.
  *
  * @param <X> The type of context used by this metric.
  */
@@ -125,4 +127,30 @@ public abstract class Metric<X> {
     public MetricResult getAggregateMeasurements(X context) {
         return MetricResult.empty();
     }
+
+    /**
+     * Query whether this metric's contexts can be merged with {@link #mergeContexts(Object, Object)}.
+     * The evaluator only measures an experimental condition's users in parallel if all its metrics'
+     * contexts can be merged.  The default implementation returns {@code false}.
+     *
+     * @return {@code true} if this metric supports merging contexts.
+     */
+    public boolean isMergeable() {
+        return false;
+    }
+
+    /**
+     * Merge the measurements accumulated in one context into another.  When users are measured in
+     * parallel, each worker thread measures its users with its own context, and the contexts are
+     * merged before the aggregate measurements are computed.  Metrics overriding this method must
+     * also override {@link #isMergeable()}.
+     *
+     * @param context The context to merge into.
+     * @param other   The context whose measurements should be added to {@code context}.  It is not
+     *                used again after merging.
+     * @throws UnsupportedOperationException if the metric does not support merging (the default).
+     */
+    public void mergeContexts(X context, X other) {
+        throw new UnsupportedOperationException("metric " + getClass().getName() + " cannot merge contexts");
+    }
 }
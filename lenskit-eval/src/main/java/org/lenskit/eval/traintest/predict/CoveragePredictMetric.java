@@ -71,6 +71,16 @@ public class CoveragePredictMetric extends PredictMetric<CoveragePredictMetric.C
         return new AggregateCoverage(context.nusers, context.npreds, context.ngood);
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(Context context, Context other) {
+        context.merge(other);
+    }
+
     public static class Coverage extends TypedMetricResult {
         @MetricColumn(value="NAttempted", order=1)
         public final int nattempted;
@@ -112,5 +122,11 @@ public class CoveragePredictMetric extends PredictMetric<CoveragePredictMetric.C
             ngood += ng;
             nusers += 1;
         }
+
+        private void merge(Context other) {
+            npreds += other.npreds;
+            ngood += other.ngood;
+            nusers += other.nusers;
+        }
     }
 }
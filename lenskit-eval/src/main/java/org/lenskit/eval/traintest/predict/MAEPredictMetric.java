@@ -81,6 +81,16 @@ public class MAEPredictMetric extends PredictMetric<MAEPredictMetric.Context> {
         return context.finish();
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(Context context, Context other) {
+        context.merge(other);
+    }
+
     static class UserResult extends TypedMetricResult {
         @MetricColumn("MAE")
         public final double mae;
@@ -115,6 +125,13 @@ public class MAEPredictMetric extends PredictMetric<MAEPredictMetric.Context> {
             nusers += 1;
         }
 
+        private void merge(Context other) {
+            totalError += other.totalError;
+            totalMAE += other.totalMAE;
+            nratings += other.nratings;
+            nusers += other.nusers;
+        }
+
         public AggregateResult finish() {
             if (nratings > 0) {
                 double v = totalError / nratings;
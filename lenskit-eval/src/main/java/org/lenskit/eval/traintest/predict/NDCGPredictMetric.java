@@ -114,6 +114,16 @@ public class NDCGPredictMetric extends PredictMetric<MeanAccumulator> {
         return MetricResult.singleton(columnName, context.getMean());
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(MeanAccumulator context, MeanAccumulator other) {
+        context.merge(other);
+    }
+
     @Nonnull
     @Override
     public MetricResult measureUser(TestUser user, ResultMap predictions, MeanAccumulator context) {
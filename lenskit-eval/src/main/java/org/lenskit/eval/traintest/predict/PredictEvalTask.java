@@ -244,6 +244,16 @@ public class PredictEvalTask implements EvalTask {
             return metric.getAggregateMeasurements(context);
         }
 
+        public boolean isMergeable() {
+            return metric.isMergeable();
+        }
+
+        @SuppressWarnings("unchecked")
+        public void merge(MetricContext<?> other) {
+            Preconditions.checkArgument(other.metric == metric, "contexts are for different metrics");
+            metric.mergeContexts(context, (X) other.context);
+        }
+
         /**
          * Create a new metric context. Indirected through this method to help the type checker.
          */
@@ -253,7 +263,7 @@ public class PredictEvalTask implements EvalTask {
         }
     }
 
-    class PredictConditionEvaluator implements ConditionEvaluator {
+    class PredictConditionEvaluator implements MergeableConditionEvaluator {
         private final TableWriter writer;
         private final RatingPredictor predictor;
         private final UserHistorySummarizer summarizer = new RatingVectorUserHistorySummarizer();
@@ -293,6 +303,28 @@ public class PredictEvalTask implements EvalTask {
             return row;
         }
 
+        @Override
+        public boolean isMergeable() {
+            for (MetricContext<?> mc: predictMetricContexts) {
+                if (!mc.isMergeable()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void merge(ConditionEvaluator other) {
+            Preconditions.checkArgument(other instanceof PredictConditionEvaluator,
+                                        "cannot merge %s into %s", other, this);
+            List<MetricContext<?>> others = ((PredictConditionEvaluator) other).predictMetricContexts;
+            Preconditions.checkArgument(others.size() == predictMetricContexts.size(),
+                                        "evaluators have different metrics");
+            for (int i = 0; i < others.size(); i++) {
+                predictMetricContexts.get(i).merge(others.get(i));
+            }
+        }
+
         @Nonnull
         @Override
         public Map<String, Object> finish() {
@@ -85,6 +85,16 @@ public class RMSEPredictMetric extends PredictMetric<RMSEPredictMetric.Context>
         return context.finish();
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(Context context, Context other) {
+        context.merge(other);
+    }
+
     static class UserResult extends TypedMetricResult {
         @MetricColumn("RMSE")
         public final double rmse;
@@ -119,6 +129,13 @@ public class RMSEPredictMetric extends PredictMetric<RMSEPredictMetric.Context>
             nusers += 1;
         }
 
+        private void merge(Context other) {
+            totalSSE += other.totalSSE;
+            totalRMSE += other.totalRMSE;
+            nratings += other.nratings;
+            nusers += other.nusers;
+        }
+
         public AggregateResult finish() {
             if (nratings > 0) {
                 double v = sqrt(totalSSE / nratings);
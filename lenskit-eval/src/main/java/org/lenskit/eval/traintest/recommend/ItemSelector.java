@@ -20,10 +20,12 @@
  */
 package org.lenskit.eval.traintest.recommend;
 
+import groovy.lang.Binding;
 import groovy.lang.GroovyShell;
 import groovy.lang.Script;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.grouplens.lenskit.collections.LongUtils;
 import org.lenskit.eval.traintest.TestUser;
 
@@ -112,15 +114,24 @@ public abstract class ItemSelector {
     }
 
     /**
-     * Item selector based on a Groovy script.
+     * Item selector based on a Groovy script.  Scripts keep the current user in their state, so this
+     * selector keeps a separate instance of the script for each thread that uses it.
      */
     public static class GroovyItemSelector extends ItemSelector {
-        private final ItemSelectScript script;
+        private final Class<? extends ItemSelectScript> scriptClass;
         private final String source;
+        private final ThreadLocal<ItemSelectScript> scripts = new ThreadLocal<ItemSelectScript>() {
+            @Override
+            protected ItemSelectScript initialValue() {
+                return (ItemSelectScript) InvokerHelper.createScript(scriptClass, new Binding());
+            }
+        };
 
         GroovyItemSelector(ItemSelectScript scr, String src) {
-            script = scr;
+            scriptClass = scr.getClass();
             source = src;
+            // the compiled instance can serve the compiling thread
+            scripts.set(scr);
         }
 
         /**
@@ -134,6 +145,7 @@ public abstract class ItemSelector {
         @SuppressWarnings("unchecked")
         @Override
         public LongSet selectItems(LongSet universe, TestUser user) {
+            ItemSelectScript script = scripts.get();
             script.setup(universe, user);
             Set<Long> set = (Set<Long>) script.run();
             return LongUtils.asLongSet(set);
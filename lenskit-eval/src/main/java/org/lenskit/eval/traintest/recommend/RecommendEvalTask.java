@@ -279,6 +279,16 @@ public class RecommendEvalTask implements EvalTask {
             return metric.getAggregateMeasurements(context);
         }
 
+        public boolean isMergeable() {
+            return metric.isMergeable();
+        }
+
+        @SuppressWarnings("unchecked")
+        public void merge(MetricContext<?> other) {
+            Preconditions.checkArgument(other.metric == metric, "contexts are for different metrics");
+            metric.mergeContexts(context, (X) other.context);
+        }
+
         /**
          * Create a new metric context. Indirected through this method to help the type checker.
          */
@@ -288,7 +298,7 @@ public class RecommendEvalTask implements EvalTask {
         }
     }
 
-    class TopNConditionEvaluator implements ConditionEvaluator {
+    class TopNConditionEvaluator implements MergeableConditionEvaluator {
         private final TableWriter writer;
         private final ItemRecommender recommender;
         private final UserHistorySummarizer summarizer = new RatingVectorUserHistorySummarizer();
@@ -331,6 +341,28 @@ public class RecommendEvalTask implements EvalTask {
             return row;
         }
 
+        @Override
+        public boolean isMergeable() {
+            for (MetricContext<?> mc: predictMetricContexts) {
+                if (!mc.isMergeable()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void merge(ConditionEvaluator other) {
+            Preconditions.checkArgument(other instanceof TopNConditionEvaluator,
+                                        "cannot merge %s into %s", other, this);
+            List<MetricContext<?>> others = ((TopNConditionEvaluator) other).predictMetricContexts;
+            Preconditions.checkArgument(others.size() == predictMetricContexts.size(),
+                                        "evaluators have different metrics");
+            for (int i = 0; i < others.size(); i++) {
+                predictMetricContexts.get(i).merge(others.get(i));
+            }
+        }
+
         @Nonnull
         @Override
         public Map<String, Object> finish() {
@@ -77,6 +77,16 @@ public class TopNEntropyMetric extends TopNMetric<TopNEntropyMetric.Context> {
         return context.finish();
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(Context context, Context other) {
+        context.merge(other);
+    }
+
     public static class EntropyResult extends TypedMetricResult {
         @MetricColumn("TopN.Entropy")
         public final double entropy;
@@ -96,6 +106,13 @@ public class TopNEntropyMetric extends TopNMetric<TopNEntropyMetric.Context> {
             }
         }
 
+        private void merge(Context other) {
+            for (Long2IntMap.Entry e: other.counts.long2IntEntrySet()) {
+                counts.put(e.getLongKey(), counts.get(e.getLongKey()) + e.getIntValue());
+            }
+            recCount += other.recCount;
+        }
+
         public EntropyResult finish() {
             if (recCount > 0) {
                 double entropy = 0;
@@ -66,6 +66,16 @@ public class TopNLengthMetric extends TopNMetric<MeanAccumulator> {
         return new LengthResult(context.getMean());
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(MeanAccumulator context, MeanAccumulator other) {
+        context.merge(other);
+    }
+
     public static class LengthResult extends TypedMetricResult {
         @MetricColumn("TopN.ActualLength")
         public final double length;
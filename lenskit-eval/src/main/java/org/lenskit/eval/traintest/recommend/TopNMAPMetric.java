@@ -99,6 +99,16 @@ public class TopNMAPMetric extends TopNMetric<TopNMAPMetric.Context> {
         return new AggregateResult(context).withSuffix(suffix);
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(Context context, Context other) {
+        context.merge(other);
+    }
+
     @Nonnull
     @Override
     public MetricResult measureUser(TestUser user, ResultList recs, Context context) {
@@ -176,5 +186,10 @@ public class TopNMAPMetric extends TopNMetric<TopNMAPMetric.Context> {
                 goodMean.add(ur.avgPrecision);
             }
         }
+
+        void merge(Context other) {
+            allMean.merge(other.allMean);
+            goodMean.merge(other.goodMean);
+        }
     }
 }
@@ -96,6 +96,16 @@ public class TopNMRRMetric extends TopNMetric<TopNMRRMetric.Context> {
         return new AggregateResult(context).withSuffix(suffix);
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(Context context, Context other) {
+        context.merge(other);
+    }
+
     @Nonnull
     @Override
     public MetricResult measureUser(TestUser user, ResultList recommendations, Context context) {
@@ -167,5 +177,10 @@ public class TopNMRRMetric extends TopNMetric<TopNMRRMetric.Context> {
                 goodMean.add(ur.getRecipRank());
             }
         }
+
+        void merge(Context other) {
+            allMean.merge(other.allMean);
+            goodMean.merge(other.goodMean);
+        }
     }
 }
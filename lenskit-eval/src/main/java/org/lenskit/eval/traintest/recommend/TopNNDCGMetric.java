@@ -103,6 +103,16 @@ public class TopNNDCGMetric extends TopNMetric<MeanAccumulator> {
         return MetricResult.singleton(columnName, context.getMean());
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(MeanAccumulator context, MeanAccumulator other) {
+        context.merge(other);
+    }
+
     @Nonnull
     @Override
     public MetricResult measureUser(TestUser user, ResultList recommendations, MeanAccumulator context) {
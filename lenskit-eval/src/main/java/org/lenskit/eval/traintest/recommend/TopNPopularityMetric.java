@@ -84,6 +84,16 @@ public class TopNPopularityMetric extends TopNMetric<TopNPopularityMetric.Contex
         return new PopResult(context.mean.getMean());
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(Context context, Context other) {
+        context.mean.merge(other.mean);
+    }
+
     public static class PopResult extends TypedMetricResult {
         @MetricColumn("TopN.MeanPopularity")
         public final double mean;
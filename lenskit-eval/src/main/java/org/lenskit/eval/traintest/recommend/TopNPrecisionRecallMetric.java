@@ -120,6 +120,16 @@ public class TopNPrecisionRecallMetric extends TopNMetric<TopNPrecisionRecallMet
         return context.finish().withSuffix(suffix);
     }
 
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void mergeContexts(Context context, Context other) {
+        context.merge(other);
+    }
+
     public static class PresRecResult extends TypedMetricResult {
         @MetricColumn("Precision")
         public final double precision;
@@ -159,6 +169,12 @@ public class TopNPrecisionRecallMetric extends TopNMetric<TopNPrecisionRecallMet
             nusers += 1;
         }
 
+        private void merge(Context other) {
+            totalPrecision += other.totalPrecision;
+            totalRecall += other.totalRecall;
+            nusers += other.nusers;
+        }
+
         public PresRecResult finish() {
             if (nusers > 0) {
                 return new PresRecResult(totalPrecision / nusers, totalRecall / nusers);
@@ -26,6 +26,7 @@ import org.lenskit.data.dao.EventCollectionDAO
 import org.lenskit.data.dao.EventDAO
 import org.grouplens.lenskit.data.source.DataSource
 import org.grouplens.lenskit.data.source.GenericDataSource
+import org.grouplens.lenskit.data.source.PackedDataSource
 import org.grouplens.lenskit.data.source.TextDataSource
 import org.grouplens.lenskit.data.text.TextEventDAO
 import org.junit.Before
@@ -268,6 +269,103 @@ class CrossfolderTest {
         }
     }
 
+    @Test
+    public void testVirtualPartitions() {
+        cf.outputFormat = OutputFormat.VIRTUAL_PACK
+        cf.execute()
+        def root = tmp.root.toPath()
+        assertThat(Files.exists(root.resolve("ratings.pack")), equalTo(true))
+        assertThat(Files.exists(root.resolve("partitions.dat")), equalTo(true))
+        // no per-partition rating files
+        assertThat(Files.exists(root.resolve("part01.train.pack")), equalTo(false))
+
+        def dss = cf.dataSets
+        assertThat(dss, hasSize(5))
+        def allUsers = new LongOpenHashSet()
+        for (ds in dss) {
+            assertThat(ds.trainingData, instanceOf(PackedDataSource))
+            assertThat(ds.testData, instanceOf(PackedDataSource))
+
+            def users = ds.testData.userDAO.userIds
+            allUsers += users
+            assertThat(users, hasSize(20))
+            assertThat(ds.trainingData.userDAO.userIds, hasSize(100))
+            def ued = ds.testData.userEventDAO
+            for (user in users) {
+                assertThat(ued.getEventsForUser(user), hasSize(10))
+            }
+
+            // train and test data split the ratings
+            def test = ObjectStreams.makeList ds.testData.eventDAO.streamEvents(Rating)
+            def train = ObjectStreams.makeList ds.trainingData.eventDAO.streamEvents(Rating)
+            assertThat(test.size() + train.size(), equalTo(ratings.size()))
+            assertThat(Collections.disjoint(test, train), equalTo(true))
+        }
+        assertThat(allUsers, hasSize(100))
+
+        for (int i = 1; i <= 5; i++) {
+            def specFile = root.resolve(String.format("part%02d.json", i))
+            assertThat(Files.exists(specFile), equalTo(true))
+            def obj = DataSet.fromSpec(SpecUtils.load(DataSetSpec, specFile))
+            assertThat(obj.trainingData, instanceOf(PackedDataSource))
+            assertThat(obj.testData.partition, equalTo(i - 1))
+            assertThat(obj.testData.excludePartition, equalTo(false))
+            assertThat(obj.trainingData.excludePartition, equalTo(true))
+            assertThat(obj.testData.userDAO.userIds,
+                       equalTo(dss[i-1].testData.userDAO.userIds))
+        }
+    }
+
+    @Test
+    public void testVirtualPartitionRatings() {
+        cf.outputFormat = OutputFormat.VIRTUAL_PACK
+        cf.method = CrossfoldMethods.partitionRatings()
+        cf.execute()
+        def dss = cf.dataSets
+        def allEvents = new HashSet<Rating>()
+        double perPart = ratings.size() / 5.0
+        for (ds in dss) {
+            def events = ObjectStreams.makeList ds.testData.eventDAO.streamEvents(Rating)
+            allEvents += events
+            assertThat(events, hasSize(allOf(greaterThanOrEqualTo((Integer) Math.floor(perPart)),
+                                             lessThanOrEqualTo((Integer) Math.ceil(perPart)))))
+            def tes = ObjectStreams.makeList ds.trainingData.eventDAO.streamEvents(Rating)
+            assertThat(tes.size() + events.size(), equalTo(ratings.size()))
+        }
+        assertThat(allEvents, hasSize(ratings.size()))
+    }
+
+    @Test
+    public void testDefaultThreadCount() {
+        def folder = new Crossfolder()
+        assertThat(folder.threadCount, equalTo(1))
+        folder.threadCount = 0
+        assertThat(folder.threadCount, equalTo(Runtime.runtime.availableProcessors()))
+    }
+
+    @Test
+    public void testSeededRunIndependentOfThreads() {
+        def dirs = [tmp.newFolder("serial"), tmp.newFolder("parallel")]
+        def threads = [1, 4]
+        for (i in 0..1) {
+            def folder = new Crossfolder()
+            folder.source = source
+            folder.setOutputDir(dirs[i])
+                  .setRandomSeed(42)
+                  .setThreadCount(threads[i])
+                  .execute()
+        }
+        for (i in 1..5) {
+            for (kind in ["train", "test"]) {
+                def name = String.format("part%02d.%s.csv", i, kind)
+                def serial = dirs[0].toPath().resolve(name)
+                def parallel = dirs[1].toPath().resolve(name)
+                assertThat(Files.exists(serial), equalTo(true))
+                assertThat(parallel.toFile().readLines(), equalTo(serial.toFile().readLines()))
+            }
+        }
+    }
+
     @Test
     public void testUserTimestampOrder() {
         cf.method = CrossfoldMethods.partitionUsers(SortOrder.TIMESTAMP, HistoryPartitions.holdout(5));
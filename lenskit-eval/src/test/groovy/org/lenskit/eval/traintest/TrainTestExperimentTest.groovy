@@ -27,14 +27,22 @@ import org.junit.Test
 import org.junit.rules.TemporaryFolder
 import org.lenskit.api.ItemRecommender
 import org.lenskit.api.ItemScorer
+import org.lenskit.api.ResultMap
 import org.lenskit.baseline.GlobalMeanRatingItemScorer
 import org.lenskit.baseline.ItemMeanRatingItemScorer
+import org.lenskit.basic.AbstractItemScorer
 import org.lenskit.eval.crossfold.CrossfoldMethods
 import org.lenskit.eval.crossfold.Crossfolder
 import org.lenskit.eval.crossfold.HistoryPartitions
 import org.lenskit.eval.crossfold.SortOrder
+import org.lenskit.eval.traintest.predict.PredictEvalTask
+import org.lenskit.inject.Shareable
+import org.lenskit.results.Results
+
+import javax.inject.Inject
 
 import java.nio.file.Paths
+import java.util.concurrent.atomic.AtomicInteger
 
 import static org.hamcrest.Matchers.*
 import static org.junit.Assert.assertThat
@@ -83,6 +91,54 @@ class TrainTestExperimentTest {
         experiment.addDataSets(sets)
         def result = experiment.execute()
         assertThat(result, notNullValue())
+        assertThat(result.layout.columns, hasItems("BuildTime", "TestTime", "PeakMemory"))
+        for (row in result) {
+            assertThat(row.value("PeakMemory") as Long, greaterThan(0L))
+        }
+    }
+
+    @Test
+    void testRunParallelUsers() {
+        List<DataSet> sets = crossfoldRatings()
+        experiment.addAlgorithm("Baseline") {
+            bind ItemScorer to ItemMeanRatingItemScorer
+        }
+        experiment.addDataSets(sets)
+        experiment.addTask(new PredictEvalTask())
+        experiment.threadCount = 1
+        def sequential = experiment.execute()
+
+        experiment.userThreadCount = 3
+        assertThat(experiment.userThreadCount, equalTo(3))
+        def parallel = experiment.execute()
+        assertThat(parallel, hasSize(sequential.size()))
+        for (int i = 0; i < sequential.size(); i++) {
+            for (col in ['NUsers', 'NGood']) {
+                assertThat(parallel[i].value(col), equalTo(sequential[i].value(col)))
+            }
+            for (col in ['RMSE.ByUser', 'RMSE.ByRating', 'MAE.ByUser']) {
+                assertThat((double) parallel[i].value(col),
+                           closeTo((double) sequential[i].value(col), 1.0e-10))
+            }
+        }
+    }
+
+    @Test
+    void testSharedComponentBuiltOnce() {
+        List<DataSet> sets = crossfoldRatings()
+        CountingModel.count.set(0)
+        experiment.addAlgorithm("A1") {
+            bind ItemScorer to CountingItemScorer
+        }
+        experiment.addAlgorithm("A2") {
+            bind ItemScorer to CountingItemScorer
+        }
+        experiment.addDataSets(sets)
+        experiment.threadCount = 2
+        def result = experiment.execute()
+        assertThat(result, hasSize(4))
+        // one model per data set, shared by both algorithms
+        assertThat(CountingModel.count.get(), equalTo(2))
     }
 
     private List<DataSet> crossfoldRatings() {
@@ -116,6 +172,7 @@ class TrainTestExperimentTest {
         def cfg = folder.newFile("algos.groovy")
         cfg.text = '''import org.lenskit.baseline.*
 import org.lenskit.api.ItemScorer
+import org.lenskit.api.ResultMap
 
 algorithm('A1') {
     attributes['foo'] = 'bar'
@@ -135,4 +192,24 @@ algorithm('A2') {
         assertThat(experiment.algorithms[1].attributes,
                    hasEntry('foo', 'bat'))
     }
+
+    @Shareable
+    static class CountingModel implements Serializable {
+        static final AtomicInteger count = new AtomicInteger()
+
+        @Inject
+        CountingModel() {
+            count.incrementAndGet()
+        }
+    }
+
+    static class CountingItemScorer extends AbstractItemScorer {
+        @Inject
+        CountingItemScorer(CountingModel model) {}
+
+        @Override
+        ResultMap scoreWithDetails(long user, Collection<Long> items) {
+            return Results.newResultMap()
+        }
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.eval.traintest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MemoryBudgetTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAdmitWithinBudget() throws InterruptedException {
+        MemoryBudget budget = MemoryBudget.create(100, null);
+        budget.admit("a", 40);
+        budget.admit("b", 60);
+        assertThat(budget.getReserved(), equalTo(100L));
+        budget.finished();
+        budget.free(40);
+        assertThat(budget.getReserved(), equalTo(60L));
+    }
+
+    @Test
+    public void testAdmitOversizedWhenIdle() throws InterruptedException {
+        MemoryBudget budget = MemoryBudget.create(100, null);
+        // nothing else running, so this must not wait
+        budget.admit("big", 500);
+        assertThat(budget.getReserved(), equalTo(500L));
+    }
+
+    @Test
+    public void testWaitForMemory() throws InterruptedException {
+        final MemoryBudget budget = MemoryBudget.create(100, null);
+        budget.admit("a", 80);
+        final AtomicBoolean admitted = new AtomicBoolean();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    budget.admit("b", 50);
+                    admitted.set(true);
+                } catch (InterruptedException e) {
+                    /* the test will fail */
+                }
+            }
+        };
+        thread.start();
+        thread.join(200);
+        assertThat(admitted.get(), equalTo(false));
+
+        budget.finished();
+        budget.free(80);
+        thread.join(5000);
+        assertThat(admitted.get(), equalTo(true));
+        assertThat(budget.getReserved(), equalTo(50L));
+    }
+
+    @Test
+    public void testEstimatesSmoothed() {
+        MemoryBudget budget = MemoryBudget.create(100, null);
+        budget.recordUse("foo", 40);
+        assertThat(budget.getEstimate("foo"), equalTo(40L));
+        budget.recordUse("foo", 20);
+        assertThat(budget.getEstimate("foo"), equalTo(30L));
+        // estimates can go down as well as up
+        budget.recordUse("foo", 10);
+        assertThat(budget.getEstimate("foo"), equalTo(20L));
+    }
+
+    @Test
+    public void testEstimatesSaved() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MemoryBudget budget = MemoryBudget.create(100, dir);
+        assertThat(budget.getEstimate("foo"), equalTo(0L));
+        budget.recordUse("foo", 42);
+        budget.save();
+        assertThat(Files.exists(dir.resolve(MemoryBudget.ESTIMATE_FILE)), equalTo(true));
+
+        MemoryBudget loaded = MemoryBudget.create(100, dir);
+        assertThat(loaded.getEstimate("foo"), equalTo(42L));
+        assertThat(loaded.getEstimate("bar"), equalTo(0L));
+    }
+}
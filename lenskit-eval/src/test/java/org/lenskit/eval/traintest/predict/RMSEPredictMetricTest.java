@@ -81,4 +81,33 @@ public class RMSEPredictMetricTest {
                    allOf(instanceOf(Double.class),
                          (Matcher) closeTo(Math.sqrt((0.25 + 2.25) / 2), 1.0e-6)));
     }
+
+    @Test
+    public void testMergeContexts() {
+        TestUser u1 = TestUser.newBuilder()
+                              .setUserId(42)
+                              .addTestRating(37, 3.5)
+                              .build();
+        TestUser u2 = TestUser.newBuilder()
+                              .setUserId(39)
+                              .addTestRating(37, 3.5)
+                              .addTestRating(12, 2.0)
+                              .build();
+        ResultMap predictions = Results.newResultMap(Results.create(37, 4.0),
+                                                     Results.create(12, 3.5));
+
+        RMSEPredictMetric.Context whole = metric.createContext(null, null, null);
+        metric.measureUser(u1, predictions, whole);
+        metric.measureUser(u2, predictions, whole);
+
+        RMSEPredictMetric.Context ctx = metric.createContext(null, null, null);
+        RMSEPredictMetric.Context other = metric.createContext(null, null, null);
+        metric.measureUser(u1, predictions, ctx);
+        metric.measureUser(u2, predictions, other);
+        assertThat(metric.isMergeable(), equalTo(true));
+        metric.mergeContexts(ctx, other);
+
+        assertThat(metric.getAggregateMeasurements(ctx).getValues(),
+                   equalTo(metric.getAggregateMeasurements(whole).getValues()));
+    }
 }
@@ -25,6 +25,10 @@ import org.grouplens.lenskit.collections.LongUtils;
 import org.junit.Test;
 import org.lenskit.eval.traintest.TestUser;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
@@ -76,4 +80,38 @@ public class ItemSelectorTest {
         assertThat(selected, allOf(hasItem(1L), hasItem(39L)));
         assertThat(selected, hasSize(4));
     }
+
+    @Test
+    public void testConcurrentUsers() throws Exception {
+        final LongSet items = LongUtils.packedSet(42, 37, 39, 102);
+        final ItemSelector selector = ItemSelector.compileSelector("user.testItems");
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final long item = t;
+                results.add(service.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        TestUser user = TestUser.newBuilder()
+                                                .setUserId(item)
+                                                .addTestRating(item, 3.5)
+                                                .build();
+                        for (int i = 0; i < 200; i++) {
+                            LongSet selected = selector.selectItems(items, user);
+                            if (selected.size() != 1 || !selected.contains(item)) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result: results) {
+                assertThat(result.get(), equalTo(true));
+            }
+        } finally {
+            service.shutdown();
+        }
+    }
 }
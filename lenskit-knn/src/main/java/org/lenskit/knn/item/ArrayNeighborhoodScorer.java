@@ -0,0 +1,47 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+
+/**
+ * Neighborhood scorer that can also compute scores from arrays of similarities and scores.
+ * {@link ItemItemScorer} uses this form, when the scorer supports it, to accumulate
+ * neighborhoods into primitive arrays instead of maps; other scorers are called through
+ * {@link NeighborhoodScorer#score(long, Long2DoubleMap, Long2DoubleMap)}.
+ *
+ * <p>Implementing this interface opts in to the array form, which the item-item scorer then uses
+ * for every item.  Implementations must compute the same score as the map-based method, so a
+ * subclass that changes one of the methods must change the other as well.</p>
+ *
+ * @since 3.0
+ */
+public interface ArrayNeighborhoodScorer extends NeighborhoodScorer {
+    /**
+     * Compute a score from arrays of neighbor similarities and scores.
+     *
+     * @param similarities The similarities of the neighbors.
+     * @param scores       The scores of the neighbors, parallel to <var>similarities</var>.
+     * @param n            The number of neighbors (the arrays may be longer).
+     * @return The accumulated score, or {@link Double#NaN} if no score could be computed.
+     */
+    double score(double[] similarities, double[] scores, int n);
+}
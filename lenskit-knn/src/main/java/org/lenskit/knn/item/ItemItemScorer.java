@@ -41,14 +41,17 @@ import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemScorer;
 import org.lenskit.knn.MinNeighbors;
 import org.lenskit.knn.NeighborhoodSize;
+import org.lenskit.knn.item.model.IndexedItemItemModel;
 import org.lenskit.knn.item.model.ItemItemModel;
 import org.lenskit.results.Results;
+import org.lenskit.util.keys.SortedKeyIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
@@ -70,6 +73,10 @@ public class ItemItemScorer extends AbstractItemScorer {
     protected final NeighborhoodScorer scorer;
     private final int neighborhoodSize;
     private final int minNeighbors;
+    /**
+     * The array form of the neighborhood scorer, or {@code null} to use the map-based path.
+     */
+    private final ArrayNeighborhoodScorer arrayScorer;
 
     /**
      * Construct a new item-item scorer.
@@ -95,6 +102,11 @@ public class ItemItemScorer extends AbstractItemScorer {
         normalizer = norm;
         neighborhoodSize = nnbrs;
         minNeighbors = min;
+        if (scorer instanceof ArrayNeighborhoodScorer) {
+            arrayScorer = (ArrayNeighborhoodScorer) scorer;
+        } else {
+            arrayScorer = null;
+        }
         logger.debug("configured item-item scorer with scorer {}", scorer);
     }
 
@@ -117,6 +129,93 @@ public class ItemItemScorer extends AbstractItemScorer {
         VectorTransformation transform = normalizer.makeTransformation(user, summary);
         MutableSparseVector normed = summary.mutableCopy();
         transform.apply(normed);
+
+        if (arrayScorer == null) {
+            return scoreWithMaps(normed, transform, items);
+        }
+
+        ScoringWorkspace work = new ScoringWorkspace(neighborhoodSize, items.size());
+        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        if (model instanceof IndexedItemItemModel) {
+            IndexedItemItemModel indexed = (IndexedItemItemModel) model;
+            SortedKeyIndex index = indexed.getItemIndex();
+            // the user's ratings by model item index, sorted by index
+            int[] userItems = new int[normed.size()];
+            double[] userScores = new double[normed.size()];
+            int nrated = 0;
+            for (VectorEntry e: normed.fast()) {
+                int idx = index.tryGetIndex(e.getKey());
+                if (idx >= 0) {
+                    userItems[nrated] = idx;
+                    userScores[nrated] = e.getValue();
+                    nrated += 1;
+                }
+            }
+            // both the vector and the index are in key order, so the indexes are sorted
+            while (iter.hasNext()) {
+                final long item = iter.nextLong();
+                work.startNeighborhood();
+                int idx = index.tryGetIndex(item);
+                if (idx >= 0) {
+                    int end = indexed.getNeighborEnd(idx);
+                    for (int pos = indexed.getNeighborStart(idx); pos < end; pos++) {
+                        int u = Arrays.binarySearch(userItems, 0, nrated, indexed.getNeighborIndex(pos));
+                        if (u >= 0) {
+                            work.addNeighbor(indexed.getNeighborScore(pos), userScores[u]);
+                        }
+                    }
+                }
+                finishItem(work, item);
+            }
+        } else {
+            while (iter.hasNext()) {
+                final long item = iter.nextLong();
+                work.startNeighborhood();
+                for (VectorEntry e: model.getNeighbors(item).fast()) {
+                    long nbr = e.getKey();
+                    if (normed.containsKey(nbr)) {
+                        work.addNeighbor(e.getValue(), normed.get(nbr));
+                    }
+                }
+                finishItem(work, item);
+            }
+        }
+
+        // de-normalize the results in place
+        work.sortResults();
+        int n = work.resultCount;
+        MutableSparseVector vec = MutableSparseVector.wrap(work.resultItems, work.resultScores, n);
+        transform.unapply(vec);
+
+        List<ItemItemResult> results = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            long item = work.resultItems[i];
+            results.add(new ItemItemResult(item, vec.get(item), work.resultSizes[i]));
+        }
+
+        return Results.newResultMap(results);
+    }
+
+    /**
+     * Score the neighborhood accumulated in a workspace and record the result.
+     */
+    private void finishItem(ScoringWorkspace work, long item) {
+        int n = work.size;
+        if (n < minNeighbors) {
+            return;
+        }
+        double score = arrayScorer.score(work.similarities, work.scores, n);
+        if (!Double.isNaN(score)) {
+            work.addResult(item, score, n);
+        }
+    }
+
+    /**
+     * Score items with map-based neighborhood accumulation, for neighborhood scorers that do not
+     * support the array form.
+     */
+    private ResultMap scoreWithMaps(MutableSparseVector normed, VectorTransformation transform,
+                                    Collection<Long> items) {
         Long2DoubleMap itemScores = normed.asMap();
 
         List<ItemItemResult> results = new ArrayList<>(items.size());
@@ -146,6 +245,14 @@ public class ItemItemScorer extends AbstractItemScorer {
         return Results.newResultMap(results);
     }
 
+    /**
+     * Score a single item with map-based neighborhood accumulation.  This is used only when the
+     * neighborhood scorer does not implement {@link ArrayNeighborhoodScorer}.
+     *
+     * @param userData The user's normalized ratings.
+     * @param item     The item to score.
+     * @return The result, or {@code null} if the item cannot be scored.
+     */
     protected ItemItemResult scoreItem(Long2DoubleMap userData, long item) {
         SparseVector allNeighbors = model.getNeighbors(item);
         ScoredItemAccumulator acc = null;
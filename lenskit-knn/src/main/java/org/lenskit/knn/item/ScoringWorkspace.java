@@ -0,0 +1,186 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item;
+
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+
+import java.util.Arrays;
+
+/**
+ * Scratch space for one call to {@link ItemItemScorer#scoreWithDetails(long, java.util.Collection)}.
+ * Scoring a batch of items only allocates when a buffer needs to grow.  It holds two things:
+ *
+ * <ul>
+ * <li>The neighborhood of the item currently being scored, as parallel similarity and score
+ * arrays, kept as a min-heap on similarity when the neighborhood size is limited.</li>
+ * <li>The raw scores computed so far, as parallel item, score and neighborhood size arrays.</li>
+ * </ul>
+ *
+ * <p>A workspace is sized by the neighborhood size and the number of items requested, not by
+ * the size of the model, so it is cheap to create for each request.</p>
+ */
+final class ScoringWorkspace {
+    private static final int INITIAL_CAPACITY = 32;
+
+    // the current neighborhood
+    private final int limit;
+    double[] similarities;
+    double[] scores;
+    int size;
+
+    // the results
+    long[] resultItems;
+    double[] resultScores;
+    int[] resultSizes;
+    int resultCount;
+
+    private final IntComparator resultComparator = new AbstractIntComparator() {
+        @Override
+        public int compare(int i, int j) {
+            return Long.compare(resultItems[i], resultItems[j]);
+        }
+    };
+    private final Swapper resultSwapper = new Swapper() {
+        @Override
+        public void swap(int i, int j) {
+            long item = resultItems[i];
+            resultItems[i] = resultItems[j];
+            resultItems[j] = item;
+            double score = resultScores[i];
+            resultScores[i] = resultScores[j];
+            resultScores[j] = score;
+            int n = resultSizes[i];
+            resultSizes[i] = resultSizes[j];
+            resultSizes[j] = n;
+        }
+    };
+
+    /**
+     * Create a workspace.
+     * @param nnbrs The maximum neighborhood size, or 0 for unlimited neighborhoods.
+     * @param nitems The number of items to be scored.
+     */
+    ScoringWorkspace(int nnbrs, int nitems) {
+        limit = nnbrs;
+        int cap = nnbrs > 0 ? nnbrs : INITIAL_CAPACITY;
+        similarities = new double[cap];
+        scores = new double[cap];
+        int rcap = Math.max(nitems, 1);
+        resultItems = new long[rcap];
+        resultScores = new double[rcap];
+        resultSizes = new int[rcap];
+    }
+
+    /**
+     * Start accumulating a new neighborhood.
+     */
+    void startNeighborhood() {
+        size = 0;
+    }
+
+    /**
+     * Offer a neighbor to the current neighborhood.
+     * @param sim The neighbor's similarity.
+     * @param score The user's score for the neighbor.
+     */
+    void addNeighbor(double sim, double score) {
+        if (limit <= 0) {
+            if (size == similarities.length) {
+                similarities = Arrays.copyOf(similarities, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            similarities[size] = sim;
+            scores[size] = score;
+            size += 1;
+        } else if (size < limit) {
+            // add to the heap and sift up
+            int i = size;
+            size += 1;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (similarities[parent] <= sim) {
+                    break;
+                }
+                similarities[i] = similarities[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            similarities[i] = sim;
+            scores[i] = score;
+        } else if (sim > similarities[0]) {
+            // replace the least similar neighbor and sift down
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && similarities[child + 1] < similarities[child]) {
+                    child += 1;
+                }
+                if (similarities[child] >= sim) {
+                    break;
+                }
+                similarities[i] = similarities[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            similarities[i] = sim;
+            scores[i] = score;
+        }
+    }
+
+    /**
+     * Record a raw score.
+     */
+    void addResult(long item, double score, int nnbrs) {
+        if (resultCount == resultItems.length) {
+            int cap = resultCount * 2;
+            resultItems = Arrays.copyOf(resultItems, cap);
+            resultScores = Arrays.copyOf(resultScores, cap);
+            resultSizes = Arrays.copyOf(resultSizes, cap);
+        }
+        resultItems[resultCount] = item;
+        resultScores[resultCount] = score;
+        resultSizes[resultCount] = nnbrs;
+        resultCount += 1;
+    }
+
+    /**
+     * Sort the results by item and remove duplicate items, so the result arrays can back a
+     * sparse vector.
+     */
+    void sortResults() {
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, resultCount, resultComparator, resultSwapper);
+        int n = 0;
+        for (int i = 0; i < resultCount; i++) {
+            if (n == 0 || resultItems[i] != resultItems[n - 1]) {
+                if (n != i) {
+                    resultSwapper.swap(n, i);
+                }
+                n += 1;
+            }
+        }
+        resultCount = n;
+    }
+}
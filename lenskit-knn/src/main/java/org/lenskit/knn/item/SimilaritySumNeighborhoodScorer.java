@@ -32,7 +32,7 @@ import java.io.Serializable;
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 @Shareable
-public class SimilaritySumNeighborhoodScorer implements NeighborhoodScorer, Serializable {
+public class SimilaritySumNeighborhoodScorer implements ArrayNeighborhoodScorer, Serializable {
     private static final long serialVersionUID = 1L;
 
     @Override
@@ -44,6 +44,18 @@ public class SimilaritySumNeighborhoodScorer implements NeighborhoodScorer, Seri
         }
     }
 
+    @Override
+    public double score(double[] similarities, double[] scores, int n) {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += similarities[i];
+        }
+        return sum;
+    }
+
     @Override
     public String toString() {
         return "[NeighborhoodScorer: SimilaritySum]";
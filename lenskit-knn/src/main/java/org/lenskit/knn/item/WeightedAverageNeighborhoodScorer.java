@@ -33,7 +33,7 @@ import java.io.Serializable;
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 @Shareable
-public class WeightedAverageNeighborhoodScorer implements NeighborhoodScorer, Serializable {
+public class WeightedAverageNeighborhoodScorer implements ArrayNeighborhoodScorer, Serializable {
     private static final long serialVersionUID = 1L;
     public static final Symbol NEIGHBORHOOD_WEIGHT_SYMBOL =
             Symbol.of("org.grouplens.lenskit.knn.item.neighborhoodWeight");
@@ -49,6 +49,21 @@ public class WeightedAverageNeighborhoodScorer implements NeighborhoodScorer, Se
         }
     }
 
+    @Override
+    public double score(double[] similarities, double[] scores, int n) {
+        double weight = 0;
+        double weightedSum = 0;
+        for (int i = 0; i < n; i++) {
+            weight += Math.abs(similarities[i]);
+            weightedSum += similarities[i] * scores[i];
+        }
+        if (weight > 0) {
+            return weightedSum / weight;
+        } else {
+            return Double.NaN;
+        }
+    }
+
     @Override
     public String toString() {
         return "[NeighborhoodScorer: WeightedAverage]";
@@ -0,0 +1,548 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.grouplens.lenskit.util.ScoredItemAccumulator;
+import org.grouplens.lenskit.util.TopNScoredItemAccumulator;
+import org.grouplens.lenskit.util.UnlimitedScoredItemAccumulator;
+import org.grouplens.lenskit.vectors.ImmutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.grouplens.lenskit.vectors.similarity.PearsonCorrelation;
+import org.grouplens.lenskit.vectors.similarity.VectorSimilarity;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemSimilarityThreshold;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.lenskit.knn.item.ModelBuildThreads;
+import org.lenskit.knn.item.ModelSize;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.lenskit.util.math.Scalars;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Build an item-item model by accumulating co-occurrence statistics over user profiles, rather
+ * than intersecting pairs of item vectors.
+ *
+ * <p>For each item, this builder walks the users who rated it and, through each user's profile,
+ * every item co-rated with it, accumulating the dot product (and, if needed, the other moments of
+ * the co-rated values) for every co-rated item at once.  Similarities are finalized from these
+ * statistics at the end of each row.  The total work is proportional to the sum of the squared
+ * user profile lengths, instead of the number of candidate pairs times the vector length, which
+ * is much less on long-tailed data.</p>
+ *
+ * <p>This is only possible for similarity functions that can be computed from pairwise
+ * statistics; it currently supports {@link CosineVectorSimilarity} and {@link PearsonCorrelation}
+ * used through {@link ItemVectorSimilarity}.  Similarities computed this way are equal to the
+ * standard ones up to floating-point rounding, including the NaN that an undamped Pearson
+ * correlation yields when either item's co-rated values are constant.  Walking the profiles
+ * visits every co-rated pair, which is what the {@link SparseNeighborIterationStrategy} and
+ * {@link BasicNeighborIterationStrategy} consider; pairs with no co-raters, which those strategies
+ * may also produce, have a similarity of 0 and are omitted.  For any other similarity function
+ * or neighbor iteration strategy (such as {@link LSHNeighborIterationStrategy}, which restricts
+ * the candidates), it falls back to the standard {@link ItemItemModelBuilder}.</p>
+ *
+ * <p>If {@link ModelBuildThreads} is greater than 1, rows are computed on a fork-join pool.  Each
+ * worker walks the complete co-rating neighborhood of its rows, so every similarity is computed
+ * twice, once for each of its rows; the rows see their neighbors in the same order as in a
+ * sequential build, so the model is identical.</p>
+ *
+ * <p>To use it, bind {@link ItemItemModel} (or {@link SimilarityMatrixModel}) to this class as a
+ * provider.</p>
+ *
+ * @since 3.0
+ */
+@NotThreadSafe
+public class CoOccurrenceItemItemModelBuilder implements Provider<SimilarityMatrixModel> {
+    private static final Logger logger = LoggerFactory.getLogger(CoOccurrenceItemItemModelBuilder.class);
+
+    private final ItemSimilarity itemSimilarity;
+    private final ItemItemBuildContext buildContext;
+    private final Threshold threshold;
+    private final NeighborIterationStrategy neighborStrategy;
+    private final int modelSize;
+    private final int threadCount;
+
+    @Inject
+    public CoOccurrenceItemItemModelBuilder(@Transient ItemSimilarity similarity,
+                                            @Transient ItemItemBuildContext context,
+                                            @Transient @ItemSimilarityThreshold Threshold thresh,
+                                            @Transient NeighborIterationStrategy nbrStrat,
+                                            @ModelSize int size,
+                                            @ModelBuildThreads int nthreads) {
+        itemSimilarity = similarity;
+        buildContext = context;
+        threshold = thresh;
+        neighborStrategy = nbrStrat;
+        if (size < 0) {
+            throw new IllegalArgumentException("model size is negative");
+        }
+        modelSize = size;
+        if (nthreads == 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        } else if (nthreads > 0) {
+            threadCount = nthreads;
+        } else {
+            throw new IllegalArgumentException("thread count is negative");
+        }
+    }
+
+    @Override
+    public SimilarityMatrixModel get() {
+        PairSimilarity pairSim = PairSimilarity.forSimilarity(itemSimilarity);
+        if (pairSim == null) {
+            logger.warn("similarity {} cannot be computed from co-occurrence statistics, using standard build",
+                        itemSimilarity);
+            return buildStandard();
+        }
+        Class<?> stratClass = neighborStrategy.getClass();
+        if (!stratClass.equals(SparseNeighborIterationStrategy.class)
+                && !stratClass.equals(BasicNeighborIterationStrategy.class)) {
+            logger.info("neighbor strategy {} restricts candidates, using standard build",
+                        neighborStrategy);
+            return buildStandard();
+        }
+
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(buildContext.getItems());
+        final int nitems = items.size();
+        logger.info("building item-item model for {} items from co-occurrences", nitems);
+        logger.debug("using similarity function {}", itemSimilarity);
+
+        Stopwatch timer = Stopwatch.createStarted();
+        RatingMatrix matrix = new RatingMatrix(items, buildContext);
+        logger.debug("indexed {} ratings from {} users in {}",
+                     matrix.itemUsers.length, matrix.userCount, timer);
+
+        double[] norms = new double[nitems];
+        for (int i = 0; i < nitems; i++) {
+            norms[i] = buildContext.itemVector(items.getKey(i)).norm();
+        }
+
+        ImmutableSparseVector[] rows;
+        if (threadCount > 1) {
+            rows = buildParallel(items, matrix, norms, pairSim);
+        } else {
+            rows = buildSequential(items, matrix, norms, pairSim);
+        }
+        timer.stop();
+        logger.info("built model for {} items in {}", nitems, timer);
+
+        Long2ObjectMap<ImmutableSparseVector> results = new Long2ObjectOpenHashMap<ImmutableSparseVector>(nitems);
+        for (int i = 0; i < nitems; i++) {
+            results.put(items.getKey(i), rows[i]);
+        }
+        return new SimilarityMatrixModel(results);
+    }
+
+    private SimilarityMatrixModel buildStandard() {
+        return new ItemItemModelBuilder(itemSimilarity, buildContext, threshold,
+                                        neighborStrategy, modelSize, threadCount).get();
+    }
+
+    private ScoredItemAccumulator makeAccumulator() {
+        if (modelSize == 0) {
+            return new UnlimitedScoredItemAccumulator();
+        } else {
+            return new TopNScoredItemAccumulator(modelSize);
+        }
+    }
+
+    /**
+     * Build the rows on the current thread.  Each pair is visited once, from its first item, and
+     * the similarity is stored in both rows.
+     */
+    private ImmutableSparseVector[] buildSequential(SortedKeyIndex items, RatingMatrix matrix,
+                                                    double[] norms, PairSimilarity pairSim) {
+        final int nitems = items.size();
+        ScoredItemAccumulator[] rows = new ScoredItemAccumulator[nitems];
+        for (int i = 0; i < nitems; i++) {
+            rows[i] = makeAccumulator();
+        }
+
+        PairStatistics stats = new PairStatistics(nitems, pairSim.needsMoments());
+        IntArrayList touched = new IntArrayList();
+
+        for (int i1 = 0; i1 < nitems; i1++) {
+            // only visit items after i1
+            accumulate(matrix, i1, i1 + 1, stats, touched);
+
+            final long item1 = items.getKey(i1);
+            int[] nbrs = touched.elements();
+            final int ntouched = touched.size();
+            IntArrays.quickSort(nbrs, 0, ntouched);
+            for (int j = 0; j < ntouched; j++) {
+                final int i2 = nbrs[j];
+                double sim = pairSim.finish(stats, i2, norms[i1], norms[i2]);
+                stats.clear(i2);
+                if (threshold.retain(sim)) {
+                    long item2 = items.getKey(i2);
+                    rows[i1].put(item2, sim);
+                    rows[i2].put(item1, sim);
+                }
+            }
+            touched.clear();
+
+            if (logger.isDebugEnabled() && (i1 + 1) % 1000 == 0) {
+                logger.debug("computed {} of {} model rows", i1 + 1, nitems);
+            }
+        }
+
+        ImmutableSparseVector[] results = new ImmutableSparseVector[nitems];
+        for (int i = 0; i < nitems; i++) {
+            results[i] = rows[i].finishVector().freeze();
+            rows[i] = null;
+        }
+        return results;
+    }
+
+    /**
+     * Build the rows on a fork-join pool.  Each worker takes rows from a shared counter and
+     * computes each row completely, visiting all its co-rated items in index order; this is
+     * the same order in which a sequential build inserts them (first the write-backs from
+     * earlier rows, then the later items), so the rows are identical.
+     */
+    private ImmutableSparseVector[] buildParallel(final SortedKeyIndex items, final RatingMatrix matrix,
+                                                  final double[] norms, final PairSimilarity pairSim) {
+        logger.info("computing co-occurrences with {} threads", threadCount);
+        final int nitems = items.size();
+        final ImmutableSparseVector[] rows = new ImmutableSparseVector[nitems];
+        final AtomicInteger nextRow = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        try {
+            List<Future<?>> workers = new ArrayList<Future<?>>(threadCount);
+            for (int t = 0; t < threadCount; t++) {
+                workers.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        PairStatistics stats = new PairStatistics(nitems, pairSim.needsMoments());
+                        IntArrayList touched = new IntArrayList();
+                        int i1;
+                        while ((i1 = nextRow.getAndIncrement()) < nitems) {
+                            rows[i1] = computeRow(items, matrix, norms, pairSim, i1, stats, touched);
+                        }
+                    }
+                }));
+            }
+            // waiting for the futures also publishes the rows written by the workers
+            for (Future<?> worker: workers) {
+                worker.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("model build interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause());
+            throw new RuntimeException("error computing item similarities", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return rows;
+    }
+
+    private ImmutableSparseVector computeRow(SortedKeyIndex items, RatingMatrix matrix,
+                                             double[] norms, PairSimilarity pairSim, int i1,
+                                             PairStatistics stats, IntArrayList touched) {
+        accumulate(matrix, i1, 0, stats, touched);
+        ScoredItemAccumulator row = makeAccumulator();
+        int[] nbrs = touched.elements();
+        final int ntouched = touched.size();
+        IntArrays.quickSort(nbrs, 0, ntouched);
+        for (int j = 0; j < ntouched; j++) {
+            final int i2 = nbrs[j];
+            // the statistics are symmetric in the two items, so the similarity does not depend
+            // on which row computes it
+            double sim = pairSim.finish(stats, i2, norms[i1], norms[i2]);
+            stats.clear(i2);
+            if (threshold.retain(sim)) {
+                row.put(items.getKey(i2), sim);
+            }
+        }
+        touched.clear();
+        return row.finishVector().freeze();
+    }
+
+    /**
+     * Accumulate the co-rating statistics between an item and the items it is co-rated with.
+     *
+     * @param matrix The rating matrix.
+     * @param i1 The item index.
+     * @param minItem The lowest index of co-rated items to visit.
+     * @param stats The statistics accumulator.
+     * @param touched The list to receive the indexes of the co-rated items visited.
+     */
+    private static void accumulate(RatingMatrix matrix, int i1, int minItem,
+                                   PairStatistics stats, IntArrayList touched) {
+        for (int p = matrix.itemOffsets[i1]; p < matrix.itemOffsets[i1 + 1]; p++) {
+            final int user = matrix.itemUsers[p];
+            final double x = matrix.itemValues[p];
+            final int uend = matrix.userOffsets[user + 1];
+            // user profiles are sorted by item index
+            int q = matrix.userOffsets[user];
+            if (minItem > 0) {
+                q = Arrays.binarySearch(matrix.userItems, q, uend, minItem);
+                if (q < 0) {
+                    q = -q - 1;
+                }
+            }
+            for (; q < uend; q++) {
+                int i2 = matrix.userItems[q];
+                if (i2 == i1) {
+                    continue;
+                }
+                if (stats.counts[i2] == 0) {
+                    touched.add(i2);
+                }
+                stats.add(i2, x, matrix.userValues[q]);
+            }
+        }
+    }
+
+    /**
+     * The normalized ratings in compressed sparse form, indexed both by item and by user.  Each
+     * user's profile is sorted by item index.
+     */
+    private static final class RatingMatrix {
+        final int userCount;
+        final int[] itemOffsets;
+        final int[] itemUsers;
+        final double[] itemValues;
+        final int[] userOffsets;
+        final int[] userItems;
+        final double[] userValues;
+
+        RatingMatrix(SortedKeyIndex items, ItemItemBuildContext context) {
+            final int nitems = items.size();
+            LongOpenHashSet userIds = new LongOpenHashSet();
+            int nratings = 0;
+            for (int i = 0; i < nitems; i++) {
+                SparseVector v = context.itemVector(items.getKey(i));
+                userIds.addAll(v.keySet());
+                nratings += v.size();
+            }
+            SortedKeyIndex users = SortedKeyIndex.fromCollection(userIds);
+            userCount = users.size();
+
+            itemOffsets = new int[nitems + 1];
+            itemUsers = new int[nratings];
+            itemValues = new double[nratings];
+            int[] userCounts = new int[userCount];
+            int pos = 0;
+            for (int i = 0; i < nitems; i++) {
+                itemOffsets[i] = pos;
+                for (VectorEntry e: context.itemVector(items.getKey(i)).fast()) {
+                    int u = users.getIndex(e.getKey());
+                    itemUsers[pos] = u;
+                    itemValues[pos] = e.getValue();
+                    userCounts[u] += 1;
+                    pos += 1;
+                }
+            }
+            itemOffsets[nitems] = pos;
+
+            userOffsets = new int[userCount + 1];
+            for (int u = 0; u < userCount; u++) {
+                userOffsets[u + 1] = userOffsets[u] + userCounts[u];
+            }
+            userItems = new int[nratings];
+            userValues = new double[nratings];
+            // fill in item order, so each user's profile comes out sorted by item
+            int[] next = Arrays.copyOf(userOffsets, userCount);
+            for (int i = 0; i < nitems; i++) {
+                for (int p = itemOffsets[i]; p < itemOffsets[i + 1]; p++) {
+                    int q = next[itemUsers[p]]++;
+                    userItems[q] = i;
+                    userValues[q] = itemValues[p];
+                }
+            }
+        }
+    }
+
+    /**
+     * Sparse accumulator of the co-rating statistics between one item and all others.  The
+     * moments are accumulated about the running means of the co-rated values (Welford's method),
+     * so they do not lose precision to cancellation when the values have a large mean and a small
+     * spread, and a constant co-rated vector has a variance of exactly 0.
+     */
+    private static final class PairStatistics {
+        final boolean moments;
+        final int[] counts;
+        final double[] dots;
+        final double[] means1;
+        final double[] means2;
+        final double[] variances1;
+        final double[] variances2;
+        final double[] covariances;
+
+        PairStatistics(int n, boolean moments) {
+            this.moments = moments;
+            counts = new int[n];
+            dots = new double[n];
+            if (moments) {
+                means1 = new double[n];
+                means2 = new double[n];
+                variances1 = new double[n];
+                variances2 = new double[n];
+                covariances = new double[n];
+            } else {
+                means1 = means2 = variances1 = variances2 = covariances = null;
+            }
+        }
+
+        void add(int i, double x, double y) {
+            final int n = counts[i] + 1;
+            counts[i] = n;
+            dots[i] += x * y;
+            if (moments) {
+                // the variances and covariance are unnormalized sums of centered products
+                final double dx = x - means1[i];
+                final double dy = y - means2[i];
+                means1[i] += dx / n;
+                means2[i] += dy / n;
+                variances1[i] += dx * (x - means1[i]);
+                variances2[i] += dy * (y - means2[i]);
+                covariances[i] += dx * (y - means2[i]);
+            }
+        }
+
+        void clear(int i) {
+            counts[i] = 0;
+            dots[i] = 0;
+            if (moments) {
+                means1[i] = 0;
+                means2[i] = 0;
+                variances1[i] = 0;
+                variances2[i] = 0;
+                covariances[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * A similarity function computed from pairwise co-rating statistics.
+     */
+    private abstract static class PairSimilarity {
+        /**
+         * Get the pairwise form of an item similarity function.
+         * @param sim The item similarity.
+         * @return The pairwise similarity, or {@code null} if {@code sim} is not supported.
+         */
+        @Nullable
+        static PairSimilarity forSimilarity(ItemSimilarity sim) {
+            if (!(sim instanceof ItemVectorSimilarity)) {
+                return null;
+            }
+            VectorSimilarity vsim = ((ItemVectorSimilarity) sim).getDelegate();
+            // subclasses may compute something else, so only match the exact classes
+            if (vsim.getClass().equals(CosineVectorSimilarity.class)) {
+                return new Cosine(((CosineVectorSimilarity) vsim).getDampingFactor());
+            } else if (vsim.getClass().equals(PearsonCorrelation.class)) {
+                return new Pearson(((PearsonCorrelation) vsim).getShrinkage());
+            } else {
+                return null;
+            }
+        }
+
+        /**
+         * Query whether this similarity needs the means and centered moments of co-rated values.
+         * @return {@code true} if the moments must be accumulated.
+         */
+        abstract boolean needsMoments();
+
+        /**
+         * Compute the similarity between the current item and another item.
+         * @param stats The accumulated statistics.
+         * @param i The index of the other item.
+         * @param norm1 The norm of the current item's vector.
+         * @param norm2 The norm of the other item's vector.
+         * @return The similarity.
+         */
+        abstract double finish(PairStatistics stats, int i, double norm1, double norm2);
+    }
+
+    private static final class Cosine extends PairSimilarity {
+        private final double damping;
+
+        Cosine(double damping) {
+            this.damping = damping;
+        }
+
+        @Override
+        boolean needsMoments() {
+            return false;
+        }
+
+        @Override
+        double finish(PairStatistics stats, int i, double norm1, double norm2) {
+            double denom = norm1 * norm2 + damping;
+            if (Scalars.isZero(denom)) {
+                return 0;
+            } else {
+                return stats.dots[i] / denom;
+            }
+        }
+    }
+
+    private static final class Pearson extends PairSimilarity {
+        private final double shrinkage;
+
+        Pearson(double shrinkage) {
+            this.shrinkage = shrinkage;
+        }
+
+        @Override
+        boolean needsMoments() {
+            return true;
+        }
+
+        @Override
+        double finish(PairStatistics stats, int i, double norm1, double norm2) {
+            final double var1 = stats.variances1[i];
+            final double var2 = stats.variances2[i];
+            if (var1 == 0 || var2 == 0) {
+                // the standard computation is then 0 / (0 + shrinkage), which is NaN without shrinkage
+                return shrinkage == 0 ? Double.NaN : 0;
+            }
+            return stats.covariances[i] / (Math.sqrt(var1 * var2) + shrinkage);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import org.lenskit.util.keys.SortedKeyIndex;
+
+/**
+ * Item-item model whose neighborhoods can be read by position, in compressed sparse row form,
+ * without allocating.  Items are identified by their index in {@link #getItemIndex()}; the
+ * neighbors of item <i>i</i> occupy the positions from {@link #getNeighborStart(int)} (inclusive)
+ * to {@link #getNeighborEnd(int)} (exclusive).  {@link org.lenskit.knn.item.ItemItemScorer} uses
+ * this interface, when the model supports it, to score without per-item allocation.
+ *
+ * @since 3.0
+ */
+public interface IndexedItemItemModel extends ItemItemModel {
+    /**
+     * Get the index of the items in the model.
+     *
+     * @return The item index.  Its key set is the item universe.
+     */
+    SortedKeyIndex getItemIndex();
+
+    /**
+     * Get the first neighbor position of an item.
+     *
+     * @param idx The item index.
+     * @return The position of the item's first neighbor.
+     */
+    int getNeighborStart(int idx);
+
+    /**
+     * Get the end of an item's neighbor positions.
+     *
+     * @param idx The item index.
+     * @return The position after the item's last neighbor.
+     */
+    int getNeighborEnd(int idx);
+
+    /**
+     * Get the neighbor at a position.
+     *
+     * @param pos The neighbor position.
+     * @return The index of the neighboring item.
+     */
+    int getNeighborIndex(int pos);
+
+    /**
+     * Get the similarity at a position.
+     *
+     * @param pos The neighbor position.
+     * @return The similarity between the item and the neighbor at {@code pos}.
+     */
+    double getNeighborScore(int pos);
+}
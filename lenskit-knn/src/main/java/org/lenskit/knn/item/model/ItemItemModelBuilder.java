@@ -21,10 +21,13 @@
 package org.lenskit.knn.item.model;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.longs.*;
 import org.lenskit.inject.Transient;
 import org.lenskit.knn.item.ItemSimilarity;
 import org.lenskit.knn.item.ItemSimilarityThreshold;
+import org.lenskit.knn.item.ModelBuildThreads;
 import org.lenskit.knn.item.ModelSize;
 import org.grouplens.lenskit.transform.threshold.Threshold;
 import org.grouplens.lenskit.util.ScoredItemAccumulator;
@@ -38,36 +41,62 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.inject.Inject;
 import javax.inject.Provider;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Build an item-item CF model from rating data.
  * This builder takes a very simple approach. It does not allow for vector
  * normalization and truncates on the fly.
  *
+ * <p>If {@link ModelBuildThreads} is greater than 1, the similarity computations are split
+ * across a fork-join pool.  Each worker computes a complete model row, truncating it to the
+ * model size as it goes, so the memory in use stays proportional to the model size.  The
+ * worker inserts the row's neighbors in the same order as a sequential build would, so the
+ * resulting model is identical.  For symmetric similarity functions, this means that each
+ * similarity is computed twice, once for each of its rows; the neighbor iteration strategy must
+ * also be symmetric, returning <em>i</em> as a candidate for <em>j</em> whenever it returns
+ * <em>j</em> as a candidate for <em>i</em> (at least for the pairs that pass the threshold).
+ * The similarity function and neighbor iteration strategy must be thread-safe in this case;
+ * the standard implementations are.</p>
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 @NotThreadSafe
 public class ItemItemModelBuilder implements Provider<ItemItemModel> {
     private static final Logger logger = LoggerFactory.getLogger(ItemItemModelBuilder.class);
+    /**
+     * The number of rows each worker thread computes per block in a parallel build.
+     */
+    private static final int ROWS_PER_THREAD = 64;
 
     private final ItemSimilarity itemSimilarity;
     private final ItemItemBuildContext buildContext;
     private final Threshold threshold;
     private final NeighborIterationStrategy neighborStrategy;
     private final int modelSize;
+    private final int threadCount;
 
     @Inject
     public ItemItemModelBuilder(@Transient ItemSimilarity similarity,
                                 @Transient ItemItemBuildContext context,
                                 @Transient @ItemSimilarityThreshold Threshold thresh,
                                 @Transient NeighborIterationStrategy nbrStrat,
-                                @ModelSize int size) {
+                                @ModelSize int size,
+                                @ModelBuildThreads int nthreads) {
         itemSimilarity = similarity;
         buildContext = context;
         threshold = thresh;
         neighborStrategy = nbrStrat;
         modelSize = size;
+        if (nthreads == 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        } else if (nthreads > 0) {
+            threadCount = nthreads;
+        } else {
+            throw new IllegalArgumentException("thread count is negative");
+        }
     }
 
     @Override
@@ -81,12 +110,28 @@ public class ItemItemModelBuilder implements Provider<ItemItemModel> {
 
         LongSortedSet allItems = buildContext.getItems();
 
-        Long2ObjectMap<ScoredItemAccumulator> rows = makeAccumulators(allItems);
+        Stopwatch timer = Stopwatch.createStarted();
+        Long2ObjectMap<ImmutableSparseVector> rows;
+        if (threadCount > 1) {
+            rows = buildParallel(allItems.toLongArray(), timer);
+        } else {
+            Long2ObjectMap<ScoredItemAccumulator> accums = makeAccumulators(allItems);
+            buildSequential(allItems, accums, timer);
+            rows = finishRows(accums);
+        }
+        timer.stop();
+        logger.info("built model for {} items in {}", allItems.size(), timer);
+
+        return new SimilarityMatrixModel(rows);
+    }
 
+    private void buildSequential(LongSortedSet allItems,
+                                 Long2ObjectMap<ScoredItemAccumulator> rows,
+                                 Stopwatch timer) {
         final int nitems = allItems.size();
         LongIterator outer = allItems.iterator();
+        NeighborBuffer buffer = new NeighborBuffer();
 
-        Stopwatch timer = Stopwatch.createStarted();
         int ndone = 0;
         while (outer.hasNext()) {
             ndone += 1;
@@ -95,36 +140,163 @@ public class ItemItemModelBuilder implements Provider<ItemItemModel> {
                 logger.trace("computing similarities for item {} ({} of {})",
                              itemId1, ndone, nitems);
             }
-            SparseVector vec1 = buildContext.itemVector(itemId1);
-
-            LongIterator itemIter = neighborStrategy.neighborIterator(buildContext, itemId1,
-                                                                      itemSimilarity.isSymmetric());
-
-            ScoredItemAccumulator row = rows.get(itemId1);
-            while (itemIter.hasNext()) {
-                long itemId2 = itemIter.nextLong();
-                if (itemId1 != itemId2) {
-                    SparseVector vec2 = buildContext.itemVector(itemId2);
-                    double sim = itemSimilarity.similarity(itemId1, vec1, itemId2, vec2);
-                    if (threshold.retain(sim)) {
-                        row.put(itemId2, sim);
-                        if (itemSimilarity.isSymmetric()) {
-                            rows.get(itemId2).put(itemId1, sim);
-                        }
-                    }
+            buffer.clear();
+            computeNeighbors(itemId1, buffer);
+            storeNeighbors(rows, itemId1, buffer);
+
+            if (logger.isDebugEnabled() && ndone % 100 == 0) {
+                logProgress(ndone, nitems, timer);
+            }
+        }
+    }
+
+    private Long2ObjectMap<ImmutableSparseVector> buildParallel(long[] items, Stopwatch timer) {
+        logger.info("computing similarities with {} threads", threadCount);
+        final int nitems = items.length;
+        final int blockSize = threadCount * ROWS_PER_THREAD;
+        Long2ObjectMap<ImmutableSparseVector> rows = new Long2ObjectOpenHashMap<ImmutableSparseVector>(nitems);
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        try {
+            // keep one block in flight while we collect the rows of the previous one
+            List<Future<ImmutableSparseVector>> current = submitBlock(pool, items, 0, blockSize);
+            for (int start = 0; start < nitems; start += blockSize) {
+                List<Future<ImmutableSparseVector>> next = null;
+                if (start + blockSize < nitems) {
+                    next = submitBlock(pool, items, start + blockSize, blockSize);
+                }
+                int i = start;
+                for (Future<ImmutableSparseVector> result: current) {
+                    rows.put(items[i], result.get());
+                    i += 1;
                 }
+                if (logger.isDebugEnabled()) {
+                    logProgress(i, nitems, timer);
+                }
+                current = next;
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("model build interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause());
+            throw new RuntimeException("error computing item similarities", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return rows;
+    }
 
-            if (logger.isDebugEnabled() && ndone % 100 == 0) {
-                logger.debug("computed {} of {} model rows ({}s/row)",
-                             ndone, nitems,
-                             String.format("%.3f", timer.elapsed(TimeUnit.MILLISECONDS) * 0.001 / ndone));
+    private List<Future<ImmutableSparseVector>> submitBlock(ExecutorService pool, long[] items,
+                                                            int start, int size) {
+        int end = Math.min(start + size, items.length);
+        List<Future<ImmutableSparseVector>> results = new ArrayList<Future<ImmutableSparseVector>>(end - start);
+        for (int i = start; i < end; i++) {
+            final long item = items[i];
+            results.add(pool.submit(new Callable<ImmutableSparseVector>() {
+                @Override
+                public ImmutableSparseVector call() {
+                    return computeRow(item);
+                }
+            }));
+        }
+        return results;
+    }
+
+    private void logProgress(int ndone, int nitems, Stopwatch timer) {
+        logger.debug("computed {} of {} model rows ({}s/row)",
+                     ndone, nitems,
+                     String.format("%.3f", timer.elapsed(TimeUnit.MILLISECONDS) * 0.001 / ndone));
+    }
+
+    /**
+     * Compute the retained neighbors of an item.
+     *
+     * @param itemId1 The item whose neighbors are to be computed.
+     * @param buffer The buffer to receive the neighbors, in iteration order.
+     */
+    private void computeNeighbors(long itemId1, NeighborBuffer buffer) {
+        SparseVector vec1 = buildContext.itemVector(itemId1);
+
+        LongIterator itemIter = neighborStrategy.neighborIterator(buildContext, itemId1,
+                                                                  itemSimilarity.isSymmetric());
+
+        while (itemIter.hasNext()) {
+            long itemId2 = itemIter.nextLong();
+            if (itemId1 != itemId2) {
+                SparseVector vec2 = buildContext.itemVector(itemId2);
+                double sim = itemSimilarity.similarity(itemId1, vec1, itemId2, vec2);
+                if (threshold.retain(sim)) {
+                    buffer.add(itemId2, sim);
+                }
             }
         }
-        timer.stop();
-        logger.info("built model for {} items in {}", ndone, timer);
+    }
 
-        return new SimilarityMatrixModel(finishRows(rows));
+    /**
+     * Compute the complete, truncated model row of an item.  The neighbors are inserted into the
+     * row accumulator in the same order as in a sequential build: for symmetric similarities,
+     * that is the neighbors preceding the item in item order (which a sequential build writes
+     * back from their own rows), followed by the neighbors after it in iteration order.  This
+     * only reads shared state, so it can be called from multiple threads at once.
+     *
+     * @param itemId The item whose row is to be computed.
+     * @return The model row.
+     */
+    private ImmutableSparseVector computeRow(long itemId) {
+        ScoredItemAccumulator row = makeAccumulator();
+        SparseVector vec = buildContext.itemVector(itemId);
+        if (itemSimilarity.isSymmetric()) {
+            LongArrayList before = new LongArrayList();
+            LongIterator iter = neighborStrategy.neighborIterator(buildContext, itemId, false);
+            while (iter.hasNext()) {
+                long other = iter.nextLong();
+                if (other < itemId) {
+                    before.add(other);
+                }
+            }
+            LongArrays.quickSort(before.elements(), 0, before.size());
+            LongIterator biter = before.iterator();
+            while (biter.hasNext()) {
+                long other = biter.nextLong();
+                // compute with the arguments in the same order as the other item's row does
+                double sim = itemSimilarity.similarity(other, buildContext.itemVector(other),
+                                                       itemId, vec);
+                if (threshold.retain(sim)) {
+                    row.put(other, sim);
+                }
+            }
+        }
+
+        LongIterator iter = neighborStrategy.neighborIterator(buildContext, itemId,
+                                                             itemSimilarity.isSymmetric());
+        while (iter.hasNext()) {
+            long other = iter.nextLong();
+            if (other != itemId) {
+                double sim = itemSimilarity.similarity(itemId, vec, other, buildContext.itemVector(other));
+                if (threshold.retain(sim)) {
+                    row.put(other, sim);
+                }
+            }
+        }
+        return row.finishVector().freeze();
+    }
+
+    /**
+     * Store the neighbors of an item into the row accumulators, including the symmetric
+     * write-back if the similarity function is symmetric.
+     */
+    private void storeNeighbors(Long2ObjectMap<ScoredItemAccumulator> rows,
+                                long itemId1, NeighborBuffer buffer) {
+        ScoredItemAccumulator row = rows.get(itemId1);
+        final int n = buffer.size();
+        for (int i = 0; i < n; i++) {
+            long itemId2 = buffer.items.getLong(i);
+            double sim = buffer.scores.getDouble(i);
+            row.put(itemId2, sim);
+            if (itemSimilarity.isSymmetric()) {
+                rows.get(itemId2).put(itemId1, sim);
+            }
+        }
     }
 
     private Long2ObjectMap<ScoredItemAccumulator> makeAccumulators(LongSet items) {
@@ -132,17 +304,19 @@ public class ItemItemModelBuilder implements Provider<ItemItemModel> {
         LongIterator iter = items.iterator();
         while (iter.hasNext()) {
             long item = iter.nextLong();
-            ScoredItemAccumulator accum;
-            if (modelSize == 0) {
-                accum = new UnlimitedScoredItemAccumulator();
-            } else {
-                accum = new TopNScoredItemAccumulator(modelSize);
-            }
-            rows.put(item, accum);
+            rows.put(item, makeAccumulator());
         }
         return rows;
     }
 
+    private ScoredItemAccumulator makeAccumulator() {
+        if (modelSize == 0) {
+            return new UnlimitedScoredItemAccumulator();
+        } else {
+            return new TopNScoredItemAccumulator(modelSize);
+        }
+    }
+
     private Long2ObjectMap<ImmutableSparseVector> finishRows(Long2ObjectMap<ScoredItemAccumulator> rows) {
         Long2ObjectMap<ImmutableSparseVector> results = new Long2ObjectOpenHashMap<ImmutableSparseVector>(rows.size());
         for (Long2ObjectMap.Entry<ScoredItemAccumulator> e: rows.long2ObjectEntrySet()) {
@@ -150,4 +324,26 @@ public class ItemItemModelBuilder implements Provider<ItemItemModel> {
         }
         return results;
     }
+
+    /**
+     * Buffer of the retained neighbors of a single item.
+     */
+    private static final class NeighborBuffer {
+        final LongArrayList items = new LongArrayList();
+        final DoubleArrayList scores = new DoubleArrayList();
+
+        void add(long item, double score) {
+            items.add(item);
+            scores.add(score);
+        }
+
+        int size() {
+            return items.size();
+        }
+
+        void clear() {
+            items.clear();
+            scores.clear();
+        }
+    }
 }
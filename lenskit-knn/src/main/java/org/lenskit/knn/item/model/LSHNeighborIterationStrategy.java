@@ -0,0 +1,232 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongIterators;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Neighbor iteration strategy that uses random-hyperplane locality-sensitive hashing to find
+ * approximate neighbors.  Each item's (normalized) rating vector is projected onto
+ * {@link LSHTableCount} &times; {@link LSHHashBits} random hyperplanes; the signs of the
+ * projections form one signature per table, and an item's candidate neighbors are the items
+ * sharing its signature in at least one table.  Items with similar vectors (in the cosine sense)
+ * are likely to collide, so this finds most of the true nearest neighbors while only looking
+ * at a small fraction of the items.  It is intended for catalogs too large for exhaustive
+ * pairwise search; use it in place of {@link SparseNeighborIterationStrategy}.
+ *
+ * <p>The hyperplane components are &plusmn;1, derived by hashing the user IDs with a seed drawn from
+ * the injected {@link Random}, so no projection matrix is stored.  The hash tables are built on
+ * first use for a build context and reused for the rest of the build.  Items with no ratings are
+ * not hashed and have no candidates.</p>
+ *
+ * @since 3.0
+ */
+@ThreadSafe
+public class LSHNeighborIterationStrategy implements NeighborIterationStrategy {
+    private static final Logger logger = LoggerFactory.getLogger(LSHNeighborIterationStrategy.class);
+
+    private final int tableCount;
+    private final int hashBits;
+    private final long seed;
+    private volatile HashIndex index;
+
+    /**
+     * Construct a new LSH neighbor iteration strategy.
+     *
+     * @param ntables The number of hash tables.
+     * @param nbits The number of hyperplanes per table.
+     * @param rng A random number generator, used to seed the hyperplanes.
+     */
+    @Inject
+    public LSHNeighborIterationStrategy(@LSHTableCount int ntables, @LSHHashBits int nbits,
+                                        Random rng) {
+        Preconditions.checkArgument(ntables > 0, "table count must be positive");
+        Preconditions.checkArgument(nbits > 0 && nbits <= 30, "hash bits must be in [1,30]");
+        tableCount = ntables;
+        hashBits = nbits;
+        seed = rng.nextLong();
+    }
+
+    @Override
+    public LongIterator neighborIterator(ItemItemBuildContext context, long item, boolean onlyAfter) {
+        return getIndex(context).candidates(item, onlyAfter);
+    }
+
+    private HashIndex getIndex(ItemItemBuildContext context) {
+        HashIndex idx = index;
+        if (idx == null || idx.context != context) {
+            synchronized (this) {
+                idx = index;
+                if (idx == null || idx.context != context) {
+                    idx = new HashIndex(context);
+                    index = idx;
+                }
+            }
+        }
+        return idx;
+    }
+
+    /**
+     * Scramble a 64-bit value (the SplitMix64 finalizer).
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LSH[tables=%d, bits=%d]", tableCount, hashBits);
+    }
+
+    /**
+     * The hash tables for one build context.
+     */
+    private final class HashIndex {
+        final ItemItemBuildContext context;
+        final SortedKeyIndex items;
+        /**
+         * The signature of each item in each table, or -1 for items that are not hashed.
+         */
+        final int[][] signatures;
+        /**
+         * For each table, the hashed items as {@code signature << 32 | index}, sorted.
+         */
+        final long[][] tables;
+
+        HashIndex(ItemItemBuildContext ctx) {
+            Stopwatch timer = Stopwatch.createStarted();
+            context = ctx;
+            items = SortedKeyIndex.fromCollection(ctx.getItems());
+            final int n = items.size();
+            final int nplanes = tableCount * hashBits;
+            double[] projections = new double[nplanes];
+            signatures = new int[tableCount][n];
+
+            int nhashed = 0;
+            for (int i = 0; i < n; i++) {
+                SparseVector v = ctx.itemVector(items.getKey(i));
+                if (v.isEmpty()) {
+                    for (int t = 0; t < tableCount; t++) {
+                        signatures[t][i] = -1;
+                    }
+                    continue;
+                }
+                nhashed += 1;
+                Arrays.fill(projections, 0);
+                for (VectorEntry e: v.fast()) {
+                    final long user = mix(e.getKey());
+                    final double x = e.getValue();
+                    long bits = 0;
+                    for (int p = 0; p < nplanes; p++) {
+                        if ((p & 63) == 0) {
+                            bits = mix(user + seed + p / 64);
+                        }
+                        if ((bits & 1) != 0) {
+                            projections[p] += x;
+                        } else {
+                            projections[p] -= x;
+                        }
+                        bits >>>= 1;
+                    }
+                }
+                for (int t = 0; t < tableCount; t++) {
+                    int sig = 0;
+                    for (int k = 0; k < hashBits; k++) {
+                        if (projections[t * hashBits + k] > 0) {
+                            sig |= 1 << k;
+                        }
+                    }
+                    signatures[t][i] = sig;
+                }
+            }
+
+            tables = new long[tableCount][];
+            for (int t = 0; t < tableCount; t++) {
+                long[] table = new long[nhashed];
+                int j = 0;
+                for (int i = 0; i < n; i++) {
+                    int sig = signatures[t][i];
+                    if (sig >= 0) {
+                        table[j++] = ((long) sig << 32) | i;
+                    }
+                }
+                assert j == nhashed;
+                Arrays.sort(table);
+                tables[t] = table;
+            }
+            timer.stop();
+            logger.info("hashed {} of {} items into {} tables in {}", nhashed, n, tableCount, timer);
+        }
+
+        LongIterator candidates(long item, boolean onlyAfter) {
+            int idx = items.tryGetIndex(item);
+            if (idx < 0 || signatures[0][idx] < 0) {
+                return LongIterators.EMPTY_ITERATOR;
+            }
+
+            IntArrayList found = new IntArrayList();
+            for (int t = 0; t < tableCount; t++) {
+                final long[] table = tables[t];
+                final long sig = signatures[t][idx];
+                int pos = Arrays.binarySearch(table, sig << 32);
+                if (pos < 0) {
+                    pos = -pos - 1;
+                }
+                while (pos < table.length && (table[pos] >>> 32) == sig) {
+                    found.add((int) table[pos]);
+                    pos++;
+                }
+            }
+
+            int[] cands = found.elements();
+            final int nfound = found.size();
+            IntArrays.quickSort(cands, 0, nfound);
+            LongArrayList result = new LongArrayList(nfound);
+            int last = -1;
+            for (int j = 0; j < nfound; j++) {
+                int c = cands[j];
+                if (c != last && c != idx && (!onlyAfter || c > idx)) {
+                    result.add(items.getKey(c));
+                }
+                last = c;
+            }
+            return result.iterator();
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.vectors.ImmutableSparseVector;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.lenskit.inject.Shareable;
+import org.lenskit.inject.Transient;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Item-item similarity model stored in compressed sparse row form.  All neighborhoods are
+ * kept in three flat buffers: the row offsets, the neighbor item indexes (into the item
+ * {@link SortedKeyIndex}) and the similarity scores, stored in single precision.  This avoids
+ * the per-row object overhead of {@link SimilarityMatrixModel}.
+ *
+ * <p>The model can be written to a file with {@link #write(File)} and reopened with
+ * {@link #open(File)}; an opened model reads its neighborhoods from a memory-mapped buffer,
+ * so several processes serving from the same file share one copy in the page cache.  Opening
+ * a model only checks the header and the table bounds, so it takes time proportional to the
+ * number of items, not the number of similarities; call {@link #verify()} to check every row.
+ * The file layout is:</p>
+ * <ol>
+ * <li>A 16-byte header: the magic number, the format version, the item count <i>n</i> and
+ * the neighbor count <i>m</i>.</li>
+ * <li><i>n</i> item IDs as longs, in ascending order.</li>
+ * <li><i>n+1</i> row offsets as ints.</li>
+ * <li><i>m</i> neighbor indexes as ints, sorted within each row.</li>
+ * <li><i>m</i> similarity scores as floats.</li>
+ * </ol>
+ *
+ * <p>To use this model, bind {@link ItemItemModel} to this class; by default it is compacted
+ * from a {@link SimilarityMatrixModel}.  To serve a model from a file, bind the
+ * {@link SimilarityMatrixFile} parameter and use {@link Loader} as the provider.  The model is
+ * an {@link IndexedItemItemModel}, so the item-item scorer can read it without allocating.</p>
+ *
+ * @since 3.0
+ */
+@ThreadSafe
+@Shareable
+@DefaultProvider(PackedSimilarityMatrixModel.Compactor.class)
+public class PackedSimilarityMatrixModel implements IndexedItemItemModel, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(PackedSimilarityMatrixModel.class);
+
+    static final int MAGIC = 0x4C4B534D; // "LKSM"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final SortedKeyIndex itemDomain;
+    private final IntBuffer offsets;
+    private final IntBuffer neighbors;
+    private final FloatBuffer scores;
+    private transient volatile String stringValue;
+
+    private PackedSimilarityMatrixModel(SortedKeyIndex items, IntBuffer offs,
+                                        IntBuffer nbrs, FloatBuffer sims) {
+        Preconditions.checkArgument(offs.limit() == items.size() + 1,
+                                    "offset table has wrong size");
+        Preconditions.checkArgument(nbrs.limit() == sims.limit(),
+                                    "neighbor and score tables have different sizes");
+        Preconditions.checkArgument(offs.get(items.size()) == nbrs.limit(),
+                                    "neighbor table has wrong size");
+        itemDomain = items;
+        offsets = offs;
+        neighbors = nbrs;
+        scores = sims;
+    }
+
+    /**
+     * Create a packed copy of an item-item model.
+     *
+     * @param model The model to copy.
+     * @return A packed model with the same neighborhoods (with scores rounded to single precision).
+     * @throws IllegalArgumentException if some item's neighbors are not in the model's item universe.
+     */
+    public static PackedSimilarityMatrixModel fromModel(ItemItemModel model) {
+        LongSortedSet universe = model.getItemUniverse();
+        SortedKeyIndex items = SortedKeyIndex.wrap(universe.toLongArray(), universe.size());
+        final int n = items.size();
+
+        int[] offsets = new int[n + 1];
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            offsets[i] = (int) total;
+            total += model.getNeighbors(items.getKey(i)).size();
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("too many similarities for a packed model");
+            }
+        }
+        offsets[n] = (int) total;
+
+        int[] neighbors = new int[(int) total];
+        float[] scores = new float[(int) total];
+        int pos = 0;
+        for (int i = 0; i < n; i++) {
+            // vectors iterate in key order, so each row's neighbor indexes come out sorted
+            for (VectorEntry e: model.getNeighbors(items.getKey(i))) {
+                int idx = items.tryGetIndex(e.getKey());
+                Preconditions.checkArgument(idx >= 0, "neighbor %s of item %s is not in the model",
+                                            e.getKey(), items.getKey(i));
+                neighbors[pos] = idx;
+                scores[pos] = (float) e.getValue();
+                pos += 1;
+            }
+        }
+        assert pos == total;
+
+        return new PackedSimilarityMatrixModel(items, IntBuffer.wrap(offsets),
+                                               IntBuffer.wrap(neighbors), FloatBuffer.wrap(scores));
+    }
+
+    /**
+     * Open a packed model from a file.  The neighborhoods are memory-mapped, not read into
+     * the heap.
+     *
+     * @param file The file to open.
+     * @return The model backed by {@code file}.
+     * @throws IOException if there is an error reading the file or it is not a valid model file.
+     */
+    public static PackedSimilarityMatrixModel open(File file) throws IOException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            FileChannel channel = input.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new EOFException("unexpected end of similarity matrix header");
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("invalid similarity matrix file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported similarity matrix version " + version);
+            }
+            int n = header.getInt();
+            int m = header.getInt();
+            if (n < 0 || m < 0) {
+                throw new IOException(String.format("invalid similarity matrix header: %d items, %d similarities",
+                                                    n, m));
+            }
+            logger.info("opening similarity matrix of {} similarities for {} items from {}",
+                        m, n, file);
+
+            long pos = HEADER_SIZE;
+            long expected = pos + 8L * n + 4L * (n + 1) + 8L * m;
+            long size = channel.size();
+            if (size < expected) {
+                throw new IOException(String.format("similarity matrix file is truncated: expected %d bytes, found %d",
+                                                    expected, size));
+            } else if (size > expected) {
+                throw new IOException(String.format("similarity matrix file has %d unexpected trailing bytes",
+                                                    size - expected));
+            }
+
+            long[] keys = new long[n];
+            map(channel, pos, 8L * n).asLongBuffer().get(keys);
+            pos += 8L * n;
+            IntBuffer offsets = map(channel, pos, 4L * (n + 1)).asIntBuffer();
+            pos += 4L * (n + 1);
+            IntBuffer neighbors = map(channel, pos, 4L * m).asIntBuffer();
+            pos += 4L * m;
+            FloatBuffer scores = map(channel, pos, 4L * m).asFloatBuffer();
+
+            String error = checkBounds(keys, offsets, neighbors);
+            if (error != null) {
+                throw new IOException("invalid similarity matrix file " + file + ": " + error);
+            }
+            return new PackedSimilarityMatrixModel(SortedKeyIndex.wrap(keys, n),
+                                                   offsets, neighbors, scores);
+        }
+    }
+
+    /**
+     * Check the item IDs and the bounds of the offset table of a packed matrix.  This does not
+     * look at the individual rows, so it does not read the neighbor table.
+     *
+     * @param keys The item IDs.
+     * @param offsets The row offsets.
+     * @param neighbors The neighbor indexes.
+     * @return A description of the first problem found, or {@code null} if the bounds are valid.
+     */
+    static String checkBounds(long[] keys, IntBuffer offsets, IntBuffer neighbors) {
+        final int n = keys.length;
+        final int m = neighbors.limit();
+        for (int i = 1; i < n; i++) {
+            if (keys[i] <= keys[i-1]) {
+                return String.format("item IDs not strictly increasing at position %d", i);
+            }
+        }
+        if (offsets.limit() != n + 1) {
+            return String.format("offset table has %d entries, expected %d", offsets.limit(), n + 1);
+        }
+        if (offsets.get(0) != 0) {
+            return String.format("first row offset is %d, expected 0", offsets.get(0));
+        }
+        if (offsets.get(n) != m) {
+            return String.format("last row offset is %d, expected %d", offsets.get(n), m);
+        }
+        return null;
+    }
+
+    /**
+     * Check the rows of a packed matrix whose bounds have already been checked.  This reads every
+     * row offset and neighbor index once.
+     *
+     * @param offsets The row offsets.
+     * @param neighbors The neighbor indexes.
+     * @return A description of the first problem found, or {@code null} if the rows are valid.
+     */
+    static String checkRows(IntBuffer offsets, IntBuffer neighbors) {
+        final int n = offsets.limit() - 1;
+        final int m = neighbors.limit();
+        for (int i = 0; i < n; i++) {
+            int start = offsets.get(i);
+            int end = offsets.get(i + 1);
+            if (end < start || end > m) {
+                return String.format("row %d has invalid bounds [%d,%d)", i, start, end);
+            }
+            for (int j = start; j < end; j++) {
+                int idx = neighbors.get(j);
+                if (idx < 0 || idx >= n) {
+                    return String.format("row %d has neighbor index %d out of range", i, idx);
+                }
+                if (j > start && idx <= neighbors.get(j - 1)) {
+                    return String.format("row %d has unsorted neighbor indexes", i);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check the structure of every row of this model, so that a corrupt file can be detected
+     * up front instead of with index errors while scoring.  This reads the entire neighbor table.
+     *
+     * @throws IllegalStateException if some row has invalid bounds or neighbor indexes.
+     */
+    public void verify() {
+        String error = checkRows(offsets, neighbors);
+        if (error != null) {
+            throw new IllegalStateException("invalid packed similarity matrix: " + error);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("similarity matrix section too large to map");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+    }
+
+    /**
+     * Write this model to a file, so it can be reopened with {@link #open(File)}.  The model is
+     * {@linkplain #verify() verified} first, so a corrupt model is not written out.
+     *
+     * @param file The file to write.
+     * @throws IOException if there is an error writing the file.
+     * @throws IllegalStateException if the model's structure is invalid.
+     */
+    public void write(File file) throws IOException {
+        verify();
+        final int n = itemDomain.size();
+        final int m = neighbors.limit();
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            FileChannel channel = output.getChannel();
+            ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(m);
+            for (int i = 0; i < n; i++) {
+                ensureSpace(channel, buf, 8);
+                buf.putLong(itemDomain.getKey(i));
+            }
+            for (int i = 0; i <= n; i++) {
+                ensureSpace(channel, buf, 4);
+                buf.putInt(offsets.get(i));
+            }
+            for (int j = 0; j < m; j++) {
+                ensureSpace(channel, buf, 4);
+                buf.putInt(neighbors.get(j));
+            }
+            for (int j = 0; j < m; j++) {
+                ensureSpace(channel, buf, 4);
+                buf.putFloat(scores.get(j));
+            }
+            flush(channel, buf);
+        }
+        logger.info("wrote {} to {}", this, file);
+    }
+
+    private static void ensureSpace(FileChannel channel, ByteBuffer buf, int size) throws IOException {
+        if (buf.remaining() < size) {
+            flush(channel, buf);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    @Override
+    public LongSortedSet getItemUniverse() {
+        return itemDomain.keySet();
+    }
+
+    @Override
+    @Nonnull
+    public SparseVector getNeighbors(long item) {
+        int idx = itemDomain.tryGetIndex(item);
+        if (idx < 0) {
+            return ImmutableSparseVector.empty();
+        }
+        int start = offsets.get(idx);
+        int size = offsets.get(idx + 1) - start;
+        long[] keys = new long[size];
+        double[] values = new double[size];
+        for (int j = 0; j < size; j++) {
+            keys[j] = itemDomain.getKey(neighbors.get(start + j));
+            values[j] = scores.get(start + j);
+        }
+        return MutableSparseVector.wrap(keys, values).freeze();
+    }
+
+    @Override
+    public SortedKeyIndex getItemIndex() {
+        return itemDomain;
+    }
+
+    @Override
+    public int getNeighborStart(int idx) {
+        return offsets.get(idx);
+    }
+
+    @Override
+    public int getNeighborEnd(int idx) {
+        return offsets.get(idx + 1);
+    }
+
+    @Override
+    public int getNeighborIndex(int pos) {
+        return neighbors.get(pos);
+    }
+
+    @Override
+    public double getNeighborScore(int pos) {
+        return scores.get(pos);
+    }
+
+    @Override
+    public String toString() {
+        String val = stringValue;
+        if (val == null) {
+            val = String.format("packed matrix of %d similarities for %d items",
+                                neighbors.limit(), itemDomain.size());
+            stringValue = val;
+        }
+        return val;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerialProxy(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        throw new InvalidObjectException("packed similarity matrix must use serial proxy");
+    }
+
+    /**
+     * Provider that packs a similarity matrix model built by the standard builder.
+     */
+    public static class Compactor implements Provider<PackedSimilarityMatrixModel> {
+        private final SimilarityMatrixModel model;
+
+        @Inject
+        public Compactor(@Transient SimilarityMatrixModel model) {
+            this.model = model;
+        }
+
+        @Override
+        public PackedSimilarityMatrixModel get() {
+            return fromModel(model);
+        }
+    }
+
+    /**
+     * Provider that opens a packed model from a file written with {@link #write(File)}.
+     */
+    public static class Loader implements Provider<PackedSimilarityMatrixModel>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final File modelFile;
+
+        @Inject
+        public Loader(@SimilarityMatrixFile File file) {
+            modelFile = file;
+        }
+
+        @Override
+        public PackedSimilarityMatrixModel get() {
+            try {
+                return open(modelFile);
+            } catch (IOException e) {
+                throw new RuntimeException("cannot open similarity matrix file", e);
+            }
+        }
+    }
+
+    /**
+     * Serialized form of the model.  The buffers are copied out in full, so a deserialized
+     * model lives in the heap even if the original was memory-mapped.
+     */
+    private static class SerialProxy implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] items;
+        private final int[] offsets;
+        private final int[] neighbors;
+        private final float[] scores;
+
+        SerialProxy(PackedSimilarityMatrixModel model) {
+            items = model.itemDomain.getKeyList().toLongArray();
+            offsets = new int[model.offsets.limit()];
+            model.offsets.duplicate().get(offsets);
+            neighbors = new int[model.neighbors.limit()];
+            model.neighbors.duplicate().get(neighbors);
+            scores = new float[model.scores.limit()];
+            model.scores.duplicate().get(scores);
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            String error = checkBounds(items, IntBuffer.wrap(offsets), IntBuffer.wrap(neighbors));
+            if (error != null) {
+                throw new InvalidObjectException("invalid packed similarity matrix: " + error);
+            }
+            try {
+                return new PackedSimilarityMatrixModel(SortedKeyIndex.wrap(items, items.length),
+                                                       IntBuffer.wrap(offsets),
+                                                       IntBuffer.wrap(neighbors),
+                                                       FloatBuffer.wrap(scores));
+            } catch (IllegalArgumentException ex) {
+                InvalidObjectException ioe = new InvalidObjectException("invalid packed similarity matrix");
+                ioe.initCause(ex);
+                throw ioe;
+            }
+        }
+    }
+}
@@ -0,0 +1,612 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.longs.*;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.data.history.UserHistorySummarizer;
+import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.grouplens.lenskit.util.ScoredItemAccumulator;
+import org.grouplens.lenskit.util.TopNScoredItemAccumulator;
+import org.grouplens.lenskit.util.UnlimitedScoredItemAccumulator;
+import org.grouplens.lenskit.vectors.ImmutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.grouplens.lenskit.vectors.similarity.VectorSimilarity;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.events.Events;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.inject.Shareable;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemSimilarityThreshold;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.lenskit.knn.item.ModelSize;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.lenskit.util.math.Scalars;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Item-item cosine similarity model that can be updated with new ratings without a full rebuild.
+ *
+ * <p>Alongside the neighborhoods, this model keeps the sufficient statistics for cosine
+ * similarity: the dot product and co-rating count of every co-rated item pair, the sum of squares
+ * of every item's (normalized) rating vector, and the ratings of every user.  When a batch of new
+ * ratings is applied with {@link #update(Collection)}, only the statistics of the changed
+ * (user, item) cells are adjusted: the changed items' counts and norms, and the pairs involving a
+ * changed item.  The rows of the changed items are recomputed; the rows of their neighbors only
+ * have the changed similarities patched, and are recomputed only if a neighbor drops out of a
+ * full truncated row (when one of the neighbors outside the row may take its place).  The item
+ * index is only rebuilt when items are added or removed.  The resulting neighborhoods are the
+ * same as a full rebuild with {@link ItemItemModelBuilder} and the sparse neighbor iteration
+ * strategy, up to floating-point rounding and the order of tied similarities.</p>
+ *
+ * <p>Updates apply rating events directly to the users' rating vectors: a rating replaces the
+ * user's previous rating for the item, and an unrate event removes it.  The model should
+ * therefore be built with a summarizer that uses each user's latest rating (the default), and
+ * with a user vector normalizer that depends only on the user's own ratings.  Updates are
+ * cheapest when the normalizer leaves unchanged ratings alone; a normalizer that shifts all of
+ * a user's values (such as mean-centering) changes every pair of that user's items.  Updates
+ * are serialized; readers see either the complete old neighborhoods or the complete new
+ * ones.</p>
+ *
+ * <p>Keeping the pair statistics takes memory proportional to the number of co-rated item pairs,
+ * so this model is best suited to data sets where that is manageable.</p>
+ *
+ * @since 3.0
+ */
+@DefaultProvider(UpdatableItemItemModel.Builder.class)
+@Shareable
+@ThreadSafe
+public class UpdatableItemItemModel implements ItemItemModel, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(UpdatableItemItemModel.class);
+
+    private final UserVectorNormalizer normalizer;
+    private final double damping;
+    private final Threshold threshold;
+    private final int modelSize;
+
+    // the sufficient statistics are guarded by this
+    private final Long2ObjectMap<ImmutableSparseVector> userRatings;
+    private final Long2ObjectMap<ItemStatistics> itemStatistics;
+
+    private volatile Neighborhoods neighborhoods;
+
+    private UpdatableItemItemModel(UserVectorNormalizer norm, double damp,
+                                   Threshold thresh, int size) {
+        normalizer = norm;
+        damping = damp;
+        threshold = thresh;
+        modelSize = size;
+        userRatings = new Long2ObjectOpenHashMap<>();
+        itemStatistics = new Long2ObjectOpenHashMap<>();
+        neighborhoods = new Neighborhoods(SortedKeyIndex.empty(), new ImmutableSparseVector[0]);
+    }
+
+    @Override
+    public LongSortedSet getItemUniverse() {
+        return neighborhoods.items.keySet();
+    }
+
+    @Override
+    @Nonnull
+    public SparseVector getNeighbors(long item) {
+        Neighborhoods nbrs = neighborhoods;
+        int idx = nbrs.items.tryGetIndex(item);
+        if (idx < 0) {
+            return ImmutableSparseVector.empty();
+        } else {
+            return nbrs.rows[idx];
+        }
+    }
+
+    /**
+     * Get the number of users whose ratings are in the model.
+     * @return The number of users.
+     */
+    public synchronized int getUserCount() {
+        return userRatings.size();
+    }
+
+    /**
+     * Apply a batch of new ratings to the model.  Each user's ratings in the batch are applied in
+     * timestamp order (and in batch order for equal timestamps).
+     *
+     * @param ratings The new ratings and unrate events.
+     * @return The number of neighborhood rows that were recomputed from the statistics (rows that
+     *         only needed a few similarities patched are not counted).
+     */
+    public synchronized int update(Collection<Rating> ratings) {
+        if (ratings.isEmpty()) {
+            return 0;
+        }
+        Stopwatch timer = Stopwatch.createStarted();
+
+        Long2ObjectMap<List<Rating>> byUser = new Long2ObjectOpenHashMap<>();
+        for (Rating r: ratings) {
+            List<Rating> list = byUser.get(r.getUserId());
+            if (list == null) {
+                list = new ArrayList<>();
+                byUser.put(r.getUserId(), list);
+            }
+            list.add(r);
+        }
+
+        Changes changes = new Changes();
+        for (Long2ObjectMap.Entry<List<Rating>> e: byUser.long2ObjectEntrySet()) {
+            final long user = e.getLongKey();
+            List<Rating> userEvents = e.getValue();
+            // stable, so ties stay in batch order
+            Collections.sort(userEvents, Events.TIMESTAMP_COMPARATOR);
+
+            ImmutableSparseVector old = userRatings.get(user);
+            Long2DoubleMap values = new Long2DoubleOpenHashMap();
+            SparseVector before = ImmutableSparseVector.empty();
+            if (old != null) {
+                for (VectorEntry ve: old.fast()) {
+                    values.put(ve.getKey(), ve.getValue());
+                }
+                before = normalizer.normalize(user, old, null);
+            }
+            for (Rating r: userEvents) {
+                if (r.hasValue()) {
+                    values.put(r.getItemId(), r.getValue());
+                } else {
+                    values.remove(r.getItemId());
+                }
+            }
+
+            SparseVector after = ImmutableSparseVector.empty();
+            if (values.isEmpty()) {
+                userRatings.remove(user);
+            } else {
+                ImmutableSparseVector vec = ImmutableSparseVector.create(values);
+                userRatings.put(user, vec);
+                after = normalizer.normalize(user, vec, null);
+            }
+            accumulate(before, after, changes);
+        }
+
+        // a change in an item's norm changes its similarity to every co-rated item
+        LongIterator iter = changes.normChanged.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            ItemStatistics stats = itemStatistics.get(item);
+            if (stats != null) {
+                LongIterator nbrs = stats.dots.keySet().iterator();
+                while (nbrs.hasNext()) {
+                    changes.patch(nbrs.nextLong(), item);
+                }
+            }
+        }
+
+        int nrows = publish(changes);
+        timer.stop();
+        logger.debug("applied {} ratings for {} users, recomputed {} rows ({} to patch) in {}",
+                     ratings.size(), byUser.size(), nrows, changes.patches.size(), timer);
+        return nrows;
+    }
+
+    /**
+     * Update the item statistics for a change in one user's normalized rating vector.  Only the
+     * cells whose values changed contribute: an item's count and sum of squares change if its own
+     * value changed, and a pair's dot product and co-rating count change if either of its values
+     * changed.  With a normalizer that only transforms the changed ratings, adding one rating
+     * therefore costs time linear in the user's ratings; a normalizer such as mean-centering that
+     * shifts all of the user's values still touches all of the user's pairs.
+     *
+     * @param before The user's old normalized rating vector (empty for a new user).
+     * @param after The user's new normalized rating vector (empty if the user was removed).
+     * @param changes The changes in this batch, to be updated.
+     */
+    private void accumulate(SparseVector before, SparseVector after, Changes changes) {
+        // merge the two vectors into parallel arrays over the union of their keys
+        LongSortedSet keys = LongUtils.setUnion(before.keySet(), after.keySet());
+        final int n = keys.size();
+        long[] items = keys.toLongArray();
+        double[] oldValues = new double[n];
+        double[] newValues = new double[n];
+        boolean[] oldHas = new boolean[n];
+        boolean[] newHas = new boolean[n];
+        boolean[] changed = new boolean[n];
+        IntArrayList changedIndexes = new IntArrayList();
+        for (int i = 0; i < n; i++) {
+            long item = items[i];
+            oldHas[i] = before.containsKey(item);
+            newHas[i] = after.containsKey(item);
+            oldValues[i] = oldHas[i] ? before.get(item) : 0;
+            newValues[i] = newHas[i] ? after.get(item) : 0;
+            if (oldHas[i] != newHas[i] || oldValues[i] != newValues[i]) {
+                changed[i] = true;
+                changedIndexes.add(i);
+            }
+        }
+
+        IntIterator iter = changedIndexes.iterator();
+        while (iter.hasNext()) {
+            final int i = iter.nextInt();
+            final long item = items[i];
+            ItemStatistics stats = itemStatistics.get(item);
+            if (stats == null) {
+                stats = new ItemStatistics();
+                itemStatistics.put(item, stats);
+                changes.itemsChanged = true;
+            }
+            stats.count += (newHas[i] ? 1 : 0) - (oldHas[i] ? 1 : 0);
+            double oldSquare = oldValues[i] * oldValues[i];
+            double newSquare = newValues[i] * newValues[i];
+            if (oldSquare != newSquare) {
+                stats.squares += newSquare - oldSquare;
+                changes.normChanged.add(item);
+            }
+            for (int j = 0; j < n; j++) {
+                if (j == i) {
+                    continue;
+                }
+                int countDelta = (newHas[i] && newHas[j] ? 1 : 0) - (oldHas[i] && oldHas[j] ? 1 : 0);
+                double product = newValues[i] * newValues[j] - oldValues[i] * oldValues[j];
+                if (countDelta == 0 && product == 0) {
+                    continue;
+                }
+                stats.addPair(items[j], product, countDelta);
+                if (!changed[j]) {
+                    // unchanged items only see this pair from here, so update their side too
+                    itemStatistics.get(items[j]).addPair(item, product, countDelta);
+                    changes.patch(items[j], item);
+                }
+            }
+            if (stats.count == 0) {
+                itemStatistics.remove(item);
+                changes.itemsChanged = true;
+            }
+            changes.recompute.add(item);
+        }
+    }
+
+    /**
+     * Publish new neighborhoods.  Rows of items whose statistics changed are recomputed, rows with
+     * a few changed similarities are patched, and all other rows are shared with the previous
+     * neighborhoods.  The item index is only rebuilt if the set of items changed.
+     *
+     * @param changes The changes to publish, or {@code null} to recompute all rows.
+     * @return The number of rows recomputed.
+     */
+    private int publish(Changes changes) {
+        Neighborhoods old = neighborhoods;
+        SortedKeyIndex items;
+        ImmutableSparseVector[] rows;
+        if (changes == null || changes.itemsChanged) {
+            items = SortedKeyIndex.fromCollection(itemStatistics.keySet());
+            rows = new ImmutableSparseVector[items.size()];
+            if (changes != null) {
+                for (int i = 0; i < rows.length; i++) {
+                    int oldIdx = old.items.tryGetIndex(items.getKey(i));
+                    if (oldIdx >= 0) {
+                        rows[i] = old.rows[oldIdx];
+                    }
+                }
+            }
+        } else {
+            items = old.items;
+            rows = Arrays.copyOf(old.rows, old.rows.length);
+        }
+
+        int nrows = 0;
+        for (int i = 0; i < rows.length; i++) {
+            long item = items.getKey(i);
+            if (rows[i] == null || (changes != null && changes.recompute.contains(item))) {
+                rows[i] = computeRow(item);
+                nrows += 1;
+            }
+        }
+        if (changes != null) {
+            for (Long2ObjectMap.Entry<LongSet> e: changes.patches.long2ObjectEntrySet()) {
+                long item = e.getLongKey();
+                if (changes.recompute.contains(item)) {
+                    continue;
+                }
+                int idx = items.getIndex(item);
+                ImmutableSparseVector row = patchRow(item, rows[idx], e.getValue());
+                if (row == null) {
+                    row = computeRow(item);
+                    nrows += 1;
+                }
+                rows[idx] = row;
+            }
+        }
+        neighborhoods = new Neighborhoods(items, rows);
+        return nrows;
+    }
+
+    private ImmutableSparseVector computeRow(long item) {
+        ItemStatistics stats = itemStatistics.get(item);
+        ScoredItemAccumulator row;
+        if (modelSize == 0) {
+            row = new UnlimitedScoredItemAccumulator();
+        } else {
+            row = new TopNScoredItemAccumulator(modelSize);
+        }
+        LongIterator iter = stats.dots.keySet().iterator();
+        while (iter.hasNext()) {
+            long other = iter.nextLong();
+            double sim = similarity(stats, other);
+            if (threshold.retain(sim)) {
+                row.put(other, sim);
+            }
+        }
+        return row.finishVector().freeze();
+    }
+
+    /**
+     * Update the similarities of a few neighbors in an item's row.  Each change keeps the row
+     * equal to the truncated list of retained neighbors, as long as that can be decided from the
+     * row itself; if a neighbor in a full row falls below the other entries (or is dropped), one
+     * of the neighbors outside the row may take its place, and the row has to be recomputed.
+     *
+     * @param item The item.
+     * @param row The item's current row.
+     * @param neighbors The neighbors whose similarities to the item changed.
+     * @return The patched row, or {@code null} if the row must be recomputed.
+     */
+    private ImmutableSparseVector patchRow(long item, SparseVector row, LongSet neighbors) {
+        ItemStatistics stats = itemStatistics.get(item);
+        Long2DoubleOpenHashMap entries = new Long2DoubleOpenHashMap(row.size() + neighbors.size());
+        for (VectorEntry e: row.fast()) {
+            entries.put(e.getKey(), e.getValue());
+        }
+
+        LongIterator iter = neighbors.iterator();
+        while (iter.hasNext()) {
+            final long other = iter.nextLong();
+            boolean retain = false;
+            double sim = 0;
+            if (stats.dots.containsKey(other)) {
+                sim = similarity(stats, other);
+                retain = threshold.retain(sim);
+            }
+            boolean present = entries.containsKey(other);
+            // a row with room left holds every retained neighbor
+            boolean full = modelSize > 0 && entries.size() >= modelSize;
+            if (!full) {
+                if (retain) {
+                    entries.put(other, sim);
+                } else {
+                    entries.remove(other);
+                }
+            } else if (present) {
+                if (!retain) {
+                    return null;
+                }
+                entries.remove(other);
+                if (!entries.isEmpty() && sim < entries.get(minEntry(entries))) {
+                    return null;
+                }
+                entries.put(other, sim);
+            } else if (retain) {
+                long minKey = minEntry(entries);
+                if (sim > entries.get(minKey)) {
+                    entries.remove(minKey);
+                    entries.put(other, sim);
+                }
+            }
+        }
+
+        return ImmutableSparseVector.create(entries);
+    }
+
+    private static long minEntry(Long2DoubleMap entries) {
+        long key = 0;
+        double min = Double.POSITIVE_INFINITY;
+        for (Long2DoubleMap.Entry e: entries.long2DoubleEntrySet()) {
+            if (e.getDoubleValue() <= min) {
+                key = e.getLongKey();
+                min = e.getDoubleValue();
+            }
+        }
+        return key;
+    }
+
+    private double similarity(ItemStatistics stats, long other) {
+        double denom = stats.norm() * itemStatistics.get(other).norm() + damping;
+        return Scalars.isZero(denom) ? 0 : stats.dots.get(other) / denom;
+    }
+
+    @Override
+    public String toString() {
+        Neighborhoods nbrs = neighborhoods;
+        int nsims = 0;
+        for (SparseVector row: nbrs.rows) {
+            nsims += row.size();
+        }
+        return String.format("updatable matrix of %d similarities for %d items",
+                             nsims, nbrs.rows.length);
+    }
+
+    /**
+     * The cosine statistics of a single item.
+     */
+    private static final class ItemStatistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int count;
+        double squares;
+        final Long2DoubleOpenHashMap dots = new Long2DoubleOpenHashMap();
+        final Long2IntOpenHashMap coCounts = new Long2IntOpenHashMap();
+
+        void addPair(long other, double product, int countDelta) {
+            int n = coCounts.addTo(other, countDelta) + countDelta;
+            if (n == 0) {
+                // drop the pair entirely, so rounding error does not accumulate
+                coCounts.remove(other);
+                dots.remove(other);
+            } else {
+                dots.addTo(other, product);
+            }
+        }
+
+        double norm() {
+            return squares > 0 ? Math.sqrt(squares) : 0;
+        }
+    }
+
+    /**
+     * The changes made to the statistics by a batch of updates.
+     */
+    private static final class Changes {
+        /**
+         * Items whose own statistics changed, so their rows must be recomputed.
+         */
+        final LongSet recompute = new LongOpenHashSet();
+        /**
+         * Items whose sum of squares changed.
+         */
+        final LongSet normChanged = new LongOpenHashSet();
+        /**
+         * The neighbors whose similarity changed, for each item whose row can be patched.
+         */
+        final Long2ObjectMap<LongSet> patches = new Long2ObjectOpenHashMap<>();
+        /**
+         * Whether items were added or removed.
+         */
+        boolean itemsChanged;
+
+        void patch(long item, long neighbor) {
+            LongSet nbrs = patches.get(item);
+            if (nbrs == null) {
+                nbrs = new LongOpenHashSet();
+                patches.put(item, nbrs);
+            }
+            nbrs.add(neighbor);
+        }
+    }
+
+    /**
+     * An immutable set of neighborhoods.
+     */
+    private static final class Neighborhoods implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final SortedKeyIndex items;
+        final ImmutableSparseVector[] rows;
+
+        Neighborhoods(SortedKeyIndex items, ImmutableSparseVector[] rows) {
+            this.items = items;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Build an updatable item-item model from the current user histories.
+     */
+    public static class Builder implements Provider<UpdatableItemItemModel> {
+        private final UserEventDAO userEventDAO;
+        private final UserVectorNormalizer normalizer;
+        private final UserHistorySummarizer summarizer;
+        private final double damping;
+        private final Threshold threshold;
+        private final int modelSize;
+
+        /**
+         * Construct a new builder.
+         *
+         * @param dao The user event DAO.
+         * @param norm The user vector normalizer.
+         * @param sum The user history summarizer.
+         * @param sim The item similarity; it must be cosine similarity.
+         * @param thresh The similarity threshold.
+         * @param size The model size (0 for unlimited).
+         * @throws IllegalArgumentException if the similarity is not cosine similarity.
+         */
+        @Inject
+        public Builder(@Transient UserEventDAO dao,
+                       UserVectorNormalizer norm,
+                       @Transient UserHistorySummarizer sum,
+                       @Transient ItemSimilarity sim,
+                       @ItemSimilarityThreshold Threshold thresh,
+                       @ModelSize int size) {
+            userEventDAO = dao;
+            normalizer = norm;
+            summarizer = sum;
+            damping = getDamping(sim);
+            threshold = thresh;
+            modelSize = size;
+        }
+
+        private static double getDamping(ItemSimilarity sim) {
+            if (sim instanceof ItemVectorSimilarity) {
+                VectorSimilarity vsim = ((ItemVectorSimilarity) sim).getDelegate();
+                // subclasses may compute something else, so only match the exact class
+                if (vsim.getClass().equals(CosineVectorSimilarity.class)) {
+                    return ((CosineVectorSimilarity) vsim).getDampingFactor();
+                }
+            }
+            throw new IllegalArgumentException("updatable item-item model requires cosine similarity, not " + sim);
+        }
+
+        @Override
+        public UpdatableItemItemModel get() {
+            UpdatableItemItemModel model =
+                    new UpdatableItemItemModel(normalizer, damping, threshold, modelSize);
+            Stopwatch timer = Stopwatch.createStarted();
+            int nitems;
+            synchronized (model) {
+                Changes changes = new Changes();
+                SparseVector empty = ImmutableSparseVector.empty();
+                try (ObjectStream<UserHistory<Event>> users = userEventDAO.streamEventsByUser()) {
+                    for (UserHistory<Event> user: users) {
+                        long uid = user.getUserId();
+                        ImmutableSparseVector vec = summarizer.summarize(user).immutable();
+                        if (!vec.isEmpty()) {
+                            model.userRatings.put(uid, vec);
+                            model.accumulate(empty, normalizer.normalize(uid, vec, null), changes);
+                        }
+                    }
+                }
+                nitems = model.publish(null);
+            }
+            timer.stop();
+            logger.info("built updatable model for {} items in {}", nitems, timer);
+            return model;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.user;
+
+import org.grouplens.grapht.annotation.DefaultNull;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Executor on which {@link SnapshotNeighborFinder} runs the partitions of a parallel neighbor
+ * search.  The executor belongs to the application, which is responsible for shutting it down.
+ * If no executor is configured (the default), searches run on the calling thread regardless of
+ * {@link NeighborSearchThreads}.
+ *
+ * @since 3.0
+ */
+@Documented
+@Qualifier
+@DefaultNull
+@Target({ElementType.METHOD, ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface NeighborSearchExecutor {
+}
@@ -0,0 +1,89 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A neighbor finder that serves neighborhoods precomputed at build time by a
+ * {@link UserNeighborhoodModel}.  Users who are not in the model (typically users who are new
+ * since the model was built) are searched live with a {@link SnapshotNeighborFinder}.
+ *
+ * <p>Neighborhoods of known users reflect their ratings when the model was built, and contain
+ * at most {@link NeighborhoodModelSize} neighbors, rather than the best neighbors for each item
+ * being scored.</p>
+ *
+ * @since 3.0
+ */
+@ThreadSafe
+public class PrecomputedNeighborFinder implements NeighborFinder {
+    private static final Logger logger = LoggerFactory.getLogger(PrecomputedNeighborFinder.class);
+
+    private final UserNeighborhoodModel model;
+    private final UserSnapshot snapshot;
+    private final NeighborFinder fallback;
+
+    /**
+     * Construct a new precomputed neighbor finder.
+     *
+     * @param model    The neighborhood model.
+     * @param snap     The user snapshot the model was built from, supplying neighbor vectors.
+     * @param fallback The neighbor finder for users not in the model.
+     */
+    @Inject
+    public PrecomputedNeighborFinder(UserNeighborhoodModel model, UserSnapshot snap,
+                                     SnapshotNeighborFinder fallback) {
+        this.model = model;
+        snapshot = snap;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Iterable<Neighbor> getCandidateNeighbors(UserHistory<? extends Event> user, LongSet items) {
+        long uid = user.getUserId();
+        SortedKeyIndex users = model.getUserIndex();
+        int idx = users.tryGetIndex(uid);
+        if (idx < 0) {
+            logger.debug("user {} not in neighborhood model, searching live", uid);
+            return fallback.getCandidateNeighbors(user, items);
+        }
+
+        int end = model.getNeighborEnd(idx);
+        List<Neighbor> neighbors = new ArrayList<>(end - model.getNeighborStart(idx));
+        for (int pos = model.getNeighborStart(idx); pos < end; pos++) {
+            long nbr = users.getKey(model.getNeighborIndex(pos));
+            neighbors.add(new Neighbor(nbr, snapshot.getUserVector(nbr),
+                                       model.getNeighborSimilarity(pos)));
+        }
+        return Collections.unmodifiableList(neighbors);
+    }
+}
@@ -20,10 +20,13 @@
  */
 package org.lenskit.knn.user;
 
-import com.google.common.collect.AbstractIterator;
-import it.unimi.dsi.fastutil.longs.LongCollection;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongIterator;
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.lenskit.data.events.Event;
 import org.lenskit.data.history.UserHistory;
@@ -32,41 +35,110 @@ import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
 import org.grouplens.lenskit.transform.threshold.Threshold;
 import org.grouplens.lenskit.vectors.ImmutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.grouplens.lenskit.vectors.similarity.VectorSimilarity;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.lenskit.util.math.Scalars;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * A neighborhood finder that has a snapshot of the rating data for efficiency.  This is built by
  * backing a {@link LiveNeighborFinder} with a {@link org.lenskit.data.packed.BinaryRatingDAO}.
  *
+ * <p>All candidate similarities are computed in one batch.  Candidates are found by scanning the
+ * snapshot's transposed item-user arrays; the scratch space for a search is sized by its number of
+ * candidates, not by the number of users.  If the similarity function is cosine similarity over
+ * user vectors, the dot products with every candidate are accumulated directly from the postings,
+ * so no pair of vectors is ever intersected; other similarity functions are computed candidate by
+ * candidate, and split across the {@link NeighborSearchExecutor} when one is configured and
+ * {@link NeighborSearchThreads} allows it.</p>
+ *
  * @since 2.1
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 @ThreadSafe
 public class SnapshotNeighborFinder implements NeighborFinder {
     private static final Logger logger = LoggerFactory.getLogger(SnapshotNeighborFinder.class);
+    /**
+     * The smallest number of candidates per thread worth splitting a search for.
+     */
+    private static final int MIN_CANDIDATES_PER_THREAD = 256;
 
     private final UserSnapshot snapshot;
     private final UserSimilarity similarity;
     private final UserHistorySummarizer summarizer;
     private final UserVectorNormalizer normalizer;
     private final Threshold threshold;
+    private final int threadCount;
+    @Nullable
+    private final ExecutorService executor;
+    /**
+     * The damping for accumulated cosine similarities, or NaN if the similarity function is
+     * not plain cosine similarity.
+     */
+    private final double cosineDamping;
 
-    @Inject
     public SnapshotNeighborFinder(UserSnapshot snap,
                                   UserSimilarity sim,
                                   UserHistorySummarizer sum,
                                   UserVectorNormalizer norm,
                                   @UserSimilarityThreshold Threshold thresh) {
+        this(snap, sim, sum, norm, thresh, 1, null);
+    }
+
+    /**
+     * Construct a neighbor finder.
+     *
+     * @param snap     The user snapshot.
+     * @param sim      The user similarity function.
+     * @param sum      The history summarizer.
+     * @param norm     The user vector normalizer.
+     * @param thresh   The similarity threshold.
+     * @param nthreads The number of partitions to split a search into (0 for one per processor).
+     * @param exec     The executor to run partitions on, or {@code null} to search on the calling
+     *                 thread.  The finder never shuts it down.
+     */
+    @Inject
+    public SnapshotNeighborFinder(UserSnapshot snap,
+                                  UserSimilarity sim,
+                                  UserHistorySummarizer sum,
+                                  UserVectorNormalizer norm,
+                                  @UserSimilarityThreshold Threshold thresh,
+                                  @NeighborSearchThreads int nthreads,
+                                  @Nullable @NeighborSearchExecutor ExecutorService exec) {
+        Preconditions.checkArgument(nthreads >= 0, "negative thread count");
         snapshot = snap;
         similarity = sim;
         summarizer = sum;
         normalizer = norm;
         threshold = thresh;
+        threadCount = nthreads == 0 ? Runtime.getRuntime().availableProcessors() : nthreads;
+        executor = exec;
+        cosineDamping = findCosineDamping(sim);
+    }
+
+    private static double findCosineDamping(UserSimilarity sim) {
+        if (sim.getClass().equals(UserVectorSimilarity.class)) {
+            VectorSimilarity vsim = ((UserVectorSimilarity) sim).getDelegate();
+            if (vsim.getClass().equals(CosineVectorSimilarity.class)) {
+                return ((CosineVectorSimilarity) vsim).getDampingFactor();
+            }
+        }
+        return Double.NaN;
     }
 
     @Override
@@ -75,63 +147,185 @@ public class SnapshotNeighborFinder implements NeighborFinder {
         SparseVector urs = summarizer.summarize(user);
         final ImmutableSparseVector vector = normalizer.normalize(user.getUserId(), urs, null)
                                                  .freeze();
+        return Collections.unmodifiableList(findNeighbors(uid, vector, items, threadCount));
+    }
 
-        LongCollection qset = items;
+    /**
+     * Find the neighbors of a user.
+     *
+     * @param uid      The user ID.
+     * @param vector   The user's normalized vector.
+     * @param items    The items to search from; candidates are users who rated one of these
+     *                 items or, if the user has rated fewer items, one of the user's items.
+     * @param nthreads The maximum number of threads to use.
+     * @return The accepted neighbors, in the snapshot's user order.
+     */
+    List<Neighbor> findNeighbors(long uid, SparseVector vector, LongSet items, int nthreads) {
+        IntArrayList nbrs = new IntArrayList();
+        DoubleArrayList sims = new DoubleArrayList();
+        searchNeighbors(uid, vector, items, nthreads, nbrs, sims);
+
+        SortedKeyIndex users = snapshot.getUserIndex();
+        List<Neighbor> neighbors = new ArrayList<>(nbrs.size());
+        for (int i = 0; i < nbrs.size(); i++) {
+            int u = nbrs.getInt(i);
+            neighbors.add(new Neighbor(users.getKey(u), snapshot.getUserVector(u), sims.getDouble(i)));
+        }
+        return neighbors;
+    }
+
+    /**
+     * Find the neighbors of a user, without building their vectors.
+     *
+     * @param uid      The user ID.
+     * @param vector   The user's normalized vector.
+     * @param items    The items to search from, as in
+     *                 {@link #findNeighbors(long, SparseVector, LongSet, int)}.
+     * @param nthreads The maximum number of threads to use.
+     * @param nbrs     A list to receive the snapshot indexes of the accepted neighbors, in order.
+     * @param nbrSims  A list to receive the neighbors' similarities.
+     */
+    void searchNeighbors(long uid, SparseVector vector, LongSet items, int nthreads,
+                         IntArrayList nbrs, DoubleArrayList nbrSims) {
+        SortedKeyIndex users = snapshot.getUserIndex();
+        LongSet qset = items;
         if (vector.size() < qset.size()) {
             qset = vector.keySet();
         }
-        final LongSet candidates = new LongOpenHashSet();
+        final int[] itemUsers = snapshot.getItemUserArray();
+        IntOpenHashSet found = new IntOpenHashSet();
         for (LongIterator iter = qset.iterator(); iter.hasNext();) {
-            final long item = iter.nextLong();
-            LongSet users = snapshot.getItemUsers(item);
-            if (users != null) {
-                candidates.addAll(users);
+            int item = snapshot.findItem(iter.nextLong());
+            if (item >= 0) {
+                int end = snapshot.getItemEnd(item);
+                for (int j = snapshot.getItemStart(item); j < end; j++) {
+                    found.add(itemUsers[j]);
+                }
+            }
+        }
+        int self = users.tryGetIndex(uid);
+        if (self >= 0) {
+            found.remove(self);
+        }
+        // process candidates in user order so results do not depend on hashing
+        final int[] candidates = found.toIntArray();
+        final int ncands = candidates.length;
+        Arrays.sort(candidates);
+        logger.debug("Found {} candidate neighbors for user {}", ncands, uid);
+
+        final double[] sims = new double[ncands];
+        if (!Double.isNaN(cosineDamping)) {
+            accumulateCosine(vector, candidates, sims);
+        } else {
+            nthreads = Math.min(nthreads, ncands / MIN_CANDIDATES_PER_THREAD);
+            if (executor != null && nthreads > 1) {
+                computeParallel(uid, vector, candidates, ncands, sims, nthreads);
+            } else {
+                computeSimilarities(uid, vector, candidates, sims, 0, ncands);
             }
         }
-        candidates.remove(uid);
-        logger.debug("Found {} candidate neighbors for user {}", candidates.size(), uid);
-        return new Iterable<Neighbor>() {
-            @Override
-            public Iterator<Neighbor> iterator() {
-                return new NeighborIterator(uid, vector, candidates);
+
+        for (int i = 0; i < ncands; i++) {
+            if (acceptSimilarity(sims[i])) {
+                nbrs.add(candidates[i]);
+                nbrSims.add(sims[i]);
             }
-        };
+        }
     }
 
     /**
-     * Check if a similarity is acceptable.
+     * Compute cosine similarities for all candidates by accumulating dot products over the
+     * item postings of the user's items.
      *
-     * @param sim The similarity to check.
-     * @return {@code false} if the similarity is NaN, infinite, or rejected by the threshold;
-     *         {@code true} otherwise.
+     * @param vector     The user's normalized vector.
+     * @param candidates The sorted snapshot indexes of the candidates.
+     * @param sims       The array to receive the candidates' similarities.
      */
-    private boolean acceptSimilarity(double sim) {
-        return !Double.isNaN(sim) && !Double.isInfinite(sim) && threshold.retain(sim);
-    }
+    private void accumulateCosine(SparseVector vector, int[] candidates, double[] sims) {
+        final int[] itemUsers = snapshot.getItemUserArray();
+        final double[] itemValues = snapshot.getItemUserValueArray();
+        Int2IntOpenHashMap positions = new Int2IntOpenHashMap(candidates.length);
+        positions.defaultReturnValue(-1);
+        for (int i = 0; i < candidates.length; i++) {
+            positions.put(candidates[i], i);
+        }
+        // accumulate the dot products in the similarity array
+        for (VectorEntry e: vector.fast()) {
+            int item = snapshot.findItem(e.getKey());
+            if (item < 0) {
+                continue;
+            }
+            double x = e.getValue();
+            int end = snapshot.getItemEnd(item);
+            for (int j = snapshot.getItemStart(item); j < end; j++) {
+                int pos = positions.get(itemUsers[j]);
+                if (pos >= 0) {
+                    sims[pos] += x * itemValues[j];
+                }
+            }
+        }
 
-    private class NeighborIterator extends AbstractIterator<Neighbor> {
-        private final long user;
-        private final SparseVector userVector;
-        private final LongIterator neighborIter;
+        double norm = vector.norm();
+        for (int i = 0; i < candidates.length; i++) {
+            double denom = norm * snapshot.getNormalizedUserNorm(candidates[i]) + cosineDamping;
+            if (Scalars.isZero(denom)) {
+                sims[i] = 0;
+            } else {
+                sims[i] = sims[i] / denom;
+            }
+        }
+    }
 
-        public NeighborIterator(long uid, SparseVector uvec, LongSet nbrs) {
-            user = uid;
-            userVector = uvec;
-            neighborIter = nbrs.iterator();
+    /**
+     * Compute similarities for a range of candidates with the similarity function.  This only
+     * reads shared state, so disjoint ranges can be computed concurrently.
+     */
+    private void computeSimilarities(long uid, SparseVector vector, int[] candidates, double[] sims,
+                                     int start, int end) {
+        SortedKeyIndex users = snapshot.getUserIndex();
+        for (int i = start; i < end; i++) {
+            int u = candidates[i];
+            sims[i] = similarity.similarity(uid, vector, users.getKey(u),
+                                            snapshot.getNormalizedUserVector(u));
         }
-        @Override
-        protected Neighbor computeNext() {
-            while (neighborIter.hasNext()) {
-                final long neighbor = neighborIter.nextLong();
-                SparseVector vector = snapshot.getNormalizedUserVector(neighbor);
-                double sim = similarity.similarity(user, userVector, neighbor, vector);
-                if (acceptSimilarity(sim)) {
-                    return new Neighbor(neighbor, snapshot.getUserVector(neighbor), sim);
-                }
+    }
 
+    private void computeParallel(final long uid, final SparseVector vector,
+                                 final int[] candidates, int ncands, final double[] sims,
+                                 int nthreads) {
+        List<Callable<Void>> tasks = new ArrayList<>(nthreads);
+        for (int t = 0; t < nthreads; t++) {
+            final int start = (int) ((long) ncands * t / nthreads);
+            final int end = (int) ((long) ncands * (t + 1) / nthreads);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    computeSimilarities(uid, vector, candidates, sims, start, end);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> result: executor.invokeAll(tasks)) {
+                result.get();
             }
-            // no neighbor found, done
-            return endOfData();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("neighbor search interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause());
+            throw new RuntimeException("error computing user similarities", ex.getCause());
         }
     }
+
+    /**
+     * Check if a similarity is acceptable.
+     *
+     * @param sim The similarity to check.
+     * @return {@code false} if the similarity is NaN, infinite, or rejected by the threshold;
+     *         {@code true} otherwise.
+     */
+    private boolean acceptSimilarity(double sim) {
+        return !Double.isNaN(sim) && !Double.isInfinite(sim) && threshold.retain(sim);
+    }
 }
@@ -0,0 +1,258 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.user;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.lenskit.inject.Shareable;
+import org.lenskit.inject.Transient;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Precomputed neighborhoods for every user in a {@link UserSnapshot}, used by
+ * {@link PrecomputedNeighborFinder}.  Each user's most similar neighbors are stored in
+ * decreasing order of similarity, in compressed sparse row form: an offset array over the users,
+ * and parallel arrays of neighbor indexes and (single-precision) similarities.
+ *
+ * @since 3.0
+ */
+@Shareable
+@ThreadSafe
+@DefaultProvider(UserNeighborhoodModel.Builder.class)
+public class UserNeighborhoodModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final SortedKeyIndex users;
+    private final int[] offsets;
+    private final int[] neighbors;
+    private final float[] similarities;
+
+    /**
+     * Construct a user neighborhood model.
+     * @param us The user index.
+     * @param offs The row offsets (one more than the number of users).
+     * @param nbrs The neighbor user indexes.
+     * @param sims The neighbor similarities.
+     */
+    UserNeighborhoodModel(SortedKeyIndex us, int[] offs, int[] nbrs, float[] sims) {
+        Preconditions.checkArgument(offs.length == us.size() + 1, "incorrectly sized offset array");
+        Preconditions.checkArgument(nbrs.length == sims.length, "neighbor array size mismatch");
+        users = us;
+        offsets = offs;
+        neighbors = nbrs;
+        similarities = sims;
+    }
+
+    /**
+     * Get the index of the users in the model.
+     * @return The user index.
+     */
+    public SortedKeyIndex getUserIndex() {
+        return users;
+    }
+
+    /**
+     * Get the stored neighbors of a user.
+     *
+     * @param user The user ID.
+     * @return A vector mapping the user's neighbors to their similarities (empty if the user is
+     *         not in the model).
+     */
+    public SparseVector getNeighbors(long user) {
+        int idx = users.tryGetIndex(user);
+        if (idx < 0) {
+            return SparseVector.empty();
+        }
+        int start = offsets[idx];
+        int n = offsets[idx + 1] - start;
+        long[] ids = new long[n];
+        double[] sims = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = users.getKey(neighbors[start + i]);
+            sims[i] = similarities[start + i];
+        }
+        return MutableSparseVector.wrapUnsorted(ids, sims).freeze();
+    }
+
+    int getNeighborStart(int idx) {
+        return offsets[idx];
+    }
+
+    int getNeighborEnd(int idx) {
+        return offsets[idx + 1];
+    }
+
+    int getNeighborIndex(int pos) {
+        return neighbors[pos];
+    }
+
+    double getNeighborSimilarity(int pos) {
+        return similarities[pos];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("user neighborhoods of %d users (%d neighbors)",
+                             users.size(), neighbors.length);
+    }
+
+    /**
+     * Build a user neighborhood model by searching for each user's neighbors with a
+     * {@link SnapshotNeighborFinder}.
+     */
+    public static class Builder implements Provider<UserNeighborhoodModel> {
+        private static final Logger logger = LoggerFactory.getLogger(Builder.class);
+        private static final int TASKS_PER_THREAD = 8;
+
+        private final UserSnapshot snapshot;
+        private final SnapshotNeighborFinder finder;
+        private final int modelSize;
+        private final int threadCount;
+
+        @Inject
+        public Builder(@Transient UserSnapshot snap,
+                       @Transient SnapshotNeighborFinder nf,
+                       @NeighborhoodModelSize int size,
+                       @NeighborhoodModelBuildThreads int nthreads) {
+            Preconditions.checkArgument(size >= 0, "negative model size");
+            Preconditions.checkArgument(nthreads >= 0, "negative thread count");
+            snapshot = snap;
+            finder = nf;
+            modelSize = size;
+            threadCount = nthreads == 0 ? Runtime.getRuntime().availableProcessors() : nthreads;
+        }
+
+        @Override
+        public UserNeighborhoodModel get() {
+            SortedKeyIndex users = snapshot.getUserIndex();
+            final int nusers = users.size();
+            final int[][] rowNeighbors = new int[nusers][];
+            final float[][] rowSims = new float[nusers][];
+            Stopwatch timer = Stopwatch.createStarted();
+            logger.info("computing neighborhoods for {} users with {} threads", nusers, threadCount);
+
+            if (threadCount > 1) {
+                int ntasks = threadCount * TASKS_PER_THREAD;
+                List<Callable<Void>> tasks = new ArrayList<>(ntasks);
+                for (int t = 0; t < ntasks; t++) {
+                    final int start = (int) ((long) nusers * t / ntasks);
+                    final int end = (int) ((long) nusers * (t + 1) / ntasks);
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            for (int i = start; i < end; i++) {
+                                computeRow(i, rowNeighbors, rowSims);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                ForkJoinPool pool = new ForkJoinPool(threadCount);
+                try {
+                    for (Future<Void> result: pool.invokeAll(tasks)) {
+                        result.get();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("model build interrupted", ex);
+                } catch (ExecutionException ex) {
+                    Throwables.propagateIfPossible(ex.getCause());
+                    throw new RuntimeException("error computing user neighborhoods", ex.getCause());
+                } finally {
+                    pool.shutdownNow();
+                }
+            } else {
+                for (int i = 0; i < nusers; i++) {
+                    computeRow(i, rowNeighbors, rowSims);
+                }
+            }
+
+            int[] offsets = new int[nusers + 1];
+            for (int i = 0; i < nusers; i++) {
+                offsets[i + 1] = offsets[i] + rowNeighbors[i].length;
+            }
+            int[] neighbors = new int[offsets[nusers]];
+            float[] sims = new float[offsets[nusers]];
+            for (int i = 0; i < nusers; i++) {
+                System.arraycopy(rowNeighbors[i], 0, neighbors, offsets[i], rowNeighbors[i].length);
+                System.arraycopy(rowSims[i], 0, sims, offsets[i], rowSims[i].length);
+            }
+            logger.info("computed {} neighbors for {} users in {}",
+                        neighbors.length, nusers, timer);
+            return new UserNeighborhoodModel(users, offsets, neighbors, sims);
+        }
+
+        /**
+         * Compute the stored neighbors of one user.  This only reads shared state and writes
+         * the user's own row, so rows can be computed concurrently.
+         */
+        private void computeRow(int idx, int[][] rowNeighbors, float[][] rowSims) {
+            SortedKeyIndex users = snapshot.getUserIndex();
+            SparseVector vector = snapshot.getNormalizedUserVector(idx);
+            IntArrayList nbrs = new IntArrayList();
+            final DoubleArrayList nbrSims = new DoubleArrayList();
+            finder.searchNeighbors(users.getKey(idx), vector, vector.keySet(), 1, nbrs, nbrSims);
+            // stable sort by decreasing similarity, so ties stay in user order
+            int[] order = new int[nbrs.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            IntArrays.mergeSort(order, new AbstractIntComparator() {
+                @Override
+                public int compare(int i, int j) {
+                    return Double.compare(nbrSims.getDouble(j), nbrSims.getDouble(i));
+                }
+            });
+            int n = order.length;
+            if (modelSize > 0 && n > modelSize) {
+                n = modelSize;
+            }
+            int[] row = new int[n];
+            float[] sims = new float[n];
+            for (int i = 0; i < n; i++) {
+                row[i] = nbrs.getInt(order[i]);
+                sims[i] = (float) nbrSims.getDouble(order[i]);
+            }
+            rowNeighbors[idx] = row;
+            rowSims[idx] = sims;
+        }
+    }
+}
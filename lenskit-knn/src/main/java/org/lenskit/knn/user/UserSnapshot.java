@@ -21,7 +21,10 @@
 package org.lenskit.knn.user;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.longs.*;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.lenskit.inject.Shareable;
@@ -34,17 +37,27 @@ import org.grouplens.lenskit.data.history.UserHistorySummarizer;
 import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
 import org.grouplens.lenskit.vectors.ImmutableSparseVector;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
 import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import java.io.Serializable;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * User snapshot used by {@link SnapshotNeighborFinder}.
+ *
+ * <p>The snapshot is stored in compressed sparse row form: each user's entries are a range of
+ * parallel arrays of item indexes, raw values, and normalized values, and an int transpose of the
+ * same form lists the users (with their normalized values) for each item.  User and item IDs are
+ * kept once, in shared key indexes.  Sparse vectors are only built when they are requested.
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  * @since 2.1
  */
@@ -52,47 +65,206 @@ import java.util.List;
 @ThreadSafe
 @DefaultProvider(UserSnapshot.Builder.class)
 public class UserSnapshot implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 3L;
     private final SortedKeyIndex users;
-    private final List<ImmutableSparseVector> vectors;
-    private final List<ImmutableSparseVector> normedVectors;
-    private final Long2ObjectMap<LongSortedSet> itemUserSets;
+    private final SortedKeyIndex items;
+    /**
+     * The start of each user's entries; user {@code u}'s entries are in
+     * {@code [userOffsets[u], userOffsets[u+1])}.
+     */
+    private final int[] userOffsets;
+    private final int[] userItems;
+    private final double[] values;
+    /**
+     * The normalized values; NaN where the normalizer dropped an entry.
+     */
+    private final double[] normedValues;
+    private final double[] normedNorms;
+    /**
+     * The start of each item's entries in the transposed arrays.
+     */
+    private final int[] itemOffsets;
+    private final int[] itemUsers;
+    private final double[] itemUserValues;
 
     /**
      * Construct a user snapshot.
      * @param us The set of users.
-     * @param vs The list of raw user vectors.
-     * @param nvs The list of normalized user vectors.
+     * @param is The set of items.
+     * @param uoffs The user offsets.
+     * @param uitems The item index of each entry, increasing within each user.
+     * @param vals The raw value of each entry.
+     * @param nvals The normalized value of each entry.
      */
-    UserSnapshot(SortedKeyIndex us, List<ImmutableSparseVector> vs, List<ImmutableSparseVector> nvs,
-                 Long2ObjectMap<LongSortedSet> iuSets) {
-        Preconditions.checkArgument(vs.size() == us.size(),
-                                    "incorrectly sized vector list");
-        Preconditions.checkArgument(nvs.size() == us.size(),
-                                    "incorrectly sized normalized vector list");
+    UserSnapshot(SortedKeyIndex us, SortedKeyIndex is, int[] uoffs, int[] uitems,
+                 double[] vals, double[] nvals) {
+        Preconditions.checkArgument(uoffs.length == us.size() + 1, "incorrectly sized offsets");
+        int n = uoffs[us.size()];
+        Preconditions.checkArgument(uitems.length == n && vals.length == n && nvals.length == n,
+                                    "incorrectly sized entry arrays");
         users = us;
-        vectors = ImmutableList.copyOf(vs);
-        normedVectors = ImmutableList.copyOf(nvs);
-        itemUserSets = iuSets;
+        items = is;
+        userOffsets = uoffs;
+        userItems = uitems;
+        values = vals;
+        normedValues = nvals;
+
+        final int nusers = us.size();
+        normedNorms = new double[nusers];
+        for (int u = 0; u < nusers; u++) {
+            double ssq = 0;
+            for (int j = uoffs[u]; j < uoffs[u + 1]; j++) {
+                if (!Double.isNaN(nvals[j])) {
+                    ssq += nvals[j] * nvals[j];
+                }
+            }
+            normedNorms[u] = Math.sqrt(ssq);
+        }
+
+        // transpose; scanning users in order leaves each item's users sorted
+        final int nitems = is.size();
+        itemOffsets = new int[nitems + 1];
+        for (int j = 0; j < n; j++) {
+            itemOffsets[uitems[j] + 1] += 1;
+        }
+        for (int i = 0; i < nitems; i++) {
+            itemOffsets[i + 1] += itemOffsets[i];
+        }
+        int[] fill = Arrays.copyOf(itemOffsets, nitems);
+        itemUsers = new int[n];
+        itemUserValues = new double[n];
+        for (int u = 0; u < nusers; u++) {
+            for (int j = uoffs[u]; j < uoffs[u + 1]; j++) {
+                int pos = fill[uitems[j]]++;
+                itemUsers[pos] = u;
+                itemUserValues[pos] = Double.isNaN(nvals[j]) ? 0 : nvals[j];
+            }
+        }
     }
 
     public ImmutableSparseVector getUserVector(long user) {
         int idx = users.tryGetIndex(user);
         Preconditions.checkArgument(idx >= 0, "invalid user " + user);
-        return vectors.get(idx);
+        return getUserVector(idx);
     }
 
     public ImmutableSparseVector getNormalizedUserVector(long user) {
         int idx = users.tryGetIndex(user);
         Preconditions.checkArgument(idx >= 0, "invalid user " + user);
-        return normedVectors.get(idx);
+        return getNormalizedUserVector(idx);
     }
 
     public LongSet getItemUsers(long item) {
-        return itemUserSets.get(item);
+        int idx = items.tryGetIndex(item);
+        if (idx < 0) {
+            return null;
+        }
+        long[] ids = new long[itemOffsets[idx + 1] - itemOffsets[idx]];
+        for (int j = 0; j < ids.length; j++) {
+            ids[j] = users.getKey(itemUsers[itemOffsets[idx] + j]);
+        }
+        return LongUtils.packedSet(ids);
+    }
+
+    /**
+     * Get the index of the users in this snapshot.  The index-based accessors below use
+     * positions in this index to avoid hashing and boxing in neighbor searches.
+     *
+     * @return The user index.
+     */
+    public SortedKeyIndex getUserIndex() {
+        return users;
+    }
+
+    /**
+     * Get the index of the items in this snapshot.
+     *
+     * @return The item index.
+     */
+    public SortedKeyIndex getItemIndex() {
+        return items;
+    }
+
+    /**
+     * Get the number of entries (user-item pairs) in the snapshot.
+     * @return The number of entries.
+     */
+    public int getEntryCount() {
+        return userItems.length;
+    }
+
+    ImmutableSparseVector getUserVector(int idx) {
+        return makeVector(idx, values);
+    }
+
+    ImmutableSparseVector getNormalizedUserVector(int idx) {
+        return makeVector(idx, normedValues);
+    }
+
+    private ImmutableSparseVector makeVector(int idx, double[] vals) {
+        final int start = userOffsets[idx];
+        final int end = userOffsets[idx + 1];
+        long[] keys = new long[end - start];
+        double[] vs = new double[end - start];
+        int n = 0;
+        for (int j = start; j < end; j++) {
+            if (!Double.isNaN(vals[j])) {
+                keys[n] = items.getKey(userItems[j]);
+                vs[n] = vals[j];
+                n++;
+            }
+        }
+        return MutableSparseVector.wrap(keys, vs, n).freeze();
+    }
+
+    /**
+     * Get the Euclidean norm of a user's normalized vector.
+     */
+    double getNormalizedUserNorm(int idx) {
+        return normedNorms[idx];
+    }
+
+    /**
+     * Find the index of an item.
+     *
+     * @return The item's index, or a negative value if the item is not in the snapshot.
+     */
+    int findItem(long item) {
+        return items.tryGetIndex(item);
+    }
+
+    /**
+     * Get the start of an item's entries in {@link #getItemUserArray()}.
+     */
+    int getItemStart(int item) {
+        return itemOffsets[item];
+    }
+
+    /**
+     * Get the end of an item's entries in {@link #getItemUserArray()}.
+     */
+    int getItemEnd(int item) {
+        return itemOffsets[item + 1];
+    }
+
+    /**
+     * Get the transposed user indexes.  An item's users, in increasing order, are in the range
+     * from {@link #getItemStart(int)} to {@link #getItemEnd(int)}.  The array must not be modified.
+     */
+    int[] getItemUserArray() {
+        return itemUsers;
+    }
+
+    /**
+     * Get the users' normalized values, parallel to {@link #getItemUserArray()}.  The array must
+     * not be modified.
+     */
+    double[] getItemUserValueArray() {
+        return itemUserValues;
     }
 
     public static class Builder implements Provider<UserSnapshot> {
+        private static final Logger logger = LoggerFactory.getLogger(Builder.class);
         private final UserEventDAO userEventDAO;
         private final UserVectorNormalizer normalizer;
         private final UserHistorySummarizer summarizer;
@@ -108,47 +280,74 @@ public class UserSnapshot implements Serializable {
 
         @Override
         public UserSnapshot get() {
-            Long2ObjectMap<MutableSparseVector> vectors = new Long2ObjectOpenHashMap<MutableSparseVector>();
-            ObjectStream<? extends UserHistory<? extends Event>> users = userEventDAO.streamEventsByUser(summarizer.eventTypeWanted());
+            // accumulate entries in stream order, normalizing each user as it is read
+            LongArrayList userIds = new LongArrayList();
+            IntArrayList starts = new IntArrayList();
+            LongArrayList itemIds = new LongArrayList();
+            DoubleArrayList vals = new DoubleArrayList();
+            DoubleArrayList nvals = new DoubleArrayList();
+            ObjectStream<? extends UserHistory<? extends Event>> stream = userEventDAO.streamEventsByUser(summarizer.eventTypeWanted());
             try {
-                for (UserHistory<? extends Event> user: users) {
-                    MutableSparseVector uvec = summarizer.summarize(user).mutableCopy();
-                    vectors.put(user.getUserId(), uvec);
+                for (UserHistory<? extends Event> user: stream) {
+                    SparseVector uvec = summarizer.summarize(user);
+                    MutableSparseVector nvec = uvec.mutableCopy();
+                    normalizer.normalize(user.getUserId(), uvec, nvec);
+                    userIds.add(user.getUserId());
+                    starts.add(itemIds.size());
+                    for (VectorEntry e: uvec.fast()) {
+                        itemIds.add(e.getKey());
+                        vals.add(e.getValue());
+                        nvals.add(nvec.get(e.getKey(), Double.NaN));
+                    }
                 }
             } finally {
-                users.close();
+                stream.close();
             }
+            starts.add(itemIds.size());
 
-            Long2ObjectMap<LongList> itemUserLists = new Long2ObjectOpenHashMap<LongList>();
-            SortedKeyIndex domain = SortedKeyIndex.fromCollection(vectors.keySet());
-            ImmutableList.Builder<ImmutableSparseVector> vecs = ImmutableList.builder();
-            ImmutableList.Builder<ImmutableSparseVector> nvecs = ImmutableList.builder();
-            for (LongIterator uiter = domain.keyIterator(); uiter.hasNext();) {
-                final long user = uiter.nextLong();
-                MutableSparseVector vec = vectors.get(user);
-                // save user's original vector
-                ImmutableSparseVector userVector = vec.immutable();
-                vecs.add(userVector);
-                // normalize user vector
-                normalizer.normalize(user, userVector, vec);
-                // and save normalized vector
-                nvecs.add(vec.immutable());
-                for (LongIterator iiter = userVector.keySet().iterator(); iiter.hasNext();) {
-                    final long item = iiter.nextLong();
-                    LongList itemUsers = itemUserLists.get(item);
-                    if (itemUsers == null) {
-                        itemUsers = new LongArrayList();
-                        itemUserLists.put(item, itemUsers);
-                    }
-                    itemUsers.add(user);
-                }
-            }
+            final int nusers = userIds.size();
+            final int n = itemIds.size();
+            long[] itemKeys = new LongOpenHashSet(itemIds).toLongArray();
+            Arrays.sort(itemKeys);
+            SortedKeyIndex itemIndex = SortedKeyIndex.wrap(itemKeys, itemKeys.length);
 
-            Long2ObjectMap<LongSortedSet> itemUserSets = new Long2ObjectOpenHashMap<LongSortedSet>();
-            for (Long2ObjectMap.Entry<LongList> entry: itemUserLists.long2ObjectEntrySet()) {
-                itemUserSets.put(entry.getLongKey(), LongUtils.packedSet(entry.getValue()));
+            // lay users out in ID order
+            final long[] streamKeys = userIds.elements();
+            int[] order = new int[nusers];
+            for (int i = 0; i < nusers; i++) {
+                order[i] = i;
+            }
+            IntArrays.quickSort(order, 0, nusers, new AbstractIntComparator() {
+                @Override
+                public int compare(int u1, int u2) {
+                    return Long.compare(streamKeys[u1], streamKeys[u2]);
+                }
+            });
+            long[] userKeys = new long[nusers];
+            int[] offsets = new int[nusers + 1];
+            int[] uitems = new int[n];
+            double[] uvals = new double[n];
+            double[] unvals = new double[n];
+            for (int u = 0; u < nusers; u++) {
+                final int src = order[u];
+                userKeys[u] = streamKeys[src];
+                if (u > 0 && userKeys[u] == userKeys[u - 1]) {
+                    throw new IllegalStateException("duplicate user " + userKeys[u]);
+                }
+                final int start = starts.getInt(src);
+                final int len = starts.getInt(src + 1) - start;
+                final int dst = offsets[u];
+                for (int j = 0; j < len; j++) {
+                    uitems[dst + j] = itemIndex.tryGetIndex(itemIds.getLong(start + j));
+                }
+                System.arraycopy(vals.elements(), start, uvals, dst, len);
+                System.arraycopy(nvals.elements(), start, unvals, dst, len);
+                offsets[u + 1] = dst + len;
             }
-            return new UserSnapshot(domain, vecs.build(), nvecs.build(), itemUserSets);
+            logger.debug("built snapshot of {} users, {} items, and {} entries",
+                         nusers, itemKeys.length, n);
+            return new UserSnapshot(SortedKeyIndex.wrap(userKeys, nusers), itemIndex,
+                                    offsets, uitems, uvals, unvals);
         }
     }
 }
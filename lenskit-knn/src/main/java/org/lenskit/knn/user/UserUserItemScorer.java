@@ -41,15 +41,17 @@ import org.lenskit.knn.MinNeighbors;
 import org.lenskit.knn.NeighborhoodSize;
 import org.lenskit.results.Results;
 import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.keys.SortedKeyIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
 
 import static java.lang.Math.abs;
 
@@ -181,24 +183,24 @@ public class UserUserItemScorer extends AbstractItemScorer {
         Preconditions.checkNotNull(user, "user profile");
         Preconditions.checkNotNull(user, "item set");
 
-        Long2ObjectMap<PriorityQueue<Neighbor>> heaps = new Long2ObjectOpenHashMap<PriorityQueue<Neighbor>>(items.size());
-        for (LongIterator iter = items.iterator(); iter.hasNext();) {
-            long item = iter.nextLong();
-            heaps.put(item, new PriorityQueue<Neighbor>(neighborhoodSize + 1,
-                                                        Neighbor.SIMILARITY_COMPARATOR));
-        }
+        SortedKeyIndex itemIndex = SortedKeyIndex.fromCollection(items);
+        int nitems = itemIndex.size();
+        NeighborHeap[] heaps = new NeighborHeap[nitems];
+        List<Neighbor> candidates = new ArrayList<>();
 
         int neighborsUsed = 0;
         for (Neighbor nbr: neighborFinder.getCandidateNeighbors(user, items)) {
-            for (VectorEntry e: nbr.vector) {
-                final long item = e.getKey();
-                PriorityQueue<Neighbor> heap = heaps.get(item);
-                if (heap != null) {
-                    heap.add(nbr);
-                    if (heap.size() > neighborhoodSize) {
-                        assert heap.size() == neighborhoodSize + 1;
-                        heap.remove();
-                    } else {
+            int nidx = candidates.size();
+            candidates.add(nbr);
+            for (VectorEntry e: nbr.vector.fast()) {
+                int iidx = itemIndex.tryGetIndex(e.getKey());
+                if (iidx >= 0) {
+                    NeighborHeap heap = heaps[iidx];
+                    if (heap == null) {
+                        heap = new NeighborHeap(neighborhoodSize);
+                        heaps[iidx] = heap;
+                    }
+                    if (heap.add(nidx, nbr.similarity)) {
                         neighborsUsed += 1;
                     }
                 }
@@ -206,6 +208,87 @@ public class UserUserItemScorer extends AbstractItemScorer {
         }
         logger.debug("using {} neighbors across {} items",
                      neighborsUsed, items.size());
-        return heaps;
+
+        Long2ObjectMap<List<Neighbor>> neighborhoods = new Long2ObjectOpenHashMap<List<Neighbor>>(nitems);
+        for (int i = 0; i < nitems; i++) {
+            NeighborHeap heap = heaps[i];
+            List<Neighbor> nbrs;
+            if (heap == null) {
+                nbrs = Collections.emptyList();
+            } else {
+                nbrs = new ArrayList<>(heap.size);
+                for (int j = 0; j < heap.size; j++) {
+                    nbrs.add(candidates.get(heap.neighbors[j]));
+                }
+            }
+            neighborhoods.put(itemIndex.getKey(i), nbrs);
+        }
+        return neighborhoods;
+    }
+
+    /**
+     * A bounded min-heap of neighbor positions, ordered by similarity, so the least similar
+     * neighbor is the one replaced when a better one arrives.
+     */
+    private static final class NeighborHeap {
+        private final int limit;
+        int[] neighbors;
+        double[] similarities;
+        int size;
+
+        NeighborHeap(int limit) {
+            this.limit = limit;
+            int cap = Math.max(Math.min(limit, 8), 1);
+            neighbors = new int[cap];
+            similarities = new double[cap];
+        }
+
+        /**
+         * Offer a neighbor to the heap.
+         * @return {@code true} if the heap grew.
+         */
+        boolean add(int nbr, double sim) {
+            if (size < limit) {
+                if (size == neighbors.length) {
+                    int cap = (int) Math.min((long) limit, size * 2L);
+                    neighbors = Arrays.copyOf(neighbors, cap);
+                    similarities = Arrays.copyOf(similarities, cap);
+                }
+                int i = size;
+                size += 1;
+                while (i > 0) {
+                    int parent = (i - 1) / 2;
+                    if (similarities[parent] <= sim) {
+                        break;
+                    }
+                    neighbors[i] = neighbors[parent];
+                    similarities[i] = similarities[parent];
+                    i = parent;
+                }
+                neighbors[i] = nbr;
+                similarities[i] = sim;
+                return true;
+            } else if (size > 0 && sim > similarities[0]) {
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && similarities[child + 1] < similarities[child]) {
+                        child += 1;
+                    }
+                    if (similarities[child] >= sim) {
+                        break;
+                    }
+                    neighbors[i] = neighbors[child];
+                    similarities[i] = similarities[child];
+                    i = child;
+                }
+                neighbors[i] = nbr;
+                similarities[i] = sim;
+            }
+            return false;
+        }
     }
 }
@@ -44,6 +44,14 @@ public class UserVectorSimilarity implements UserSimilarity, Serializable {
         delegate = sim;
     }
 
+    /**
+     * Get the vector similarity this user similarity delegates to.
+     * @return The underlying vector similarity.
+     */
+    public VectorSimilarity getDelegate() {
+        return delegate;
+    }
+
     @Override
     public double similarity(long i1, SparseVector v1, long i2, SparseVector v2) {
         return delegate.similarity(v1, v2);
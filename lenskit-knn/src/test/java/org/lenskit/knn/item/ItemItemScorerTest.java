@@ -0,0 +1,194 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.LenskitRecommenderEngine;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.api.ResultMap;
+import org.lenskit.data.dao.EventCollectionDAO;
+import org.lenskit.data.dao.EventDAO;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.knn.NeighborhoodSize;
+import org.lenskit.knn.item.model.ItemItemModel;
+import org.lenskit.knn.item.model.PackedSimilarityMatrixModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Check that the array-based scoring paths in {@link ItemItemScorer} agree with map-based
+ * neighborhood accumulation.
+ */
+public class ItemItemScorerTest {
+    private static final int NUSERS = 50;
+    private static final int NITEMS = 80;
+
+    private List<Rating> ratings;
+    private LongList items;
+
+    @Before
+    public void createRatings() {
+        Random rng = new Random(42);
+        ratings = new ArrayList<>();
+        items = new LongArrayList();
+        for (long i = 1; i <= NITEMS; i++) {
+            items.add(i);
+        }
+        for (long u = 1; u <= NUSERS; u++) {
+            for (long i = 1; i <= NITEMS; i++) {
+                if (rng.nextDouble() < 0.2) {
+                    ratings.add(Rating.create(u, i, rng.nextInt(9) * 0.5 + 1));
+                }
+            }
+        }
+    }
+
+    private LenskitRecommender buildRecommender(boolean packed) throws RecommenderBuildException {
+        return buildRecommender(packed, WeightedAverageNeighborhoodScorer.class);
+    }
+
+    private LenskitRecommender buildRecommender(boolean packed, Class<? extends NeighborhoodScorer> nscorer)
+            throws RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(NeighborhoodScorer.class).to(nscorer);
+        config.bind(EventDAO.class).to(new EventCollectionDAO(ratings));
+        config.bind(ItemScorer.class).to(ItemItemScorer.class);
+        config.set(NeighborhoodSize.class).to(10);
+        if (packed) {
+            config.bind(ItemItemModel.class).to(PackedSimilarityMatrixModel.class);
+        }
+        return LenskitRecommenderEngine.build(config).createRecommender();
+    }
+
+    private Long2DoubleMap userRatings(long user) {
+        Long2DoubleMap map = new Long2DoubleOpenHashMap();
+        for (Rating r: ratings) {
+            if (r.getUserId() == user) {
+                map.put(r.getItemId(), r.getValue());
+            }
+        }
+        return map;
+    }
+
+    private void checkAgainstMaps(LenskitRecommender rec) {
+        ItemItemScorer scorer = rec.get(ItemItemScorer.class);
+        for (long u = 1; u <= NUSERS; u++) {
+            Long2DoubleMap data = userRatings(u);
+            ResultMap results = scorer.scoreWithDetails(u, items);
+            int n = 0;
+            for (long item: items) {
+                ItemItemResult expected = scorer.scoreItem(data, item);
+                if (expected == null) {
+                    assertThat(results.get(item), nullValue());
+                } else {
+                    n += 1;
+                    ItemItemResult actual = results.get(item).as(ItemItemResult.class);
+                    assertThat(actual, notNullValue());
+                    assertThat(actual.getScore(), closeTo(expected.getScore(), 1.0e-6));
+                    assertThat(actual.getNeighborhoodSize(),
+                               equalTo(expected.getNeighborhoodSize()));
+                }
+            }
+            assertThat(results.size(), equalTo(n));
+        }
+    }
+
+    @Test
+    public void testMatrixModelScores() throws RecommenderBuildException {
+        checkAgainstMaps(buildRecommender(false));
+    }
+
+    @Test
+    public void testPackedModelScores() throws RecommenderBuildException {
+        checkAgainstMaps(buildRecommender(true));
+    }
+
+    @Test
+    public void testDuplicateItems() throws RecommenderBuildException {
+        ItemItemScorer scorer = buildRecommender(true).get(ItemItemScorer.class);
+        LongList doubled = new LongArrayList(items);
+        doubled.addAll(items);
+        ResultMap once = scorer.scoreWithDetails(1, items);
+        ResultMap twice = scorer.scoreWithDetails(1, doubled);
+        assertThat(twice.size(), equalTo(once.size()));
+        for (long item: once.keySet()) {
+            assertThat(twice.getScore(item), equalTo(once.getScore(item)));
+        }
+    }
+
+    @Test
+    public void testSubclassedArrayScorer() throws RecommenderBuildException {
+        // the offset makes the scores differ from the base scorer's, so both forms must see it
+        checkAgainstMaps(buildRecommender(true, OffsetNeighborhoodScorer.class));
+    }
+
+    @Test
+    public void testMapOnlyScorer() throws RecommenderBuildException {
+        checkAgainstMaps(buildRecommender(true, MapOnlyNeighborhoodScorer.class));
+    }
+
+    /**
+     * A scorer that changes both methods of a scorer that supports arrays.
+     */
+    public static class OffsetNeighborhoodScorer extends WeightedAverageNeighborhoodScorer {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public ItemItemResult score(long item, Long2DoubleMap neighbors, Long2DoubleMap scores) {
+            ItemItemResult result = super.score(item, neighbors, scores);
+            if (result == null) {
+                return null;
+            }
+            return new ItemItemResult(item, result.getScore() + 100, result.getNeighborhoodSize());
+        }
+
+        @Override
+        public double score(double[] similarities, double[] scores, int n) {
+            return super.score(similarities, scores, n) + 100;
+        }
+    }
+
+    /**
+     * A scorer that only supports the map-based method.
+     */
+    public static class MapOnlyNeighborhoodScorer implements NeighborhoodScorer {
+        @Override
+        public ItemItemResult score(long item, Long2DoubleMap neighbors, Long2DoubleMap scores) {
+            if (neighbors.isEmpty()) {
+                return null;
+            }
+            return new ItemItemResult(item, neighbors.size(), neighbors.size());
+        }
+    }
+}
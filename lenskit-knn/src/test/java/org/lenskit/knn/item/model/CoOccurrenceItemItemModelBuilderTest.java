@@ -0,0 +1,148 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.transform.threshold.NoThreshold;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.grouplens.lenskit.vectors.similarity.PearsonCorrelation;
+import org.grouplens.lenskit.vectors.similarity.SpearmanRankCorrelation;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class CoOccurrenceItemItemModelBuilderTest {
+    private ItemItemBuildContext context;
+    private Threshold threshold;
+
+    @Before
+    public void createContext() {
+        context = RandomBuildContexts.create(new Random(42), 150, 200, 0.08);
+        threshold = new NoThreshold();
+    }
+
+    private void assertSameSimilarities(ItemSimilarity sim) {
+        NeighborIterationStrategy strat = new SparseNeighborIterationStrategy();
+        SimilarityMatrixModel expected =
+                new ItemItemModelBuilder(sim, context, threshold, strat, 0, 1).get();
+        SimilarityMatrixModel actual =
+                new CoOccurrenceItemItemModelBuilder(sim, context, threshold, strat, 0, 1).get();
+        assertThat(actual.getItemUniverse(), equalTo(expected.getItemUniverse()));
+        for (long item: expected.getItemUniverse()) {
+            SparseVector exp = expected.getNeighbors(item);
+            SparseVector act = actual.getNeighbors(item);
+            LongSet keys = new LongOpenHashSet(exp.keySet());
+            keys.addAll(act.keySet());
+            for (long nbr: keys) {
+                double ev = exp.get(nbr, 0);
+                double av = act.get(nbr, 0);
+                // the undamped Pearson yields NaN where a co-rated variance is zero
+                assertThat("NaN for " + item + "," + nbr, Double.isNaN(av), equalTo(Double.isNaN(ev)));
+                if (!Double.isNaN(ev)) {
+                    assertThat(av, closeTo(ev, 1.0e-8));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCosine() {
+        assertSameSimilarities(new ItemVectorSimilarity(new CosineVectorSimilarity()));
+    }
+
+    @Test
+    public void testDampedCosine() {
+        assertSameSimilarities(new ItemVectorSimilarity(new CosineVectorSimilarity(5)));
+    }
+
+    @Test
+    public void testPearson() {
+        assertSameSimilarities(new ItemVectorSimilarity(new PearsonCorrelation()));
+    }
+
+    @Test
+    public void testDampedPearson() {
+        assertSameSimilarities(new ItemVectorSimilarity(new PearsonCorrelation(10)));
+    }
+
+    @Test
+    public void testPearsonLargeMean() {
+        // a large mean and a small spread makes sum-of-squares variances cancel catastrophically
+        context = RandomBuildContexts.shift(context, 1.0e6);
+        assertSameSimilarities(new ItemVectorSimilarity(new PearsonCorrelation()));
+    }
+
+    @Test
+    public void testFallback() {
+        assertSameSimilarities(new ItemVectorSimilarity(new SpearmanRankCorrelation()));
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        // damped, so there are no NaN similarities to defeat vector equality
+        ItemSimilarity sim = new ItemVectorSimilarity(new PearsonCorrelation(10));
+        NeighborIterationStrategy strat = new SparseNeighborIterationStrategy();
+        SimilarityMatrixModel seq =
+                new CoOccurrenceItemItemModelBuilder(sim, context, threshold, strat, 10, 1).get();
+        SimilarityMatrixModel par =
+                new CoOccurrenceItemItemModelBuilder(sim, context, threshold, strat, 10, 4).get();
+        assertThat(par.getItemUniverse(), equalTo(seq.getItemUniverse()));
+        for (long item: seq.getItemUniverse()) {
+            assertThat(par.getNeighbors(item), equalTo(seq.getNeighbors(item)));
+        }
+    }
+
+    @Test
+    public void testRestrictedStrategyFallsBack() {
+        ItemSimilarity sim = new ItemVectorSimilarity(new CosineVectorSimilarity());
+        NeighborIterationStrategy strat = new LSHNeighborIterationStrategy(2, 4, new Random(7));
+        SimilarityMatrixModel expected =
+                new ItemItemModelBuilder(sim, context, threshold, strat, 0, 1).get();
+        SimilarityMatrixModel actual =
+                new CoOccurrenceItemItemModelBuilder(sim, context, threshold, strat, 0, 1).get();
+        for (long item: expected.getItemUniverse()) {
+            assertThat(actual.getNeighbors(item), equalTo(expected.getNeighbors(item)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectNegativeThreads() {
+        ItemSimilarity sim = new ItemVectorSimilarity(new CosineVectorSimilarity());
+        new CoOccurrenceItemItemModelBuilder(sim, context, threshold,
+                                             new SparseNeighborIterationStrategy(), 0, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectNegativeModelSize() {
+        ItemSimilarity sim = new ItemVectorSimilarity(new CosineVectorSimilarity());
+        new CoOccurrenceItemItemModelBuilder(sim, context, threshold,
+                                             new SparseNeighborIterationStrategy(), -1, 1);
+    }
+}
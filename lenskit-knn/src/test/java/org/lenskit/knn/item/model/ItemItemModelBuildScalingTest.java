@@ -0,0 +1,82 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Stopwatch;
+import org.grouplens.lenskit.transform.threshold.RealThreshold;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmark the item-item model build time as the thread count increases.  This only runs
+ * when benchmarks are enabled (the {@code tests.benchmark} build property); timings are
+ * reported in the test log.
+ */
+public class ItemItemModelBuildScalingTest {
+    private static final Logger logger = LoggerFactory.getLogger(ItemItemModelBuildScalingTest.class);
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    private ItemItemBuildContext context;
+
+    @Before
+    public void createContext() {
+        assumeTrue(Boolean.getBoolean("lenskit.tests.benchmark"));
+        context = RandomBuildContexts.create(new Random(1234), 5000, 4000, 0.02);
+    }
+
+    @Test
+    public void testBuildScaling() {
+        ItemSimilarity sim = new ItemVectorSimilarity(new CosineVectorSimilarity());
+        NeighborIterationStrategy strat = new SparseNeighborIterationStrategy();
+        SimilarityMatrixModel baseline = null;
+        long baseTime = 0;
+        for (int n: THREAD_COUNTS) {
+            ItemItemModelBuilder builder =
+                    new ItemItemModelBuilder(sim, context, new RealThreshold(0), strat, 50, n);
+            Stopwatch timer = Stopwatch.createStarted();
+            SimilarityMatrixModel model = builder.get();
+            timer.stop();
+            long ms = timer.elapsed(TimeUnit.MILLISECONDS);
+            if (baseline == null) {
+                baseline = model;
+                baseTime = ms;
+            } else {
+                for (long item: baseline.getItemUniverse()) {
+                    assertThat(model.getNeighbors(item), equalTo(baseline.getNeighbors(item)));
+                }
+            }
+            logger.info("built {} with {} threads in {}ms (speedup {})",
+                        model, n, ms, String.format("%.2f", baseTime / (double) Math.max(ms, 1)));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import org.grouplens.lenskit.transform.threshold.RealThreshold;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.grouplens.lenskit.vectors.similarity.PearsonCorrelation;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ItemItemModelBuilderTest {
+    private ItemItemBuildContext context;
+    private Threshold threshold;
+
+    @Before
+    public void createContext() {
+        context = RandomBuildContexts.create(new Random(42), 200, 300, 0.05);
+        threshold = new RealThreshold(0);
+    }
+
+    private SimilarityMatrixModel build(ItemSimilarity sim, NeighborIterationStrategy strat,
+                                        int size, int nthreads) {
+        return new ItemItemModelBuilder(sim, context, threshold, strat, size, nthreads).get();
+    }
+
+    private void assertSameModel(SimilarityMatrixModel expected, SimilarityMatrixModel actual) {
+        assertThat(actual.getItemUniverse(), equalTo(expected.getItemUniverse()));
+        for (long item: expected.getItemUniverse()) {
+            assertThat(actual.getNeighbors(item), equalTo(expected.getNeighbors(item)));
+        }
+    }
+
+    @Test
+    public void testParallelTruncatedMatchesSequential() {
+        ItemSimilarity sim = new ItemVectorSimilarity(new CosineVectorSimilarity());
+        NeighborIterationStrategy strat = new SparseNeighborIterationStrategy();
+        SimilarityMatrixModel seq = build(sim, strat, 10, 1);
+        assertThat(seq.getNeighbors(context.getItems().firstLong()).size(),
+                   lessThanOrEqualTo(10));
+        for (int n: new int[]{2, 3, 8}) {
+            assertSameModel(seq, build(sim, strat, 10, n));
+        }
+    }
+
+    @Test
+    public void testParallelUntruncatedMatchesSequential() {
+        ItemSimilarity sim = new ItemVectorSimilarity(new PearsonCorrelation());
+        NeighborIterationStrategy strat = new BasicNeighborIterationStrategy();
+        SimilarityMatrixModel seq = build(sim, strat, 0, 1);
+        assertSameModel(seq, build(sim, strat, 0, 4));
+    }
+
+    @Test
+    public void testAllProcessorsMatchesSequential() {
+        ItemSimilarity sim = new ItemVectorSimilarity(new CosineVectorSimilarity());
+        NeighborIterationStrategy strat = new SparseNeighborIterationStrategy();
+        assertSameModel(build(sim, strat, 5, 1), build(sim, strat, 5, 0));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterators;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LSHNeighborIterationStrategyTest {
+    private ItemItemBuildContext context;
+    private LSHNeighborIterationStrategy strategy;
+
+    @Before
+    public void createContext() {
+        long[] users = {101, 102, 103, 104, 105};
+        SparseVector v = MutableSparseVector.wrap(users, new double[]{1.5, -0.5, 2.0, -1.0, 0.5});
+        SparseVector neg = MutableSparseVector.wrap(users, new double[]{-1.5, 0.5, -2.0, 1.0, -0.5});
+        SparseVector[] vectors = {v, v.mutableCopy(), neg, MutableSparseVector.create()};
+        context = new ItemItemBuildContext(SortedKeyIndex.create(1, 2, 3, 4), vectors,
+                                           new Long2ObjectOpenHashMap<LongSortedSet>());
+        strategy = new LSHNeighborIterationStrategy(4, 6, new Random(42));
+    }
+
+    private LongList candidates(long item, boolean onlyAfter) {
+        return LongIterators.pour(strategy.neighborIterator(context, item, onlyAfter));
+    }
+
+    @Test
+    public void testIdenticalItemsCollide() {
+        assertThat(candidates(1, false), contains(2L));
+        assertThat(candidates(2, false), contains(1L));
+    }
+
+    @Test
+    public void testOnlyAfter() {
+        assertThat(candidates(1, true), contains(2L));
+        assertThat(candidates(2, true), hasSize(0));
+    }
+
+    @Test
+    public void testOppositeItemNeverCollides() {
+        assertThat(candidates(3, false), hasSize(0));
+    }
+
+    @Test
+    public void testEmptyAndUnknownItems() {
+        assertThat(candidates(4, false), hasSize(0));
+        assertThat(candidates(42, false), hasSize(0));
+    }
+
+    @Test
+    public void testDeterministicForSeed() {
+        ItemItemBuildContext ctx = RandomBuildContexts.createClustered(new Random(7), 200, 100, 5, 0.3);
+        LSHNeighborIterationStrategy s1 = new LSHNeighborIterationStrategy(3, 5, new Random(1));
+        LSHNeighborIterationStrategy s2 = new LSHNeighborIterationStrategy(3, 5, new Random(1));
+        for (long item: ctx.getItems()) {
+            assertThat(LongIterators.pour(s2.neighborIterator(ctx, item, false)),
+                       equalTo(LongIterators.pour(s1.neighborIterator(ctx, item, false))));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.transform.threshold.RealThreshold;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Evaluate the recall/build time trade-off of {@link LSHNeighborIterationStrategy}.  For a range
+ * of table and bit counts, this builds an approximate model and reports the fraction of each
+ * item's true top-N neighbors (from an exhaustive build) that it found, along with the build
+ * time.  This only runs when benchmarks are enabled (the {@code tests.benchmark} build
+ * property); results are reported in the test log.
+ */
+public class LSHRecallEvaluationTest {
+    private static final Logger logger = LoggerFactory.getLogger(LSHRecallEvaluationTest.class);
+    private static final int MODEL_SIZE = 20;
+    private static final int[][] CONFIGURATIONS = {
+            {1, 8}, {4, 8}, {8, 8}, {16, 8}, {8, 12}, {16, 12}, {32, 12}, {32, 16}
+    };
+
+    private ItemItemBuildContext context;
+    private ItemSimilarity similarity;
+    private Threshold threshold;
+
+    @Before
+    public void createContext() {
+        assumeTrue(Boolean.getBoolean("lenskit.tests.benchmark"));
+        context = RandomBuildContexts.createClustered(new Random(1234), 5000, 5000, 50, 0.1);
+        similarity = new ItemVectorSimilarity(new CosineVectorSimilarity());
+        threshold = new RealThreshold(0);
+    }
+
+    private SimilarityMatrixModel build(NeighborIterationStrategy strategy) {
+        return new ItemItemModelBuilder(similarity, context, threshold, strategy, MODEL_SIZE, 1).get();
+    }
+
+    @Test
+    public void testRecallTradeoff() {
+        Stopwatch timer = Stopwatch.createStarted();
+        SimilarityMatrixModel exact = build(new SparseNeighborIterationStrategy());
+        timer.stop();
+        logger.info("exhaustive build: {}ms", timer.elapsed(TimeUnit.MILLISECONDS));
+
+        for (int[] config: CONFIGURATIONS) {
+            timer = Stopwatch.createStarted();
+            SimilarityMatrixModel approx =
+                    build(new LSHNeighborIterationStrategy(config[0], config[1], new Random(42)));
+            timer.stop();
+
+            long found = 0;
+            long total = 0;
+            for (long item: exact.getItemUniverse()) {
+                LongSet truth = exact.getNeighbors(item).keySet();
+                LongSet result = approx.getNeighbors(item).keySet();
+                total += truth.size();
+                for (long nbr: truth) {
+                    if (result.contains(nbr)) {
+                        found += 1;
+                    }
+                }
+            }
+            logger.info("LSH with {} tables of {} bits: recall@{} = {}, build time {}ms",
+                        config[0], config[1], MODEL_SIZE,
+                        String.format("%.3f", found / (double) Math.max(total, 1)),
+                        timer.elapsed(TimeUnit.MILLISECONDS));
+        }
+    }
+}
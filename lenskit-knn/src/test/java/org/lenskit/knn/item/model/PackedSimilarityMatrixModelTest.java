@@ -0,0 +1,178 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.grouplens.lenskit.transform.threshold.RealThreshold;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PackedSimilarityMatrixModelTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private SimilarityMatrixModel matrix;
+
+    @Before
+    public void createModel() {
+        ItemItemBuildContext context = RandomBuildContexts.create(new Random(42), 100, 150, 0.1);
+        matrix = new ItemItemModelBuilder(new ItemVectorSimilarity(new CosineVectorSimilarity()),
+                                          context, new RealThreshold(0),
+                                          new SparseNeighborIterationStrategy(), 20, 1).get();
+    }
+
+    private void assertSameNeighbors(ItemItemModel expected, ItemItemModel actual) {
+        assertThat(actual.getItemUniverse(), equalTo(expected.getItemUniverse()));
+        for (long item: expected.getItemUniverse()) {
+            SparseVector exp = expected.getNeighbors(item);
+            SparseVector act = actual.getNeighbors(item);
+            assertThat(act.keySet(), equalTo(exp.keySet()));
+            for (VectorEntry e: exp) {
+                assertThat(act.get(e.getKey()), closeTo(e.getValue(), 1.0e-6));
+            }
+        }
+    }
+
+    @Test
+    public void testPackModel() {
+        PackedSimilarityMatrixModel packed = PackedSimilarityMatrixModel.fromModel(matrix);
+        assertSameNeighbors(matrix, packed);
+        assertThat(packed.getNeighbors(-1).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        PackedSimilarityMatrixModel packed = PackedSimilarityMatrixModel.fromModel(matrix);
+        File file = tempDir.newFile("model.lksm");
+        packed.write(file);
+        PackedSimilarityMatrixModel mapped = PackedSimilarityMatrixModel.open(file);
+        assertSameNeighbors(packed, mapped);
+        assertThat(mapped.toString(), equalTo(packed.toString()));
+    }
+
+    @Test
+    public void testSerializeMappedModel() throws IOException {
+        File file = tempDir.newFile("model.lksm");
+        PackedSimilarityMatrixModel.fromModel(matrix).write(file);
+        PackedSimilarityMatrixModel mapped = PackedSimilarityMatrixModel.open(file);
+        PackedSimilarityMatrixModel clone = SerializationUtils.clone(mapped);
+        assertSameNeighbors(mapped, clone);
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenInvalidFile() throws IOException {
+        File file = tempDir.newFile("bad.lksm");
+        PackedSimilarityMatrixModel.open(file);
+    }
+
+    /**
+     * Write the packed model to a file and overwrite one int in it.
+     */
+    private File writeCorrupted(String name, long offset, int value) throws IOException {
+        File file = tempDir.newFile(name);
+        PackedSimilarityMatrixModel.fromModel(matrix).write(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            raf.writeInt(value);
+        }
+        return file;
+    }
+
+    private long offsetTablePosition() {
+        return PackedSimilarityMatrixModel.HEADER_SIZE + 8L * matrix.getItemUniverse().size();
+    }
+
+    @Test
+    public void testOpenTruncatedFile() throws IOException {
+        File file = tempDir.newFile("short.lksm");
+        PackedSimilarityMatrixModel.fromModel(matrix).write(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+        try {
+            PackedSimilarityMatrixModel.open(file);
+            fail("opening a truncated file should fail");
+        } catch (IOException ex) {
+            assertThat(ex.getMessage(), containsString("truncated"));
+        }
+    }
+
+    @Test
+    public void testOpenBadLastOffset() throws IOException {
+        int n = matrix.getItemUniverse().size();
+        File file = writeCorrupted("last.lksm", offsetTablePosition() + 4L * n, 0);
+        try {
+            PackedSimilarityMatrixModel.open(file);
+            fail("opening a file with a bad offset table should fail");
+        } catch (IOException ex) {
+            assertThat(ex.getMessage(), containsString("last row offset"));
+        }
+    }
+
+    @Test
+    public void testVerifyNonMonotonicOffsets() throws IOException {
+        // set the second row offset past the end of the neighbor table
+        File file = writeCorrupted("offsets.lksm", offsetTablePosition() + 4, Integer.MAX_VALUE);
+        PackedSimilarityMatrixModel model = PackedSimilarityMatrixModel.open(file);
+        try {
+            model.verify();
+            fail("verifying a file with bad offsets should fail");
+        } catch (IllegalStateException ex) {
+            assertThat(ex.getMessage(), containsString("row 0"));
+        }
+    }
+
+    @Test
+    public void testVerifyNeighborOutOfRange() throws IOException {
+        int n = matrix.getItemUniverse().size();
+        long neighborPosition = offsetTablePosition() + 4L * (n + 1);
+        File file = writeCorrupted("neighbors.lksm", neighborPosition, n);
+        PackedSimilarityMatrixModel model = PackedSimilarityMatrixModel.open(file);
+        try {
+            model.verify();
+            fail("verifying a file with bad neighbor indexes should fail");
+        } catch (IllegalStateException ex) {
+            assertThat(ex.getMessage(), containsString("out of range"));
+        }
+    }
+
+    @Test
+    public void testVerifyValidFile() throws IOException {
+        File file = tempDir.newFile("valid.lksm");
+        PackedSimilarityMatrixModel.fromModel(matrix).write(file);
+        PackedSimilarityMatrixModel.open(file).verify();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.longs.*;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.util.Random;
+
+/**
+ * Generate synthetic item-item build contexts for testing model builders.
+ */
+final class RandomBuildContexts {
+    private RandomBuildContexts() {}
+
+    /**
+     * Create a random build context.  Ratings are half-star values, so the resulting
+     * similarities have plenty of ties.
+     *
+     * @param rng The random number generator.
+     * @param nusers The number of users.
+     * @param nitems The number of items.
+     * @param density The probability that a user has rated a given item.
+     * @return The build context.
+     */
+    static ItemItemBuildContext create(Random rng, int nusers, int nitems, double density) {
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(LongUtils.packedSet(itemIds(nitems)));
+        Long2ObjectMap<LongList> userItemLists = new Long2ObjectOpenHashMap<LongList>();
+        SparseVector[] vectors = new SparseVector[nitems];
+        for (int i = 0; i < nitems; i++) {
+            long item = items.getKey(i);
+            LongArrayList users = new LongArrayList();
+            DoubleArrayList values = new DoubleArrayList();
+            for (long u = 1; u <= nusers; u++) {
+                if (rng.nextDouble() < density) {
+                    users.add(u);
+                    values.add(rng.nextInt(9) * 0.5 - 2);
+                    LongList uitems = userItemLists.get(u);
+                    if (uitems == null) {
+                        uitems = new LongArrayList();
+                        userItemLists.put(u, uitems);
+                    }
+                    uitems.add(item);
+                }
+            }
+            vectors[i] = MutableSparseVector.wrap(users, values).freeze();
+        }
+
+        return new ItemItemBuildContext(items, vectors, freezeUserItems(userItemLists));
+    }
+
+    /**
+     * Create a random build context with cluster structure.  Users and items are assigned to
+     * random clusters; users rate items in their own cluster more often and more highly, so
+     * items in the same cluster are similar.
+     *
+     * @param rng The random number generator.
+     * @param nusers The number of users.
+     * @param nitems The number of items.
+     * @param nclusters The number of clusters.
+     * @param density The probability that a user has rated a given item in their cluster; items
+     *                outside the cluster are rated a tenth as often.
+     * @return The build context.
+     */
+    static ItemItemBuildContext createClustered(Random rng, int nusers, int nitems,
+                                                int nclusters, double density) {
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(LongUtils.packedSet(itemIds(nitems)));
+        int[] userClusters = new int[nusers + 1];
+        for (int u = 1; u <= nusers; u++) {
+            userClusters[u] = rng.nextInt(nclusters);
+        }
+        Long2ObjectMap<LongList> userItemLists = new Long2ObjectOpenHashMap<LongList>();
+        SparseVector[] vectors = new SparseVector[nitems];
+        for (int i = 0; i < nitems; i++) {
+            long item = items.getKey(i);
+            int cluster = rng.nextInt(nclusters);
+            LongArrayList users = new LongArrayList();
+            DoubleArrayList values = new DoubleArrayList();
+            for (int u = 1; u <= nusers; u++) {
+                boolean inCluster = userClusters[u] == cluster;
+                if (rng.nextDouble() < (inCluster ? density : density / 10)) {
+                    users.add(u);
+                    values.add((inCluster ? 1.5 : -1.0) + rng.nextGaussian() * 0.5);
+                    LongList uitems = userItemLists.get(u);
+                    if (uitems == null) {
+                        uitems = new LongArrayList();
+                        userItemLists.put(u, uitems);
+                    }
+                    uitems.add(item);
+                }
+            }
+            vectors[i] = MutableSparseVector.wrap(users, values).freeze();
+        }
+        return new ItemItemBuildContext(items, vectors, freezeUserItems(userItemLists));
+    }
+
+    /**
+     * Add a constant to every rating in a build context.
+     *
+     * @param context The build context.
+     * @param offset The value to add to each rating.
+     * @return A build context with the same users and items and shifted ratings.
+     */
+    static ItemItemBuildContext shift(ItemItemBuildContext context, double offset) {
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(context.getItems());
+        Long2ObjectMap<LongList> userItemLists = new Long2ObjectOpenHashMap<LongList>();
+        SparseVector[] vectors = new SparseVector[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            long item = items.getKey(i);
+            MutableSparseVector vec = context.itemVector(item).mutableCopy();
+            vec.add(offset);
+            for (long u: vec.keySet()) {
+                LongList uitems = userItemLists.get(u);
+                if (uitems == null) {
+                    uitems = new LongArrayList();
+                    userItemLists.put(u, uitems);
+                }
+                uitems.add(item);
+            }
+            vectors[i] = vec.freeze();
+        }
+        return new ItemItemBuildContext(items, vectors, freezeUserItems(userItemLists));
+    }
+
+    private static Long2ObjectMap<LongSortedSet> freezeUserItems(Long2ObjectMap<LongList> lists) {
+        Long2ObjectMap<LongSortedSet> userItems = new Long2ObjectOpenHashMap<LongSortedSet>();
+        for (Long2ObjectMap.Entry<LongList> e: lists.long2ObjectEntrySet()) {
+            userItems.put(e.getLongKey(), LongUtils.packedSet(e.getValue()));
+        }
+        return userItems;
+    }
+
+    private static long[] itemIds(int n) {
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = 100 + 3 * i;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.grouplens.lenskit.transform.normalize.IdentityVectorNormalizer;
+import org.grouplens.lenskit.transform.normalize.MeanCenteringVectorNormalizer;
+import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
+import org.grouplens.lenskit.transform.threshold.NoThreshold;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.grouplens.lenskit.vectors.similarity.PearsonCorrelation;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.EventCollectionDAO;
+import org.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class UpdatableItemItemModelTest {
+    private UserVectorNormalizer normalizer;
+    private RatingVectorUserHistorySummarizer summarizer;
+    private ItemSimilarity similarity;
+    private Random rng;
+    private List<Rating> ratings;
+
+    @Before
+    public void createRatings() {
+        normalizer = new DefaultUserVectorNormalizer(new MeanCenteringVectorNormalizer());
+        summarizer = new RatingVectorUserHistorySummarizer();
+        similarity = new ItemVectorSimilarity(new CosineVectorSimilarity(2));
+        rng = new Random(42);
+        ratings = new ArrayList<>();
+        for (long u = 1; u <= 80; u++) {
+            for (long i = 1; i <= 40; i++) {
+                if (rng.nextDouble() < 0.15) {
+                    ratings.add(Rating.create(u, i, rng.nextInt(9) * 0.5 + 1, 1));
+                }
+            }
+        }
+    }
+
+    private UserEventDAO makeDAO(List<Rating> events) {
+        return new PrefetchingUserEventDAO(new EventCollectionDAO(events));
+    }
+
+    private UpdatableItemItemModel buildModel(List<Rating> events) {
+        return buildModel(events, 0);
+    }
+
+    private UpdatableItemItemModel buildModel(List<Rating> events, int size) {
+        return new UpdatableItemItemModel.Builder(makeDAO(events), normalizer, summarizer,
+                                                  similarity, new NoThreshold(), size).get();
+    }
+
+    private void assertMatchesRebuild(ItemItemModel actual, List<Rating> events) {
+        assertMatchesRebuild(actual, events, 0);
+    }
+
+    private void assertMatchesRebuild(ItemItemModel actual, List<Rating> events, int size) {
+        ItemItemBuildContext context =
+                new ItemItemBuildContextProvider(makeDAO(events), normalizer, summarizer).get();
+        ItemItemModel expected =
+                new ItemItemModelBuilder(similarity, context, new NoThreshold(),
+                                         new SparseNeighborIterationStrategy(), size, 1).get();
+        assertThat(actual.getItemUniverse(), equalTo(expected.getItemUniverse()));
+        for (long item: expected.getItemUniverse()) {
+            SparseVector exp = expected.getNeighbors(item);
+            SparseVector act = actual.getNeighbors(item);
+            assertThat(act.keySet(), equalTo(exp.keySet()));
+            for (long nbr: exp.keySet()) {
+                assertThat(act.get(nbr), closeTo(exp.get(nbr), 1.0e-6));
+            }
+        }
+    }
+
+    @Test
+    public void testBuildMatchesStandard() {
+        UpdatableItemItemModel model = buildModel(ratings);
+        assertThat(model.getUserCount(), equalTo(80));
+        assertMatchesRebuild(model, ratings);
+    }
+
+    /**
+     * Make a batch of re-ratings, unrates, and new ratings (including of a new item).
+     */
+    private List<Rating> makeBatch() {
+        List<Rating> batch = new ArrayList<>();
+        // only one event per user and item, so the batch order does not matter
+        LongSet seen = new LongOpenHashSet();
+        // re-ratings and unrates of existing ratings
+        for (int n = 0; n < 20; n++) {
+            Rating r = ratings.get(rng.nextInt(ratings.size()));
+            if (!seen.add(r.getUserId() * 100 + r.getItemId())) {
+                continue;
+            }
+            if (n % 4 == 0) {
+                batch.add(Rating.createUnrate(r.getUserId(), r.getItemId(), 2));
+            } else {
+                batch.add(Rating.create(r.getUserId(), r.getItemId(), rng.nextInt(9) * 0.5 + 1, 2));
+            }
+        }
+        // new ratings by existing and new users, including a new item
+        for (long u = 75; u <= 90; u++) {
+            long item = rng.nextInt(40) + 1;
+            if (seen.add(u * 100 + item)) {
+                batch.add(Rating.create(u, item, rng.nextInt(9) * 0.5 + 1, 2));
+            }
+            batch.add(Rating.create(u, 41, rng.nextInt(9) * 0.5 + 1, 2));
+        }
+        return batch;
+    }
+
+    @Test
+    public void testUpdateMatchesRebuild() {
+        UpdatableItemItemModel model = buildModel(ratings);
+        List<Rating> batch = makeBatch();
+
+        int nrows = model.update(batch);
+        assertThat(nrows, greaterThan(0));
+
+        List<Rating> all = new ArrayList<>(ratings);
+        all.addAll(batch);
+        assertThat(model.getItemUniverse(), hasItem(41L));
+        assertMatchesRebuild(model, all);
+    }
+
+    @Test
+    public void testTruncatedUpdateMatchesRebuild() {
+        UpdatableItemItemModel model = buildModel(ratings, 5);
+        List<Rating> batch = makeBatch();
+        model.update(batch);
+
+        List<Rating> all = new ArrayList<>(ratings);
+        all.addAll(batch);
+        assertMatchesRebuild(model, all, 5);
+    }
+
+    @Test
+    public void testNewRatingRecomputesOneRow() {
+        normalizer = new DefaultUserVectorNormalizer(new IdentityVectorNormalizer());
+        UpdatableItemItemModel model = buildModel(ratings);
+        LongSet rated = new LongOpenHashSet();
+        for (Rating r: ratings) {
+            if (r.getUserId() == 1) {
+                rated.add(r.getItemId());
+            }
+        }
+        long item = 1;
+        while (rated.contains(item)) {
+            item += 1;
+        }
+
+        // only the new item's row is recomputed; its neighbors' rows are patched
+        List<Rating> batch = new ArrayList<>();
+        batch.add(Rating.create(1, item, 3.5, 2));
+        assertThat(model.update(batch), equalTo(1));
+
+        List<Rating> all = new ArrayList<>(ratings);
+        all.addAll(batch);
+        assertMatchesRebuild(model, all);
+    }
+
+    @Test
+    public void testRemoveUser() {
+        UpdatableItemItemModel model = buildModel(ratings);
+        // user 81 is the only one to rate item 50
+        List<Rating> batch = new ArrayList<>();
+        batch.add(Rating.create(81, 50, 4, 2));
+        batch.add(Rating.create(81, 1, 3, 2));
+        model.update(batch);
+        assertThat(model.getItemUniverse(), hasItem(50L));
+
+        batch.clear();
+        batch.add(Rating.createUnrate(81, 50, 3));
+        batch.add(Rating.createUnrate(81, 1, 3));
+        model.update(batch);
+        assertThat(model.getUserCount(), equalTo(80));
+        assertThat(model.getItemUniverse(), not(hasItem(50L)));
+        assertMatchesRebuild(model, ratings);
+    }
+
+    @Test
+    public void testUnchangedRowsAreKept() {
+        UpdatableItemItemModel model = buildModel(ratings);
+        LongSet unaffected = new LongOpenHashSet(model.getItemUniverse());
+        // an isolated pair of items, co-rated by a new user only
+        List<Rating> batch = new ArrayList<>();
+        batch.add(Rating.create(100, 200, 4, 2));
+        batch.add(Rating.create(100, 201, 2, 2));
+        List<SparseVector> before = new ArrayList<>();
+        for (long item: unaffected) {
+            before.add(model.getNeighbors(item));
+        }
+        assertThat(model.update(batch), equalTo(2));
+        int i = 0;
+        for (long item: unaffected) {
+            assertThat(model.getNeighbors(item), sameInstance(before.get(i)));
+            i += 1;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRequiresCosine() {
+        new UpdatableItemItemModel.Builder(makeDAO(ratings), normalizer, summarizer,
+                                           new ItemVectorSimilarity(new PearsonCorrelation()),
+                                           new NoThreshold(), 0);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.grouplens.lenskit.transform.normalize.MeanCenteringVectorNormalizer;
+import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
+import org.grouplens.lenskit.transform.threshold.RealThreshold;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.EventCollectionDAO;
+import org.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.history.History;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.ratings.Rating;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Check the batched similarity paths of {@link SnapshotNeighborFinder} against each other.
+ */
+public class SnapshotNeighborFinderTest {
+    private static final int NUSERS = 1200;
+    private static final int NITEMS = 40;
+
+    private UserEventDAO dao;
+    private UserSnapshot snapshot;
+    private UserVectorNormalizer normalizer;
+    private LongSet items;
+    private ExecutorService executor;
+
+    @Before
+    public void createSnapshot() {
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>();
+        for (long u = 1; u <= NUSERS; u++) {
+            for (long i = 1; i <= NITEMS; i++) {
+                if (rng.nextDouble() < 0.25) {
+                    ratings.add(Rating.create(u, i, rng.nextInt(9) * 0.5 + 1));
+                }
+            }
+        }
+        items = new LongOpenHashSet();
+        for (long i = 1; i <= NITEMS; i++) {
+            items.add(i);
+        }
+        dao = new PrefetchingUserEventDAO(new EventCollectionDAO(ratings));
+        normalizer = new DefaultUserVectorNormalizer(new MeanCenteringVectorNormalizer());
+        snapshot = new UserSnapshot.Builder(dao, normalizer,
+                                            new RatingVectorUserHistorySummarizer()).get();
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    private SnapshotNeighborFinder makeFinder(UserSimilarity sim, int nthreads) {
+        return new SnapshotNeighborFinder(snapshot, sim, new RatingVectorUserHistorySummarizer(),
+                                          normalizer, new RealThreshold(0.1), nthreads,
+                                          executor);
+    }
+
+    private Long2DoubleMap findNeighbors(SnapshotNeighborFinder finder, long user) {
+        UserHistory<Event> history = dao.getEventsForUser(user);
+        if (history == null) {
+            history = History.forUser(user);
+        }
+        Long2DoubleMap sims = new Long2DoubleOpenHashMap();
+        for (Neighbor n: finder.getCandidateNeighbors(history, items)) {
+            assertThat(sims.containsKey(n.user), equalTo(false));
+            sims.put(n.user, n.similarity);
+        }
+        return sims;
+    }
+
+    @Test
+    public void testAccumulatedCosine() {
+        // a subclass defeats the accumulated cosine path
+        UserSimilarity direct = new UserVectorSimilarity(new CosineVectorSimilarity()) {};
+        SnapshotNeighborFinder fast = makeFinder(new UserVectorSimilarity(new CosineVectorSimilarity()), 1);
+        SnapshotNeighborFinder slow = makeFinder(direct, 1);
+        for (long u = 1; u <= NUSERS; u += 37) {
+            Long2DoubleMap expected = findNeighbors(slow, u);
+            Long2DoubleMap actual = findNeighbors(fast, u);
+            assertThat(actual.keySet(), equalTo(expected.keySet()));
+            assertThat(actual.containsKey(u), equalTo(false));
+            for (Long2DoubleMap.Entry e: expected.long2DoubleEntrySet()) {
+                assertThat(actual.get(e.getLongKey()), closeTo(e.getDoubleValue(), 1.0e-8));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelSearch() {
+        UserSimilarity direct = new UserVectorSimilarity(new CosineVectorSimilarity()) {};
+        SnapshotNeighborFinder sequential = makeFinder(direct, 1);
+        SnapshotNeighborFinder parallel = makeFinder(direct, 4);
+        for (long u = 1; u <= NUSERS; u += 37) {
+            assertThat(findNeighbors(parallel, u), equalTo(findNeighbors(sequential, u)));
+        }
+    }
+
+    @Test
+    public void testThreadsWithoutExecutor() {
+        UserSimilarity direct = new UserVectorSimilarity(new CosineVectorSimilarity()) {};
+        SnapshotNeighborFinder sequential = makeFinder(direct, 1);
+        SnapshotNeighborFinder unpooled = new SnapshotNeighborFinder(snapshot, direct,
+                                                                     new RatingVectorUserHistorySummarizer(),
+                                                                     normalizer, new RealThreshold(0.1),
+                                                                     4, null);
+        for (long u = 1; u <= NUSERS; u += 101) {
+            assertThat(findNeighbors(unpooled, u), equalTo(findNeighbors(sequential, u)));
+        }
+    }
+
+    @Test
+    public void testUnknownUser() {
+        SnapshotNeighborFinder finder = makeFinder(new UserVectorSimilarity(new CosineVectorSimilarity()), 1);
+        assertThat(findNeighbors(finder, NUSERS + 100).isEmpty(), equalTo(true));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.apache.commons.lang3.SerializationUtils;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.grouplens.lenskit.transform.normalize.MeanCenteringVectorNormalizer;
+import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
+import org.grouplens.lenskit.transform.threshold.RealThreshold;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.EventCollectionDAO;
+import org.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.history.History;
+import org.lenskit.data.ratings.Rating;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class UserNeighborhoodModelTest {
+    private static final int NUSERS = 300;
+    private static final int NITEMS = 40;
+
+    private UserEventDAO dao;
+    private UserSnapshot snapshot;
+    private SnapshotNeighborFinder finder;
+    private LongSet items;
+
+    @Before
+    public void createSnapshot() {
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>();
+        items = new LongOpenHashSet();
+        for (long i = 1; i <= NITEMS; i++) {
+            items.add(i);
+        }
+        for (long u = 1; u <= NUSERS; u++) {
+            for (long i = 1; i <= NITEMS; i++) {
+                if (rng.nextDouble() < 0.2) {
+                    ratings.add(Rating.create(u, i, rng.nextInt(9) * 0.5 + 1));
+                }
+            }
+        }
+        dao = new PrefetchingUserEventDAO(new EventCollectionDAO(ratings));
+        UserVectorNormalizer norm = new DefaultUserVectorNormalizer(new MeanCenteringVectorNormalizer());
+        RatingVectorUserHistorySummarizer summarizer = new RatingVectorUserHistorySummarizer();
+        snapshot = new UserSnapshot.Builder(dao, norm, summarizer).get();
+        finder = new SnapshotNeighborFinder(snapshot, new UserVectorSimilarity(new CosineVectorSimilarity()),
+                                            summarizer, norm, new RealThreshold(0.1));
+    }
+
+    @Test
+    public void testTruncatedNeighborhoods() {
+        UserNeighborhoodModel full = new UserNeighborhoodModel.Builder(snapshot, finder, 0, 1).get();
+        UserNeighborhoodModel small = new UserNeighborhoodModel.Builder(snapshot, finder, 10, 1).get();
+        for (long u = 1; u <= NUSERS; u++) {
+            SparseVector all = full.getNeighbors(u);
+            SparseVector top = small.getNeighbors(u);
+            assertThat(top.size(), equalTo(Math.min(10, all.size())));
+            assertThat(all.containsKey(u), equalTo(false));
+            double least = Double.POSITIVE_INFINITY;
+            for (long n: top.keySet()) {
+                assertThat(all.get(n), equalTo(top.get(n)));
+                least = Math.min(least, top.get(n));
+            }
+            for (long n: all.keySet()) {
+                if (!top.containsKey(n)) {
+                    assertThat(all.get(n), lessThanOrEqualTo(least));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallelBuild() {
+        UserNeighborhoodModel sequential = new UserNeighborhoodModel.Builder(snapshot, finder, 20, 1).get();
+        UserNeighborhoodModel parallel = new UserNeighborhoodModel.Builder(snapshot, finder, 20, 4).get();
+        for (long u = 1; u <= NUSERS; u++) {
+            assertThat(parallel.getNeighbors(u), equalTo(sequential.getNeighbors(u)));
+        }
+    }
+
+    @Test
+    public void testSerialize() {
+        UserNeighborhoodModel model = new UserNeighborhoodModel.Builder(snapshot, finder, 20, 1).get();
+        UserNeighborhoodModel copy = SerializationUtils.clone(model);
+        for (long u = 1; u <= NUSERS; u++) {
+            assertThat(copy.getNeighbors(u), equalTo(model.getNeighbors(u)));
+        }
+    }
+
+    @Test
+    public void testServeNeighbors() {
+        UserNeighborhoodModel model = new UserNeighborhoodModel.Builder(snapshot, finder, 20, 1).get();
+        PrecomputedNeighborFinder pre = new PrecomputedNeighborFinder(model, snapshot, finder);
+        for (long u = 1; u <= NUSERS; u += 7) {
+            SparseVector expected = model.getNeighbors(u);
+            int n = 0;
+            for (Neighbor nbr: pre.getCandidateNeighbors(dao.getEventsForUser(u), items)) {
+                assertThat(nbr.similarity, closeTo(expected.get(nbr.user), 1.0e-6));
+                assertThat(nbr.vector, equalTo((SparseVector) snapshot.getUserVector(nbr.user)));
+                n += 1;
+            }
+            assertThat(n, equalTo(expected.size()));
+        }
+    }
+
+    @Test
+    public void testFallbackForNewUser() {
+        UserNeighborhoodModel model = new UserNeighborhoodModel.Builder(snapshot, finder, 20, 1).get();
+        PrecomputedNeighborFinder pre = new PrecomputedNeighborFinder(model, snapshot, finder);
+        long user = NUSERS + 1;
+        List<Rating> ratings = new ArrayList<>();
+        for (long i = 1; i <= NITEMS; i += 3) {
+            ratings.add(Rating.create(user, i, 1 + i % 5));
+        }
+        int n = 0;
+        for (Neighbor nbr: pre.getCandidateNeighbors(History.forUser(user, ratings), items)) {
+            assertThat(nbr.user, not(equalTo(user)));
+            n += 1;
+        }
+        assertThat(n, greaterThan(0));
+    }
+}
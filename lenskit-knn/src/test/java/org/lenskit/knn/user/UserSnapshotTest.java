@@ -0,0 +1,120 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.apache.commons.lang3.SerializationUtils;
+import org.grouplens.lenskit.data.history.RatingVectorUserHistorySummarizer;
+import org.grouplens.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.grouplens.lenskit.transform.normalize.MeanCenteringVectorNormalizer;
+import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.EventCollectionDAO;
+import org.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.lenskit.data.dao.UserEventDAO;
+import org.lenskit.data.events.Event;
+import org.lenskit.data.history.UserHistory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class UserSnapshotTest {
+    private UserEventDAO dao;
+    private UserVectorNormalizer normalizer;
+    private RatingVectorUserHistorySummarizer summarizer;
+    private UserSnapshot snapshot;
+
+    @Before
+    public void createSnapshot() {
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>();
+        for (long u = 1; u <= 100; u++) {
+            for (long i = 1; i <= 30; i++) {
+                if (rng.nextDouble() < 0.2) {
+                    // sparse, shuffled item IDs
+                    ratings.add(Rating.create(u * 7, i * 13 % 97, rng.nextInt(9) * 0.5 + 1));
+                }
+            }
+        }
+        dao = new PrefetchingUserEventDAO(new EventCollectionDAO(ratings));
+        normalizer = new DefaultUserVectorNormalizer(new MeanCenteringVectorNormalizer());
+        summarizer = new RatingVectorUserHistorySummarizer();
+        snapshot = new UserSnapshot.Builder(dao, normalizer, summarizer).get();
+    }
+
+    private void checkSnapshot(UserSnapshot snap) {
+        int entries = 0;
+        LongSet items = new LongOpenHashSet();
+        try (ObjectStream<UserHistory<Event>> users = dao.streamEventsByUser()) {
+            for (UserHistory<Event> user: users) {
+                long uid = user.getUserId();
+                SparseVector vec = summarizer.summarize(user);
+                assertThat(snap.getUserVector(uid), equalTo(vec));
+                assertThat(snap.getNormalizedUserVector(uid),
+                           equalTo((SparseVector) normalizer.normalize(uid, vec, null)));
+                entries += vec.size();
+                items.addAll(vec.keySet());
+                for (long item: vec.keySet()) {
+                    assertThat(snap.getItemUsers(item), hasItem(uid));
+                }
+            }
+        }
+        assertThat(snap.getEntryCount(), equalTo(entries));
+        assertThat(snap.getItemIndex().keySet(), equalTo(items));
+        assertThat(snap.getItemUsers(1000), nullValue());
+    }
+
+    @Test
+    public void testSnapshotVectors() {
+        assertThat(snapshot.getUserIndex().size(), equalTo(100));
+        checkSnapshot(snapshot);
+    }
+
+    @Test
+    public void testTransposeSorted() {
+        int[] itemUsers = snapshot.getItemUserArray();
+        int total = 0;
+        for (int i = 0; i < snapshot.getItemIndex().size(); i++) {
+            int start = snapshot.getItemStart(i);
+            int end = snapshot.getItemEnd(i);
+            assertThat(end, greaterThan(start));
+            for (int j = start + 1; j < end; j++) {
+                assertThat(itemUsers[j], greaterThan(itemUsers[j - 1]));
+            }
+            total += end - start;
+        }
+        assertThat(total, equalTo(snapshot.getEntryCount()));
+    }
+
+    @Test
+    public void testSerialize() {
+        checkSnapshot(SerializationUtils.clone(snapshot));
+    }
+}
@@ -21,7 +21,7 @@
 package org.lenskit.specs.data;
 
 import java.nio.file.Path;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -30,6 +30,9 @@ import java.util.Set;
 public class PackedDataSourceSpec extends DataSourceSpec {
     private Path file;
     private PrefDomainSpec domain;
+    private Path partitionFile;
+    private int partition;
+    private boolean excludePartition;
 
     public Path getFile() {
         return file;
@@ -47,8 +50,43 @@ public class PackedDataSourceSpec extends DataSourceSpec {
         this.domain = domain;
     }
 
+    /**
+     * Get the partition assignment file.  If set, the data source only contains the ratings in
+     * (or, if {@link #getExcludePartition()} is set, not in) the partition {@link #getPartition()}.
+     *
+     * @return The partition assignment file, or {@code null} to use all ratings.
+     */
+    public Path getPartitionFile() {
+        return partitionFile;
+    }
+
+    public void setPartitionFile(Path partitionFile) {
+        this.partitionFile = partitionFile;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public void setPartition(int partition) {
+        this.partition = partition;
+    }
+
+    public boolean getExcludePartition() {
+        return excludePartition;
+    }
+
+    public void setExcludePartition(boolean exclude) {
+        excludePartition = exclude;
+    }
+
     @Override
     public Set<Path> getInputFiles() {
-        return Collections.singleton(file);
+        Set<Path> files = new HashSet<>();
+        files.add(file);
+        if (partitionFile != null) {
+            files.add(partitionFile);
+        }
+        return files;
     }
 }
@@ -35,6 +35,7 @@ public class TextDataSourceSpec extends DataSourceSpec {
     private List<String> fields;
     private Path itemFile;
     private Path itemNameFile;
+    private boolean streamUserEvents;
 
     public Path getFile() {
         return file;
@@ -100,6 +101,22 @@ public class TextDataSourceSpec extends DataSourceSpec {
         itemNameFile = file;
     }
 
+    /**
+     * Query whether the data source streams user events instead of caching them.
+     * @return {@code true} if user event passes are streamed from the file.
+     */
+    public boolean isStreamUserEvents() {
+        return streamUserEvents;
+    }
+
+    /**
+     * Set whether the data source streams user events instead of caching them.
+     * @param stream {@code true} to stream user event passes from the file.
+     */
+    public void setStreamUserEvents(boolean stream) {
+        streamUserEvents = stream;
+    }
+
     public PrefDomainSpec getDomain() {
         return domain;
     }
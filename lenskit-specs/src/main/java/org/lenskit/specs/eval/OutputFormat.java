@@ -20,6 +20,12 @@
  */
 package org.lenskit.specs.eval;
 
+/**
+ * Output formats for crossfolding.  {@link #VIRTUAL_PACK} writes the input data once, as a packed
+ * rating file, along with an assignment of its ratings to test partitions; the train and test
+ * data of each partition are views of the packed file.  The other formats write separate
+ * train and test files for each partition.
+ */
 public enum OutputFormat {
-    CSV, CSV_GZIP, CSV_XZ, PACK
+    CSV, CSV_GZIP, CSV_XZ, PACK, VIRTUAL_PACK
 }
@@ -0,0 +1,434 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.mf.als;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.longs.Long2DoubleFunction;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import org.apache.commons.lang3.time.StopWatch;
+import org.grouplens.lenskit.iterative.RegularizationTerm;
+import org.grouplens.lenskit.iterative.StoppingCondition;
+import org.grouplens.lenskit.iterative.TrainingLoopController;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.baseline.BaselineScorer;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.inject.MemoryEstimator;
+import org.lenskit.inject.Transient;
+import org.lenskit.mf.funksvd.FeatureCount;
+import org.lenskit.mf.funksvd.InitialFeatureValue;
+import org.lenskit.mf.funksvd.TrainingThreadCount;
+import org.lenskit.mf.svd.MFModel;
+import org.lenskit.util.collections.LongUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Matrix factorization model builder using alternating least squares (ALS).  Each sweep holds
+ * the item features fixed and solves for every user's features, then does the same for the items.
+ * Every row is an independent regularized least-squares problem, solved with a small dense
+ * Cholesky decomposition, so the rows of each half-sweep are solved in parallel; since rows do not
+ * interact, the result does not depend on the number of threads.
+ *
+ * <p>In the explicit variant (the default), the model fits the residuals of the ratings after
+ * subtracting the {@linkplain BaselineScorer baseline}, with regularization weighted by the
+ * number of ratings in each row, and is meant to be used with
+ * {@link org.lenskit.mf.svd.BiasedMFItemScorer} and the same baseline.  In the implicit variant
+ * (see {@link ImplicitFeedback}), it fits a preference of 1 for every positive value and 0 for all
+ * other user-item pairs, weighted by confidence 1 + &alpha;<i>r</i> (see
+ * {@link ConfidenceWeight}), as described by Hu, Koren and Volinsky.  The baseline is not used in
+ * training, but {@link org.lenskit.mf.svd.BiasedMFItemScorer} still adds the
+ * {@linkplain BaselineScorer baseline} to every score it computes.  To get pure preference scores
+ * from an implicit model, bind the baseline scorer to a zero baseline:</p>
+ *
+ * <pre>
+ * config.bind(BaselineScorer.class, ItemScorer.class)
+ *       .to(ConstantItemScorer.class);  // scores 0 by default
+ * </pre>
+ *
+ * <p>Sweeps continue as long as the {@link StoppingCondition} allows, given the training RMSE
+ * (on observed entries) after each sweep.  ALS usually converges in 10&ndash;20 sweeps.  To use
+ * this builder, bind it as the provider of {@link MFModel}.</p>
+ *
+ * @since 3.0
+ */
+public class ALSModelBuilder implements Provider<MFModel>, MemoryEstimator {
+    private static final Logger logger = LoggerFactory.getLogger(ALSModelBuilder.class);
+    private static final int TASKS_PER_THREAD = 8;
+
+    private final RatingMatrix snapshot;
+    private final ItemScorer baseline;
+    private final int featureCount;
+    private final double regularization;
+    private final boolean implicit;
+    private final double confidenceWeight;
+    private final double initialValue;
+    private final StoppingCondition stoppingCondition;
+    private final int threadCount;
+    private final Random random;
+
+    @Inject
+    public ALSModelBuilder(@Transient @Nonnull RatingMatrix snapshot,
+                           @Transient @BaselineScorer ItemScorer baseline,
+                           @FeatureCount int featureCount,
+                           @RegularizationTerm double reg,
+                           @ImplicitFeedback boolean implicit,
+                           @ConfidenceWeight double alpha,
+                           @InitialFeatureValue double initVal,
+                           StoppingCondition stop,
+                           @TrainingThreadCount int nthreads,
+                           Random rng) {
+        Preconditions.checkArgument(featureCount > 0, "feature count must be positive");
+        Preconditions.checkArgument(reg >= 0, "negative regularization");
+        Preconditions.checkArgument(nthreads >= 0, "negative thread count");
+        this.snapshot = snapshot;
+        this.baseline = baseline;
+        this.featureCount = featureCount;
+        regularization = reg;
+        this.implicit = implicit;
+        confidenceWeight = alpha;
+        initialValue = initVal;
+        stoppingCondition = stop;
+        threadCount = nthreads == 0 ? Runtime.getRuntime().availableProcessors() : nthreads;
+        random = rng;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The builder holds the user and item feature arrays, the ratings as primitive arrays, and
+     * a copy of them grouped by user and another grouped by item.</p>
+     */
+    @Override
+    public long estimateMemoryUse() {
+        long rows = snapshot.getUserIds().size() + snapshot.getItemIds().size();
+        return 8L * rows * featureCount + 40L * snapshot.getRatings().size();
+    }
+
+    @Override
+    public MFModel get() {
+        final int userCount = snapshot.getUserIds().size();
+        final int itemCount = snapshot.getItemIds().size();
+        List<RatingMatrixEntry> ratings = snapshot.getRatings();
+        int nratings = ratings.size();
+
+        int[] users = new int[nratings];
+        int[] items = new int[nratings];
+        double[] values = new double[nratings];
+        for (RatingMatrixEntry r: ratings) {
+            int idx = r.getIndex();
+            users[idx] = r.getUserIndex();
+            items[idx] = r.getItemIndex();
+            values[idx] = r.getValue();
+        }
+        if (!implicit) {
+            subtractBaselines(values);
+        }
+        SparseRows byUser = new SparseRows(users, items, values, userCount);
+        SparseRows byItem = new SparseRows(items, users, values, itemCount);
+
+        double[] userFeatures = new double[userCount * featureCount];
+        double[] itemFeatures = new double[itemCount * featureCount];
+        for (int i = 0; i < itemFeatures.length; i++) {
+            itemFeatures[i] = initialValue * (0.5 + random.nextDouble());
+        }
+
+        logger.info("Building {} ALS model with {} features for {} ratings using {} threads",
+                    implicit ? "implicit" : "explicit", featureCount, nratings, threadCount);
+        StopWatch timer = new StopWatch();
+        timer.start();
+        ForkJoinPool pool = threadCount > 1 ? new ForkJoinPool(threadCount) : null;
+        TrainingLoopController controller = stoppingCondition.newLoop();
+        try {
+            double rmse = Double.MAX_VALUE;
+            while (controller.keepTraining(rmse)) {
+                solveRows(pool, byUser, itemFeatures, itemCount, userFeatures);
+                solveRows(pool, byItem, userFeatures, userCount, itemFeatures);
+                rmse = trainingError(byUser, userFeatures, itemFeatures);
+                logger.debug("sweep {} finished with RMSE {}", controller.getIterationCount(), rmse);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+        timer.stop();
+        logger.info("Finished ALS model in {}", timer);
+
+        return new MFModel(featureCount, userFeatures, itemFeatures,
+                           snapshot.userIndex(), snapshot.itemIndex());
+    }
+
+    /**
+     * Subtract the baseline scores from the rating values.
+     * @param values The rating values, indexed by rating index.
+     */
+    private void subtractBaselines(double[] values) {
+        LongIterator userIter = snapshot.getUserIds().iterator();
+        while (userIter.hasNext()) {
+            long uid = userIter.nextLong();
+            Long2DoubleFunction blpreds =
+                    LongUtils.asLong2DoubleFunction(baseline.score(uid, snapshot.getUserRatingVector(uid).keySet()));
+            for (RatingMatrixEntry r: snapshot.getUserRatings(uid)) {
+                values[r.getIndex()] -= blpreds.get(r.getItemId());
+            }
+        }
+    }
+
+    /**
+     * Solve for every row of one side of the factorization.
+     *
+     * @param pool The thread pool, or {@code null} to solve on this thread.
+     * @param rows The observed values, by row.
+     * @param fixed The fixed features of the other side.
+     * @param nfixed The number of rows in {@code fixed}.
+     * @param output The features to solve for.
+     */
+    private void solveRows(ForkJoinPool pool, final SparseRows rows,
+                           final double[] fixed, int nfixed, final double[] output) {
+        final double[] gram = implicit ? computeGram(fixed, nfixed) : null;
+        final int nrows = rows.size();
+        if (pool == null) {
+            solveRange(rows, fixed, gram, output, 0, nrows);
+            return;
+        }
+
+        int ntasks = threadCount * TASKS_PER_THREAD;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(ntasks);
+        for (int t = 0; t < ntasks; t++) {
+            final int start = (int) ((long) nrows * t / ntasks);
+            final int end = (int) ((long) nrows * (t + 1) / ntasks);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    solveRange(rows, fixed, gram, output, start, end);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> result: pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("model build interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause());
+            throw new RuntimeException("error solving feature rows", ex.getCause());
+        }
+    }
+
+    /**
+     * Solve a range of rows.  Each row only reads the fixed features and writes its own output
+     * row, so disjoint ranges can be solved concurrently.
+     */
+    private void solveRange(SparseRows rows, double[] fixed, double[] gram, double[] output,
+                            int start, int end) {
+        final int k = featureCount;
+        double[] a = new double[k * k];
+        double[] b = new double[k];
+        for (int row = start; row < end; row++) {
+            int rstart = rows.offsets[row];
+            int rend = rows.offsets[row + 1];
+            int n = rend - rstart;
+
+            // set up the normal equations (lower triangle only)
+            if (implicit) {
+                System.arraycopy(gram, 0, a, 0, k * k);
+                for (int f = 0; f < k; f++) {
+                    a[f * k + f] += regularization;
+                }
+            } else {
+                Arrays.fill(a, 0);
+                for (int f = 0; f < k; f++) {
+                    a[f * k + f] = regularization * n;
+                }
+            }
+            Arrays.fill(b, 0);
+            for (int pos = rstart; pos < rend; pos++) {
+                int yoff = rows.columns[pos] * k;
+                double value = rows.values[pos];
+                double weight, target;
+                if (implicit) {
+                    // confidence is 1 + alpha * |r|; the 1 is already in the Gram matrix
+                    weight = confidenceWeight * Math.abs(value);
+                    target = value > 0 ? 1 + weight : 0;
+                } else {
+                    weight = 1;
+                    target = value;
+                }
+                for (int i = 0; i < k; i++) {
+                    double yi = fixed[yoff + i];
+                    b[i] += target * yi;
+                    double wyi = weight * yi;
+                    for (int j = 0; j <= i; j++) {
+                        a[i * k + j] += wyi * fixed[yoff + j];
+                    }
+                }
+            }
+
+            int off = row * k;
+            if (n > 0 && solveCholesky(a, b, k)) {
+                System.arraycopy(b, 0, output, off, k);
+            } else {
+                Arrays.fill(output, off, off + k, 0);
+            }
+        }
+    }
+
+    /**
+     * Compute the Gram matrix Y<sup>T</sup>Y of a feature matrix (lower triangle only).
+     */
+    private double[] computeGram(double[] features, int nrows) {
+        final int k = featureCount;
+        double[] gram = new double[k * k];
+        for (int r = 0; r < nrows; r++) {
+            int off = r * k;
+            for (int i = 0; i < k; i++) {
+                double yi = features[off + i];
+                for (int j = 0; j <= i; j++) {
+                    gram[i * k + j] += yi * features[off + j];
+                }
+            }
+        }
+        return gram;
+    }
+
+    /**
+     * Compute the training RMSE on the observed entries.
+     */
+    private double trainingError(SparseRows byUser, double[] userFeatures, double[] itemFeatures) {
+        final int k = featureCount;
+        double sse = 0;
+        int n = 0;
+        for (int u = 0; u < byUser.size(); u++) {
+            int uoff = u * k;
+            for (int pos = byUser.offsets[u]; pos < byUser.offsets[u + 1]; pos++) {
+                int ioff = byUser.columns[pos] * k;
+                double pred = 0;
+                for (int f = 0; f < k; f++) {
+                    pred += userFeatures[uoff + f] * itemFeatures[ioff + f];
+                }
+                double value = byUser.values[pos];
+                double target = implicit ? (value > 0 ? 1 : 0) : value;
+                double err = target - pred;
+                sse += err * err;
+                n += 1;
+            }
+        }
+        return n > 0 ? Math.sqrt(sse / n) : 0;
+    }
+
+    /**
+     * Solve the system <i>Ax</i> = <i>b</i> for symmetric positive definite <i>A</i> by Cholesky
+     * decomposition.
+     *
+     * @param a The lower triangle of <i>A</i>, in row-major order; overwritten by the Cholesky
+     *          factor.
+     * @param b The right-hand side; overwritten by the solution.
+     * @param k The dimension of the system.
+     * @return {@code false} if <i>A</i> is not positive definite.
+     */
+    static boolean solveCholesky(double[] a, double[] b, int k) {
+        for (int j = 0; j < k; j++) {
+            double d = a[j * k + j];
+            for (int p = 0; p < j; p++) {
+                d -= a[j * k + p] * a[j * k + p];
+            }
+            if (d <= 0 || Double.isNaN(d)) {
+                return false;
+            }
+            d = Math.sqrt(d);
+            a[j * k + j] = d;
+            for (int i = j + 1; i < k; i++) {
+                double s = a[i * k + j];
+                for (int p = 0; p < j; p++) {
+                    s -= a[i * k + p] * a[j * k + p];
+                }
+                a[i * k + j] = s / d;
+            }
+        }
+        // forward substitution: L y = b
+        for (int i = 0; i < k; i++) {
+            double s = b[i];
+            for (int p = 0; p < i; p++) {
+                s -= a[i * k + p] * b[p];
+            }
+            b[i] = s / a[i * k + i];
+        }
+        // back substitution: L^T x = y
+        for (int i = k - 1; i >= 0; i--) {
+            double s = b[i];
+            for (int p = i + 1; p < k; p++) {
+                s -= a[p * k + i] * b[p];
+            }
+            b[i] = s / a[i * k + i];
+        }
+        return true;
+    }
+
+    /**
+     * Observed values in compressed sparse row form.
+     */
+    private static final class SparseRows {
+        final int[] offsets;
+        final int[] columns;
+        final double[] values;
+
+        SparseRows(int[] rowIdx, int[] colIdx, double[] vals, int nrows) {
+            offsets = new int[nrows + 1];
+            for (int r: rowIdx) {
+                offsets[r + 1] += 1;
+            }
+            for (int r = 0; r < nrows; r++) {
+                offsets[r + 1] += offsets[r];
+            }
+            int[] fill = new int[nrows];
+            columns = new int[rowIdx.length];
+            values = new double[rowIdx.length];
+            for (int i = 0; i < rowIdx.length; i++) {
+                int r = rowIdx[i];
+                int pos = offsets[r] + fill[r];
+                columns[pos] = colIdx[i];
+                values[pos] = vals[i];
+                fill[r] += 1;
+            }
+        }
+
+        int size() {
+            return offsets.length - 1;
+        }
+    }
+}
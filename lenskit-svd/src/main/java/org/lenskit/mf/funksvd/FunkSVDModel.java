@@ -51,12 +51,30 @@ public final class FunkSVDModel extends MFModel {
         super(umat, imat, uidx, iidx);
 
         featureInfo = ImmutableList.copyOf(features);
+        averageUser = computeAverageUser(featureInfo, featureCount);
+    }
+
+    /**
+     * Construct a FunkSVD model from row-major feature arrays.  The arrays are not copied.
+     *
+     * @see MFModel#MFModel(int, double[], double[], KeyIndex, KeyIndex)
+     * @since 3.0
+     */
+    public FunkSVDModel(int nfeatures, double[] ufs, double[] ifs,
+                        KeyIndex uidx, KeyIndex iidx,
+                        List<FeatureInfo> features) {
+        super(nfeatures, ufs, ifs, uidx, iidx);
+
+        featureInfo = ImmutableList.copyOf(features);
+        averageUser = computeAverageUser(featureInfo, featureCount);
+    }
 
-        double[] means = new double[featureCount];
-        for (int f = featureCount - 1; f >= 0; f--) {
-            means[f] = featureInfo.get(f).getUserAverage();
+    private static RealVector computeAverageUser(List<FeatureInfo> features, int nfeatures) {
+        double[] means = new double[nfeatures];
+        for (int f = nfeatures - 1; f >= 0; f--) {
+            means[f] = features.get(f).getUserAverage();
         }
-        averageUser = MatrixUtils.createRealVector(means);
+        return MatrixUtils.createRealVector(means);
     }
 
     /**
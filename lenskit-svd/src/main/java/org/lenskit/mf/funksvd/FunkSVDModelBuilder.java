@@ -24,6 +24,7 @@ import org.apache.commons.lang3.time.StopWatch;
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
+import org.lenskit.inject.MemoryEstimator;
 import org.lenskit.inject.Transient;
 import org.grouplens.lenskit.iterative.TrainingLoopController;
 import org.lenskit.data.ratings.RatingMatrix;
@@ -51,7 +52,7 @@ import java.util.List;
  *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
-public class FunkSVDModelBuilder implements Provider<FunkSVDModel> {
+public class FunkSVDModelBuilder implements Provider<FunkSVDModel>, MemoryEstimator {
     private static Logger logger = LoggerFactory.getLogger(FunkSVDModelBuilder.class);
 
     protected final int featureCount;
@@ -71,6 +72,18 @@ public class FunkSVDModelBuilder implements Provider<FunkSVDModel> {
         this.rule = rule;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The builder holds the user and item feature matrices and one training estimate for
+     * each rating.</p>
+     */
+    @Override
+    public long estimateMemoryUse() {
+        long rows = snapshot.getUserIds().size() + snapshot.getItemIds().size();
+        return 8L * (rows * featureCount + snapshot.getRatings().size());
+    }
+
 
     @Override
     public FunkSVDModel get() {
@@ -0,0 +1,348 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.mf.funksvd;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import org.apache.commons.lang3.time.StopWatch;
+import org.grouplens.lenskit.iterative.TrainingLoopController;
+import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.inject.MemoryEstimator;
+import org.lenskit.inject.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * FunkSVD model builder that trains all features at once with parallel stochastic gradient
+ * descent.  It produces the same kind of {@link FunkSVDModel} as {@link FunkSVDModelBuilder}, and
+ * uses the same update rule (learning rate, regularization, baseline, domain and stopping
+ * condition), but each training epoch updates every feature of a rating's user and item together.
+ *
+ * <p>Training is parallelized with the block-stratified scheme of distributed SGD (DSGD): users
+ * and items are randomly split into <i>p</i> blocks each, one per thread, so the rating matrix
+ * falls into <i>p</i>&times;<i>p</i> blocks.  Each epoch runs in <i>p</i> sub-epochs; in
+ * sub-epoch <i>s</i>, thread <i>t</i> trains on block (<i>t</i>, <i>t</i>+<i>s</i> mod <i>p</i>)
+ * in shuffled order.  No two threads touch the same user or item row, so the factor arrays are
+ * updated without locks or races, and the model depends only on the random seed and the thread
+ * count.</p>
+ *
+ * <p>Since all features train together, they cannot all start at the same value; each feature
+ * value is initialized to the initial feature value scaled by a random factor in [0.5, 1.5).</p>
+ *
+ * @since 3.0
+ */
+public class ParallelFunkSVDModelBuilder implements Provider<FunkSVDModel>, MemoryEstimator {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelFunkSVDModelBuilder.class);
+
+    protected final int featureCount;
+    protected final RatingMatrix snapshot;
+    protected final double initialValue;
+    protected final FunkSVDUpdateRule rule;
+    private final int threadCount;
+    private final Random random;
+
+    @Inject
+    public ParallelFunkSVDModelBuilder(@Transient @Nonnull RatingMatrix snapshot,
+                                       @Transient @Nonnull FunkSVDUpdateRule rule,
+                                       @FeatureCount int featureCount,
+                                       @InitialFeatureValue double initVal,
+                                       @TrainingThreadCount int nthreads,
+                                       Random rng) {
+        Preconditions.checkArgument(nthreads >= 0, "negative thread count");
+        this.featureCount = featureCount;
+        this.initialValue = initVal;
+        this.snapshot = snapshot;
+        this.rule = rule;
+        threadCount = nthreads == 0 ? Runtime.getRuntime().availableProcessors() : nthreads;
+        random = rng;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The builder holds the user and item feature arrays, and copies each rating's user, item,
+     * value and baseline into primitive arrays next to its training estimate.</p>
+     */
+    @Override
+    public long estimateMemoryUse() {
+        long rows = snapshot.getUserIds().size() + snapshot.getItemIds().size();
+        return 8L * rows * featureCount + 32L * snapshot.getRatings().size();
+    }
+
+    @Override
+    public FunkSVDModel get() {
+        final int userCount = snapshot.getUserIds().size();
+        final int itemCount = snapshot.getItemIds().size();
+        List<RatingMatrixEntry> ratings = snapshot.getRatings();
+        final int nratings = ratings.size();
+
+        // the training data, as primitive arrays indexed by rating
+        TrainingEstimator estimates = rule.makeEstimator(snapshot);
+        int[] users = new int[nratings];
+        int[] items = new int[nratings];
+        double[] values = new double[nratings];
+        double[] baselines = new double[nratings];
+        for (RatingMatrixEntry r: ratings) {
+            int idx = r.getIndex();
+            users[idx] = r.getUserIndex();
+            items[idx] = r.getItemIndex();
+            values[idx] = r.getValue();
+            baselines[idx] = estimates.get(r);
+        }
+
+        // row-major feature values
+        double[] userFeatures = new double[userCount * featureCount];
+        double[] itemFeatures = new double[itemCount * featureCount];
+        for (int i = 0; i < userFeatures.length; i++) {
+            userFeatures[i] = initialValue * (0.5 + random.nextDouble());
+        }
+        for (int i = 0; i < itemFeatures.length; i++) {
+            itemFeatures[i] = initialValue * (0.5 + random.nextDouble());
+        }
+
+        int strata = Math.max(1, Math.min(threadCount, Math.min(userCount, itemCount)));
+        logger.info("Building SVD with {} features for {} ratings using {} strata",
+                    featureCount, nratings, strata);
+        logger.debug("Learning rate is {}", rule.getLearningRate());
+        logger.debug("Regularization term is {}", rule.getTrainingRegularization());
+
+        TrainingData data = new TrainingData(users, items, values, baselines,
+                                             userFeatures, itemFeatures, strata);
+        StopWatch timer = new StopWatch();
+        timer.start();
+        ForkJoinPool pool = strata > 1 ? new ForkJoinPool(strata) : null;
+        TrainingLoopController controller = rule.getTrainingLoopController();
+        DoubleArrayList errors = new DoubleArrayList();
+        try {
+            double rmse = Double.MAX_VALUE;
+            while (controller.keepTraining(rmse)) {
+                data.shuffleBlocks();
+                double sse = 0;
+                for (int s = 0; s < strata; s++) {
+                    sse += runSubEpoch(pool, data, s);
+                }
+                rmse = Math.sqrt(sse / nratings);
+                errors.add(rmse);
+                logger.trace("iteration {} finished with RMSE {}", controller.getIterationCount(), rmse);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+        timer.stop();
+        logger.info("Trained {} features in {} epochs ({})",
+                    featureCount, errors.size(), timer);
+
+        List<FeatureInfo> featureInfo = new ArrayList<FeatureInfo>(featureCount);
+        for (int f = 0; f < featureCount; f++) {
+            double usum = 0, usq = 0;
+            for (int u = 0; u < userCount; u++) {
+                double v = userFeatures[u * featureCount + f];
+                usum += v;
+                usq += v * v;
+            }
+            double isum = 0, isq = 0;
+            for (int i = 0; i < itemCount; i++) {
+                double v = itemFeatures[i * featureCount + f];
+                isum += v;
+                isq += v * v;
+            }
+            FeatureInfo.Builder fib = new FeatureInfo.Builder(f);
+            for (int e = 0; e < errors.size(); e++) {
+                fib.addTrainingRound(errors.getDouble(e));
+            }
+            fib.setUserAverage(usum / userCount)
+               .setItemAverage(isum / itemCount)
+               .setSingularValue(Math.sqrt(usq) * Math.sqrt(isq));
+            featureInfo.add(fib.build());
+        }
+
+        return new FunkSVDModel(featureCount, userFeatures, itemFeatures,
+                                snapshot.userIndex(), snapshot.itemIndex(),
+                                featureInfo);
+    }
+
+    /**
+     * Run one sub-epoch, training the diagonal of blocks selected by <var>shift</var>.
+     *
+     * @return The sum of squared errors of the sub-epoch's updates.
+     */
+    private double runSubEpoch(ForkJoinPool pool, final TrainingData data, int shift) {
+        final int strata = data.strata;
+        if (pool == null) {
+            return trainBlock(data, 0);
+        }
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(strata);
+        for (int t = 0; t < strata; t++) {
+            final int block = t * strata + (t + shift) % strata;
+            tasks.add(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    return trainBlock(data, block);
+                }
+            });
+        }
+        double sse = 0;
+        try {
+            // sum in block order so the error does not depend on scheduling
+            for (Future<Double> result: pool.invokeAll(tasks)) {
+                sse += result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("model build interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause());
+            throw new RuntimeException("error training features", ex.getCause());
+        }
+        return sse;
+    }
+
+    /**
+     * Train on the ratings in one block.  Blocks on the same diagonal share no users or items,
+     * so they can be trained concurrently.
+     *
+     * @return The sum of squared errors of the block's updates.
+     */
+    private double trainBlock(TrainingData data, int block) {
+        final int nf = featureCount;
+        final double lrate = rule.getLearningRate();
+        final double reg = rule.getTrainingRegularization();
+        final PreferenceDomain domain = rule.getDomain();
+        final double[] ufs = data.userFeatures;
+        final double[] ifs = data.itemFeatures;
+        double sse = 0;
+        for (int pos = data.blockStarts[block], end = data.blockStarts[block + 1]; pos < end; pos++) {
+            final int r = data.order[pos];
+            final int uoff = data.users[r] * nf;
+            final int ioff = data.items[r] * nf;
+            double pred = data.baselines[r];
+            for (int f = 0; f < nf; f++) {
+                pred += ufs[uoff + f] * ifs[ioff + f];
+            }
+            if (domain != null) {
+                pred = domain.clampValue(pred);
+            }
+            final double err = data.values[r] - pred;
+            sse += err * err;
+            for (int f = 0; f < nf; f++) {
+                final double uv = ufs[uoff + f];
+                final double iv = ifs[ioff + f];
+                ufs[uoff + f] = uv + lrate * (err * iv - reg * uv);
+                ifs[ioff + f] = iv + lrate * (err * uv - reg * iv);
+            }
+        }
+        return sse;
+    }
+
+    /**
+     * Training data bucketed into blocks.  The ratings of block <i>b</i> are listed in
+     * {@code order[blockStarts[b]]} through {@code order[blockStarts[b+1]-1]}.
+     */
+    private class TrainingData {
+        final int[] users;
+        final int[] items;
+        final double[] values;
+        final double[] baselines;
+        final double[] userFeatures;
+        final double[] itemFeatures;
+        final int strata;
+        final int[] blockStarts;
+        final int[] order;
+
+        TrainingData(int[] us, int[] is, double[] vs, double[] bls,
+                     double[] ufs, double[] ifs, int p) {
+            users = us;
+            items = is;
+            values = vs;
+            baselines = bls;
+            userFeatures = ufs;
+            itemFeatures = ifs;
+            strata = p;
+
+            int[] userBlocks = assignBlocks(ufs.length / featureCount);
+            int[] itemBlocks = assignBlocks(ifs.length / featureCount);
+            int nblocks = strata * strata;
+            int[] blocks = new int[us.length];
+            blockStarts = new int[nblocks + 1];
+            for (int r = 0; r < us.length; r++) {
+                blocks[r] = userBlocks[us[r]] * strata + itemBlocks[is[r]];
+                blockStarts[blocks[r] + 1] += 1;
+            }
+            for (int b = 0; b < nblocks; b++) {
+                blockStarts[b + 1] += blockStarts[b];
+            }
+            int[] fill = new int[nblocks];
+            order = new int[us.length];
+            for (int r = 0; r < us.length; r++) {
+                int b = blocks[r];
+                order[blockStarts[b] + fill[b]] = r;
+                fill[b] += 1;
+            }
+        }
+
+        /**
+         * Randomly assign rows to blocks of (nearly) equal size.
+         */
+        private int[] assignBlocks(int n) {
+            int[] perm = new int[n];
+            for (int i = 0; i < n; i++) {
+                perm[i] = i;
+            }
+            shuffle(perm, 0, n);
+            int[] blocks = new int[n];
+            for (int i = 0; i < n; i++) {
+                blocks[perm[i]] = (int) ((long) i * strata / n);
+            }
+            return blocks;
+        }
+
+        void shuffleBlocks() {
+            for (int b = 0; b < strata * strata; b++) {
+                shuffle(order, blockStarts[b], blockStarts[b + 1]);
+            }
+        }
+
+        private void shuffle(int[] array, int start, int end) {
+            for (int i = end - 1; i > start; i--) {
+                int j = start + random.nextInt(i - start + 1);
+                int tmp = array[i];
+                array[i] = array[j];
+                array[j] = tmp;
+            }
+        }
+    }
+}
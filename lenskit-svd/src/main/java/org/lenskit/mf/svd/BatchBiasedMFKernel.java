@@ -0,0 +1,48 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.mf.svd;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A biased MF kernel that can score a batch of items directly from the model's row-major
+ * feature storage.  {@link BiasedMFItemScorer} uses this interface when its kernel implements
+ * it, and otherwise applies {@link #apply(double, org.apache.commons.math3.linear.RealVector,
+ * org.apache.commons.math3.linear.RealVector)} to one item at a time.  Implementations must
+ * compute the same values both ways, so a subclass that changes one method must change the other.
+ *
+ * @since 3.0
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public interface BatchBiasedMFKernel extends BiasedMFKernel {
+    /**
+     * Apply the kernel function to a batch of items.
+     *
+     * @param user   The user-factor values.
+     * @param model  The model containing the items.
+     * @param items  The indexes of the items in the model's item index.
+     * @param n      The number of items.
+     * @param scores On entry, the combined user-item bias of each item, parallel to
+     *               <var>items</var>; on return, the kernel function value for each item.
+     */
+    void apply(@Nonnull double[] user, @Nonnull MFModel model,
+               @Nonnull int[] items, int n, @Nonnull double[] scores);
+}
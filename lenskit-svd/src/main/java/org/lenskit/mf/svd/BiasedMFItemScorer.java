@@ -23,6 +23,7 @@ package org.lenskit.mf.svd;
 import it.unimi.dsi.fastutil.longs.Long2DoubleFunction;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongIterators;
+import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.RealVector;
 import org.lenskit.api.ItemScorer;
 import org.lenskit.api.Result;
@@ -31,6 +32,7 @@ import org.lenskit.baseline.BaselineScorer;
 import org.lenskit.basic.AbstractItemScorer;
 import org.lenskit.results.Results;
 import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.keys.KeyIndex;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -42,12 +44,18 @@ import java.util.List;
 /**
  * Item scorer using biased matrix factorization.  This implements SVD-style item scorers.
  *
+ * <p>If the kernel is a {@link BatchBiasedMFKernel}, all scorable items are scored in one batch
+ * over the model's row-major feature storage; otherwise, the kernel is applied to one item
+ * vector at a time.</p>
+ *
  * @since 2.1
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class BiasedMFItemScorer extends AbstractItemScorer {
     private final MFModel model;
     private final BiasedMFKernel kernel;
+    @Nullable
+    private final BatchBiasedMFKernel batchKernel;
     private final ItemScorer baseline;
 
     /**
@@ -62,6 +70,11 @@ public class BiasedMFItemScorer extends AbstractItemScorer {
         model = mod;
         kernel = kern;
         baseline = bl;
+        if (kern instanceof BatchBiasedMFKernel) {
+            batchKernel = (BatchBiasedMFKernel) kern;
+        } else {
+            batchKernel = null;
+        }
     }
 
     /**
@@ -77,6 +90,21 @@ public class BiasedMFItemScorer extends AbstractItemScorer {
         return model.getUserVector(user);
     }
 
+    /**
+     * Get a user's preference values as an array.  This converts the result of
+     * {@link #getUserPreferenceVector(long)}.
+     *
+     * @param user The user ID.
+     * @return The user's preference values, or {@code null} if no preferences are available for
+     *         the user.  The caller may modify the array.
+     * @since 3.0
+     */
+    @Nullable
+    protected double[] getUserPreferenceArray(long user) {
+        RealVector vec = getUserPreferenceVector(user);
+        return vec == null ? null : vec.toArray();
+    }
+
     public MFModel getModel() {
         return model;
     }
@@ -84,23 +112,45 @@ public class BiasedMFItemScorer extends AbstractItemScorer {
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
-        Long2DoubleFunction base = LongUtils.asLong2DoubleFunction(baseline.score(user, items));
-
-        RealVector uvec = getUserPreferenceVector(user);
+        double[] uvec = getUserPreferenceArray(user);
         if (uvec == null) {
             return Results.newResultMap();
         }
 
-        List<Result> results = new ArrayList<>(items.size());
+        Long2DoubleFunction base = LongUtils.asLong2DoubleFunction(baseline.score(user, items));
+
+        // gather the scorable items and their biases, then score them in one batch
+        KeyIndex itemIndex = model.getItemIndex();
+        int size = items.size();
+        long[] ids = new long[size];
+        int[] indexes = new int[size];
+        double[] scores = new double[size];
+        int n = 0;
         LongIterator iter = LongIterators.asLongIterator(items.iterator());
         while (iter.hasNext()) {
             long item = iter.nextLong();
-            RealVector ivec = model.getItemVector(item);
-            if (ivec != null) {
-                double score = kernel.apply(base.get(item), uvec, ivec);
-                results.add(Results.create(item, score));
+            int idx = itemIndex.tryGetIndex(item);
+            if (idx >= 0) {
+                ids[n] = item;
+                indexes[n] = idx;
+                scores[n] = base.get(item);
+                n += 1;
             }
         }
+        if (batchKernel != null) {
+            batchKernel.apply(uvec, model, indexes, n, scores);
+        } else {
+            RealVector uv = new ArrayRealVector(uvec, false);
+            for (int i = 0; i < n; i++) {
+                RealVector ivec = model.getItemVector(ids[i]);
+                scores[i] = kernel.apply(scores[i], uv, ivec);
+            }
+        }
+
+        List<Result> results = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            results.add(Results.create(ids[i], scores[i]));
+        }
 
         return Results.newResultMap(results);
     }
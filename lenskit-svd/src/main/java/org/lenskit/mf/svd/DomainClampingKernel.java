@@ -38,7 +38,7 @@ import java.io.Serializable;
  */
 @Shareable
 @Immutable
-public class DomainClampingKernel implements BiasedMFKernel, Serializable {
+public class DomainClampingKernel implements BatchBiasedMFKernel, Serializable {
     private static final long serialVersionUID = 1L;
 
     private final PreferenceDomain domain;
@@ -60,6 +60,22 @@ public class DomainClampingKernel implements BiasedMFKernel, Serializable {
         return result;
     }
 
+    @Override
+    public void apply(@Nonnull double[] user, @Nonnull MFModel model,
+                      @Nonnull int[] items, int n, @Nonnull double[] scores) {
+        final int nf = user.length;
+        Preconditions.checkArgument(model.getFeatureCount() == nf, "vectors have different lengths");
+        final double[] ifs = model.getItemFeatureArray();
+        for (int j = 0; j < n; j++) {
+            final int off = items[j] * nf;
+            double result = scores[j];
+            for (int f = 0; f < nf; f++) {
+                result = domain.clampValue(result + user[f] * ifs[off + f]);
+            }
+            scores[j] = result;
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -35,7 +35,7 @@ import java.io.Serializable;
  */
 @Shareable
 @Immutable
-public class DotProductKernel implements BiasedMFKernel, Serializable {
+public class DotProductKernel implements BatchBiasedMFKernel, Serializable {
     private static final long serialVersionUID = 1L;
 
     @Override
@@ -43,6 +43,12 @@ public class DotProductKernel implements BiasedMFKernel, Serializable {
         return bias + user.dotProduct(item);
     }
 
+    @Override
+    public void apply(@Nonnull double[] user, @Nonnull MFModel model,
+                      @Nonnull int[] items, int n, @Nonnull double[] scores) {
+        model.addItemScores(user, items, n, scores);
+    }
+
     @Override
     public int hashCode() {
         return DotProductKernel.class.hashCode();
@@ -28,9 +28,12 @@ import org.lenskit.util.keys.KeyIndex;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.util.Arrays;
 
 /**
- * Common model for matrix factorization (SVD) recommendation.
+ * Common model for matrix factorization (SVD) recommendation.  Feature values are stored in
+ * contiguous row-major arrays, so an item's features are adjacent in memory and a batch of items
+ * can be scored in one tight loop with {@link #addItemScores(double[], int[], int, double[])}.
  *
  * @since 2.1
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
@@ -43,14 +46,32 @@ public class MFModel implements Serializable {
     protected int userCount;
     protected int itemCount;
 
-    protected RealMatrix userMatrix;
-    protected RealMatrix itemMatrix;
+    /**
+     * The user features, in row-major order (users x features).
+     */
+    protected double[] userFeatures;
+    /**
+     * The item features, in row-major order (items x features).
+     */
+    protected double[] itemFeatures;
+    /**
+     * A matrix view of {@link #userFeatures}.
+     * @deprecated Use {@link #getUserMatrix()} or the feature arrays.
+     */
+    @Deprecated
+    protected transient RealMatrix userMatrix;
+    /**
+     * A matrix view of {@link #itemFeatures}.
+     * @deprecated Use {@link #getItemMatrix()} or the feature arrays.
+     */
+    @Deprecated
+    protected transient RealMatrix itemMatrix;
     protected KeyIndex userIndex;
     protected KeyIndex itemIndex;
 
     /**
-     * Construct a matrix factorization model.  The matrices are not copied, so the caller should
-     * make sure they won't be modified by anyone else.
+     * Construct a matrix factorization model.  The matrices are copied into the model's
+     * row-major storage.
      *
      * @param umat The user feature matrix (users x features).
      * @param imat The item feature matrix (items x features).
@@ -59,21 +80,60 @@ public class MFModel implements Serializable {
      */
     public MFModel(RealMatrix umat, RealMatrix imat,
                    KeyIndex uidx, KeyIndex iidx) {
-        Preconditions.checkArgument(umat.getColumnDimension() == imat.getColumnDimension(),
-                                    "mismatched matrix sizes");
-        featureCount = umat.getColumnDimension();
+        this(umat.getColumnDimension(),
+             toRowMajor(umat, uidx.size(), umat.getColumnDimension()),
+             toRowMajor(imat, iidx.size(), umat.getColumnDimension()),
+             uidx, iidx);
+    }
+
+    /**
+     * Construct a matrix factorization model from row-major feature arrays.  The arrays are not
+     * copied, so the caller should make sure they won't be modified by anyone else.
+     *
+     * @param nfeatures The number of features.
+     * @param ufs The user features (users x features, row-major).
+     * @param ifs The item features (items x features, row-major).
+     * @param uidx The user index mapping.
+     * @param iidx The item index mapping.
+     * @since 3.0
+     */
+    public MFModel(int nfeatures, double[] ufs, double[] ifs,
+                   KeyIndex uidx, KeyIndex iidx) {
+        Preconditions.checkArgument(nfeatures >= 0, "negative feature count");
+        featureCount = nfeatures;
         userCount = uidx.size();
         itemCount = iidx.size();
-        Preconditions.checkArgument(umat.getRowDimension() == userCount,
-                                    "user matrix has %s rows, expected %s",
-                                    umat.getRowDimension(), userCount);
-        Preconditions.checkArgument(imat.getRowDimension() == itemCount,
-                                    "item matrix has %s rows, expected %s",
-                                    imat.getRowDimension(), itemCount);
-        userMatrix = umat;
-        itemMatrix = imat;
+        Preconditions.checkArgument(ufs.length == userCount * featureCount,
+                                    "user features have %s rows, expected %s",
+                                    featureCount == 0 ? 0 : ufs.length / featureCount, userCount);
+        Preconditions.checkArgument(ifs.length == itemCount * featureCount,
+                                    "item features have %s rows, expected %s",
+                                    featureCount == 0 ? 0 : ifs.length / featureCount, itemCount);
+        userFeatures = ufs;
+        itemFeatures = ifs;
         userIndex = uidx;
         itemIndex = iidx;
+        createMatrixViews();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void createMatrixViews() {
+        userMatrix = new RowMajorMatrix(userFeatures, userCount, featureCount);
+        itemMatrix = new RowMajorMatrix(itemFeatures, itemCount, featureCount);
+    }
+
+    private static double[] toRowMajor(RealMatrix mat, int nrows, int ncols) {
+        Preconditions.checkArgument(mat.getColumnDimension() == ncols, "mismatched matrix sizes");
+        Preconditions.checkArgument(mat.getRowDimension() == nrows,
+                                    "matrix has %s rows, expected %s",
+                                    mat.getRowDimension(), nrows);
+        double[] data = new double[nrows * ncols];
+        for (int i = 0; i < nrows; i++) {
+            for (int j = 0; j < ncols; j++) {
+                data[i * ncols + j] = mat.getEntry(i, j);
+            }
+        }
+        return data;
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
@@ -81,16 +141,11 @@ public class MFModel implements Serializable {
         out.writeInt(userCount);
         out.writeInt(itemCount);
 
-        for (int i = 0; i < userCount; i++) {
-            for (int j = 0; j < featureCount; j++) {
-                out.writeDouble(userMatrix.getEntry(i, j));
-            }
+        for (double v: userFeatures) {
+            out.writeDouble(v);
         }
-
-        for (int i = 0; i < itemCount; i++) {
-            for (int j = 0; j < featureCount; j++) {
-                out.writeDouble(itemMatrix.getEntry(i, j));
-            }
+        for (double v: itemFeatures) {
+            out.writeDouble(v);
         }
 
         out.writeObject(userIndex);
@@ -102,31 +157,25 @@ public class MFModel implements Serializable {
         userCount = input.readInt();
         itemCount = input.readInt();
 
-        RealMatrix umat = MatrixUtils.createRealMatrix(userCount, featureCount);
-        for (int i = 0; i < userCount; i++) {
-            for (int j = 0; j < featureCount; j++) {
-                umat.setEntry(i, j, input.readDouble());
-            }
+        userFeatures = new double[userCount * featureCount];
+        for (int i = 0; i < userFeatures.length; i++) {
+            userFeatures[i] = input.readDouble();
         }
-        userMatrix = umat;
-
-        RealMatrix imat = MatrixUtils.createRealMatrix(itemCount, featureCount);
-        for (int i = 0; i < itemCount; i++) {
-            for (int j = 0; j < featureCount; j++) {
-                imat.setEntry(i, j, input.readDouble());
-            }
+        itemFeatures = new double[itemCount * featureCount];
+        for (int i = 0; i < itemFeatures.length; i++) {
+            itemFeatures[i] = input.readDouble();
         }
-        itemMatrix = imat;
 
         userIndex = (KeyIndex) input.readObject();
         itemIndex = (KeyIndex) input.readObject();
 
-        if (userIndex.size() != userMatrix.getRowDimension()) {
+        if (userIndex.size() != userCount) {
             throw new InvalidObjectException("user matrix and index have different row counts");
         }
-        if (itemIndex.size() != itemMatrix.getRowDimension()) {
+        if (itemIndex.size() != itemCount) {
             throw new InvalidObjectException("item matrix and index have different row counts");
         }
+        createMatrixViews();
     }
 
     /**
@@ -168,28 +217,28 @@ public class MFModel implements Serializable {
 
     /**
      * Get the user matrix.
-     * @return The user matrix (users x features).
+     * @return A view of the user matrix (users x features), backed by the model's storage.  It is
+     *         created once, so calling this method does not copy; do not modify it.
      */
+    @SuppressWarnings("deprecation")
     public RealMatrix getUserMatrix() {
         return userMatrix;
     }
 
     /**
      * Get the item matrix.
-     * @return The item matrix (items x features).
+     * @return A view of the item matrix (items x features), backed by the model's storage.  It is
+     *         created once, so calling this method does not copy; do not modify it.
      */
+    @SuppressWarnings("deprecation")
     public RealMatrix getItemMatrix() {
         return itemMatrix;
     }
 
     @Nullable
     public RealVector getUserVector(long user) {
-        int uidx = userIndex.tryGetIndex(user);
-        if (uidx < 0) {
-            return null;
-        } else {
-            return userMatrix.getRowVector(uidx);
-        }
+        double[] features = getUserFeatures(user);
+        return features == null ? null : MatrixUtils.createRealVector(features);
     }
 
     @Nullable
@@ -198,10 +247,61 @@ public class MFModel implements Serializable {
         if (iidx < 0) {
             return null;
         } else {
-            return itemMatrix.getRowVector(iidx);
+            return MatrixUtils.createRealVector(Arrays.copyOfRange(itemFeatures, iidx * featureCount,
+                                                                   (iidx + 1) * featureCount));
         }
     }
 
+    /**
+     * Get a user's feature values.
+     *
+     * @param user The user ID.
+     * @return A new array with the user's feature values, or {@code null} if the user was not in
+     *         the training set.
+     * @since 3.0
+     */
+    @Nullable
+    public double[] getUserFeatures(long user) {
+        int uidx = userIndex.tryGetIndex(user);
+        if (uidx < 0) {
+            return null;
+        } else {
+            return Arrays.copyOfRange(userFeatures, uidx * featureCount, (uidx + 1) * featureCount);
+        }
+    }
+
+    /**
+     * Add the dot products of a user feature vector with a batch of items to their scores.  This
+     * is a single pass over the contiguous item rows, and does not allocate.
+     *
+     * @param user   The user feature values.
+     * @param items  The item indexes (in {@link #getItemIndex()}).
+     * @param n      The number of items to score.
+     * @param scores The scores, parallel to <var>items</var>; each has the dot product of the user
+     *               and item feature vectors added to it.
+     * @since 3.0
+     */
+    public void addItemScores(double[] user, int[] items, int n, double[] scores) {
+        Preconditions.checkArgument(user.length == featureCount, "user vector has wrong length");
+        final int nf = featureCount;
+        final double[] ifs = itemFeatures;
+        for (int j = 0; j < n; j++) {
+            final int off = items[j] * nf;
+            double dot = 0;
+            for (int f = 0; f < nf; f++) {
+                dot += user[f] * ifs[off + f];
+            }
+            scores[j] += dot;
+        }
+    }
+
+    /**
+     * Get the raw item feature array, for kernels in this package.
+     */
+    double[] getItemFeatureArray() {
+        return itemFeatures;
+    }
+
     /**
      * Get a particular feature value for an user.
      * @param uid The item ID.
@@ -213,7 +313,7 @@ public class MFModel implements Serializable {
         if (uidx < 0) {
             return 0;
         } else {
-            return userMatrix.getEntry(uidx, feature);
+            return userFeatures[uidx * featureCount + feature];
         }
     }
 
@@ -228,7 +328,7 @@ public class MFModel implements Serializable {
         if (iidx < 0) {
             return 0;
         } else {
-            return itemMatrix.getEntry(iidx, feature);
+            return itemFeatures[iidx * featureCount + feature];
         }
     }
 
@@ -0,0 +1,75 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.mf.svd;
+
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * A matrix view of a row-major feature array.  Reads and writes go straight to the backing
+ * array, so the view costs nothing to create and never falls out of sync with the model.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+class RowMajorMatrix extends AbstractRealMatrix {
+    private final double[] data;
+    private final int nrows;
+    private final int ncols;
+
+    RowMajorMatrix(double[] data, int nrows, int ncols) {
+        this.data = data;
+        this.nrows = nrows;
+        this.ncols = ncols;
+    }
+
+    @Override
+    public int getRowDimension() {
+        return nrows;
+    }
+
+    @Override
+    public int getColumnDimension() {
+        return ncols;
+    }
+
+    @Override
+    public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+        return MatrixUtils.createRealMatrix(rowDimension, columnDimension);
+    }
+
+    @Override
+    public RealMatrix copy() {
+        return new RowMajorMatrix(data.clone(), nrows, ncols);
+    }
+
+    @Override
+    public double getEntry(int row, int column) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        return data[row * ncols + column];
+    }
+
+    @Override
+    public void setEntry(int row, int column, double value) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        data[row * ncols + column] = value;
+    }
+}
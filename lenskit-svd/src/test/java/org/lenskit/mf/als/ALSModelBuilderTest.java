@@ -0,0 +1,202 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.mf.als;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.grouplens.lenskit.iterative.IterationCountStoppingCondition;
+import org.grouplens.lenskit.iterative.StoppingCondition;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.LenskitRecommenderEngine;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.api.Result;
+import org.lenskit.baseline.BaselineScorer;
+import org.lenskit.baseline.GlobalMeanRatingItemScorer;
+import org.lenskit.basic.ConstantItemScorer;
+import org.lenskit.data.dao.EventCollectionDAO;
+import org.lenskit.data.dao.EventDAO;
+import org.lenskit.data.ratings.PackedRatingMatrix;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.mf.funksvd.FeatureCount;
+import org.lenskit.mf.svd.BiasedMFItemScorer;
+import org.lenskit.mf.svd.MFModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ALSModelBuilderTest {
+    private static final int NUSERS = 200;
+    private static final int NITEMS = 100;
+
+    private List<Rating> ratings;
+    private RatingMatrix snapshot;
+
+    /**
+     * Generate ratings from a rank-2 model with a little noise.
+     */
+    @Before
+    public void createRatings() {
+        Random rng = new Random(42);
+        double[][] ufs = new double[NUSERS][2];
+        double[][] ifs = new double[NITEMS][2];
+        for (double[] row: ufs) {
+            row[0] = rng.nextGaussian();
+            row[1] = rng.nextGaussian();
+        }
+        for (double[] row: ifs) {
+            row[0] = rng.nextGaussian();
+            row[1] = rng.nextGaussian();
+        }
+        ratings = new ArrayList<>();
+        for (int u = 0; u < NUSERS; u++) {
+            for (int i = 0; i < NITEMS; i++) {
+                if (rng.nextDouble() < 0.3) {
+                    double v = 3 + ufs[u][0] * ifs[i][0] + ufs[u][1] * ifs[i][1]
+                            + rng.nextGaussian() * 0.1;
+                    ratings.add(Rating.create(u + 1, i + 1, v));
+                }
+            }
+        }
+        snapshot = PackedRatingMatrix.pack(EventCollectionDAO.create(ratings));
+    }
+
+    private MFModel build(boolean implicit, int nthreads) {
+        return new ALSModelBuilder(snapshot, new ConstantItemScorer(3.0), 4, 0.01,
+                                   implicit, 1.0, 0.1, new IterationCountStoppingCondition(10),
+                                   nthreads, new Random(42)).get();
+    }
+
+    private double predict(MFModel model, long user, long item) {
+        return model.getUserVector(user).dotProduct(model.getItemVector(item));
+    }
+
+    @Test
+    public void testSolveCholesky() {
+        // [[4, 2], [2, 3]] x = [2, 1] has solution [0.5, 0]
+        double[] a = {4, 0, 2, 3};
+        double[] b = {2, 1};
+        assertThat(ALSModelBuilder.solveCholesky(a, b, 2), equalTo(true));
+        assertThat(b[0], closeTo(0.5, 1.0e-10));
+        assertThat(b[1], closeTo(0, 1.0e-10));
+
+        double[] singular = {0, 0, 0, 1};
+        assertThat(ALSModelBuilder.solveCholesky(singular, new double[2], 2), equalTo(false));
+    }
+
+    @Test
+    public void testExplicitFit() {
+        MFModel model = build(false, 1);
+        assertThat(model.getFeatureCount(), equalTo(4));
+        double sse = 0;
+        for (Rating r: ratings) {
+            double err = r.getValue() - 3 - predict(model, r.getUserId(), r.getItemId());
+            sse += err * err;
+        }
+        assertThat(Math.sqrt(sse / ratings.size()), lessThan(0.3));
+    }
+
+    @Test
+    public void testImplicitFit() {
+        MFModel model = build(true, 1);
+        double observed = 0;
+        for (Rating r: ratings) {
+            observed += predict(model, r.getUserId(), r.getItemId());
+        }
+        observed /= ratings.size();
+        double all = 0;
+        for (long u = 1; u <= NUSERS; u++) {
+            for (long i = 1; i <= NITEMS; i++) {
+                all += predict(model, u, i);
+            }
+        }
+        all /= NUSERS * NITEMS;
+        assertThat(observed, greaterThan(all));
+        assertThat(observed, greaterThan(0.5));
+    }
+
+    @Test
+    public void testParallelSolves() {
+        for (boolean implicit: new boolean[]{false, true}) {
+            MFModel sequential = build(implicit, 1);
+            MFModel parallel = build(implicit, 4);
+            RealMatrix umat = parallel.getUserMatrix();
+            assertThat(umat, equalTo(sequential.getUserMatrix()));
+            assertThat(parallel.getItemMatrix(), equalTo(sequential.getItemMatrix()));
+        }
+    }
+
+    private LenskitRecommender buildImplicitRecommender(boolean zeroBaseline) throws RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(EventDAO.class).to(EventCollectionDAO.create(ratings));
+        config.bind(RatingMatrix.class).to(PackedRatingMatrix.class);
+        config.bind(MFModel.class).toProvider(ALSModelBuilder.class);
+        config.bind(ItemScorer.class).to(BiasedMFItemScorer.class);
+        config.set(ImplicitFeedback.class).to(true);
+        config.set(FeatureCount.class).to(4);
+        config.bind(StoppingCondition.class).to(IterationCountStoppingCondition.class);
+        config.set(IterationCount.class).to(5);
+        if (zeroBaseline) {
+            config.bind(BaselineScorer.class, ItemScorer.class).to(ConstantItemScorer.class);
+        } else {
+            config.bind(BaselineScorer.class, ItemScorer.class).to(GlobalMeanRatingItemScorer.class);
+        }
+        return LenskitRecommenderEngine.build(config).createRecommender();
+    }
+
+    @Test
+    public void testImplicitScoresWithZeroBaseline() throws RecommenderBuildException {
+        LenskitRecommender rec = buildImplicitRecommender(true);
+        MFModel model = rec.get(MFModel.class);
+        ItemScorer scorer = rec.getItemScorer();
+        assertThat(scorer, instanceOf(BiasedMFItemScorer.class));
+        for (long u = 1; u <= 10; u++) {
+            for (long i = 1; i <= 10; i++) {
+                Result r = scorer.score(u, i);
+                assertThat(r, notNullValue());
+                assertThat(r.getScore(), closeTo(predict(model, u, i), 1.0e-10));
+            }
+        }
+    }
+
+    @Test
+    public void testImplicitScoresAddBaseline() throws RecommenderBuildException {
+        LenskitRecommender rec = buildImplicitRecommender(false);
+        MFModel model = rec.get(MFModel.class);
+        ItemScorer scorer = rec.getItemScorer();
+        double mean = 0;
+        for (Rating r: ratings) {
+            mean += r.getValue();
+        }
+        mean /= ratings.size();
+        Result r = scorer.score(1, 1);
+        assertThat(r, notNullValue());
+        assertThat(r.getScore(), closeTo(mean + predict(model, 1, 1), 1.0e-6));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.mf.funksvd;
+
+import org.grouplens.lenskit.iterative.IterationCountStoppingCondition;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.basic.ConstantItemScorer;
+import org.lenskit.data.dao.EventCollectionDAO;
+import org.lenskit.data.ratings.PackedRatingMatrix;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ParallelFunkSVDModelBuilderTest {
+    private static final int NUSERS = 200;
+    private static final int NITEMS = 100;
+
+    private RatingMatrix snapshot;
+    private FunkSVDUpdateRule rule;
+
+    /**
+     * Generate ratings from a rank-2 model with a little noise.
+     */
+    @Before
+    public void createRatings() {
+        Random rng = new Random(42);
+        double[][] ufs = new double[NUSERS][2];
+        double[][] ifs = new double[NITEMS][2];
+        for (double[] row: ufs) {
+            row[0] = rng.nextGaussian();
+            row[1] = rng.nextGaussian();
+        }
+        for (double[] row: ifs) {
+            row[0] = rng.nextGaussian();
+            row[1] = rng.nextGaussian();
+        }
+        List<Rating> ratings = new ArrayList<>();
+        for (int u = 0; u < NUSERS; u++) {
+            for (int i = 0; i < NITEMS; i++) {
+                if (rng.nextDouble() < 0.3) {
+                    double v = 3 + ufs[u][0] * ifs[i][0] + ufs[u][1] * ifs[i][1]
+                            + rng.nextGaussian() * 0.1;
+                    ratings.add(Rating.create(u + 1, i + 1, v));
+                }
+            }
+        }
+        snapshot = PackedRatingMatrix.pack(EventCollectionDAO.create(ratings));
+        rule = new FunkSVDUpdateRule(0.02, 0.001, new ConstantItemScorer(3.0), null,
+                                     new IterationCountStoppingCondition(40));
+    }
+
+    private FunkSVDModel build(int nthreads, long seed) {
+        return new ParallelFunkSVDModelBuilder(snapshot, rule, 4, 0.1, nthreads, new Random(seed)).get();
+    }
+
+    @Test
+    public void testTrainingReducesError() {
+        FunkSVDModel model = build(1, 42);
+        assertThat(model.getFeatureCount(), equalTo(4));
+        assertThat(model.getUserCount(), equalTo(NUSERS));
+        assertThat(model.getItemCount(), equalTo(NITEMS));
+        FeatureInfo info = model.getFeatureInfo(0);
+        assertThat(info.getIterCount(), equalTo(40));
+        assertThat(info.getLastRMSE(), lessThan(info.getTrainingErrors().getDouble(0) / 2));
+    }
+
+    @Test
+    public void testParallelTraining() {
+        FunkSVDModel sequential = build(1, 42);
+        FunkSVDModel parallel = build(4, 42);
+        double seqError = sequential.getFeatureInfo(0).getLastRMSE();
+        assertThat(parallel.getFeatureInfo(0).getLastRMSE(), closeTo(seqError, 0.1));
+    }
+
+    @Test
+    public void testDeterministic() {
+        FunkSVDModel first = build(4, 42);
+        FunkSVDModel second = build(4, 42);
+        assertThat(second.getUserMatrix(), equalTo(first.getUserMatrix()));
+        assertThat(second.getItemMatrix(), equalTo(first.getItemMatrix()));
+    }
+}
@@ -22,12 +22,19 @@ package org.lenskit.mf.svd;
 
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
 import org.lenskit.util.keys.HashKeyIndex;
 import org.junit.Before;
 import org.junit.Test;
 import org.lenskit.api.ItemScorer;
 import org.lenskit.api.Result;
+import org.lenskit.api.ResultMap;
+import org.lenskit.basic.ConstantItemScorer;
 import org.lenskit.basic.PrecomputedItemScorer;
+import org.lenskit.data.ratings.PreferenceDomain;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -36,6 +43,7 @@ public class BiasedMFItemScorerTest {
     private ItemScorer baseline;
     private MFModel model;
     private BiasedMFItemScorer scorer;
+    private MFModel rowMajorModel;
 
     @Before
     public void createModel() {
@@ -69,6 +77,14 @@ public class BiasedMFItemScorerTest {
         model = new MFModel(umat, imat, uidx, iidx);
 
         scorer = new BiasedMFItemScorer(model, new DotProductKernel(), baseline);
+
+        HashKeyIndex rmUsers = new HashKeyIndex();
+        rmUsers.internId(1);
+        HashKeyIndex rmItems = new HashKeyIndex();
+        rmItems.internId(10);
+        rmItems.internId(20);
+        rowMajorModel = new MFModel(2, new double[]{2, 0.2}, new double[]{0.1, -0.5, 2, -0.5},
+                                    rmUsers, rmItems);
     }
 
     @Test
@@ -95,4 +111,66 @@ public class BiasedMFItemScorerTest {
         Result score = scorer.score(17, 42);
         assertThat(score, nullValue());
     }
+
+    private ResultMap scoreRowMajor(BiasedMFItemScorer scorer) {
+        return scorer.scoreWithDetails(1, Arrays.asList(10L, 20L, 30L));
+    }
+
+    @Test
+    public void testBatchKernel() {
+        ResultMap results = scoreRowMajor(new BiasedMFItemScorer(rowMajorModel, new DotProductKernel(),
+                                                                 new ConstantItemScorer(3)));
+        assertThat(results.size(), equalTo(2));
+        assertThat(results.getScore(10), closeTo(3.1, 1.0e-6));
+        assertThat(results.getScore(20), closeTo(6.9, 1.0e-6));
+    }
+
+    @Test
+    public void testSingleItemKernel() {
+        BiasedMFKernel kernel = new BiasedMFKernel() {
+            @Override
+            public double apply(double bias, @Nonnull RealVector user, @Nonnull RealVector item) {
+                return bias - user.dotProduct(item);
+            }
+        };
+        ResultMap results = scoreRowMajor(new BiasedMFItemScorer(rowMajorModel, kernel,
+                                                                 new ConstantItemScorer(3)));
+        assertThat(results.size(), equalTo(2));
+        assertThat(results.getScore(10), closeTo(2.9, 1.0e-6));
+        assertThat(results.getScore(20), closeTo(-0.9, 1.0e-6));
+    }
+
+    @Test
+    public void testSubclassedBatchKernel() {
+        DomainClampingKernel kernel = new DomainClampingKernel(PreferenceDomain.fromString("[1,5]")) {
+            @Override
+            public double apply(double bias, @Nonnull RealVector user, @Nonnull RealVector item) {
+                return 0;
+            }
+
+            @Override
+            public void apply(@Nonnull double[] user, @Nonnull MFModel model,
+                              @Nonnull int[] items, int n, @Nonnull double[] scores) {
+                Arrays.fill(scores, 0, n, 0);
+            }
+        };
+        ResultMap results = scoreRowMajor(new BiasedMFItemScorer(rowMajorModel, kernel,
+                                                                 new ConstantItemScorer(3)));
+        assertThat(results.getScore(10), equalTo(0.0));
+        assertThat(results.getScore(20), equalTo(0.0));
+    }
+
+    @Test
+    public void testOverriddenPreferenceVector() {
+        BiasedMFItemScorer overriding = new BiasedMFItemScorer(rowMajorModel, new DotProductKernel(),
+                                                               new ConstantItemScorer(3)) {
+            @Override
+            protected RealVector getUserPreferenceVector(long user) {
+                return MatrixUtils.createRealVector(new double[]{1, 0});
+            }
+        };
+        ResultMap results = scoreRowMajor(overriding);
+        assertThat(results.getScore(10), closeTo(3.1, 1.0e-6));
+        assertThat(results.getScore(20), closeTo(5, 1.0e-6));
+    }
 }
@@ -23,6 +23,7 @@ package org.lenskit.mf.svd;
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealVector;
 import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.util.keys.HashKeyIndex;
 import org.junit.Test;
 
 import static org.hamcrest.Matchers.closeTo;
@@ -33,7 +34,7 @@ import static org.junit.Assert.assertThat;
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class DomainClampingKernelTest {
-    BiasedMFKernel kernel = new DomainClampingKernel(PreferenceDomain.fromString("[1,5]"));
+    DomainClampingKernel kernel = new DomainClampingKernel(PreferenceDomain.fromString("[1,5]"));
 
     @Test
     public void testEmptyVectors() throws Exception {
@@ -56,4 +57,21 @@ public class DomainClampingKernelTest {
         assertThat(kernel.apply(3, uv, iv),
                    closeTo(4.9, 1.0e-5));
     }
+
+    @Test
+    public void testBatchClamping() throws Exception {
+        HashKeyIndex uidx = new HashKeyIndex();
+        uidx.internId(1);
+        HashKeyIndex iidx = new HashKeyIndex();
+        iidx.internId(10);
+        iidx.internId(20);
+        MFModel model = new MFModel(2, new double[]{2, 0.2}, new double[]{0.1, -0.5, 2, -0.5},
+                                    uidx, iidx);
+        double[] scores = {Math.PI, 3, Math.PI};
+        kernel.apply(new double[]{2, 0.2}, model, new int[]{0, 1, 0}, 2, scores);
+        assertThat(scores[0], closeTo(Math.PI + 0.2 - 0.1, 1.0e-5));
+        assertThat(scores[1], closeTo(4.9, 1.0e-5));
+        // only the first n scores are touched
+        assertThat(scores[2], equalTo(Math.PI));
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.mf.svd;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.util.keys.HashKeyIndex;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MFModelTest {
+    private RealMatrix umat;
+    private RealMatrix imat;
+    private HashKeyIndex uidx;
+    private HashKeyIndex iidx;
+
+    @Before
+    public void createMatrices() {
+        umat = MatrixUtils.createRealMatrix(new double[][]{{0.1, 0.3}, {-0.2, 0.2}});
+        imat = MatrixUtils.createRealMatrix(new double[][]{{0.52, 0.29}, {0.3, -1.2}, {1, 2}});
+        uidx = new HashKeyIndex();
+        uidx.internId(1);
+        uidx.internId(5);
+        iidx = new HashKeyIndex();
+        iidx.internId(42);
+        iidx.internId(39);
+        iidx.internId(7);
+    }
+
+    @Test
+    public void testMatrixStorage() {
+        MFModel model = new MFModel(umat, imat, uidx, iidx);
+        assertThat(model.getFeatureCount(), equalTo(2));
+        assertThat(model.getUserMatrix(), equalTo(umat));
+        assertThat(model.getItemMatrix(), equalTo(imat));
+        assertThat(model.getUserFeature(5, 1), equalTo(0.2));
+        assertThat(model.getItemFeature(39, 0), equalTo(0.3));
+        assertThat(model.getUserFeatures(5), equalTo(new double[]{-0.2, 0.2}));
+        assertThat(model.getUserFeatures(17), nullValue());
+        assertThat(model.getItemVector(7).toArray(), equalTo(new double[]{1, 2}));
+    }
+
+    @Test
+    public void testArrayStorage() {
+        MFModel model = new MFModel(2, new double[]{0.1, 0.3, -0.2, 0.2},
+                                    new double[]{0.52, 0.29, 0.3, -1.2, 1, 2},
+                                    uidx, iidx);
+        assertThat(model.getUserMatrix(), equalTo(umat));
+        assertThat(model.getItemMatrix(), equalTo(imat));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadArrayLength() {
+        new MFModel(2, new double[]{0.1, 0.3, -0.2}, new double[6], uidx, iidx);
+    }
+
+    @Test
+    public void testAddItemScores() {
+        MFModel model = new MFModel(umat, imat, uidx, iidx);
+        double[] scores = {1, 2, 3};
+        model.addItemScores(new double[]{0.1, 0.3}, new int[]{2, 0, 1}, 3, scores);
+        assertThat(scores[0], closeTo(1 + 0.1 + 0.6, 1.0e-10));
+        assertThat(scores[1], closeTo(2 + 0.052 + 0.087, 1.0e-10));
+        assertThat(scores[2], closeTo(3 + 0.03 - 0.36, 1.0e-10));
+    }
+
+    @Test
+    public void testSerialize() {
+        MFModel model = new MFModel(umat, imat, uidx, iidx);
+        MFModel copy = SerializationUtils.clone(model);
+        assertThat(copy.getUserMatrix(), equalTo(umat));
+        assertThat(copy.getItemMatrix(), equalTo(imat));
+        assertThat(copy.getItemIndex().getKeyList(), equalTo(iidx.getKeyList()));
+    }
+
+    @Test
+    public void testMatrixViewsAreCached() {
+        MFModel model = new MFModel(umat, imat, uidx, iidx);
+        assertThat(model.getUserMatrix(), sameInstance(model.getUserMatrix()));
+        assertThat(model.getItemMatrix(), sameInstance(model.getItemMatrix()));
+        assertThat(model.getItemMatrix().getRow(1), equalTo(new double[]{0.3, -1.2}));
+    }
+}